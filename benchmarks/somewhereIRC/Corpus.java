@@ -0,0 +1,136 @@
+package somewhereIRC;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+** Corpus class of the SomewhereIRC benchmarks.
+** Generates repeatable sets of raw lines, shaped like the traffic of a busy network.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class Corpus {
+
+	//Corpus names, used as benchmark parameters
+	public static final String PRIVMSG = "privmsg";
+	public static final String NUMERIC = "numeric";
+	public static final String LONG_TRAILING = "long";
+	public static final String MIXED = "mixed";
+	public static final String COLORED = "colored";
+
+	//Words the generated messages are made of
+	private static final String[] WORDS = {
+		"the", "build", "is", "green", "again", "deploy", "failed", "on", "staging", "can",
+		"someone", "look", "at", "this", "lol", "ok", "thanks", "merged", "PR", "review",
+		"https://example.org/ci/job/1234", "restart", "please", "brb", "ping", "netsplit"
+	};
+
+	/**
+	** Returns the lines of the named corpus.
+	** @param name One of the corpus names
+	** @param size The number of lines
+	** @return the raw lines, without line terminators
+	*/
+	public static String[] get(String name, int size) {
+		Random random = new Random(42);
+		String[] lines = new String[size];
+		for (int i = 0; i < size; i++) {
+			if (name.equals(PRIVMSG)) lines[i] = privmsg(random, 12);
+			else if (name.equals(NUMERIC)) lines[i] = numeric(random);
+			else if (name.equals(LONG_TRAILING)) lines[i] = privmsg(random, 70);
+			else if (name.equals(COLORED)) lines[i] = colored(random);
+			else lines[i] = mixed(random);
+		}
+		return lines;
+	}
+
+	/**
+	** Returns a set of lines as typed into a chat window.
+	** @param size The number of lines
+	** @return the user input lines
+	*/
+	public static String[] userInput(int size) {
+		Random random = new Random(42);
+		String[] lines = new String[size];
+		for (int i = 0; i < size; i++) {
+			if (i % 10 == 0) lines[i] = "/quit " + text(random, 3);
+			else lines[i] = "PRIVMSG #dev :" + text(random, 10);
+		}
+		return lines;
+	}
+
+	/**
+	** Returns a PRIVMSG to a channel.
+	*/
+	private static String privmsg(Random random, int words) {
+		return ":" + nick(random) + "!~user@host-" + random.nextInt(4096) + ".example.net PRIVMSG #channel"
+			+ random.nextInt(8) + " :" + text(random, 1 + random.nextInt(words));
+	}
+
+	/**
+	** Returns a 353 NAMES or 352 WHO reply, as seen in floods after joining a large channel.
+	*/
+	private static String numeric(Random random) {
+		if (random.nextBoolean()) {
+			StringBuilder names = new StringBuilder(":irc.example.net 353 TestClient = #big :");
+			for (int i = 0; i < 40; i++) {
+				if (i > 0) names.append(' ');
+				if (random.nextInt(10) == 0) names.append('@');
+				names.append(nick(random));
+			}
+			return names.toString();
+		}
+		return ":irc.example.net 352 TestClient #big ~user host-" + random.nextInt(4096)
+			+ ".example.net irc.example.net " + nick(random) + " H :0 Real Name";
+	}
+
+	/**
+	** Returns the text of a line with mIRC formatting, as a CI bot or an ASCII art script sends it.
+	*/
+	private static String colored(Random random) {
+		StringBuilder line = new StringBuilder();
+		if (random.nextInt(4) > 0) {
+			line.append("\u000303[CI]\u0003 \u0002build #").append(random.nextInt(10000)).append("\u0002 on \u000312")
+				.append(WORDS[random.nextInt(WORDS.length)]).append("\u000f: ")
+				.append(random.nextBoolean() ? "\u000304failed\u0003 " : "\u000309passed\u0003 ").append(text(random, 6));
+			return line.toString();
+		}
+		for (int i = 0; i < 40; i++) {
+			line.append('\u0003').append(random.nextInt(16)).append(',').append(random.nextInt(16)).append(random.nextInt(3) == 0 ? "##" : "  ");
+		}
+		return line.toString();
+	}
+
+	/**
+	** Returns a line from the traffic mix of a busy network.
+	*/
+	private static String mixed(Random random) {
+		int kind = random.nextInt(20);
+		if (kind < 12) return privmsg(random, 12);
+		if (kind < 15) return numeric(random);
+		if (kind < 17) return ":" + nick(random) + "!~user@host.example.net JOIN #channel" + random.nextInt(8);
+		if (kind < 19) return ":" + nick(random) + "!~user@host.example.net QUIT :*.net *.split";
+		return "PING :irc.example.net";
+	}
+
+	/**
+	** Returns a nickname out of a pool of a few thousand.
+	*/
+	private static String nick(Random random) {
+		return "user" + random.nextInt(5000);
+	}
+
+	/**
+	** Returns some words of text.
+	*/
+	private static String text(Random random, int words) {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < words; i++) {
+			if (i > 0) text.append(' ');
+			text.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		return text.toString();
+	}
+
+}
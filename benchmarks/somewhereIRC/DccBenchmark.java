@@ -0,0 +1,204 @@
+package somewhereIRC;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import java.io.IOException;
+
+/**
+** DCC benchmark of the SomewhereIRC client.
+** Connects two sessions to a FakeServer on localhost and has one send the other a file over DCC, while
+** the sender keeps messaging the receiver through the server. Reports the throughput of the transfer and
+** the latency of those messages before and during it, which should not change: the transfer has its own
+** socket and thread, and its bytes never reach the heap. Options are given as key=value:
+**
+**   megabytes=2048     size of the file sent
+**   passive=false      whether the file is offered passively, the receiver listening
+**   resume=false       whether the receiver already has the first half of the file, and resumes it
+**   dir=               directory for the file sent and the one received, the temporary directory by default
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class DccBenchmark implements SessionListener {
+
+	//Constants
+	private static final String SENDER = "dccsender";
+	private static final String RECEIVER = "dccreceiver";
+	private static final String STAMP = "@@";
+	private static final long MESSAGE_INTERVAL = 50;
+
+	//Measurements, written by the receiver's thread
+	private volatile Histogram latency = new Histogram();
+	private final CountDownLatch registered = new CountDownLatch(2);
+	private final CountDownLatch finished = new CountDownLatch(1);
+	private volatile String result;
+
+	public void sessionOpened(SomewhereIRC session) {}
+
+	public void statusChanged(SomewhereIRC session, SomewhereIRC.Status status) {}
+
+	public void registered(SomewhereIRC session, String nick) {
+		registered.countDown();
+	}
+
+	/**
+	** Accepts the offer, notes the end of the transfer, and measures the latency of the messages.
+	*/
+	public void lineDisplayed(SomewhereIRC session, String target, String text) {
+		long now = System.nanoTime();
+		int stamp = text.indexOf(STAMP);
+		if (stamp >= 0) {
+			latency.record(now - Long.parseLong(text.substring(stamp + STAMP.length()).trim()));
+			return;
+		}
+		if (!text.startsWith("DCC: ")) return;
+		System.out.println(session.getHost() + " " + text);
+		if (text.startsWith("DCC: " + SENDER + " offers ")) session.send("/dcc get " + SENDER);
+		else if (text.startsWith("DCC: Received ") || text.contains(" failed at ")) {
+			result = text;
+			finished.countDown();
+		}
+	}
+
+	public void linesDisplayed(SomewhereIRC session, String target, String[] texts) {
+		for (String text : texts) lineDisplayed(session, target, text);
+	}
+
+	public void highlighted(SomewhereIRC session, String target, String text) {}
+
+	public void sessionClosed(SomewhereIRC session) {}
+
+	/**
+	** Writes a file of the given size, the same bytes every run.
+	*/
+	private static void writeFile(File file, long size) throws IOException {
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		FileChannel channel = out.getChannel();
+		ByteBuffer block = ByteBuffer.allocateDirect(1 << 20);
+		long seed = 42;
+		for (long position = 0; position < size; position += block.capacity()) {
+			block.clear();
+			while (block.hasRemaining()) {
+				seed = seed * 6364136223846793005L + 1442695040888963407L;
+				block.putLong(seed);
+			}
+			block.flip();
+			block.limit((int) Math.min(block.capacity(), size - position));
+			while (block.hasRemaining()) channel.write(block);
+		}
+		out.setLength(size);
+		out.close();
+	}
+
+	/**
+	** Returns the CRC32 of a file.
+	*/
+	private static long checksum(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+		ByteBuffer block = ByteBuffer.allocateDirect(1 << 20);
+		while (channel.read(block) > 0) {
+			block.flip();
+			crc.update(block);
+			block.clear();
+		}
+		channel.close();
+		return crc.getValue();
+	}
+
+	/**
+	** Sends the messages carrying their time every MESSAGE_INTERVAL for a while.
+	*/
+	private static void message(SomewhereIRC sender, long millis) throws InterruptedException {
+		long end = System.currentTimeMillis() + millis;
+		while (System.currentTimeMillis() < end) {
+			sender.send("PRIVMSG " + RECEIVER + " :" + STAMP + System.nanoTime());
+			Thread.sleep(MESSAGE_INTERVAL);
+		}
+	}
+
+	/**
+	** Runs the benchmark.
+	** @param args The options, as key=value
+	*/
+	public static void main(String args[]) throws IOException, InterruptedException {
+		HashMap<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (equals > 0) options.put(arg.substring(0, equals), arg.substring(equals + 1));
+		}
+		long size = Long.parseLong(options.containsKey("megabytes") ? options.get("megabytes") : "2048") << 20;
+		boolean passive = Boolean.parseBoolean(options.get("passive"));
+		boolean resume = Boolean.parseBoolean(options.get("resume"));
+		File dir = new File(options.containsKey("dir") ? options.get("dir") : System.getProperty("java.io.tmpdir"), "somewhereIRC-dcc");
+		File downloads = new File(dir, "downloads");
+		downloads.mkdirs();
+		System.setProperty("somewhereIRC.dccDir", downloads.getPath());
+		System.setProperty("somewhereIRC.floodInterval", "0");
+		System.setProperty("somewhereIRC.snapshot", "false");
+
+		//The file to send, and what the receiver already has of it
+		File file = new File(dir, "artifact.bin");
+		if (file.length() != size) writeFile(file, size);
+		File received = new File(downloads, file.getName());
+		received.delete();
+		if (resume) {
+			FileChannel from = new RandomAccessFile(file, "r").getChannel();
+			FileChannel to = new RandomAccessFile(received, "rw").getChannel();
+			from.transferTo(0, size / 2, to);
+			from.close();
+			to.close();
+		}
+
+		//Connect both sessions
+		FakeServer server = new FakeServer(0);
+		DccBenchmark benchmark = new DccBenchmark();
+		ConnectionRegistry registry = new ConnectionRegistry();
+		SomewhereIRC sender = new SomewhereIRC("127.0.0.1", server.getPort(), SomewhereIRC.DEFAULT_MODE, SENDER, benchmark);
+		SomewhereIRC receiver = new SomewhereIRC("127.0.0.1", server.getPort(), SomewhereIRC.DEFAULT_MODE, RECEIVER, benchmark);
+		registry.add(sender);
+		registry.add(receiver);
+		if (!benchmark.registered.await(30, TimeUnit.SECONDS)) {
+			System.out.println("\tERROR: The sessions did not register.");
+			System.exit(1);
+		}
+
+		//Latency of the messages alone, then during the transfer
+		message(sender, 2000);
+		Histogram idle = benchmark.latency;
+		benchmark.latency = new Histogram();
+		sender.send("/dcc send " + (passive ? "-passive " : "") + RECEIVER + " " + file.getPath());
+		while (benchmark.finished.getCount() > 0) message(sender, 500);
+		Histogram busy = benchmark.latency;
+
+		System.out.println();
+		System.out.println(benchmark.result);
+		System.out.println("Message latency idle p50 " + micros(idle.getPercentile(50)) + " p99 " + micros(idle.getPercentile(99))
+			+ " us, during the transfer p50 " + micros(busy.getPercentile(50)) + " p99 " + micros(busy.getPercentile(99))
+			+ " us (" + busy.getCount() + " messages)");
+		boolean same = received.length() == size && checksum(received) == checksum(file);
+		System.out.println("Received file " + (same ? "matches" : "DOES NOT match") + " the one sent");
+		System.out.println("Sender: " + sender.getMetrics().getSummary());
+		received.delete();
+		sender.send("/quit");
+		receiver.send("/quit");
+		Thread.sleep(500);
+		server.close();
+		System.exit(same ? 0 : 1);
+	}
+
+	/**
+	** Converts nanoseconds to microseconds.
+	*/
+	private static long micros(long nanos) {
+		return nanos / 1000;
+	}
+
+}
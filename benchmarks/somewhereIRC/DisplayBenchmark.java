@@ -0,0 +1,49 @@
+package somewhereIRC;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+** Display benchmark of the SomewhereIRC client.
+** Measures appending a line to a window's display, once it already holds some history.
+** Lines are staged and drained once per frame on the event dispatch thread,
+** so this measures what the network thread pays per line; it should not grow with the history.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DisplayBenchmark {
+
+	@Param({"0", "10000", "100000"})
+	public int history;
+
+	private String[] lines;
+	private int next;
+	private ScrollbackView display;
+
+	@Setup(Level.Iteration)
+	public void setup() {
+		lines = Corpus.get(Corpus.MIXED, 4096);
+		display = new ScrollbackView();
+		for (int i = 0; i < history; i++) display.append(lines[i & (lines.length - 1)]);
+	}
+
+	@Benchmark
+	public void append() {
+		next = (next + 1) & (lines.length - 1);
+		display.append(lines[next]);
+	}
+
+}
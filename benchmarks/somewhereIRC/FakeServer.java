@@ -0,0 +1,388 @@
+package somewhereIRC;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.TimeZone;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import java.io.IOException;
+
+/**
+** Stand-in IRC server for the SomewhereIRC load tests.
+** Listens on localhost and speaks just enough of the protocol for the client: registration (001 to 005),
+** PING/PONG, JOIN with its NAMES reply, PART and QUIT, PRIVMSG and NOTICE between connected clients
+** (enough for their DCC offers), and when turned on the IRCv3 capabilities
+** message-tags, server-time, batch and draft/chathistory. It can speak TLS, with the key and certificate of
+** a key store such as the self-signed one made by keytool. Simulated users exist only as channel members;
+** the load generator makes them talk, join and quit by writing lines to every connected client.
+** Each client gets a thread reading its input; writes come from whoever calls the send methods.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class FakeServer implements Runnable {
+
+	//Constants
+	public static final String NAME = "fake.ircd";
+	private static final int NAMES_LINE = 400;
+
+	/**
+	** One connected client.
+	*/
+	private class Client implements Runnable {
+		final SocketChannel channel;
+		ByteChannel io;
+		String nick = "*";
+		boolean negotiating = false, userSent = false;
+
+		Client(SocketChannel channel) {
+			this.channel = channel;
+			this.io = channel;
+		}
+
+		/**
+		** Writes lines, each already ending in CRLF, blocking until the client takes them all.
+		*/
+		synchronized void write(CharSequence lines) throws IOException {
+			ByteBuffer bytes = StandardCharsets.UTF_8.encode(lines.toString());
+			while (bytes.hasRemaining()) io.write(bytes);
+		}
+
+		/**
+		** Reads and answers the client's lines until it goes away.
+		*/
+		public void run() {
+			LineFramer in = new LineFramer();
+			try {
+				//Only take part in the broadcasts once TLS is up
+				SSLContext context = tls;
+				if (context != null) {
+					SSLEngine engine = context.createSSLEngine();
+					engine.setUseClientMode(false);
+					TlsChannel secure = new TlsChannel(channel, engine);
+					TlsChannel.Handshake step;
+					while ((step = secure.handshake()) != TlsChannel.Handshake.DONE) {
+						if (step == TlsChannel.Handshake.TASK) secure.runTasks();
+					}
+					io = secure;
+				}
+				clients.add(this);
+				while (in.read(io)) {
+					String line;
+					while ((line = in.nextLine()) != null) handle(this, line);
+				}
+			} catch (IOException e) {}
+			clients.remove(this);
+			try {
+				channel.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	//Server variables
+	private final ServerSocketChannel server;
+	private final Thread acceptor;
+	private final CopyOnWriteArrayList<Client> clients = new CopyOnWriteArrayList<Client>();
+	private volatile boolean running = true;
+	private volatile SSLContext tls;
+
+	//IRCv3 support, and the lines of history each channel has
+	private volatile boolean capabilities = false;
+	private volatile int history = 0;
+	private static final String CAPABILITIES = "message-tags server-time batch draft/chathistory";
+
+	//Channels and their simulated members
+	private final LinkedHashMap<String, LinkedHashSet<String>> channels = new LinkedHashMap<String, LinkedHashSet<String>>();
+
+	/**
+	** Constructor that binds the server to a port of localhost and starts accepting clients.
+	** @param port The port, or 0 for any free port
+	*/
+	public FakeServer(int port) throws IOException {
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("127.0.0.1", port));
+		acceptor = new Thread(this, "FakeServer acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	** Makes the clients connecting from now on speak TLS, with the key and certificate of a key store.
+	** @param keyStore The path of the key store, PKCS12 or JKS
+	** @param password The password of the store and of its key
+	*/
+	public void setTls(String keyStore, String password) throws IOException {
+		tls = TlsChannel.newServerContext(keyStore, password);
+	}
+
+	/**
+	** Turns the IRCv3 capabilities on or off. Without them CAP is ignored, as an old server would.
+	** @param on Whether to offer the capabilities
+	*/
+	public void setCapabilities(boolean on) {
+		capabilities = on;
+	}
+
+	/**
+	** Sets the number of lines of history of every channel, sent in a batch for CHATHISTORY.
+	** @param lines The number of lines
+	*/
+	public void setHistory(int lines) {
+		history = lines;
+	}
+
+	/**
+	** Returns the port the server listens on.
+	** @return the port
+	*/
+	public int getPort() {
+		try {
+			return ((InetSocketAddress) server.getLocalAddress()).getPort();
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/**
+	** Returns the number of connected clients.
+	** @return the number of clients
+	*/
+	public int getClientCount() {
+		return clients.size();
+	}
+
+	/**
+	** Accepts clients until closed.
+	*/
+	public void run() {
+		while (running) {
+			try {
+				Client client = new Client(server.accept());
+				Thread reader = new Thread(client, "FakeServer client");
+				reader.setDaemon(true);
+				reader.start();
+			} catch (IOException e) {
+				if (running) System.out.println("\tERROR: FakeServer could not accept: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	** Answers one line from a client.
+	*/
+	private void handle(Client client, String line) throws IOException {
+		IrcMessage msg = new IrcMessage();
+		if (!msg.parse(line)) return;
+		switch (msg.getCommandType()) {
+			case NICK:
+				client.nick = msg.getParam(0);
+				break;
+			case PING:
+				client.write(":" + NAME + " PONG " + NAME + " :" + msg.getLastParam() + "\r\n");
+				break;
+			case CAP:
+				if (capabilities) cap(client, msg);
+				break;
+			case UNKNOWN:
+				if (msg.isCommand("USER")) {
+					client.userSent = true;
+					if (!client.negotiating) welcome(client);
+				}
+				else if (msg.isCommand("CHATHISTORY") && msg.getParamCount() > 3) history(client, msg.getParam(1), Integer.parseInt(msg.getParam(3)));
+				break;
+			case JOIN:
+				for (String name : msg.getParam(0).split(",")) join(client, name);
+				break;
+			case PRIVMSG:
+			case NOTICE:
+				relay(client, msg);
+				break;
+			case PART:
+				client.write(":" + client.nick + "!user@localhost PART " + msg.getParam(0) + "\r\n");
+				break;
+			case QUIT:
+				client.write("ERROR :Closing link (" + msg.getLastParam() + ")\r\n");
+				client.channel.close();
+				break;
+			default:
+				break;
+		}
+	}
+
+	/**
+	** Passes a PRIVMSG or NOTICE on to the client it is addressed to, if it is connected.
+	*/
+	private void relay(Client from, IrcMessage msg) throws IOException {
+		if (msg.getParamCount() < 2) return;
+		for (Client client : clients) {
+			if (!client.nick.equalsIgnoreCase(msg.getParam(0))) continue;
+			client.write(":" + from.nick + "!user@localhost " + msg.getCommand() + " " + msg.getParam(0) + " :" + msg.getLastParam() + "\r\n");
+		}
+	}
+
+	/**
+	** Answers a CAP message, holding registration back from LS until END.
+	*/
+	private void cap(Client client, IrcMessage msg) throws IOException {
+		if (msg.paramEquals(0, "LS")) {
+			client.negotiating = true;
+			client.write(":" + NAME + " CAP " + client.nick + " LS :" + CAPABILITIES + "\r\n");
+		}
+		else if (msg.paramEquals(0, "REQ")) client.write(":" + NAME + " CAP " + client.nick + " ACK :" + msg.getLastParam() + "\r\n");
+		else if (msg.paramEquals(0, "END")) {
+			client.negotiating = false;
+			if (client.userSent) welcome(client);
+		}
+	}
+
+	/**
+	** Sends the history of a channel in a chathistory batch, oldest first, a second apart up to now.
+	*/
+	private void history(Client client, String channel, int limit) throws IOException {
+		int lines = Math.min(limit, history);
+		SimpleDateFormat serverTime = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		serverTime.setTimeZone(TimeZone.getTimeZone("UTC"));
+		StringBuilder batch = new StringBuilder();
+		batch.append(':').append(NAME).append(" BATCH +history ").append("chathistory ").append(channel).append("\r\n");
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < lines; i++) {
+			batch.append("@batch=history;time=").append(serverTime.format(new Date(now - (lines - i) * 1000L)))
+				.append(" :user").append(i % 100).append("!sim@history.host PRIVMSG ").append(channel).append(" :history line ").append(i).append("\r\n");
+		}
+		batch.append(':').append(NAME).append(" BATCH -history\r\n");
+		client.write(batch);
+	}
+
+	/**
+	** Sends the registration replies.
+	*/
+	private void welcome(Client client) throws IOException {
+		String nick = client.nick;
+		client.write(
+			":" + NAME + " 001 " + nick + " :Welcome to the fake network " + nick + "\r\n"
+			+ ":" + NAME + " 002 " + nick + " :Your host is " + NAME + "\r\n"
+			+ ":" + NAME + " 003 " + nick + " :This server was created today\r\n"
+			+ ":" + NAME + " 004 " + nick + " " + NAME + " fake-1.0 iow bklmnopstv\r\n"
+			+ ":" + NAME + " 005 " + nick + " PREFIX=(ov)@+ CHANMODES=b,k,l,imnpst CASEMAPPING=rfc1459 :are supported by this server\r\n"
+		);
+	}
+
+	/**
+	** Joins the client to a channel, sending it the whole member list.
+	*/
+	private void join(Client client, String name) throws IOException {
+		StringBuilder lines = new StringBuilder();
+		lines.append(':').append(client.nick).append("!user@localhost JOIN ").append(name).append("\r\n");
+		appendNames(lines, client.nick, name);
+		client.write(lines);
+	}
+
+	/**
+	** Appends a full NAMES reply (353 lines, then 366) for a channel.
+	*/
+	private void appendNames(StringBuilder lines, String nick, String name) {
+		ArrayList<String> members;
+		synchronized (channels) {
+			LinkedHashSet<String> set = channels.get(name);
+			members = set == null ? new ArrayList<String>() : new ArrayList<String>(set);
+		}
+		members.add(nick);
+		String head = ":" + NAME + " 353 " + nick + " = " + name + " :";
+		int start = lines.length();
+		lines.append(head);
+		for (int i = 0; i < members.size(); i++) {
+			if (lines.length() - start > NAMES_LINE) {
+				lines.append("\r\n");
+				start = lines.length();
+				lines.append(head);
+			}
+			if (i % 50 == 0) lines.append('@');
+			lines.append(members.get(i)).append(' ');
+		}
+		lines.append("\r\n:").append(NAME).append(" 366 ").append(nick).append(' ').append(name).append(" :End of /NAMES list.\r\n");
+	}
+
+	/**
+	** Adds a simulated member to a channel, without telling the clients.
+	** @param channel The channel
+	** @param nick The nick of the member
+	*/
+	public void addMember(String channel, String nick) {
+		synchronized (channels) {
+			LinkedHashSet<String> members = channels.get(channel);
+			if (members == null) {
+				members = new LinkedHashSet<String>();
+				channels.put(channel, members);
+			}
+			members.add(nick);
+		}
+	}
+
+	/**
+	** Removes a simulated member from a channel, without telling the clients.
+	** @param channel The channel
+	** @param nick The nick of the member
+	*/
+	public void removeMember(String channel, String nick) {
+		synchronized (channels) {
+			LinkedHashSet<String> members = channels.get(channel);
+			if (members != null) members.remove(nick);
+		}
+	}
+
+	/**
+	** Sends a full NAMES reply for a channel to every client, as a burst.
+	** @param channel The channel
+	*/
+	public void sendNames(String channel) throws IOException {
+		for (Client client : clients) {
+			StringBuilder lines = new StringBuilder();
+			appendNames(lines, client.nick, channel);
+			client.write(lines);
+		}
+	}
+
+	/**
+	** Sends raw lines, each ending in CRLF, to every client.
+	** @param lines The lines
+	*/
+	public void sendAll(CharSequence lines) throws IOException {
+		for (Client client : clients) client.write(lines);
+	}
+
+	/**
+	** Stops accepting and disconnects every client.
+	*/
+	public void close() {
+		running = false;
+		try {
+			server.close();
+		} catch (IOException e) {}
+		dropClients();
+	}
+
+	/**
+	** Disconnects every client at once, as a server restart would, leaving them to reconnect.
+	*/
+	public void dropClients() {
+		for (Client client : clients) {
+			clients.remove(client);
+			try {
+				client.channel.close();
+			} catch (IOException e) {}
+		}
+	}
+
+}
@@ -0,0 +1,333 @@
+package somewhereIRC;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import java.io.IOException;
+
+/**
+** End-to-end load test of the SomewhereIRC client.
+** Starts a FakeServer on localhost, connects one client session to it, and has simulated users
+** flood the channels at a fixed rate, with huge NAMES bursts and netsplits thrown in. Every PRIVMSG
+** carries the System.nanoTime() it was written at, so the latency from the server's write to the
+** line reaching the front end is measured in the same JVM. Options are given as key=value:
+**
+**   users=500          simulated users talking in every channel
+**   names=20000        members of every channel, counting the idle ones, sent in the NAMES burst on join
+**   channels=4         channels joined
+**   rate=20000         lines per second written by the server
+**   seconds=30         length of the measurement
+**   warmup=5           seconds of load before measuring
+**   namesEvery=0       seconds between unsolicited NAMES bursts of every channel, 0 for none
+**   netsplitEvery=0    seconds between netsplits, 0 for none
+**   split=0.3          share of the users quitting in a netsplit, rejoining splitSeconds later
+**   splitSeconds=2
+**   batch=true         whether the server offers the IRCv3 capabilities, sending netsplits and netjoins as batches
+**   history=0          lines of history replayed in a chathistory batch when joining a channel
+**   mode=loop          loop or virtual, how the client runs its connection
+**   display=true       whether lines are also appended to a ScrollbackView, as a window would
+**   tls=false          whether the client connects with TLS
+**   keystore=fake.p12  key store holding the server's key and self-signed certificate, also trusted by the client
+**   password=changeit  password of the key store
+**   dropEvery=0        seconds between the server dropping every connection, 0 for none, to time TLS reconnects
+**
+** If the client cannot keep up the server blocks on the socket, so the reported lines/sec is what the
+** client sustains rather than what was asked for.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class LoadGenerator implements SessionListener {
+
+	//Constants
+	private static final String STAMP = "@@";
+	private static final int BATCH = 256;
+
+	//Measurements, written by the session's thread and read by the generator
+	private final AtomicLong stampedLines = new AtomicLong();
+	private final Histogram latency = new Histogram();
+	private volatile Histogram interval = new Histogram();
+	private volatile long namesSent = 0;
+	private final Histogram namesTime = new Histogram();
+	private final CountDownLatch joined;
+	private final CountDownLatch closed = new CountDownLatch(1);
+	private final String[] channels;
+
+	/**
+	** Constructor given the channels to join.
+	** @param channels The channels
+	*/
+	public LoadGenerator(String[] channels) {
+		this.channels = channels;
+		joined = new CountDownLatch(channels.length);
+	}
+
+	public void sessionOpened(SomewhereIRC session) {}
+
+	public void statusChanged(SomewhereIRC session, SomewhereIRC.Status status) {}
+
+	/**
+	** Joins the channels, starting the NAMES bursts.
+	*/
+	public void registered(SomewhereIRC session, String nick) {
+		namesSent = System.nanoTime();
+		for (String channel : channels) session.send("JOIN " + channel);
+	}
+
+	/**
+	** Measures the latency of stamped lines, and the time taken by NAMES bursts.
+	*/
+	public void lineDisplayed(SomewhereIRC session, String target, String text) {
+		long now = System.nanoTime();
+		int stamp = text.indexOf(STAMP);
+		if (stamp >= 0) {
+			long sent = 0;
+			for (int i = stamp + STAMP.length(); i < text.length(); i++) {
+				char c = text.charAt(i);
+				if (c < '0' || c > '9') break;
+				sent = sent * 10 + (c - '0');
+			}
+			latency.record(now - sent);
+			interval.record(now - sent);
+			stampedLines.incrementAndGet();
+		}
+		else if (text.contains(" 366 ")) {
+			namesTime.record(now - namesSent);
+			joined.countDown();
+		}
+	}
+
+	/**
+	** Measures the lines of a batch, like lines shown one by one.
+	*/
+	public void linesDisplayed(SomewhereIRC session, String target, String[] texts) {
+		for (String text : texts) lineDisplayed(session, target, text);
+	}
+
+	public void highlighted(SomewhereIRC session, String target, String text) {}
+
+	public void sessionClosed(SomewhereIRC session) {
+		closed.countDown();
+	}
+
+	/**
+	** Returns the used heap, in megabytes.
+	*/
+	private static long heapMB() {
+		Runtime runtime = Runtime.getRuntime();
+		return (runtime.totalMemory() - runtime.freeMemory()) >> 20;
+	}
+
+	/**
+	** Formats nanoseconds as milliseconds.
+	*/
+	private static String ms(long nanos) {
+		return String.format("%.2f", nanos / 1e6);
+	}
+
+	/**
+	** Runs the load test.
+	** @param args The options, as key=value
+	*/
+	public static void main(String args[]) throws IOException, InterruptedException {
+		System.setProperty("java.awt.headless", "true");
+		//The joins should not wait on the flood control of the client
+		if (System.getProperty("somewhereIRC.floodBurst") == null) System.setProperty("somewhereIRC.floodBurst", "100");
+		//Nor should the fake network come back the next time the client starts
+		if (System.getProperty("somewhereIRC.snapshot") == null) System.setProperty("somewhereIRC.snapshot", "false");
+		HashMap<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (equals < 0) {
+				System.out.println("Usage: java somewhereIRC.LoadGenerator [key=value]...");
+				System.exit(2);
+			}
+			options.put(arg.substring(0, equals), arg.substring(equals + 1));
+		}
+		int users = Integer.parseInt(option(options, "users", "500"));
+		int names = Math.max(users, Integer.parseInt(option(options, "names", "20000")));
+		int channelCount = Integer.parseInt(option(options, "channels", "4"));
+		long rate = Long.parseLong(option(options, "rate", "20000"));
+		int seconds = Integer.parseInt(option(options, "seconds", "30"));
+		int warmup = Integer.parseInt(option(options, "warmup", "5"));
+		int namesEvery = Integer.parseInt(option(options, "namesEvery", "0"));
+		int netsplitEvery = Integer.parseInt(option(options, "netsplitEvery", "0"));
+		double split = Double.parseDouble(option(options, "split", "0.3"));
+		int splitSeconds = Integer.parseInt(option(options, "splitSeconds", "2"));
+		SomewhereIRC.ExecutionMode mode = "virtual".equalsIgnoreCase(option(options, "mode", "loop"))
+			? SomewhereIRC.ExecutionMode.VIRTUAL_THREADS : SomewhereIRC.ExecutionMode.EVENT_LOOP;
+		boolean display = Boolean.parseBoolean(option(options, "display", "true"));
+		boolean batches = Boolean.parseBoolean(option(options, "batch", "true"));
+		int history = Integer.parseInt(option(options, "history", "0"));
+		boolean tls = Boolean.parseBoolean(option(options, "tls", "false"));
+		String keyStore = option(options, "keystore", "fake.p12");
+		String password = option(options, "password", "changeit");
+		int dropEvery = Integer.parseInt(option(options, "dropEvery", "0"));
+		if (tls && System.getProperty("somewhereIRC.trustStore") == null) {
+			System.setProperty("somewhereIRC.trustStore", keyStore);
+			System.setProperty("somewhereIRC.trustStorePassword", password);
+		}
+
+		//Fill the channels, the talking users first
+		FakeServer server = new FakeServer(0);
+		server.setCapabilities(batches);
+		server.setHistory(history);
+		if (tls) server.setTls(keyStore, password);
+		String[] channels = new String[channelCount];
+		for (int c = 0; c < channelCount; c++) {
+			channels[c] = "#load" + c;
+			for (int u = 0; u < users; u++) server.addMember(channels[c], "user" + u);
+			for (int u = users; u < names; u++) server.addMember(channels[c], "idle" + u);
+		}
+
+		//Connect and wait for the NAMES bursts
+		LoadGenerator generator = new LoadGenerator(channels);
+		ScrollbackView view = display ? new ScrollbackView() : null;
+		SomewhereIRC session = new SomewhereIRC("127.0.0.1", server.getPort(), mode, "loadclient", tls, generator);
+		if (view != null) session.addListener(new SwingFrontEnd(view));
+		new ConnectionRegistry().add(session);
+		if (!generator.joined.await(60, TimeUnit.SECONDS)) {
+			System.out.println("\tERROR: The client did not join the channels.");
+			System.exit(1);
+		}
+		System.out.println("Joined " + channelCount + " channels of " + names + " members, NAMES took "
+			+ ms(generator.namesTime.getPercentile(100)) + " ms, heap " + heapMB() + " MB");
+
+		//Flood until done
+		Random random = new Random(42);
+		boolean[] away = new boolean[users];
+		ArrayList<Integer> splitUsers = new ArrayList<Integer>();
+		StringBuilder batch = new StringBuilder(BATCH * 80);
+		long start = System.nanoTime();
+		long measureStart = start + TimeUnit.SECONDS.toNanos(warmup);
+		long end = measureStart + TimeUnit.SECONDS.toNanos(seconds);
+		long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+		long nextNames = namesEvery > 0 ? start + TimeUnit.SECONDS.toNanos(namesEvery) : Long.MAX_VALUE;
+		long nextSplit = netsplitEvery > 0 ? start + TimeUnit.SECONDS.toNanos(netsplitEvery) : Long.MAX_VALUE;
+		long nextDrop = dropEvery > 0 ? start + TimeUnit.SECONDS.toNanos(dropEvery) : Long.MAX_VALUE;
+		long rejoin = Long.MAX_VALUE;
+		long sent = 0, measuredFrom = 0, lastReported = 0, peakHeap = 0;
+		while (true) {
+			long now = System.nanoTime();
+			if (now >= end) break;
+
+			//Once a second, report the last second
+			if (now >= nextReport) {
+				long displayed = generator.stampedLines.get();
+				Histogram last = generator.interval;
+				generator.interval = new Histogram();
+				long heap = heapMB();
+				peakHeap = Math.max(peakHeap, heap);
+				System.out.println(String.format("%4ds %s %8d lines/s, latency p50 %s p99 %s p99.9 %s ms, heap %d MB",
+					TimeUnit.NANOSECONDS.toSeconds(now - start), now < measureStart ? "warmup " : "measure",
+					displayed - lastReported, ms(last.getPercentile(50)), ms(last.getPercentile(99)),
+					ms(last.getPercentile(99.9)), heap));
+				lastReported = displayed;
+				nextReport += TimeUnit.SECONDS.toNanos(1);
+			}
+			if (measuredFrom == 0 && now >= measureStart) measuredFrom = generator.stampedLines.get();
+
+			//Netsplit: some users quit at once, and come back together a little later
+			if (now >= nextSplit) {
+				String tag = batches ? "@batch=split " : "";
+				if (batches) batch.append(':').append(FakeServer.NAME).append(" BATCH +split netsplit irc.hub.net irc.leaf.net\r\n");
+				for (int u = 0; u < users; u++) {
+					if (away[u] || random.nextDouble() >= split) continue;
+					away[u] = true;
+					splitUsers.add(u);
+					batch.append(tag).append(":user").append(u).append("!sim@split.host QUIT :irc.hub.net irc.leaf.net\r\n");
+					for (String channel : channels) server.removeMember(channel, "user" + u);
+				}
+				if (batches) batch.append(':').append(FakeServer.NAME).append(" BATCH -split\r\n");
+				server.sendAll(batch);
+				batch.setLength(0);
+				rejoin = now + TimeUnit.SECONDS.toNanos(splitSeconds);
+				nextSplit += TimeUnit.SECONDS.toNanos(netsplitEvery);
+			}
+			if (now >= rejoin) {
+				String tag = batches ? "@batch=join " : "";
+				if (batches) batch.append(':').append(FakeServer.NAME).append(" BATCH +join netjoin irc.hub.net irc.leaf.net\r\n");
+				for (int u : splitUsers) {
+					away[u] = false;
+					for (String channel : channels) {
+						batch.append(tag).append(":user").append(u).append("!sim@split.host JOIN ").append(channel).append("\r\n");
+						server.addMember(channel, "user" + u);
+					}
+				}
+				if (batches) batch.append(':').append(FakeServer.NAME).append(" BATCH -join\r\n");
+				server.sendAll(batch);
+				batch.setLength(0);
+				splitUsers.clear();
+				rejoin = Long.MAX_VALUE;
+			}
+
+			//Server restart: the client reconnects, resuming its TLS session, and joins again
+			if (now >= nextDrop) {
+				server.dropClients();
+				nextDrop += TimeUnit.SECONDS.toNanos(dropEvery);
+			}
+
+			//NAMES burst of every channel
+			if (now >= nextNames) {
+				generator.namesSent = now;
+				for (String channel : channels) server.sendNames(channel);
+				nextNames += TimeUnit.SECONDS.toNanos(namesEvery);
+			}
+
+			//Write the lines that are due, or wait a little for more to be
+			long due = (now - start) * rate / 1000000000L;
+			int count = (int) Math.min(due - sent, BATCH);
+			if (count <= 0) {
+				LockSupport.parkNanos(100000);
+				continue;
+			}
+			long stamp = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				//Users away in a netsplit stay quiet, the next one present talks instead
+				int u = random.nextInt(users);
+				for (int tries = 0; away[u] && tries < users; tries++) u = (u + 1) % users;
+				if (away[u]) break;
+				batch.append(":user").append(u).append("!sim@load.host PRIVMSG ").append(channels[random.nextInt(channelCount)])
+					.append(" :").append(STAMP).append(stamp).append(" flood line ").append(sent + i).append("\r\n");
+			}
+			server.sendAll(batch);
+			batch.setLength(0);
+			sent += count;
+		}
+
+		//Summary
+		long measured = generator.stampedLines.get() - measuredFrom;
+		Histogram all = generator.latency;
+		System.out.println();
+		System.out.println("Asked for " + rate + " lines/s, sustained " + (measured / Math.max(1, seconds)) + " lines/s over " + seconds + " s");
+		System.out.println("Latency p50 " + ms(all.getPercentile(50)) + " p99 " + ms(all.getPercentile(99))
+			+ " p99.9 " + ms(all.getPercentile(99.9)) + " max " + ms(all.getPercentile(100)) + " ms");
+		if (generator.namesTime.getCount() > 1) {
+			System.out.println("NAMES bursts p50 " + ms(generator.namesTime.getPercentile(50)) + " max " + ms(generator.namesTime.getPercentile(100)) + " ms");
+		}
+		System.gc();
+		System.out.println("Heap peak " + peakHeap + " MB, retained after GC " + heapMB() + " MB"
+			+ (view != null ? ", scrollback estimate " + (view.getMemoryEstimate() >> 10) + " KB" : ""));
+		System.out.println("Client: " + session.getMetrics().getSummary());
+
+		//Quit
+		session.send("/quit load test done");
+		generator.closed.await(5, TimeUnit.SECONDS);
+		server.close();
+		System.exit(0);
+	}
+
+	/**
+	** Returns an option, or its default.
+	*/
+	private static String option(HashMap<String, String> options, String key, String def) {
+		String value = options.get(key);
+		return value == null ? def : value;
+	}
+
+}
@@ -0,0 +1,74 @@
+package somewhereIRC;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+** Parser benchmarks of the SomewhereIRC client.
+** Measures the RawParser calls made for every line, over each corpus.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ParserBenchmark {
+
+	@Param({Corpus.PRIVMSG, Corpus.NUMERIC, Corpus.LONG_TRAILING, Corpus.MIXED})
+	public String corpus;
+
+	private String[] lines;
+	private String[] userLines;
+	private RawParser parser;
+	private int next;
+
+	@Setup
+	public void setup() {
+		lines = Corpus.get(corpus, 4096);
+		userLines = Corpus.userInput(4096);
+		parser = new RawParser();
+	}
+
+	/**
+	** Returns the next line of the corpus, wrapping around.
+	*/
+	private String nextLine(String[] from) {
+		next = (next + 1) & (from.length - 1);
+		return from[next];
+	}
+
+	@Benchmark
+	public String messageForRawInput() {
+		return parser.getMessageForRawInput(nextLine(lines));
+	}
+
+	@Benchmark
+	public Command actionForRawInput() {
+		return parser.getActionForRawInput(nextLine(lines));
+	}
+
+	/**
+	** Both calls made by the connection for each line, sharing one parse.
+	*/
+	@Benchmark
+	public Command messageAndActionForRawInput() {
+		String line = nextLine(lines);
+		parser.getMessageForRawInput(line);
+		return parser.getActionForRawInput(line);
+	}
+
+	@Benchmark
+	public String rawOutputForUserInput() {
+		return parser.getRawOutputForUserInput(nextLine(userLines));
+	}
+
+}
@@ -0,0 +1,86 @@
+package somewhereIRC;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+
+/**
+** End to end benchmark of the SomewhereIRC client.
+** Feeds lines through the processing path of a connection whose socket is a local stub,
+** which swallows everything the connection sends back.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PipelineBenchmark {
+
+	@Param({Corpus.PRIVMSG, Corpus.NUMERIC, Corpus.MIXED})
+	public String corpus;
+
+	private String[] lines;
+	private int next;
+	private ServerSocketChannel server;
+	private SocketChannel client, stub;
+	private Thread drain;
+	private SomewhereIRC connection;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		lines = Corpus.get(corpus, 4096);
+
+		//Stub the server with a local socket that drains whatever it is sent
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		client = SocketChannel.open(server.getLocalAddress());
+		stub = server.accept();
+		drain = new Thread("benchmark stub drain") {
+			public void run() {
+				ByteBuffer sink = ByteBuffer.allocate(65536);
+				try {
+					while (stub.read(sink) >= 0) sink.clear();
+				} catch (IOException e) {}
+			}
+		};
+		drain.setDaemon(true);
+		drain.start();
+	}
+
+	@Setup(Level.Iteration)
+	public void newConnection() {
+		//A fresh display per iteration, so its growth does not skew later iterations
+		connection = new SomewhereIRC("irc.example.net", client, new SwingFrontEnd(new ScrollbackView()));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		client.close();
+		stub.close();
+		server.close();
+	}
+
+	@Benchmark
+	public void handleServerLine() {
+		next = (next + 1) & (lines.length - 1);
+		connection.handleServerLine(lines[next]);
+	}
+
+}
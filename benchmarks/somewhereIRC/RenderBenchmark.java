@@ -0,0 +1,72 @@
+package somewhereIRC;
+
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import javax.swing.SwingUtilities;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+** Render benchmark of the SomewhereIRC client.
+** Measures painting a window's worth of rows, offscreen, as plain lines and as lines full of mIRC colors
+** and formatting. Formatted rows are parsed into style runs as they are painted, and should cost about
+** as much as plain ones, apart from the ASCII art whose every cell has its own colors.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RenderBenchmark {
+
+	//Rows of a tall window
+	private static final int ROWS = 50;
+
+	@Param({"privmsg", "colored"})
+	public String corpus;
+
+	private ScrollbackView display;
+	private BufferedImage image;
+	private Graphics graphics;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		display = new ScrollbackView();
+		String[] lines = Corpus.get(corpus, ROWS);
+		for (String line : lines) display.append(line);
+
+		//Let the event dispatch thread take the lines in, as it does once per frame
+		Thread.sleep(ScrollbackView.FRAME_MILLIS * 4);
+		SwingUtilities.invokeAndWait(
+			new Runnable() {
+				public void run() {}
+			}
+		);
+		display.setSize(display.getPreferredSize());
+		image = new BufferedImage(display.getWidth(), display.getHeight(), BufferedImage.TYPE_INT_RGB);
+		graphics = image.getGraphics();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		graphics.dispose();
+	}
+
+	@Benchmark
+	public BufferedImage paint() {
+		display.paint(graphics);
+		return image;
+	}
+
+}
@@ -0,0 +1,277 @@
+package somewhereIRC;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import java.io.IOException;
+
+/**
+** Restore benchmark of the SomewhereIRC client.
+** Launches fresh JVMs on a network of many busy channels, to compare starting from nothing with starting
+** from the SessionSnapshot the last run saved. The first JVM of each run connects, joins every channel and
+** takes in their NAMES replies, then hears some lines in each and stays until its snapshot is saved. The
+** second restores that snapshot. Each reports, in milliseconds since the JVM started, when its windows were
+** usable: for the first once every channel's members were in, for the second once the restored windows were
+** handed to the front end. The second also reports when it had rejoined every channel. The default flood
+** control applies, as it would against a real server, and the JOINs go out as many channels to a line as fit.
+** Options are given as key=value:
+**
+**   runs=5             first and second JVMs launched
+**   channels=200       channels joined
+**   members=500        simulated members of each channel, drawn from ten times as many nicks
+**   lines=50           lines said in each channel before the snapshot is saved
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class RestoreBenchmark implements SessionListener {
+
+	//Constants
+	private static final String RESULT = "restore";
+	private static final String JOINED = "joined";
+	private static final String MARK = "@@said";
+	private static final long SNAPSHOT_INTERVAL = 500;
+
+	//What the JVM waits for
+	private final int channels, lines;
+	private int names = 0, said = 0;
+	private volatile long usableTime = 0, rejoinedTime = 0;
+	private final CountDownLatch joined = new CountDownLatch(1);
+	private final CountDownLatch heard = new CountDownLatch(1);
+
+	/**
+	** Constructor given what to wait for.
+	** @param channels The number of channels
+	** @param lines The number of lines said in each channel
+	*/
+	public RestoreBenchmark(int channels, int lines) {
+		this.channels = channels;
+		this.lines = lines;
+	}
+
+	public void sessionOpened(SomewhereIRC session) {}
+
+	public void statusChanged(SomewhereIRC session, SomewhereIRC.Status status) {}
+
+	/**
+	** Joins every channel, unless the session is rejoining them by itself.
+	*/
+	public void registered(SomewhereIRC session, String nick) {
+		if (usableTime != 0) return;
+		StringBuilder join = new StringBuilder();
+		for (int i = 0; i < channels; i++) {
+			if (join.length() > 400) {
+				session.send(join.toString());
+				join.setLength(0);
+			}
+			join.append(join.length() == 0 ? "JOIN " : ",").append("#channel").append(i);
+		}
+		session.send(join.toString());
+	}
+
+	/**
+	** Counts the ends of the NAMES replies and the lines said, and notes the restored windows.
+	*/
+	public void lineDisplayed(SomewhereIRC session, String target, String text) {
+		if (text.startsWith("Restored ")) usableTime = System.currentTimeMillis();
+		else if (text.contains(MARK)) {
+			if (++said == channels * lines) heard.countDown();
+		}
+		else if (text.contains(" 366 ") && ++names == channels) {
+			if (usableTime == 0) usableTime = System.currentTimeMillis();
+			else rejoinedTime = System.currentTimeMillis();
+			joined.countDown();
+		}
+	}
+
+	public void linesDisplayed(SomewhereIRC session, String target, String[] texts) {
+		for (String text : texts) lineDisplayed(session, target, text);
+	}
+
+	public void highlighted(SomewhereIRC session, String target, String text) {}
+
+	public void sessionClosed(SomewhereIRC session) {}
+
+	/**
+	** Starts the client in this JVM, from nothing or from the snapshot, and prints when it was usable.
+	** @param port The port of the FakeServer
+	** @param restore Whether to restore the snapshot
+	** @param channels The number of channels
+	** @param lines The number of lines said in each channel
+	*/
+	private static void child(int port, boolean restore, int channels, int lines) throws InterruptedException {
+		RestoreBenchmark probe = new RestoreBenchmark(channels, lines);
+		long start = ManagementFactory.getRuntimeMXBean().getStartTime();
+		if (restore) {
+			List<SessionSnapshot> snapshots = SessionSnapshot.openAll();
+			if (snapshots.size() != 1) {
+				System.out.println("\tERROR: Expected one snapshot, found " + snapshots.size() + ".");
+				System.exit(1);
+			}
+			new ConnectionRegistry().add(new SomewhereIRC(snapshots.get(0), SomewhereIRC.DEFAULT_MODE, probe));
+			if (!probe.joined.await(120, TimeUnit.SECONDS)) {
+				System.out.println("\tERROR: The channels were not rejoined.");
+				System.exit(1);
+			}
+			System.out.println(RESULT + " " + (probe.usableTime - start) + " " + (probe.rejoinedTime - start));
+			System.exit(0);
+		}
+
+		new ConnectionRegistry().add(new SomewhereIRC("127.0.0.1", port, probe));
+		if (!probe.joined.await(120, TimeUnit.SECONDS)) {
+			System.out.println("\tERROR: The channels were not joined.");
+			System.exit(1);
+		}
+		System.out.println(JOINED);
+		if (!probe.heard.await(120, TimeUnit.SECONDS)) {
+			System.out.println("\tERROR: Only " + probe.said + " lines were heard.");
+			System.exit(1);
+		}
+
+		//Stop without quitting, once the snapshot holding every line is saved
+		Thread.sleep(SNAPSHOT_INTERVAL * 3);
+		System.out.println(RESULT + " " + (probe.usableTime - start));
+		System.exit(0);
+	}
+
+	/**
+	** Launches a JVM running child(), and returns its times.
+	** @param server The FakeServer, told to say the lines once the channels are joined
+	** @param dir The snapshot directory
+	** @param restore Whether the JVM restores the snapshot
+	** @param options The options of the benchmark
+	** @return the times, in milliseconds, or null if the JVM failed
+	*/
+	private static long[] launch(FakeServer server, File dir, boolean restore, HashMap<String, String> options) throws IOException, InterruptedException {
+		int channels = Integer.parseInt(options.get("channels"));
+		int lines = Integer.parseInt(options.get("lines"));
+		ArrayList<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.add("-Djava.awt.headless=true");
+		command.add("-DsomewhereIRC.log=false");
+		command.add("-DsomewhereIRC.metricsInterval=0");
+		command.add("-DsomewhereIRC.snapshotDir=" + dir.getPath());
+		command.add("-DsomewhereIRC.snapshotInterval=" + SNAPSHOT_INTERVAL);
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(RestoreBenchmark.class.getName());
+		command.add("child");
+		command.add("port=" + server.getPort());
+		command.add("restore=" + restore);
+		command.add("channels=" + channels);
+		command.add("lines=" + lines);
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		long[] times = null;
+		BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()));
+		String line;
+		while ((line = output.readLine()) != null) {
+			if (line.equals(JOINED)) {
+				StringBuilder said = new StringBuilder();
+				for (int i = 0; i < lines; i++) {
+					for (int c = 0; c < channels; c++) {
+						said.append(":user").append((i * 31 + c) % 1000).append("!sim@sim.host PRIVMSG #channel").append(c)
+							.append(" :line ").append(i).append(' ').append(MARK).append("\r\n");
+					}
+				}
+				server.sendAll(said);
+			}
+			else if (line.startsWith(RESULT + " ")) {
+				String[] fields = line.split(" ");
+				times = new long[fields.length - 1];
+				for (int i = 1; i < fields.length; i++) times[i - 1] = Long.parseLong(fields[i]);
+			}
+			else if (line.contains("ERROR")) System.out.println(line);
+		}
+		process.waitFor();
+		return times;
+	}
+
+	/**
+	** Runs the benchmark, or one JVM of it when the first argument is child.
+	** @param args The options, as key=value
+	*/
+	public static void main(String args[]) throws IOException, InterruptedException {
+		HashMap<String, String> options = new HashMap<String, String>();
+		options.put("runs", "5");
+		options.put("channels", "200");
+		options.put("members", "500");
+		options.put("lines", "50");
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (equals > 0) options.put(arg.substring(0, equals), arg.substring(equals + 1));
+		}
+		int channels = Integer.parseInt(options.get("channels"));
+		if (args.length > 0 && args[0].equals("child")) {
+			child(Integer.parseInt(options.get("port")), Boolean.parseBoolean(options.get("restore")), channels, Integer.parseInt(options.get("lines")));
+			return;
+		}
+		int runs = Integer.parseInt(options.get("runs"));
+		int members = Integer.parseInt(options.get("members"));
+
+		//A network of busy channels sharing their members
+		FakeServer server = new FakeServer(0);
+		for (int c = 0; c < channels; c++) {
+			for (int m = 0; m < members; m++) server.addMember("#channel" + c, "user" + (c * 7919 + m * 10) % (members * 10));
+		}
+		File dir = Files.createTempDirectory("somewhereIRC-restore").toFile();
+
+		long[] fresh = new long[runs], usable = new long[runs], rejoined = new long[runs];
+		long size = 0;
+		int done = 0;
+		for (int run = 0; run < runs; run++) {
+			File[] old = dir.listFiles();
+			if (old != null) for (File file : old) file.delete();
+			long[] first = launch(server, dir, false, options);
+			File[] saved = dir.listFiles();
+			if (saved != null && saved.length == 1) size = saved[0].length();
+			long[] second = first == null ? null : launch(server, dir, true, options);
+			if (second == null) continue;
+			fresh[done] = first[0];
+			usable[done] = second[0];
+			rejoined[done] = second[1];
+			done++;
+		}
+		File[] left = dir.listFiles();
+		if (left != null) for (File file : left) file.delete();
+		dir.delete();
+		server.close();
+		if (done == 0) {
+			System.out.println("\tERROR: Every run failed.");
+			System.exit(1);
+		}
+
+		System.out.println(channels + " channels of " + members + " members, " + options.get("lines") + " lines each, snapshot of "
+			+ size / 1024 + " KB; times since the JVM started, median/max of " + done + " runs:");
+		System.out.println(String.format("  from nothing    usable once joined   %5d/%5d ms", median(fresh, done), max(fresh, done)));
+		System.out.println(String.format("  from snapshot   usable once restored %5d/%5d ms, rejoined %5d/%5d ms",
+			median(usable, done), max(usable, done), median(rejoined, done), max(rejoined, done)));
+	}
+
+	/**
+	** Returns the median of the first values of an array.
+	*/
+	private static long median(long[] values, int count) {
+		long[] sorted = Arrays.copyOf(values, count);
+		Arrays.sort(sorted);
+		return sorted[count / 2];
+	}
+
+	/**
+	** Returns the largest of the first values of an array.
+	*/
+	private static long max(long[] values, int count) {
+		long[] sorted = Arrays.copyOf(values, count);
+		Arrays.sort(sorted);
+		return sorted[count - 1];
+	}
+
+}
@@ -0,0 +1,77 @@
+package somewhereIRC;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+** Rules benchmarks of the SomewhereIRC client.
+** Measures the highlight and ignore checks made for every message, over the PRIVMSG corpus,
+** with more and more rules: the cost per line should not grow with their number.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RulesBenchmark {
+
+	@Param({"10", "100", "1000"})
+	public int rules;
+
+	private IrcMessage[] messages;
+	private HighlightRules compiled;
+	private int next;
+
+	@Setup
+	public void setup() {
+		String[] lines = Corpus.get(Corpus.PRIVMSG, 4096);
+		messages = new IrcMessage[lines.length];
+		for (int i = 0; i < lines.length; i++) {
+			messages[i] = new IrcMessage();
+			messages[i].parse(lines[i]);
+		}
+
+		//Random words as keywords, and a mix of nick and host masks
+		Random random = new Random(23);
+		ArrayList<String> highlights = new ArrayList<String>();
+		ArrayList<String> ignores = new ArrayList<String>();
+		for (int i = 0; i < rules; i++) {
+			StringBuilder keyword = new StringBuilder();
+			int length = 4 + random.nextInt(8);
+			for (int j = 0; j < length; j++) keyword.append((char) ('a' + random.nextInt(26)));
+			highlights.add(keyword.toString());
+			ignores.add(i % 2 == 0 ? "*!*@" + keyword + ".example.net" : keyword + "!*@*");
+		}
+		compiled = new HighlightRules(highlights, ignores);
+	}
+
+	/**
+	** Returns the next message of the corpus, wrapping around.
+	*/
+	private IrcMessage nextMessage() {
+		next = (next + 1) & (messages.length - 1);
+		return messages[next];
+	}
+
+	@Benchmark
+	public boolean highlight() {
+		return compiled.isHighlight(nextMessage().getLastParam());
+	}
+
+	@Benchmark
+	public boolean ignore() {
+		return compiled.isIgnored(nextMessage().getPrefix());
+	}
+
+}
@@ -0,0 +1,239 @@
+package somewhereIRC;
+
+import java.awt.Graphics;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.swing.Timer;
+
+import java.io.IOException;
+
+/**
+** Startup benchmark of the SomewhereIRC client.
+** Launches fresh JVMs that start the client the way Client does with a server on the command line:
+** the session connects with a DeferredFrontEnd standing in for the windows, and only then is Swing
+** loaded, the display created and attached. Each JVM reports, in milliseconds since the JVM started,
+** when main() ran, when the session connected, when the first line from the server reached the front
+** end, and when that line was first rendered (painted offscreen, so no display is needed).
+** Options are given as key=value:
+**
+**   runs=10            JVMs launched for each configuration
+**   archive=           class data sharing archive made by build-cds.sh, to compare against running without it
+**
+** The JVMs connect to a FakeServer in this process. Run as "StartupBenchmark child port=0", a single
+** JVM runs its own FakeServer instead, which is how build-cds.sh trains the archive.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class StartupBenchmark implements SessionListener {
+
+	//Constants
+	private static final String RESULT = "startup";
+	private static final String[] TIMES = { "main", "connected", "line", "rendered", "exit" };
+
+	//Times since the epoch, in milliseconds, 0 until they happen
+	private final long mainTime;
+	private volatile long connectedTime = 0, lineTime = 0, renderedTime = 0;
+
+	//Lines shown up to the first line from the server, which the display has to hold before it counts as rendered
+	private long lines = 0;
+	private volatile long linesToRender = 0;
+
+	//Stand-in for the display, until Swing is up
+	private final DeferredFrontEnd front = new DeferredFrontEnd();
+	private final CountDownLatch rendered = new CountDownLatch(1);
+
+	/**
+	** Paints the display offscreen on the event dispatch thread, once the first line from the server is in it.
+	** Kept apart so nothing of AWT or Swing is loaded before the session connects.
+	*/
+	private static class Renderer implements ActionListener {
+		private final StartupBenchmark probe;
+		private final ScrollbackView view = new ScrollbackView();
+		private final Timer timer = new Timer(1, this);
+
+		Renderer(StartupBenchmark probe) {
+			this.probe = probe;
+			probe.front.attach(new SwingFrontEnd(view));
+			timer.start();
+		}
+
+		public void actionPerformed(ActionEvent e) {
+			long wanted = probe.linesToRender;
+			if (wanted == 0 || view.getScrollback().getAppended() < wanted) return;
+			BufferedImage image = new BufferedImage(640, 480, BufferedImage.TYPE_INT_RGB);
+			view.setSize(640, 480);
+			Graphics g = image.getGraphics();
+			view.paint(g);
+			g.dispose();
+			timer.stop();
+			probe.renderedTime = System.currentTimeMillis();
+			probe.rendered.countDown();
+		}
+	}
+
+	/**
+	** Constructor given the time main() started.
+	** @param mainTime The time, in milliseconds since the epoch
+	*/
+	public StartupBenchmark(long mainTime) {
+		this.mainTime = mainTime;
+	}
+
+	public void sessionOpened(SomewhereIRC session) {
+		front.sessionOpened(session);
+	}
+
+	public void statusChanged(SomewhereIRC session, SomewhereIRC.Status status) {
+		if (status == SomewhereIRC.Status.CONNECTED && connectedTime == 0) connectedTime = System.currentTimeMillis();
+		front.statusChanged(session, status);
+	}
+
+	public void registered(SomewhereIRC session, String nick) {
+		front.registered(session, nick);
+	}
+
+	/**
+	** Notes the first line from the server, the ones before it being the client's own.
+	*/
+	public void lineDisplayed(SomewhereIRC session, String target, String text) {
+		lines++;
+		if (lineTime == 0 && text.startsWith(":")) {
+			lineTime = System.currentTimeMillis();
+			linesToRender = lines;
+		}
+		front.lineDisplayed(session, target, text);
+	}
+
+	public void linesDisplayed(SomewhereIRC session, String target, String[] texts) {
+		for (String text : texts) lineDisplayed(session, target, text);
+	}
+
+	public void highlighted(SomewhereIRC session, String target, String text) {
+		front.highlighted(session, target, text);
+	}
+
+	public void sessionClosed(SomewhereIRC session) {
+		front.sessionClosed(session);
+	}
+
+	/**
+	** Starts the client in this JVM, and prints when each step of its startup happened.
+	** @param port The port of the FakeServer, or 0 to run one here
+	*/
+	private static void child(int port) throws IOException, InterruptedException {
+		long mainTime = System.currentTimeMillis();
+		if (port == 0) port = new FakeServer(0).getPort();
+
+		//Connect first, then load Swing while the session registers
+		StartupBenchmark probe = new StartupBenchmark(mainTime);
+		new ConnectionRegistry().add(new SomewhereIRC("127.0.0.1", port, probe));
+		new Renderer(probe);
+		if (!probe.rendered.await(30, TimeUnit.SECONDS)) {
+			System.out.println("\tERROR: No line was rendered.");
+			System.exit(1);
+		}
+		long start = ManagementFactory.getRuntimeMXBean().getStartTime();
+		System.out.println(RESULT + " " + (probe.mainTime - start) + " " + (probe.connectedTime - start)
+			+ " " + (probe.lineTime - start) + " " + (probe.renderedTime - start));
+		System.exit(0);
+	}
+
+	/**
+	** Launches a JVM running child(), and returns its times, the last being how long the whole JVM ran.
+	** @param port The port of the FakeServer
+	** @param archive The class data sharing archive to run with, or null for none
+	** @return the times, in milliseconds
+	*/
+	private static long[] launch(int port, String archive) throws IOException, InterruptedException {
+		ArrayList<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		if (archive != null) command.add("-XX:SharedArchiveFile=" + archive);
+		command.add("-Djava.awt.headless=true");
+		command.add("-DsomewhereIRC.log=false");
+		command.add("-DsomewhereIRC.snapshot=false");
+		command.add("-DsomewhereIRC.metricsInterval=0");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(StartupBenchmark.class.getName());
+		command.add("child");
+		command.add("port=" + port);
+		long launched = System.nanoTime();
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		long[] times = null;
+		BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()));
+		String line;
+		while ((line = output.readLine()) != null) {
+			if (!line.startsWith(RESULT + " ")) continue;
+			String[] fields = line.split(" ");
+			times = new long[TIMES.length];
+			for (int i = 1; i < fields.length; i++) times[i - 1] = Long.parseLong(fields[i]);
+		}
+		process.waitFor();
+		if (times != null) times[TIMES.length - 1] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - launched);
+		return times;
+	}
+
+	/**
+	** Runs one configuration, and prints the median and worst of each time.
+	*/
+	private static void run(String name, int runs, int port, String archive) throws IOException, InterruptedException {
+		long[][] times = new long[TIMES.length][runs];
+		int done = 0;
+		for (int run = 0; run < runs; run++) {
+			long[] result = launch(port, archive);
+			if (result == null) continue;
+			for (int i = 0; i < TIMES.length; i++) times[i][done] = result[i];
+			done++;
+		}
+		if (done == 0) {
+			System.out.println("\tERROR: Every " + name + " run failed.");
+			return;
+		}
+		StringBuilder report = new StringBuilder(String.format("%-12s", name));
+		for (int i = 0; i < TIMES.length; i++) {
+			long[] sorted = Arrays.copyOf(times[i], done);
+			Arrays.sort(sorted);
+			report.append(String.format("  %s %4d/%4d", TIMES[i], sorted[done / 2], sorted[done - 1]));
+		}
+		System.out.println(report + " ms (median/max of " + done + ")");
+	}
+
+	/**
+	** Runs the benchmark, or one startup when the first argument is child.
+	** @param args The options, as key=value
+	*/
+	public static void main(String args[]) throws IOException, InterruptedException {
+		HashMap<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (equals > 0) options.put(arg.substring(0, equals), arg.substring(equals + 1));
+		}
+		if (args.length > 0 && args[0].equals("child")) {
+			child(Integer.parseInt(options.containsKey("port") ? options.get("port") : "0"));
+			return;
+		}
+		int runs = Integer.parseInt(options.containsKey("runs") ? options.get("runs") : "10");
+		String archive = options.get("archive");
+
+		FakeServer server = new FakeServer(0);
+		System.out.println("Times since the JVM started; exit is the whole JVM, launch to exit, seen from here");
+		run("default", runs, server.getPort(), null);
+		if (archive != null) {
+			if (new File(archive).isFile()) run("archive", runs, server.getPort(), archive);
+			else System.out.println("\tERROR: No archive at " + archive + ", run build-cds.sh first.");
+		}
+		server.close();
+	}
+
+}
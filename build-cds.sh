@@ -0,0 +1,21 @@
+#!/bin/sh
+# Builds SomewhereIRC into build/somewhereIRC.jar, then trains a class data sharing (AppCDS) archive of the
+# classes the client loads on startup, in build/somewhereIRC.jsa. The training run starts the client
+# against a stand-in server on localhost, connects, and renders its first line offscreen.
+#
+# Run the client with the archive, from the same jar (class data sharing does not take class directories):
+#   java -XX:SharedArchiveFile=build/somewhereIRC.jsa -cp build/somewhereIRC.jar somewhereIRC.Client irc.libera.chat:6697
+# and compare startup times with and without it:
+#   java -cp build/somewhereIRC.jar somewhereIRC.StartupBenchmark archive=build/somewhereIRC.jsa
+#
+# The archive only holds for the JDK that made it and the classes it was made from, so build it again
+# after either changes. The JVM ignores a stale archive, it does not fail.
+set -e
+cd "$(dirname "$0")"
+rm -rf build/classes build/somewhereIRC.jar build/somewhereIRC.jsa
+mkdir -p build/classes
+javac -d build/classes somewhereIRC/*.java benchmarks/somewhereIRC/FakeServer.java benchmarks/somewhereIRC/StartupBenchmark.java
+jar cfe build/somewhereIRC.jar somewhereIRC.Client -C build/classes .
+java -XX:ArchiveClassesAtExit=build/somewhereIRC.jsa -Djava.awt.headless=true -DsomewhereIRC.log=false -DsomewhereIRC.snapshot=false -DsomewhereIRC.metricsInterval=0 \
+	-cp build/somewhereIRC.jar somewhereIRC.StartupBenchmark child port=0
+echo "Archive written to build/somewhereIRC.jsa"
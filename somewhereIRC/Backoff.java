@@ -0,0 +1,59 @@
+package somewhereIRC;
+
+import java.util.Random;
+
+/**
+** Backoff class of the SomewhereIRC client.
+** Exponential backoff with jitter between reconnection attempts, so a network going away
+** does not get every client hammering it again at the same moment once it comes back.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class Backoff {
+
+	//Backoff variables
+	private final long base;
+	private final long cap;
+	private final Random random = new Random();
+	private int attempt = 0;
+
+	/**
+	** Constructor given the delay bounds.
+	** @param base The delay before the first retry, in milliseconds
+	** @param cap The longest delay, in milliseconds
+	*/
+	public Backoff(long base, long cap) {
+		this.base = base;
+		this.cap = cap;
+	}
+
+	/**
+	** Returns the delay before the next retry, and counts the attempt.
+	** The delay doubles with each attempt up to the cap, and is randomized over its upper half.
+	** @return the delay in milliseconds
+	*/
+	public long nextDelay() {
+		long delay = base << Math.min(attempt, 30);
+		if (delay <= 0 || delay > cap) delay = cap;
+		attempt++;
+		long half = delay / 2;
+		return half + (long) (random.nextDouble() * (delay - half));
+	}
+
+	/**
+	** Returns the number of attempts since the last reset.
+	** @return the number of attempts
+	*/
+	public int getAttempts() {
+		return attempt;
+	}
+
+	/**
+	** Starts over from the base delay, once a connection has worked.
+	*/
+	public void reset() {
+		attempt = 0;
+	}
+
+}
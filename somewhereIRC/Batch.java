@@ -0,0 +1,127 @@
+package somewhereIRC;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+** Batch class of the SomewhereIRC client.
+** The lines of one IRCv3 BATCH (a netsplit, a netjoin, a CHATHISTORY reply...), held back until the
+** batch ends so they can be applied to the channels and shown in the windows all at once.
+** Batches nested in it add their lines to it as well.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class Batch {
+
+	//Batch variables
+	private final String type;
+	private final String target;
+
+	//Lines to show (and log), with the window and time of each
+	private String[] texts = new String[64];
+	private String[] targets = new String[64];
+	private String[] lines = new String[64];
+	private long[] times = new long[64];
+	private int size = 0;
+
+	//Lines to dispatch, once each
+	private final ArrayList<String> dispatched = new ArrayList<String>();
+
+	/**
+	** Constructor given what the BATCH opening it said.
+	** @param type The type of the batch
+	** @param target The first parameter after the type, or null if there is none
+	*/
+	public Batch(String type, String target) {
+		this.type = type;
+		this.target = target;
+	}
+
+	/**
+	** Returns the type of the batch.
+	** @return the type
+	*/
+	public String getType() {
+		return type;
+	}
+
+	/**
+	** Returns the first parameter after the type, the channel or nick of a chathistory batch.
+	** @return the parameter, or null if there is none
+	*/
+	public String getTarget() {
+		return target;
+	}
+
+	/**
+	** Returns whether the batch replays history, which is shown but not applied to the channels.
+	** @return true for a chathistory batch
+	*/
+	public boolean isHistory() {
+		return type.equals("chathistory") || type.equals("draft/chathistory");
+	}
+
+	/**
+	** Adds a line to show in a window.
+	** @param text The text to show
+	** @param target The channel or nick, or null for the status window
+	** @param line The raw line, to log
+	** @param time The time of the line
+	*/
+	public void add(String text, String target, String line, long time) {
+		if (size == texts.length) {
+			int capacity = size * 2;
+			texts = Arrays.copyOf(texts, capacity);
+			targets = Arrays.copyOf(targets, capacity);
+			lines = Arrays.copyOf(lines, capacity);
+			times = Arrays.copyOf(times, capacity);
+		}
+		texts[size] = text;
+		targets[size] = target;
+		lines[size] = line;
+		times[size] = time;
+		size++;
+	}
+
+	/**
+	** Adds a line to dispatch once the batch ends.
+	** @param line The raw line
+	*/
+	public void dispatch(String line) {
+		dispatched.add(line);
+	}
+
+	/**
+	** Returns the number of lines to show.
+	** @return the number of lines
+	*/
+	public int size() {
+		return size;
+	}
+
+	public String getText(int i) {
+		return texts[i];
+	}
+
+	public String getTarget(int i) {
+		return targets[i];
+	}
+
+	public String getLine(int i) {
+		return lines[i];
+	}
+
+	public long getTime(int i) {
+		return times[i];
+	}
+
+	/**
+	** Returns the lines to dispatch, in the order received.
+	** @return the raw lines
+	*/
+	public ArrayList<String> getDispatched() {
+		return dispatched;
+	}
+
+}
@@ -0,0 +1,150 @@
+package somewhereIRC;
+
+import java.util.HashSet;
+
+/**
+** Capabilities class of the SomewhereIRC client.
+** Negotiates the IRCv3 capabilities of one connection: CAP LS 302 is sent before NICK and USER,
+** the capabilities wanted that the server offers are requested, and CAP END lets registration go on
+** once they are acknowledged or refused. A server that does not know CAP simply registers us.
+** Only used from the thread dispatching the connection's input.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class Capabilities {
+
+	//Capabilities asked for, and the lines of history asked for when joining (the somewhereIRC.history property)
+	public static final String[] WANTED = { "message-tags", "server-time", "batch", "draft/chathistory", "chathistory" };
+	public static final int DEFAULT_HISTORY = Integer.getInteger("somewhereIRC.history", 1000);
+
+	//Negotiation variables
+	private final HashSet<String> offered = new HashSet<String>();
+	private final HashSet<String> enabled = new HashSet<String>();
+	private boolean negotiating = false;
+
+	//Largest CHATHISTORY request the server allows, from the CHATHISTORY token of 005 (0 for no limit)
+	private int historyLimit = 0;
+
+	/**
+	** Starts a new negotiation, for a new connection.
+	** @return the line to send before registering
+	*/
+	public String start() {
+		offered.clear();
+		enabled.clear();
+		historyLimit = 0;
+		negotiating = true;
+		return "CAP LS 302";
+	}
+
+	/**
+	** Registers the handlers ending the negotiation and reading the server features.
+	** @param dispatcher The dispatcher for server input
+	*/
+	public void registerHandlers(Dispatcher dispatcher) {
+		//Registered, whatever was negotiated
+		dispatcher.register(1,
+			new Dispatcher.Handler() {
+				public void handle(IrcMessage msg) {
+					negotiating = false;
+				}
+			}
+		);
+
+		//Server features
+		dispatcher.register(5,
+			new Dispatcher.Handler() {
+				public void handle(IrcMessage msg) {
+					for (int i = 1; i < msg.getParamCount() - 1; i++) {
+						String token = msg.getParam(i);
+						if (!token.startsWith("CHATHISTORY=")) continue;
+						try {
+							historyLimit = Integer.parseInt(token.substring(12));
+						} catch (NumberFormatException e) {}
+					}
+				}
+			}
+		);
+	}
+
+	/**
+	** Handles a CAP message from the server.
+	** @param msg The message
+	** @return the line to answer with, or null if there is nothing to answer
+	*/
+	public String reply(IrcMessage msg) {
+		if (msg.getParamCount() < 3) return null;
+		String subcommand = msg.getParam(1);
+		String list = msg.getLastParam();
+
+		//Offered capabilities, maybe over several lines (CAP * LS * :...), and capabilities offered later (cap-notify)
+		if (subcommand.equals("LS") || subcommand.equals("NEW")) {
+			for (String cap : list.split(" ")) {
+				int equals = cap.indexOf('=');
+				if (cap.length() > 0) offered.add(equals < 0 ? cap : cap.substring(0, equals));
+			}
+			if (subcommand.equals("LS") && msg.getParamCount() > 3 && msg.paramEquals(2, "*")) return null;
+			StringBuilder request = new StringBuilder();
+			for (String cap : WANTED) {
+				if (offered.contains(cap) && !enabled.contains(cap)) request.append(request.length() == 0 ? "" : " ").append(cap);
+			}
+			if (request.length() > 0) return "CAP REQ :" + request;
+			return end();
+		}
+
+		//Acknowledged, or refused, requests
+		if (subcommand.equals("ACK")) {
+			for (String cap : list.split(" ")) {
+				if (cap.startsWith("-")) enabled.remove(cap.substring(1));
+				else if (cap.length() > 0) enabled.add(cap);
+			}
+			return end();
+		}
+		if (subcommand.equals("NAK")) return end();
+
+		//Capabilities the server no longer offers
+		if (subcommand.equals("DEL")) {
+			for (String cap : list.split(" ")) {
+				offered.remove(cap);
+				enabled.remove(cap);
+			}
+		}
+		return null;
+	}
+
+	/**
+	** Ends the negotiation, if it is still going.
+	*/
+	private String end() {
+		if (!negotiating) return null;
+		negotiating = false;
+		return "CAP END";
+	}
+
+	/**
+	** Returns whether a capability was acknowledged.
+	** @param cap The capability
+	** @return true if it is enabled
+	*/
+	public boolean isEnabled(String cap) {
+		return enabled.contains(cap);
+	}
+
+	/**
+	** Returns whether history can be requested with CHATHISTORY.
+	** @return true if either chathistory capability is enabled along with batch
+	*/
+	public boolean hasHistory() {
+		return isEnabled("batch") && (isEnabled("chathistory") || isEnabled("draft/chathistory"));
+	}
+
+	/**
+	** Returns the number of lines of history to request for a channel.
+	** @return the number of lines
+	*/
+	public int getHistoryLimit() {
+		return historyLimit > 0 ? Math.min(historyLimit, DEFAULT_HISTORY) : DEFAULT_HISTORY;
+	}
+
+}
@@ -0,0 +1,361 @@
+package somewhereIRC;
+
+import java.util.Arrays;
+
+/**
+** Channel state class of the SomewhereIRC client.
+** The members of one channel, kept as a sorted array of nick IDs with a parallel array of
+** prefix mode bits, so even channels of tens of thousands of users take a few hundred kilobytes
+** and a member is found by binary search.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class ChannelState {
+
+	/**
+	** Callback for the members added and removed when a NAMES reply ends, or deferred changes are applied.
+	*/
+	public interface Changes {
+		/**
+		** Called for a nick listed that was not a member yet.
+		** @param nick The nick ID
+		*/
+		void added(int nick);
+
+		/**
+		** Called for a member that was not listed.
+		** @param nick The nick ID
+		*/
+		void removed(int nick);
+	}
+
+	//Channel variables
+	private final String name;
+	private final int id;
+	private String topic;
+	private String key;
+
+	//Members, sorted by nick ID, with the prefix modes of each (bit i for the i-th prefix of PREFIX)
+	private int[] members = new int[16];
+	private byte[] modes = new byte[16];
+	private int size = 0;
+
+	//NAMES reply being received, unsorted until its end
+	private long[] names;
+	private int namesCount = -1;
+
+	//Joins and leaves deferred while a batch is applied: nick ID, order received, join bit and prefix modes
+	private long[] pending;
+	private int pendingCount = 0;
+	private boolean pendingJoins = false;
+	private static final int MAX_PENDING = 1 << 23;
+
+	/**
+	** Constructor given the channel name and ID.
+	** @param name The channel name
+	** @param id The channel ID
+	*/
+	public ChannelState(String name, int id) {
+		this.name = name;
+		this.id = id;
+	}
+
+	/**
+	** Returns the channel name.
+	** @return the name
+	*/
+	public String getName() {
+		return name;
+	}
+
+	/**
+	** Returns the channel ID.
+	** @return the ID
+	*/
+	public int getID() {
+		return id;
+	}
+
+	/**
+	** Returns the topic.
+	** @return the topic, or null if none is known
+	*/
+	public String getTopic() {
+		return topic;
+	}
+
+	/**
+	** Sets the topic.
+	** @param topic The topic
+	*/
+	public void setTopic(String topic) {
+		this.topic = topic;
+	}
+
+	/**
+	** Returns the key (mode +k) of the channel, needed to join it again.
+	** @return the key, or null if none is known
+	*/
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	** Sets the key of the channel.
+	** @param key The key, or null if it has none
+	*/
+	public void setKey(String key) {
+		this.key = key;
+	}
+
+	/**
+	** Returns the number of members.
+	** @return the number of members
+	*/
+	public int size() {
+		return size;
+	}
+
+	/**
+	** Returns the nick ID of a member.
+	** @param i The index of the member, in nick ID order
+	** @return the nick ID
+	*/
+	public int getMember(int i) {
+		return members[i];
+	}
+
+	/**
+	** Returns the prefix mode bits of a member.
+	** @param i The index of the member, in nick ID order
+	** @return the mode bits
+	*/
+	public int getModes(int i) {
+		return modes[i];
+	}
+
+	/**
+	** Returns the index of a member.
+	** @param nick The nick ID
+	** @return the index, or a negative number if the nick is not a member
+	*/
+	public int indexOf(int nick) {
+		return Arrays.binarySearch(members, 0, size, nick);
+	}
+
+	/**
+	** Adds a member.
+	** @param nick The nick ID
+	** @param mode The prefix mode bits
+	** @return true if the nick was not a member yet
+	*/
+	public boolean add(int nick, int mode) {
+		int i = indexOf(nick);
+		if (i >= 0) {
+			modes[i] = (byte) mode;
+			return false;
+		}
+		i = -i - 1;
+		if (size == members.length) {
+			members = Arrays.copyOf(members, size * 2);
+			modes = Arrays.copyOf(modes, size * 2);
+		}
+		System.arraycopy(members, i, members, i + 1, size - i);
+		System.arraycopy(modes, i, modes, i + 1, size - i);
+		members[i] = nick;
+		modes[i] = (byte) mode;
+		size++;
+		return true;
+	}
+
+	/**
+	** Removes a member.
+	** @param nick The nick ID
+	** @return true if the nick was a member
+	*/
+	public boolean remove(int nick) {
+		int i = indexOf(nick);
+		if (i < 0) return false;
+		System.arraycopy(members, i + 1, members, i, size - i - 1);
+		System.arraycopy(modes, i + 1, modes, i, size - i - 1);
+		size--;
+		return true;
+	}
+
+	/**
+	** Defers adding a member until applyPending().
+	** @param nick The nick ID
+	** @param mode The prefix mode bits
+	*/
+	public void addLater(int nick, int mode) {
+		defer(nick, 0x100 | (mode & 0xFF));
+		pendingJoins = true;
+	}
+
+	/**
+	** Defers removing a member until applyPending().
+	** @param nick The nick ID
+	*/
+	public void removeLater(int nick) {
+		defer(nick, 0);
+	}
+
+	/**
+	** Queues a deferred change, ordered after the ones before it.
+	*/
+	private void defer(int nick, int change) {
+		if (pending == null) pending = new long[64];
+		else if (pendingCount == pending.length) pending = Arrays.copyOf(pending, pendingCount * 2);
+		pending[pendingCount] = ((long) nick << 32) | ((long) pendingCount << 9) | change;
+		pendingCount++;
+	}
+
+	/**
+	** Returns whether changes are deferred.
+	** @return true if applyPending() has something to apply
+	*/
+	public boolean hasPending() {
+		return pendingCount > 0;
+	}
+
+	/**
+	** Returns whether any of the deferred changes adds a member.
+	** @return true if a join is deferred
+	*/
+	public boolean hasPendingJoins() {
+		return pendingJoins;
+	}
+
+	/**
+	** Returns whether so many changes are deferred that they should be applied before taking more.
+	** @return true if the deferred changes are full
+	*/
+	public boolean isPendingFull() {
+		return pendingCount >= MAX_PENDING;
+	}
+
+	/**
+	** Applies the deferred changes, sorting them once and merging them with the members in one pass.
+	** When a nick changed more than once, the last change wins.
+	** @param changes Told about every nick that joined or left the member list
+	*/
+	public void applyPending(Changes changes) {
+		if (pendingCount == 0) return;
+		long[] listed = pending;
+		int count = pendingCount;
+		pending = null;
+		pendingCount = 0;
+		pendingJoins = false;
+		Arrays.sort(listed, 0, count);
+
+		int[] newMembers = new int[Math.max(16, size + count)];
+		byte[] newModes = new byte[newMembers.length];
+		int newSize = 0, i = 0;
+		for (int j = 0; j < count; j++) {
+			int nick = (int) (listed[j] >>> 32);
+			if (j + 1 < count && (int) (listed[j + 1] >>> 32) == nick) continue;
+			while (i < size && members[i] < nick) {
+				newMembers[newSize] = members[i];
+				newModes[newSize++] = modes[i++];
+			}
+			boolean member = i < size && members[i] == nick;
+			if (member) i++;
+			if ((listed[j] & 0x100) != 0) {
+				if (!member) changes.added(nick);
+				newMembers[newSize] = nick;
+				newModes[newSize++] = (byte) listed[j];
+			}
+			else if (member) changes.removed(nick);
+		}
+		System.arraycopy(members, i, newMembers, newSize, size - i);
+		System.arraycopy(modes, i, newModes, newSize, size - i);
+		members = newMembers;
+		modes = newModes;
+		size = newSize + size - i;
+	}
+
+	/**
+	** Turns a prefix mode of a member on or off.
+	** @param nick The nick ID
+	** @param bit The mode bit
+	** @param on Whether the mode is set or unset
+	*/
+	public void setMode(int nick, int bit, boolean on) {
+		int i = indexOf(nick);
+		if (i < 0) return;
+		if (on) modes[i] |= (byte) (1 << bit);
+		else modes[i] &= (byte) ~(1 << bit);
+	}
+
+	/**
+	** Adds a member listed by a NAMES reply. The list only replaces the members once it ends.
+	** @param nick The nick ID
+	** @param mode The prefix mode bits
+	*/
+	public void addName(int nick, int mode) {
+		if (namesCount < 0) {
+			names = new long[Math.max(16, size)];
+			namesCount = 0;
+		}
+		if (namesCount == names.length) names = Arrays.copyOf(names, namesCount * 2);
+		names[namesCount++] = ((long) nick << 8) | (mode & 0xFF);
+	}
+
+	/**
+	** Drops a nick from the NAMES reply being received and from the deferred changes, before its ID is given to another nick.
+	** @param nick The nick ID
+	*/
+	public void forget(int nick) {
+		int kept = 0;
+		for (int i = 0; i < namesCount; i++) {
+			if ((int) (names[i] >>> 8) != nick) names[kept++] = names[i];
+		}
+		if (namesCount > 0) namesCount = kept;
+		kept = 0;
+		for (int i = 0; i < pendingCount; i++) {
+			if ((int) (pending[i] >>> 32) != nick) pending[kept++] = pending[i];
+		}
+		pendingCount = kept;
+	}
+
+	/**
+	** Returns whether a NAMES reply is being received.
+	** @return true between the first 353 and the 366
+	*/
+	public boolean isReceivingNames() {
+		return namesCount >= 0;
+	}
+
+	/**
+	** Ends a NAMES reply, sorting the listed members once and making them the members of the channel.
+	** @param changes Told about every nick that joined or left the member list
+	*/
+	public void endNames(Changes changes) {
+		long[] listed = names == null ? new long[0] : names;
+		int count = Math.max(namesCount, 0);
+		names = null;
+		namesCount = -1;
+		Arrays.sort(listed, 0, count);
+
+		//Merge the old and new member lists, both sorted by ID, dropping duplicates
+		int[] newMembers = new int[Math.max(16, count)];
+		byte[] newModes = new byte[newMembers.length];
+		int newSize = 0, i = 0;
+		for (int j = 0; j < count; j++) {
+			int nick = (int) (listed[j] >>> 8);
+			if (newSize > 0 && newMembers[newSize - 1] == nick) continue;
+			while (i < size && members[i] < nick) changes.removed(members[i++]);
+			if (i < size && members[i] == nick) i++;
+			else changes.added(nick);
+			newMembers[newSize] = nick;
+			newModes[newSize] = (byte) listed[j];
+			newSize++;
+		}
+		while (i < size) changes.removed(members[i++]);
+		members = newMembers;
+		modes = newModes;
+		size = newSize;
+	}
+
+}
@@ -0,0 +1,563 @@
+package somewhereIRC;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+** Channel tracker class of the SomewhereIRC client.
+** Keeps the channels of one connection and their members, from JOIN, PART, KICK, QUIT, NICK, MODE
+** and the NAMES replies. Nicks and channels are given small int IDs by a SymbolTable each, looked up
+** straight from the line, and every nick keeps the IDs of the channels it is in, so a QUIT only touches
+** those channels. A NICK does not even do that: the ID stays the same, only its name changes.
+** A nick is pinned in the table once per channel it is in, and swept once it is in none.
+** Between beginBulk() and endBulk(), joins and leaves are deferred and applied to each channel in one
+** merge, so a netsplit or netjoin batch of thousands of lines does not shift the member arrays for each.
+** Only used from the thread dispatching the connection's input.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class ChannelTracker {
+
+	//Prefix modes of the server, from the PREFIX token of 005, highest first
+	private String prefixModes = "ohv";
+	private String prefixChars = "@%+";
+	private static final String RESTORED_PREFIXES = "~&@%+";
+
+	//Channel modes taking a parameter always (CHANMODES types A and B) and only when set (type C)
+	private String paramModes = "beIk";
+	private String setParamModes = "l";
+
+	//Our own nick
+	private String self;
+
+	//Nick table, with the channels of each nick indexed by its ID
+	private final SymbolTable nicks = new SymbolTable(true);
+	private int[][] nickChannels = new int[256][];
+	private int[] nickChannelCounts = new int[256];
+
+	//Channel table, with the state of each channel we are in indexed by its ID
+	private final SymbolTable channelNames = new SymbolTable(true);
+	private ChannelState[] channels = new ChannelState[16];
+
+	//Channels with deferred changes while in bulk
+	private boolean bulk = false;
+	private final ArrayList<ChannelState> pendingChannels = new ArrayList<ChannelState>();
+
+	/**
+	** Registers the handlers that keep the channels up to date.
+	** @param dispatcher The dispatcher for server input
+	*/
+	public void registerHandlers(Dispatcher dispatcher) {
+		//Welcome, telling us our nick
+		dispatcher.register(1,
+			new Dispatcher.Handler() {
+				public void handle(IrcMessage msg) {
+					if (msg.getParamCount() > 0) self = msg.getParam(0);
+				}
+			}
+		);
+
+		//Server features
+		dispatcher.register(5,
+			new Dispatcher.Handler() {
+				public void handle(IrcMessage msg) {
+					for (int i = 1; i < msg.getParamCount() - 1; i++) isupport(msg.getParam(i));
+				}
+			}
+		);
+
+		//JOIN, creating the channel when it is us joining
+		dispatcher.register(Command.JOIN,
+			new Dispatcher.Handler() {
+				public void handle(IrcMessage msg) {
+					if (!msg.hasPrefix() || msg.getParamCount() < 1) return;
+					ChannelState channel = getChannel(msg, 0);
+					if (channel == null) {
+						if (!isSelf(msg)) return;
+						channel = addChannel(msg.getParam(0));
+					}
+					int id = nicks.intern(msg.getLine(), msg.getNickStart(), msg.getNickEnd());
+					if (bulk) defer(channel).addLater(id, 0);
+					else if (channel.add(id, 0)) addNickChannel(id, channel.getID());
+				}
+			}
+		);
+
+		//PART, dropping the channel when it is us leaving
+		dispatcher.register(Command.PART,
+			new Dispatcher.Handler() {
+				public void handle(IrcMessage msg) {
+					if (msg.hasPrefix()) leave(msg, msg.getNickStart(), msg.getNickEnd());
+				}
+			}
+		);
+		dispatcher.register(Command.KICK,
+			new Dispatcher.Handler() {
+				public void handle(IrcMessage msg) {
+					if (msg.getParamCount() > 1) leave(msg, msg.getParamStart(1), msg.getParamEnd(1));
+				}
+			}
+		);
+
+		//QUIT, leaving every channel of the nick
+		dispatcher.register(Command.QUIT,
+			new Dispatcher.Handler() {
+				public void handle(IrcMessage msg) {
+					int id = nickID(msg);
+					if (id >= 0) leaveAll(id);
+				}
+			}
+		);
+
+		//NICK, renaming the ID in place
+		dispatcher.register(Command.NICK,
+			new Dispatcher.Handler() {
+				public void handle(IrcMessage msg) {
+					if (!msg.hasPrefix() || msg.getParamCount() < 1) return;
+					String to = msg.getParam(0);
+					if (isSelf(msg)) self = to;
+					applyPending();
+					int id = nickID(msg);
+					if (id < 0) return;
+
+					//A stale entry for the new nick cannot be in any channel anymore, nor in a NAMES reply that has not
+					//ended, which interned it without giving it a channel list; renaming frees its ID for another nick
+					int taken = nicks.lookup(to);
+					if (taken >= 0 && taken != id) {
+						for (ChannelState channel : channels) {
+							if (channel != null) channel.forget(taken);
+						}
+						if (taken < nickChannels.length) {
+							int[] list = nickChannels[taken];
+							for (int i = nickChannelCounts[taken] - 1; i >= 0; i--) channels[list[i]].remove(taken);
+							nickChannelCounts[taken] = 0;
+						}
+					}
+					nicks.rename(id, to);
+				}
+			}
+		);
+
+		//MODE, only the prefix modes of members and the key matter here
+		dispatcher.register(Command.MODE,
+			new Dispatcher.Handler() {
+				public void handle(IrcMessage msg) {
+					ChannelState channel = getChannel(msg, 0);
+					if (channel == null || msg.getParamCount() < 2) return;
+					applyPending(channel);
+					String modes = msg.getParam(1);
+					int arg = 2;
+					boolean on = true;
+					for (int i = 0; i < modes.length(); i++) {
+						char c = modes.charAt(i);
+						if (c == '+' || c == '-') {
+							on = c == '+';
+							continue;
+						}
+						int bit = prefixModes.indexOf(c);
+						if (bit >= 0) {
+							if (arg >= msg.getParamCount()) break;
+							int id = nicks.lookup(msg.getLine(), msg.getParamStart(arg), msg.getParamEnd(arg));
+							arg++;
+							if (id >= 0) channel.setMode(id, bit, on);
+						}
+						else if (c == 'k') {
+							//Kept so the channel can be rejoined, a hidden key ("*") is not worth keeping
+							String key = on && arg < msg.getParamCount() ? msg.getParam(arg) : null;
+							channel.setKey(key == null || key.equals("*") ? null : key);
+							arg++;
+						}
+						else if (paramModes.indexOf(c) >= 0 || (on && setParamModes.indexOf(c) >= 0)) arg++;
+					}
+				}
+			}
+		);
+
+		//Topic, when joining and when changed
+		dispatcher.register(332,
+			new Dispatcher.Handler() {
+				public void handle(IrcMessage msg) {
+					ChannelState channel = getChannel(msg, 1);
+					if (channel != null) channel.setTopic(msg.getLastParam());
+				}
+			}
+		);
+		dispatcher.register(Command.TOPIC,
+			new Dispatcher.Handler() {
+				public void handle(IrcMessage msg) {
+					ChannelState channel = getChannel(msg, 0);
+					if (channel != null && msg.getParamCount() > 1) channel.setTopic(msg.getLastParam());
+				}
+			}
+		);
+
+		//NAMES reply, collected unsorted and sorted once at its end
+		dispatcher.register(353,
+			new Dispatcher.Handler() {
+				public void handle(IrcMessage msg) {
+					if (msg.getParamCount() < 4) return;
+					ChannelState channel = getChannel(msg, 2);
+					if (channel == null) return;
+					String names = msg.getLine();
+					int i = msg.getParamStart(3), length = msg.getParamEnd(3);
+					while (i < length) {
+						while (i < length && names.charAt(i) == ' ') i++;
+						if (i == length) break;
+
+						//Every prefix (multi-prefix sends them all), then the nick, dropping any user@host
+						int mode = 0, bit;
+						while (i < length && (bit = prefixChars.indexOf(names.charAt(i))) >= 0) {
+							mode |= 1 << bit;
+							i++;
+						}
+						int start = i, end = -1;
+						while (i < length && names.charAt(i) != ' ') {
+							if (names.charAt(i) == '!' && end < 0) end = i;
+							i++;
+						}
+						if (end < 0) end = i;
+						if (end > start) channel.addName(nicks.intern(names, start, end), mode);
+					}
+				}
+			}
+		);
+		dispatcher.register(366,
+			new Dispatcher.Handler() {
+				public void handle(IrcMessage msg) {
+					ChannelState channel = getChannel(msg, 1);
+					if (channel == null || !channel.isReceivingNames()) return;
+					applyPending(channel);
+					channel.endNames(changesOf(channel));
+				}
+			}
+		);
+	}
+
+	/**
+	** Returns the callback keeping the channel lists of the nicks in step with the members of a channel.
+	*/
+	private ChannelState.Changes changesOf(final ChannelState channel) {
+		return new ChannelState.Changes() {
+			public void added(int nick) {
+				addNickChannel(nick, channel.getID());
+			}
+			public void removed(int nick) {
+				removeNickChannel(nick, channel.getID());
+			}
+		};
+	}
+
+	/**
+	** Starts deferring joins and leaves, for the lines of a batch.
+	*/
+	public void beginBulk() {
+		bulk = true;
+	}
+
+	/**
+	** Stops deferring joins and leaves, applying them to each channel at once.
+	*/
+	public void endBulk() {
+		bulk = false;
+		applyPending();
+	}
+
+	/**
+	** Returns a channel, remembering that it has deferred changes.
+	*/
+	private ChannelState defer(ChannelState channel) {
+		if (channel.isPendingFull()) applyPending(channel);
+		if (!channel.hasPending()) pendingChannels.add(channel);
+		return channel;
+	}
+
+	/**
+	** Applies the deferred changes of one channel, before it is looked at member by member.
+	*/
+	private void applyPending(ChannelState channel) {
+		if (!channel.hasPending()) return;
+		channel.applyPending(changesOf(channel));
+		pendingChannels.remove(channel);
+	}
+
+	/**
+	** Applies the deferred changes of every channel.
+	*/
+	private void applyPending() {
+		for (ChannelState channel : pendingChannels) channel.applyPending(changesOf(channel));
+		pendingChannels.clear();
+	}
+
+	/**
+	** Reads one token of the server features.
+	*/
+	private void isupport(String token) {
+		if (token.startsWith("PREFIX=(")) {
+			int close = token.indexOf(')');
+			if (close > 0) {
+				prefixModes = token.substring(8, close);
+				prefixChars = token.substring(close + 1);
+			}
+		}
+		else if (token.startsWith("CHANMODES=")) {
+			String[] types = token.substring(10).split(",", -1);
+			if (types.length >= 3) {
+				paramModes = types[0] + types[1];
+				setParamModes = types[2];
+			}
+		}
+		else if (token.startsWith("CASEMAPPING=")) {
+			boolean rfc1459 = !token.equals("CASEMAPPING=ascii");
+			nicks.setRfc1459(rfc1459);
+			channelNames.setRfc1459(rfc1459);
+		}
+	}
+
+	/**
+	** Returns whether the sender of a message is us.
+	*/
+	private boolean isSelf(IrcMessage msg) {
+		if (self == null || !msg.hasPrefix()) return false;
+		int start = msg.getNickStart(), length = msg.getNickEnd() - start;
+		return length == self.length() && msg.getLine().regionMatches(true, start, self, 0, length);
+	}
+
+	/**
+	** Returns the ID of the sender of a message.
+	** @return the ID, or -1 if the sender is in none of our channels
+	*/
+	private int nickID(IrcMessage msg) {
+		if (!msg.hasPrefix()) return -1;
+		return nicks.lookup(msg.getLine(), msg.getNickStart(), msg.getNickEnd());
+	}
+
+	/**
+	** Returns the state of the channel named by a parameter of a message.
+	** @return the state, or null if we are not in that channel
+	*/
+	private ChannelState getChannel(IrcMessage msg, int param) {
+		if (param >= msg.getParamCount()) return null;
+		int id = channelNames.lookup(msg.getLine(), msg.getParamStart(param), msg.getParamEnd(param));
+		return id < 0 ? null : channels[id];
+	}
+
+	/**
+	** Adds a channel to the list of a nick, pinning the nick.
+	*/
+	private void addNickChannel(int id, int channel) {
+		if (id >= nickChannels.length) {
+			int capacity = Math.max(nickChannels.length * 2, id + 1);
+			nickChannels = Arrays.copyOf(nickChannels, capacity);
+			nickChannelCounts = Arrays.copyOf(nickChannelCounts, capacity);
+		}
+		int[] list = nickChannels[id];
+		int count = nickChannelCounts[id];
+		if (list == null) list = nickChannels[id] = new int[4];
+		else if (count == list.length) list = nickChannels[id] = Arrays.copyOf(list, count * 2);
+		list[count] = channel;
+		nickChannelCounts[id] = count + 1;
+		nicks.pin(id);
+	}
+
+	/**
+	** Removes a channel from the list of a nick, unpinning the nick.
+	*/
+	private void removeNickChannel(int id, int channel) {
+		int[] list = nickChannels[id];
+		int count = nickChannelCounts[id];
+		for (int i = 0; i < count; i++) {
+			if (list[i] == channel) {
+				list[i] = list[count - 1];
+				nickChannelCounts[id] = count - 1;
+				nicks.unpin(id);
+				break;
+			}
+		}
+	}
+
+	/**
+	** Removes a nick from every channel it is in.
+	*/
+	private void leaveAll(int id) {
+		if (bulk) {
+			//The nick may have joined a channel in this batch, which its list does not show yet
+			for (ChannelState channel : pendingChannels) {
+				if (channel.hasPendingJoins()) {
+					applyPending();
+					break;
+				}
+			}
+		}
+		if (id >= nickChannels.length) return;
+		int[] list = nickChannels[id];
+		if (bulk) {
+			for (int i = nickChannelCounts[id] - 1; i >= 0; i--) defer(channels[list[i]]).removeLater(id);
+			return;
+		}
+		for (int i = nickChannelCounts[id] - 1; i >= 0; i--) {
+			channels[list[i]].remove(id);
+			nicks.unpin(id);
+		}
+		nickChannelCounts[id] = 0;
+	}
+
+	/**
+	** Creates the state of a channel we joined, pinning its name.
+	*/
+	private ChannelState addChannel(String name) {
+		int id = channelNames.intern(name);
+		channelNames.pin(id);
+		if (id >= channels.length) channels = Arrays.copyOf(channels, Math.max(channels.length * 2, id + 1));
+		ChannelState channel = new ChannelState(channelNames.get(id), id);
+		channels[id] = channel;
+		return channel;
+	}
+
+	/**
+	** Handles a nick, given by a range of the line, leaving the channel of the first parameter.
+	** The whole channel is dropped when it is us.
+	*/
+	private void leave(IrcMessage msg, int start, int end) {
+		ChannelState channel = getChannel(msg, 0);
+		if (channel == null) return;
+		int id = nicks.lookup(msg.getLine(), start, end);
+		if (self != null && id >= 0 && id == nicks.lookup(self)) {
+			drop(channel);
+			return;
+		}
+		if (id < 0) return;
+		if (bulk) defer(channel).removeLater(id);
+		else if (channel.remove(id)) removeNickChannel(id, channel.getID());
+	}
+
+	/**
+	** Drops a channel, with its members.
+	*/
+	private void drop(ChannelState channel) {
+		applyPending(channel);
+		for (int i = channel.size() - 1; i >= 0; i--) removeNickChannel(channel.getMember(i), channel.getID());
+		channels[channel.getID()] = null;
+		channelNames.remove(channel.getID());
+	}
+
+	/**
+	** Forgets a channel we are no longer in without having left it, such as one we could not rejoin.
+	** @param name The channel name
+	*/
+	public void forget(String name) {
+		ChannelState channel = getChannel(name);
+		if (channel != null) drop(channel);
+	}
+
+	/**
+	** Puts back a channel we were in, as a snapshot saved it, until we rejoin it and its NAMES reply replaces the members.
+	** @param name The channel name
+	** @param topic The topic, or null
+	** @param key The key, or null
+	** @param members The members, each with its highest prefix
+	*/
+	public void restore(String name, String topic, String key, String[] members) {
+		ChannelState channel = getChannel(name);
+		if (channel == null) channel = addChannel(name);
+		if (topic != null) channel.setTopic(topic);
+		if (key != null) channel.setKey(key);
+		for (String member : members) {
+			//The server's prefixes are not known yet, and no nick starts with any of the usual ones
+			int mode = 0, start = 0, bit;
+			while (start < member.length() && RESTORED_PREFIXES.indexOf(member.charAt(start)) >= 0) {
+				if ((bit = prefixChars.indexOf(member.charAt(start))) >= 0) mode |= 1 << bit;
+				start++;
+			}
+			if (start < member.length()) channel.addName(nicks.intern(member, start, member.length()), mode);
+		}
+		channel.endNames(changesOf(channel));
+	}
+
+	/**
+	** Starts a new epoch of the nick and channel tables, releasing the nicks that left every channel.
+	** @return the number of names released
+	*/
+	public int sweep() {
+		return nicks.sweep() + channelNames.sweep();
+	}
+
+	/**
+	** Returns our own nick, as the server last told us.
+	** @return the nick, or null before registration
+	*/
+	public String getSelf() {
+		return self;
+	}
+
+	/**
+	** Returns the state of a channel we are in.
+	** @param name The channel name
+	** @return the state, or null if we are not in that channel
+	*/
+	public ChannelState getChannel(String name) {
+		int id = channelNames.lookup(name);
+		return id < 0 ? null : channels[id];
+	}
+
+	/**
+	** Returns the names of the channels we are in.
+	** @return the channel names
+	*/
+	public String[] getChannelNames() {
+		ArrayList<String> names = new ArrayList<String>();
+		for (ChannelState channel : channels) {
+			if (channel != null) names.add(channel.getName());
+		}
+		return names.toArray(new String[0]);
+	}
+
+	/**
+	** Returns the name of a nick ID.
+	** @param id The nick ID
+	** @return the nick
+	*/
+	public String getNick(int id) {
+		return nicks.get(id);
+	}
+
+	/**
+	** Returns the channels a nick is in, for showing its QUIT or NICK in each of them.
+	** Must be called before the message is dispatched.
+	** @param nick The nick
+	** @return the channel names, empty if the nick is in none of our channels
+	*/
+	public String[] getChannels(String nick) {
+		int id = nicks.lookup(nick);
+		if (id < 0 || id >= nickChannels.length) return new String[0];
+		String[] names = new String[nickChannelCounts[id]];
+		for (int i = 0; i < names.length; i++) names[i] = channels[nickChannels[id][i]].getName();
+		return names;
+	}
+
+	/**
+	** Returns the members of a channel, each with its highest prefix.
+	** @param name The channel name
+	** @return the members, in no particular order, or null if we are not in that channel
+	*/
+	public String[] getMembers(String name) {
+		ChannelState channel = getChannel(name);
+		if (channel == null) return null;
+		String[] members = new String[channel.size()];
+		for (int i = 0; i < members.length; i++) {
+			int modes = channel.getModes(i);
+			String nick = nicks.get(channel.getMember(i));
+			members[i] = modes == 0 ? nick : prefixChars.charAt(Integer.numberOfTrailingZeros(modes)) + nick;
+		}
+		return members;
+	}
+
+	/**
+	** Returns the number of nicks known, across every channel.
+	** @return the number of nicks
+	*/
+	public int getNickCount() {
+		return nicks.size();
+	}
+
+}
@@ -4,13 +4,6 @@ import java.awt.*;
 import java.awt.event.*;
 import javax.swing.*;
 
-import java.io.InputStreamReader;
-import java.io.BufferedReader;
-import java.io.PipedOutputStream;
-import java.io.PipedInputStream;
-
-import java.io.IOException;
-
 /**
 ** Chat window GUI class of the SomewhereIRC client.
 **
@@ -21,53 +14,95 @@ public class ChatWindow extends JFrame implements Runnable {
 	
 	//Class variables
 	private JTextField input;
-	private JTextArea display;
+	private ScrollbackView display;
 	private JScrollPane displayScrollPane;
-	private BufferedReader myInput;
-	private PipedOutputStream pos;
-	private PipedInputStream pis; //Not used right now, due to the temporary display solution
+	private CommandQueue commands;
+	private String target;
+	private SearchIndex index;
+	private String network;
+	private String title;
+	private boolean highlighted = false;
+	private boolean exitOnClose;
 	
 	/**
-	** Constructor that sets the title and pipes.
+	** Constructor that sets the title and command queue.
 	** @param title The panel title
-	** @param pos The piped output stream to the delegate
-	** @param pis The piped input stream to the delegate
+	** @param commands The command queue to the delegate
+	** @param target The target of the window (channel or nick), or null for the status window
+	** @param dis The display area shared with the delegate
+	** @param exitOnClose Whether closing the window quits the client, or only closes the window
 	*/
-	public ChatWindow(String title, PipedOutputStream pos, PipedInputStream pis, JTextArea dis) {
+	public ChatWindow(String title, CommandQueue commands, String target, ScrollbackView dis, boolean exitOnClose) {
 		super(title);
-		this.pos = pos;
-		this.pis = pis;
-		myInput = new BufferedReader( new InputStreamReader(this.pis) );
+		this.title = title;
+		this.commands = commands;
+		this.target = target;
+		this.exitOnClose = exitOnClose;
 		display = dis;
 	}
 	
+	/**
+	** Lets the window search the logged history of its network (Edit, Search History, Ctrl+F).
+	** Must be called before the window is created.
+	** @param index The search index, or null if history is not indexed
+	** @param network The network of the window
+	*/
+	public void setSearchIndex(SearchIndex index, String network) {
+		this.index = index;
+		this.network = network;
+	}
+	
 	/**
 	** Text Field Listener class, with the actions on input
 	*/
 	private class TextFieldListener implements ActionListener {
 		public void actionPerformed(ActionEvent e) {
-			String in = input.getText().concat("\n");
+			String in = input.getText();
 			display.append(in);
-			try {
-				pos.write(in.getBytes(),0,in.length());
-				pos.flush();
-			} catch (IOException ie) {
-				display.append("ERROR: Message was not sent to server.");
-			}
+			commands.offer(new UserCommand(in, target));
 			input.setText("");
 		}
 	}
 
+	/**
+	** Marks the title and beeps when a highlighted line comes in while the window is not focused,
+	** until it is focused again. Safe to call from any thread.
+	*/
+	public void highlight() {
+		javax.swing.SwingUtilities.invokeLater(
+			new Runnable() {
+				public void run() {
+					if (isFocused() || highlighted) return;
+					highlighted = true;
+					setTitle("* " + title);
+					Toolkit.getDefaultToolkit().beep();
+				}
+			}
+		);
+	}
+
 	/**
 	** Initializes the chat window GUI.
 	*/
 	private void createChatWindow() {
 		//Set window properties
-		setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		setDefaultCloseOperation(exitOnClose ? JFrame.EXIT_ON_CLOSE : JFrame.DISPOSE_ON_CLOSE);
+		addWindowFocusListener(
+			new WindowAdapter() {
+				public void windowGainedFocus(WindowEvent e) {
+					if (!highlighted) return;
+					highlighted = false;
+					setTitle(title);
+				}
+			}
+		);
+		
+		//Add the menu, if there is history to search
+		if (index != null) createMenu();
 		
 		//Set up components
 		input = new JTextField();
-		//display = new JTextArea();
+		//display = new ScrollbackView();
 		displayScrollPane = new JScrollPane(display);
 		displayScrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
 		displayScrollPane.setPreferredSize(new Dimension(400,300));
@@ -85,11 +120,6 @@ public class ChatWindow extends JFrame implements Runnable {
 		TextFieldListener inputListener = new TextFieldListener();
 		input.addActionListener(inputListener);
 		
-		//Fix display options
-		display.setEditable(false);
-		display.setLineWrap(true);
-		display.setWrapStyleWord(true);
-		
 		//Add all the field components to the window
 		constraints.gridx = 0; constraints.gridy = 0;
 		add(displayScrollPane,constraints);
@@ -101,6 +131,34 @@ public class ChatWindow extends JFrame implements Runnable {
 		setVisible(true);
 	}
 	
+	/**
+	** Initializes the chat window menu.
+	*/
+	private void createMenu() {
+		JMenuBar menubar = new JMenuBar();
+		menubar.setOpaque(true);
+		
+		//Edit Menu
+		JMenu editMenu = new JMenu("Edit");
+		editMenu.setMnemonic(KeyEvent.VK_E);
+		menubar.add(editMenu);
+		
+		//Edit Menu Option- Search History
+		JMenuItem search = new JMenuItem("Search History...");
+		search.setMnemonic(KeyEvent.VK_S);
+		search.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F,ActionEvent.CTRL_MASK));
+		search.addActionListener(
+			new ActionListener() {
+				public void actionPerformed(ActionEvent e) {
+					new SearchWindow(index, network, target);
+				}
+			}
+		);
+		editMenu.add(search);
+		
+		setJMenuBar(menubar);
+	}
+	
 	/**
 	** Creates the initialized window and components.
 	*/
@@ -4,18 +4,26 @@ import java.awt.*;
 import java.awt.event.*;
 import javax.swing.*;
 import java.util.ArrayList;
+import java.util.HashSet;
 
 /**
 ** Top class of the SomewhereIRC client.
 ** Initializes and starts up everything.
-** Will do the thread handling for each connection.
+** Keeps track of each connection in the connection registry.
+**
+** Servers given on the command line, as host or host:port, are connected before the GUI is built:
+** their sessions start on the event loops while Swing and AWT are still loading, and their windows
+** open once the GUI is up, showing everything that happened meanwhile. For the fastest start, run the
+** client with the class data sharing archive made by build-cds.sh.
+** The networks the client was on when it last stopped come back the same way, from their SessionSnapshots:
+** their windows show what they last showed while they reconnect and rejoin their channels.
 **
 ** @author Philip Ng
 ** @version 1.0
 */
 public class Client {
 
-	private static ArrayList<Thread> connections = new ArrayList<Thread>();
+	private static ConnectionRegistry connections = new ConnectionRegistry();
 	private static ControlPanel controlPanel;
 		
 	/**
@@ -23,10 +31,8 @@ public class Client {
 	** @param host The hostname of the server to connect to.
 	*/
 	private static void addByHost(String host) {
-		SomewhereIRC connection = new SomewhereIRC(host);
-		Thread t = new Thread(connection);
-		connections.add(t);
-		t.run();
+		SomewhereIRC connection = new SomewhereIRC(host, new SwingFrontEnd());
+		connections.add(connection);
 	}
 	
 	/**
@@ -35,10 +41,39 @@ public class Client {
 	** @param port The port number to connect to on the server.
 	*/
 	private static void addByHostAndPort(String host, Integer port) {
-		SomewhereIRC connection = new SomewhereIRC(host,port);
-		Thread t = new Thread(connection);
-		connections.add(t);
-		t.start();
+		SomewhereIRC connection = new SomewhereIRC(host, port, new SwingFrontEnd());
+		connections.add(connection);
+	}
+	
+	/**
+	** Connects to a server given on the command line, before there is any GUI.
+	** @param server The hostname, or hostname:port, of the server.
+	** @return the front end standing in for the windows until the GUI is up, or null if the server is not valid.
+	*/
+	private static DeferredFrontEnd connectEarly(String server) {
+		int colon = server.lastIndexOf(':');
+		Integer port = 6667;
+		String host = colon < 0 ? server : server.substring(0, colon);
+		try {
+			if (colon >= 0) port = Integer.valueOf(server.substring(colon + 1));
+		} catch (NumberFormatException e) {
+			System.out.println("\tERROR: Invalid port in " + server + ".");
+			return null;
+		}
+		DeferredFrontEnd front = new DeferredFrontEnd();
+		connections.add(new SomewhereIRC(host, port, front));
+		return front;
+	}
+	
+	/**
+	** Restores a network from the snapshot it saved, before there is any GUI.
+	** @param snapshot The snapshot
+	** @return the front end standing in for the windows until the GUI is up
+	*/
+	private static DeferredFrontEnd restoreEarly(SessionSnapshot snapshot) {
+		DeferredFrontEnd front = new DeferredFrontEnd();
+		connections.add(new SomewhereIRC(snapshot, SomewhereIRC.DEFAULT_MODE, front));
+		return front;
 	}
 	
 	/**
@@ -53,6 +88,18 @@ public class Client {
 	** Starts main application loop.
 	*/
 	public static void main(String args[]) {
+		//Restore the networks of the last run and connect to the servers given first, nothing so far has loaded any GUI class
+		ArrayList<DeferredFrontEnd> early = new ArrayList<DeferredFrontEnd>();
+		HashSet<String> restored = new HashSet<String>();
+		for (SessionSnapshot snapshot : SessionSnapshot.openAll()) {
+			early.add(restoreEarly(snapshot));
+			restored.add(snapshot.getHost() + ":" + snapshot.getPort());
+		}
+		for (String server : args) {
+			//A server restored already is not connected to twice
+			if (!restored.contains(server) && !restored.contains(server + ":6667")) early.add(connectEarly(server));
+		}
+		
 		//OS specific adjustments - Main menu
 		final String os = System.getProperty("os.name");
 		if (os.startsWith("Mac")) {
@@ -79,6 +126,11 @@ public class Client {
 		//Create and start control panel GUI
 		controlPanel = new ControlPanel("SomewhereIRC Control Panel",connectButton);
 		controlPanel.run();
+		
+		//Open the windows of the servers connected early
+		for (DeferredFrontEnd front : early) {
+			if (front != null) front.attach(new SwingFrontEnd());
+		}
 	}
 	
 }
\ No newline at end of file
@@ -0,0 +1,117 @@
+package somewhereIRC;
+
+/**
+** Command enumeration of the SomewhereIRC client.
+** The IRC commands the client knows about, looked up in constant time straight from a raw line.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public enum Command {
+	//Not a known command
+	UNKNOWN,
+	//A three digit numeric reply, see IrcMessage.getNumeric()
+	NUMERIC,
+	//Commands
+	PING,
+	PONG,
+	PRIVMSG,
+	NOTICE,
+	JOIN,
+	PART,
+	QUIT,
+	NICK,
+	MODE,
+	KICK,
+	TOPIC,
+	INVITE,
+	KILL,
+	ERROR,
+	AWAY,
+	WALLOPS,
+	CAP,
+	AUTHENTICATE,
+	BATCH,
+	ACCOUNT,
+	CHGHOST,
+	SETNAME,
+	TAGMSG;
+
+	//Open addressing table of the commands, indexed by the hash of their name
+	private static final Command[] table = new Command[128];
+	private static final int MASK = table.length - 1;
+	static {
+		for (Command command : values()) {
+			if (command == UNKNOWN || command == NUMERIC) continue;
+			String name = command.name();
+			int slot = hash(name, 0, name.length()) & MASK;
+			while (table[slot] != null) slot = (slot + 1) & MASK;
+			table[slot] = command;
+		}
+	}
+
+	/**
+	** Returns the case insensitive hash of a range of characters.
+	*/
+	private static int hash(CharSequence s, int start, int end) {
+		int h = 0;
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (c >= 'a' && c <= 'z') c -= 32;
+			h = 31 * h + c;
+		}
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	** Returns whether a range of characters is the name of the command, ignoring case.
+	*/
+	private boolean matches(CharSequence s, int start, int end) {
+		String name = name();
+		if (end - start != name.length()) return false;
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (c >= 'a' && c <= 'z') c -= 32;
+			if (c != name.charAt(i - start)) return false;
+		}
+		return true;
+	}
+
+	/**
+	** Returns whether a character is one of the digits of a numeric, 0 to 9 and nothing else Unicode calls a digit.
+	*/
+	private static boolean isAsciiDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	/**
+	** Looks up the command named by a range of characters, without copying them.
+	** @param s The characters holding the command
+	** @param start The start of the command (inclusive)
+	** @param end The end of the command (exclusive)
+	** @return the command, NUMERIC for a three digit numeric, or UNKNOWN
+	*/
+	public static Command lookup(CharSequence s, int start, int end) {
+		if (end - start == 3
+			&& isAsciiDigit(s.charAt(start))
+			&& isAsciiDigit(s.charAt(start + 1))
+			&& isAsciiDigit(s.charAt(start + 2))) return NUMERIC;
+		int slot = hash(s, start, end) & MASK;
+		Command command;
+		while ((command = table[slot]) != null) {
+			if (command.matches(s, start, end)) return command;
+			slot = (slot + 1) & MASK;
+		}
+		return UNKNOWN;
+	}
+
+	/**
+	** Looks up the command with the given name.
+	** @param name The name of the command
+	** @return the command, NUMERIC for a three digit numeric, or UNKNOWN
+	*/
+	public static Command lookup(String name) {
+		return lookup(name, 0, name.length());
+	}
+
+}
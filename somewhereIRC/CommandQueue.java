@@ -0,0 +1,63 @@
+package somewhereIRC;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+** Command queue class of the SomewhereIRC client.
+** Carries user commands from any number of windows to a single connection, without locks or polling.
+** The first command offered after the queue was drained runs the wakeup hook once,
+** which is expected to get the consumer to drain the queue.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class CommandQueue {
+
+	//Queue variables
+	private final ConcurrentLinkedQueue<UserCommand> commands = new ConcurrentLinkedQueue<UserCommand>();
+	private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+	private final Runnable wakeup;
+
+	/**
+	** Constructor given the wakeup hook.
+	** @param wakeup The hook run when commands become available
+	*/
+	public CommandQueue(Runnable wakeup) {
+		this.wakeup = wakeup;
+	}
+
+	/**
+	** Offers a command. May be called from any thread.
+	** @param command The command
+	*/
+	public void offer(UserCommand command) {
+		commands.offer(command);
+		if (wakeupPending.compareAndSet(false, true)) wakeup.run();
+	}
+
+	/**
+	** Prepares for draining. Must be called by the consumer before it starts polling,
+	** so a command offered while draining wakes the consumer up again.
+	*/
+	public void beginDrain() {
+		wakeupPending.set(false);
+	}
+
+	/**
+	** Returns the next command. Must only be called by the consumer.
+	** @return the next command, or null if there is none
+	*/
+	public UserCommand poll() {
+		return commands.poll();
+	}
+
+	/**
+	** Returns the number of commands waiting. Not constant time, use for monitoring only.
+	** @return the number of commands waiting
+	*/
+	public int size() {
+		return commands.size();
+	}
+
+}
@@ -0,0 +1,67 @@
+package somewhereIRC;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+** Connection registry class of the SomewhereIRC client.
+** Keeps track of the live connections, whichever way they are executed.
+** Connections remove themselves once they are done.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class ConnectionRegistry {
+
+	//Registry variables
+	private final ConcurrentHashMap<Integer, SomewhereIRC> connections = new ConcurrentHashMap<Integer, SomewhereIRC>();
+	private final AtomicInteger nextID = new AtomicInteger(1);
+
+	/**
+	** Adds a connection to the registry.
+	** @param connection The connection
+	** @return the ID given to the connection
+	*/
+	public int add(SomewhereIRC connection) {
+		int id = nextID.getAndIncrement();
+		connections.put(id, connection);
+		connection.registered(this, id);
+		return id;
+	}
+
+	/**
+	** Removes a connection from the registry.
+	** @param id The ID of the connection
+	*/
+	public void remove(int id) {
+		connections.remove(id);
+	}
+
+	/**
+	** Returns a connection.
+	** @param id The ID of the connection
+	** @return the connection, or null if there is no such connection
+	*/
+	public SomewhereIRC get(int id) {
+		return connections.get(id);
+	}
+
+	/**
+	** Returns the number of live connections.
+	** @return the number of connections
+	*/
+	public int size() {
+		return connections.size();
+	}
+
+	/**
+	** Returns a snapshot of the live connections.
+	** @return the connections
+	*/
+	public Collection<SomewhereIRC> getConnections() {
+		return new ArrayList<SomewhereIRC>(connections.values());
+	}
+
+}
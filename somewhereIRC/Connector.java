@@ -0,0 +1,313 @@
+package somewhereIRC;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+
+/**
+** Connector class of the SomewhereIRC client.
+** Resolves every address of a server off the connection's thread, then races connection attempts
+** to them, starting one more every ATTEMPT_DELAY until one connects (Happy Eyeballs, RFC 8305).
+** Each attempt gives up after CONNECT_TIMEOUT.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class Connector {
+
+	/**
+	** Callback for the outcome of a connection, called on the connection's executor.
+	*/
+	public interface Callback {
+		/**
+		** Called with the first socket to connect.
+		** @param channel The connected socket, non-blocking on an event loop and blocking otherwise
+		** @param address The address it connected to
+		*/
+		void connected(SocketChannel channel, InetSocketAddress address);
+
+		/**
+		** Called once every address failed, or none could be resolved.
+		** @param reason What went wrong
+		*/
+		void failed(String reason);
+	}
+
+	//Constants
+	public static final long ATTEMPT_DELAY = Long.getLong("somewhereIRC.attemptDelay", 250L);
+	public static final int CONNECT_TIMEOUT = Integer.getInteger("somewhereIRC.connectTimeout", 10000);
+	private static final int RESOLVER_THREADS = 4;
+
+	//Shared resolvers, so lookups run in parallel without each connection holding a thread for them
+	private static final ExecutorService resolvers = Executors.newFixedThreadPool(RESOLVER_THREADS,
+		new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "SomewhereIRC resolver " + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		}
+	);
+
+	//Connection variables
+	private final String host;
+	private final int port;
+	private final SessionExecutor executor;
+	private final EventLoop loop;
+	private final Callback callback;
+
+	//Race variables, only touched on the executor
+	private InetSocketAddress[] addresses;
+	private int next = 0;
+	private int pending = 0;
+	private boolean finished = false;
+	private final ArrayList<SocketChannel> attempts = new ArrayList<SocketChannel>();
+	private String lastError = "no address";
+
+	/**
+	** Constructor given the server and where to report to.
+	*/
+	private Connector(String host, int port, SessionExecutor executor, EventLoop loop, Callback callback) {
+		this.host = host;
+		this.port = port;
+		this.executor = executor;
+		this.loop = loop;
+		this.callback = callback;
+	}
+
+	/**
+	** Starts connecting to a server.
+	** @param host The hostname of the server
+	** @param port The port of the server
+	** @param executor The executor of the connection, which the callback is run on
+	** @param loop The event loop of the connection, or null to connect with blocking I/O
+	** @param callback Where to report the outcome
+	*/
+	public static void connect(String host, int port, SessionExecutor executor, EventLoop loop, Callback callback) {
+		new Connector(host, port, executor, loop, callback).resolve();
+	}
+
+	/**
+	** Resolves the server on the shared resolvers, then starts the race on the executor.
+	*/
+	private void resolve() {
+		resolvers.execute(
+			new Runnable() {
+				public void run() {
+					final InetAddress[] resolved;
+					try {
+						resolved = InetAddress.getAllByName(host);
+					} catch (UnknownHostException e) {
+						executor.execute(
+							new Runnable() {
+								public void run() {
+									callback.failed("Could not resolve " + host + ".");
+								}
+							}
+						);
+						return;
+					}
+					executor.execute(
+						new Runnable() {
+							public void run() {
+								startRace(resolved);
+							}
+						}
+					);
+				}
+			}
+		);
+	}
+
+	/**
+	** Orders the addresses, alternating between IPv6 and IPv4, and starts the first attempt.
+	*/
+	private void startRace(InetAddress[] resolved) {
+		ArrayList<InetAddress> v6 = new ArrayList<InetAddress>();
+		ArrayList<InetAddress> v4 = new ArrayList<InetAddress>();
+		for (InetAddress address : resolved) {
+			if (address instanceof Inet6Address) v6.add(address);
+			else v4.add(address);
+		}
+		addresses = new InetSocketAddress[resolved.length];
+		int i = 0;
+		for (int j = 0; j < Math.max(v6.size(), v4.size()); j++) {
+			if (j < v6.size()) addresses[i++] = new InetSocketAddress(v6.get(j), port);
+			if (j < v4.size()) addresses[i++] = new InetSocketAddress(v4.get(j), port);
+		}
+		startAttempt();
+	}
+
+	/**
+	** Starts an attempt on the next address, and schedules the one after it.
+	*/
+	private void startAttempt() {
+		if (finished) return;
+		if (next >= addresses.length) {
+			if (pending == 0) fail();
+			return;
+		}
+		InetSocketAddress address = addresses[next++];
+		pending++;
+		if (loop != null) startNonBlocking(address);
+		else startBlocking(address);
+		
+		//Give this attempt a head start before racing the next one against it
+		if (next < addresses.length) {
+			final int started = next;
+			executor.schedule(
+				new Runnable() {
+					public void run() {
+						if (next == started) startAttempt();
+					}
+				},
+				ATTEMPT_DELAY
+			);
+		}
+	}
+
+	/**
+	** Starts a non-blocking attempt on the event loop.
+	*/
+	private void startNonBlocking(final InetSocketAddress address) {
+		final SocketChannel channel;
+		try {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			attempts.add(channel);
+			if (channel.connect(address)) {
+				succeeded(channel, address);
+				return;
+			}
+			loop.register(channel, SelectionKey.OP_CONNECT,
+				new EventLoop.Handler() {
+					public void handleReady(SelectionKey key) {
+						try {
+							channel.finishConnect();
+							key.interestOps(0);
+							succeeded(channel, address);
+						} catch (IOException e) {
+							attemptFailed(channel, address, e);
+						}
+					}
+				}
+			);
+		} catch (IOException e) {
+			attemptFailed(null, address, e);
+			return;
+		}
+		
+		//Give up on the attempt if it takes too long
+		executor.schedule(
+			new Runnable() {
+				public void run() {
+					if (channel.isOpen() && !channel.isConnected()) {
+						attemptFailed(channel, address, new IOException("connection timed out"));
+					}
+				}
+			},
+			CONNECT_TIMEOUT
+		);
+	}
+
+	/**
+	** Starts a blocking attempt on a thread of its own.
+	*/
+	private void startBlocking(final InetSocketAddress address) {
+		final SocketChannel channel;
+		try {
+			channel = SocketChannel.open();
+		} catch (IOException e) {
+			attemptFailed(null, address, e);
+			return;
+		}
+		attempts.add(channel);
+		VirtualThreadExecutor.startThread(
+			new Runnable() {
+				public void run() {
+					try {
+						channel.socket().connect(address, CONNECT_TIMEOUT);
+						executor.execute(
+							new Runnable() {
+								public void run() {
+									succeeded(channel, address);
+								}
+							}
+						);
+					} catch (final IOException e) {
+						executor.execute(
+							new Runnable() {
+								public void run() {
+									attemptFailed(channel, address, e);
+								}
+							}
+						);
+					}
+				}
+			},
+			"SomewhereIRC connect " + address
+		);
+	}
+
+	/**
+	** Hands the winning socket over and closes every other attempt.
+	*/
+	private void succeeded(SocketChannel channel, InetSocketAddress address) {
+		pending--;
+		if (finished) {
+			close(channel);
+			return;
+		}
+		finished = true;
+		for (SocketChannel attempt : attempts) {
+			if (attempt != channel) close(attempt);
+		}
+		attempts.clear();
+		callback.connected(channel, address);
+	}
+
+	/**
+	** Counts a failed attempt, starting the next one straight away.
+	*/
+	private void attemptFailed(SocketChannel channel, InetSocketAddress address, IOException e) {
+		if (channel != null) {
+			if (!attempts.remove(channel)) return;
+			close(channel);
+		}
+		pending--;
+		lastError = address + ": " + e.getMessage();
+		if (!finished) startAttempt();
+	}
+
+	/**
+	** Reports that every attempt failed.
+	*/
+	private void fail() {
+		if (finished) return;
+		finished = true;
+		callback.failed("Could not connect to " + host + " on port " + port + " (" + lastError + ").");
+	}
+
+	/**
+	** Closes a socket, ignoring errors.
+	*/
+	private static void close(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {}
+	}
+
+}
@@ -0,0 +1,557 @@
+package somewhereIRC;
+
+import java.io.File;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import java.lang.NumberFormatException;
+import java.io.IOException;
+import java.net.UnknownHostException;
+
+/**
+** DCC manager class of the SomewhereIRC client.
+** Negotiates the DCC file transfers of one connection over CTCP, and hands each transfer to a DccTransfer
+** running on its own socket and thread once both sides agree, so a transfer never holds up the connection.
+** Supports DCC SEND both ways, passive (reverse) DCC where the receiver listens, and RESUME/ACCEPT.
+** The user drives it with /dcc:
+**
+**   /dcc send [-passive] <nick> <path>   offers a file
+**   /dcc get <nick> [name]               accepts a file offered, resuming it if part of it was received
+**   /dcc close <nick> [name]             stops a transfer or refuses an offer
+**   /dcc list                            shows every transfer, with its progress and throughput
+**
+** Received files go to somewhereIRC.dccDir (~/Downloads by default). We listen on a port of
+** somewhereIRC.dccPorts (a range like 5000-5010, any port by default) and tell the other side the address
+** of somewhereIRC.dccAddress, or else the local address of the connection to the server. With
+** somewhereIRC.dccPassive=true every file is offered passively, for when the other side cannot be reached.
+** Only used from the connection's thread, but for finished() and progress(), called by the transfers.
+** A transfer is reported by finished() once it has had a thread of its own, and dropped here otherwise.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class DccManager {
+
+	//Settings
+	public static final File DOWNLOAD_DIR = new File(System.getProperty("somewhereIRC.dccDir",
+		System.getProperty("user.home") + File.separator + "Downloads"));
+	public static final boolean PASSIVE = Boolean.getBoolean("somewhereIRC.dccPassive");
+	private static final String ADDRESS = System.getProperty("somewhereIRC.dccAddress");
+	private static final String PORTS = System.getProperty("somewhereIRC.dccPorts", "0");
+	private static final long OFFER_TIMEOUT = 300000;
+	private static final char CTCP = 0x01;
+
+	//The address of somewhereIRC.dccAddress, looked up once on a thread of its own, never on a connection's
+	private static final FutureTask<InetAddress> configuredAddress = ADDRESS == null ? null : new FutureTask<InetAddress>(
+		new Callable<InetAddress>() {
+			public InetAddress call() throws UnknownHostException {
+				return InetAddress.getByName(ADDRESS);
+			}
+		}
+	);
+	static {
+		if (configuredAddress != null) {
+			Thread thread = new Thread(configuredAddress, "SomewhereIRC DCC address");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	//Connection variables
+	private final SomewhereIRC session;
+
+	//Transfers offered, waiting or running, in the order they started
+	private final ArrayList<DccTransfer> transfers = new ArrayList<DccTransfer>();
+	private int active = 0;
+	private long nextToken = 1;
+
+	/**
+	** Constructor given the connection.
+	** @param session The connection the transfers are negotiated on
+	*/
+	public DccManager(SomewhereIRC session) {
+		this.session = session;
+	}
+
+	/**
+	** Registers the handler of the DCC messages.
+	** @param dispatcher The dispatcher for server input
+	*/
+	public void registerHandlers(Dispatcher dispatcher) {
+		dispatcher.register(Command.PRIVMSG,
+			new Dispatcher.Handler() {
+				public void handle(IrcMessage msg) {
+					if (!msg.hasPrefix() || msg.getParamCount() < 2) return;
+					String text = msg.getLastParam();
+					if (!text.startsWith(CTCP + "DCC ")) return;
+
+					//Only offers made to us alone, not to a channel, and from users we do not ignore
+					String self = session.getSelf();
+					if (self == null || !self.equalsIgnoreCase(msg.getParam(0)) || session.isIgnored(msg)) return;
+					int end = text.indexOf(CTCP, 1);
+					received(msg.getNick(), text.substring(5, end < 0 ? text.length() : end));
+				}
+			}
+		);
+	}
+
+	/**
+	** Handles a DCC message: SEND, RESUME or ACCEPT.
+	** @param nick Who sent it
+	** @param dcc The message, after DCC
+	*/
+	private void received(String nick, String dcc) {
+		int space = dcc.indexOf(' ');
+		if (space < 0) return;
+		String type = dcc.substring(0, space);
+
+		//The file name, quoted if it holds spaces, then numbers
+		String rest = dcc.substring(space + 1);
+		String name;
+		if (rest.startsWith("\"") && rest.indexOf('"', 1) > 0) {
+			name = rest.substring(1, rest.indexOf('"', 1));
+			rest = rest.substring(rest.indexOf('"', 1) + 1).trim();
+		}
+		else {
+			space = rest.indexOf(' ');
+			if (space < 0) return;
+			name = rest.substring(0, space);
+			rest = rest.substring(space + 1).trim();
+		}
+		String[] args = rest.split(" +");
+		try {
+			if (type.equalsIgnoreCase("SEND") && args.length >= 3) {
+				long token = args.length > 3 ? Long.parseLong(args[3]) : -1;
+				offered(nick, name, parseAddress(args[0]), Integer.parseInt(args[1]), Long.parseLong(args[2]), token);
+			}
+			else if (type.equalsIgnoreCase("RESUME") && args.length >= 2) {
+				resume(nick, name, Integer.parseInt(args[0]), Long.parseLong(args[1]), args.length > 2 ? Long.parseLong(args[2]) : -1);
+			}
+			else if (type.equalsIgnoreCase("ACCEPT") && args.length >= 2) {
+				accept(nick, Integer.parseInt(args[0]), Long.parseLong(args[1]), args.length > 2 ? Long.parseLong(args[2]) : -1);
+			}
+		} catch (NumberFormatException e) {
+			session.showStatus("DCC: Could not read " + type + " from " + nick + ".");
+		} catch (UnknownHostException e) {
+			session.showStatus("DCC: Could not read the address in " + type + " from " + nick + ".");
+		}
+	}
+
+	/**
+	** Handles a DCC SEND: a file offered to us, or the answer to a file we offered passively.
+	*/
+	private void offered(String nick, String name, InetAddress address, int port, long size, long token) {
+		//The receiver of our passive offer tells us where to connect
+		if (token >= 0 && port != 0) {
+			DccTransfer transfer = find(nick, true, -1, token);
+			if (transfer != null && transfer.getState() == DccTransfer.State.OFFERED) {
+				transfer.setRemote(new InetSocketAddress(address, port));
+				started(transfer);
+				transfer.connect();
+				return;
+			}
+		}
+		if (port == 0 && token < 0) return;
+		DccTransfer transfer = new DccTransfer(this, false, nick, name, null, size, port == 0 ? token : -1);
+		if (port != 0) transfer.setRemote(new InetSocketAddress(address, port));
+		transfers.add(transfer);
+		expire(transfer);
+		session.showStatus("DCC: " + nick + " offers " + name + " (" + formatSize(size) + (port == 0 ? ", passive" : "")
+			+ "). Type /dcc get " + nick + " " + name + " to accept it.");
+	}
+
+	/**
+	** Handles a DCC RESUME, asking to start a file we offered further in.
+	*/
+	private void resume(String nick, String name, int port, long offset, long token) {
+		DccTransfer transfer = find(nick, true, port, token);
+		if (transfer == null || offset < 0 || offset > transfer.getSize()) return;
+		if (transfer.getState() != DccTransfer.State.OFFERED && transfer.getState() != DccTransfer.State.CONNECTING) return;
+		transfer.setStart(offset);
+		sendCtcp(nick, "DCC ACCEPT " + quote(transfer.getName()) + " " + port + " " + offset + (token >= 0 ? " " + token : ""));
+	}
+
+	/**
+	** Handles a DCC ACCEPT, agreeing to resume a file offered to us.
+	*/
+	private void accept(String nick, int port, long offset, long token) {
+		DccTransfer transfer = find(nick, false, port, token);
+		if (transfer == null || transfer.getState() != DccTransfer.State.RESUMING) return;
+		transfer.setStart(Math.min(offset, DccTransfer.receivedLength(transfer.getFile())));
+		connect(transfer);
+	}
+
+	/**
+	** Handles a /dcc command typed by the user.
+	** @param args The arguments, after /dcc
+	*/
+	public void command(String args) {
+		String[] words = args.trim().split(" +", 2);
+		String rest = words.length > 1 ? words[1] : "";
+		if (words[0].equalsIgnoreCase("send")) {
+			boolean passive = PASSIVE;
+			if (rest.startsWith("-passive ")) {
+				passive = true;
+				rest = rest.substring(9).trim();
+			}
+			String[] target = rest.split(" +", 2);
+			if (target.length < 2) session.showStatus("DCC: Usage: /dcc send [-passive] <nick> <path>");
+			else send(target[0], new File(target[1]), passive);
+		}
+		else if (words[0].equalsIgnoreCase("get") || words[0].equalsIgnoreCase("close")) {
+			String[] target = rest.split(" +", 2);
+			if (target[0].length() == 0) {
+				session.showStatus("DCC: Usage: /dcc " + words[0].toLowerCase() + " <nick> [name]");
+				return;
+			}
+			DccTransfer transfer = find(target[0], target.length > 1 ? target[1] : null, words[0].equalsIgnoreCase("get"));
+			if (transfer == null) session.showStatus("DCC: No such transfer with " + target[0] + ".");
+			else if (words[0].equalsIgnoreCase("get")) get(transfer);
+			else if (!drop(transfer, "closed")) transfer.close();
+		}
+		else if (words[0].equalsIgnoreCase("list")) {
+			if (transfers.isEmpty()) session.showStatus("DCC: No transfers.");
+			for (DccTransfer transfer : transfers) session.showStatus("DCC: " + describe(transfer));
+		}
+		else session.showStatus("DCC: Unknown command " + words[0] + ", try send, get, close or list.");
+	}
+
+	/**
+	** Offers a file.
+	*/
+	private void send(String nick, File file, boolean passive) {
+		if (!file.isFile() || !file.canRead()) {
+			session.showStatus("DCC: Cannot read " + file + ".");
+			return;
+		}
+		String address = localAddress();
+		if (address == null) return;
+		DccTransfer transfer = new DccTransfer(this, true, nick, file.getName(), file, file.length(), passive ? nextToken++ : -1);
+		if (passive) {
+			sendCtcp(nick, "DCC SEND " + quote(file.getName()) + " " + address + " 0 " + file.length() + " " + transfer.getToken());
+		}
+		else {
+			ServerSocketChannel server = openServer();
+			if (server == null) return;
+			transfer.listen(server);
+			started(transfer);
+			sendCtcp(nick, "DCC SEND " + quote(file.getName()) + " " + address + " " + transfer.getPort() + " " + file.length());
+		}
+		transfers.add(transfer);
+		expire(transfer);
+		session.showStatus("DCC: Offered " + file.getName() + " (" + formatSize(file.length()) + ") to " + nick + (passive ? ", passively." : "."));
+	}
+
+	/**
+	** Accepts a file offered to us, asking to resume it if part of it is already there.
+	*/
+	private void get(DccTransfer transfer) {
+		if (transfer.getState() != DccTransfer.State.OFFERED) {
+			session.showStatus("DCC: " + transfer.getName() + " from " + transfer.getNick() + " is already " + transfer.getState().name().toLowerCase() + ".");
+			return;
+		}
+		DOWNLOAD_DIR.mkdirs();
+		File file = new File(DOWNLOAD_DIR, safeName(transfer.getName()));
+		long have = DccTransfer.receivedLength(file);
+
+		//A file already complete is not resumed, the new one gets a name of its own
+		if (have >= transfer.getSize() && file.exists()) {
+			for (int i = 1; file.exists(); i++) file = new File(DOWNLOAD_DIR, safeName(transfer.getName()) + "." + i);
+			have = 0;
+		}
+		transfer.setFile(file);
+		if (have > 0) {
+			transfer.setResuming();
+			long token = transfer.getToken();
+			sendCtcp(transfer.getNick(), "DCC RESUME " + quote(transfer.getName()) + " " + (token >= 0 ? "0 " + have + " " + token : getPort(transfer) + " " + have));
+			session.showStatus("DCC: Asking " + transfer.getNick() + " to resume " + transfer.getName() + " from " + formatSize(have) + ".");
+		}
+		else connect(transfer);
+	}
+
+	/**
+	** Starts receiving a file: connecting to the sender, or for a passive offer listening and telling the sender where.
+	*/
+	private void connect(DccTransfer transfer) {
+		if (transfer.getToken() < 0) {
+			started(transfer);
+			transfer.connect();
+			return;
+		}
+		String address = localAddress();
+		ServerSocketChannel server = address == null ? null : openServer();
+		if (server == null) {
+			drop(transfer, "failed");
+			return;
+		}
+		transfer.listen(server);
+		started(transfer);
+		sendCtcp(transfer.getNick(), "DCC SEND " + quote(transfer.getName()) + " " + address + " " + transfer.getPort()
+			+ " " + transfer.getSize() + " " + transfer.getToken());
+	}
+
+	/**
+	** Counts a transfer going from an offer to one connecting.
+	*/
+	private void started(DccTransfer transfer) {
+		active++;
+		session.getMetrics().setDccActive(active);
+	}
+
+	/**
+	** Gives up an offer, or a transfer that never connected, once OFFER_TIMEOUT has passed.
+	*/
+	private void expire(final DccTransfer transfer) {
+		session.getExecutor().schedule(
+			new Runnable() {
+				public void run() {
+					//One still connecting is reported by its thread once closed
+					if (transfers.contains(transfer) && !drop(transfer, "expired") && transfer.getState() == DccTransfer.State.CONNECTING) transfer.close();
+				}
+			},
+			OFFER_TIMEOUT
+		);
+	}
+
+	/**
+	** Drops a transfer that has no thread yet: an offer, or a receive waiting for ACCEPT.
+	** @return false if the transfer has a thread, which reports it once it ends
+	*/
+	private boolean drop(DccTransfer transfer, String why) {
+		if (transfer.getState() != DccTransfer.State.OFFERED && transfer.getState() != DccTransfer.State.RESUMING) return false;
+		transfer.close();
+		transfers.remove(transfer);
+		session.showStatus("DCC: " + transfer.getName() + (transfer.isSending() ? " to " : " from ") + transfer.getNick() + " " + why + ".");
+		return true;
+	}
+
+	/**
+	** Reports a transfer that ended, however it ended. Called from the transfer's thread.
+	** @param transfer The transfer
+	*/
+	void finished(final DccTransfer transfer) {
+		session.getExecutor().execute(
+			new Runnable() {
+				public void run() {
+					transfers.remove(transfer);
+					active--;
+					session.getMetrics().setDccActive(active);
+					if (transfer.getElapsedNanos() > 0) {
+						session.getMetrics().recordDccTransfer(transfer.getPosition() - transfer.getStart(), transfer.getState() == DccTransfer.State.DONE);
+					}
+					String what = transfer.getName() + (transfer.isSending() ? " to " : " from ") + transfer.getNick();
+					if (transfer.getState() == DccTransfer.State.DONE) {
+						session.showStatus("DCC: " + (transfer.isSending() ? "Sent " : "Received ") + what + ", "
+							+ formatSize(transfer.getPosition() - transfer.getStart()) + " in " + String.format("%.1f", transfer.getElapsedNanos() / 1e9)
+							+ " s (" + formatSize(transfer.getBytesPerSecond()) + "/s)"
+							+ (transfer.isSending() ? "." : " into " + transfer.getFile() + "."));
+					}
+					else session.showStatus("DCC: " + what + " failed at " + transfer.getPercent() + "%: " + transfer.getError() + ".");
+				}
+			}
+		);
+	}
+
+	/**
+	** Reports the progress of a running transfer. Called from the transfer's thread.
+	** @param transfer The transfer
+	*/
+	void progress(final DccTransfer transfer) {
+		session.getExecutor().execute(
+			new Runnable() {
+				public void run() {
+					session.showStatus("DCC: " + describe(transfer));
+				}
+			}
+		);
+	}
+
+	/**
+	** Stops every transfer, when the connection quits.
+	*/
+	public void closeAll() {
+		for (DccTransfer transfer : new ArrayList<DccTransfer>(transfers)) {
+			if (!drop(transfer, "closed")) transfer.close();
+		}
+	}
+
+	/**
+	** Returns the transfers, in the order they started. Only from the connection's thread.
+	** @return the transfers
+	*/
+	public ArrayList<DccTransfer> getTransfers() {
+		return transfers;
+	}
+
+	/**
+	** Finds a transfer with a nick by port (for one we listen on, or one we connect to) or by passive token.
+	*/
+	private DccTransfer find(String nick, boolean sending, int port, long token) {
+		for (DccTransfer transfer : transfers) {
+			if (transfer.isSending() != sending || !transfer.getNick().equalsIgnoreCase(nick)) continue;
+			if (token >= 0 ? transfer.getToken() == token : getPort(transfer) == port) return transfer;
+		}
+		return null;
+	}
+
+	/**
+	** Finds a transfer with a nick by name, the oldest if no name is given.
+	*/
+	private DccTransfer find(String nick, String name, boolean offeredOnly) {
+		for (DccTransfer transfer : transfers) {
+			if (!transfer.getNick().equalsIgnoreCase(nick) || (name != null && !transfer.getName().equals(name))) continue;
+			if (offeredOnly && (transfer.isSending() || transfer.getState() != DccTransfer.State.OFFERED)) continue;
+			return transfer;
+		}
+		return null;
+	}
+
+	/**
+	** Returns the port naming a transfer in RESUME and ACCEPT: the one listened on, by us or by the sender.
+	*/
+	private static int getPort(DccTransfer transfer) {
+		if (transfer.isSending() || transfer.getRemote() == null) return transfer.getPort();
+		return transfer.getRemote().getPort();
+	}
+
+	/**
+	** Returns a line about a transfer, for /dcc list and the progress reports.
+	*/
+	private static String describe(DccTransfer transfer) {
+		String what = transfer.getName() + (transfer.isSending() ? " to " : " from ") + transfer.getNick();
+		if (transfer.getState() != DccTransfer.State.RUNNING) return what + ", " + transfer.getState().name().toLowerCase() + " (" + formatSize(transfer.getSize()) + ")";
+		return what + ", " + transfer.getPercent() + "% (" + formatSize(transfer.getPosition()) + " of " + formatSize(transfer.getSize())
+			+ ") at " + formatSize(transfer.getBytesPerSecond()) + "/s";
+	}
+
+	/**
+	** Opens a socket to listen on, on a port of the range if there is one.
+	** @return the socket, or null if none could be opened
+	*/
+	private ServerSocketChannel openServer() {
+		int first = 0, last = 0;
+		try {
+			int dash = PORTS.indexOf('-');
+			first = Integer.parseInt(PORTS.substring(0, dash < 0 ? PORTS.length() : dash).trim());
+			last = dash < 0 ? first : Integer.parseInt(PORTS.substring(dash + 1).trim());
+		} catch (NumberFormatException e) {
+			session.showStatus("DCC: Could not read the port range " + PORTS + ", using any port.");
+		}
+		for (int port = first; port <= last; port++) {
+			ServerSocketChannel server = null;
+			try {
+				server = ServerSocketChannel.open();
+				server.bind(new InetSocketAddress(port));
+				return server;
+			} catch (IOException e) {
+				try {
+					if (server != null) server.close();
+				} catch (IOException f) {}
+			}
+		}
+		session.showStatus("DCC: No free port to listen on in " + PORTS + ".");
+		return null;
+	}
+
+	/**
+	** Returns our address as DCC writes it: an IPv4 address as one number, an IPv6 address as is.
+	** @return the address, or null if there is none to give
+	*/
+	private String localAddress() {
+		InetAddress address = session.getLocalAddress();
+		if (configuredAddress != null) {
+			if (!configuredAddress.isDone()) {
+				session.showStatus("DCC: Still resolving " + ADDRESS + ", try again in a moment.");
+				return null;
+			}
+			try {
+				address = configuredAddress.get();
+			} catch (ExecutionException e) {
+				session.showStatus("DCC: Could not resolve " + ADDRESS + ".");
+				return null;
+			} catch (InterruptedException e) {
+				return null;
+			}
+		}
+		if (address == null) {
+			session.showStatus("DCC: Not connected.");
+			return null;
+		}
+		if (!(address instanceof Inet4Address)) return address.getHostAddress();
+		byte[] bytes = address.getAddress();
+		return String.valueOf((bytes[0] & 0xFFL) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF));
+	}
+
+	/**
+	** Reads an address as DCC writes it: an IPv4 address as one number or dotted, or an IPv6 address.
+	** Never looks up a name, which would block the connection on DNS.
+	*/
+	private static InetAddress parseAddress(String address) throws UnknownHostException {
+		if (address.indexOf(':') >= 0) {
+			for (int i = 0; i < address.length(); i++) {
+				char c = address.charAt(i);
+				if (Character.digit(c, 16) < 0 && c != ':' && c != '.') throw new UnknownHostException(address);
+			}
+			//Brackets make it an IPv6 literal or an error, never a name
+			return InetAddress.getByName("[" + address + "]");
+		}
+		String[] parts = address.split("\\.", -1);
+		if (parts.length != 1 && parts.length != 4) throw new UnknownHostException(address);
+		long ip = 0;
+		for (String part : parts) {
+			if (part.length() == 0 || part.length() > 10) throw new UnknownHostException(address);
+			for (int i = 0; i < part.length(); i++) {
+				if (part.charAt(i) < '0' || part.charAt(i) > '9') throw new UnknownHostException(address);
+			}
+			long value = Long.parseLong(part);
+			if (value > (parts.length == 1 ? 0xFFFFFFFFL : 0xFF)) throw new UnknownHostException(address);
+			ip = ip << 8 | value;
+		}
+		return InetAddress.getByAddress(new byte[] { (byte) (ip >> 24), (byte) (ip >> 16), (byte) (ip >> 8), (byte) ip });
+	}
+
+	/**
+	** Sends a CTCP message.
+	*/
+	private void sendCtcp(String nick, String text) {
+		session.sendLine("PRIVMSG " + nick + " :" + CTCP + text + CTCP);
+	}
+
+	/**
+	** Quotes a file name holding spaces.
+	*/
+	private static String quote(String name) {
+		return name.indexOf(' ') < 0 ? name : "\"" + name + "\"";
+	}
+
+	/**
+	** Turns a file name offered into one that stays in the download directory.
+	*/
+	private static String safeName(String name) {
+		name = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+		StringBuilder safe = new StringBuilder(name.length());
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			safe.append(c < 0x20 || c == ':' ? '_' : c);
+		}
+		while (safe.length() > 0 && safe.charAt(0) == '.') safe.deleteCharAt(0);
+		return safe.length() == 0 ? "unnamed" : safe.toString();
+	}
+
+	/**
+	** Formats a number of bytes for the user.
+	*/
+	static String formatSize(long bytes) {
+		if (bytes < 1024) return bytes + " B";
+		if (bytes < 1024 * 1024) return String.format("%.1f KB", bytes / 1024.0);
+		if (bytes < 1024L * 1024 * 1024) return String.format("%.1f MB", bytes / (1024.0 * 1024));
+		return String.format("%.2f GB", bytes / (1024.0 * 1024 * 1024));
+	}
+
+}
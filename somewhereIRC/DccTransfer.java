@@ -0,0 +1,518 @@
+package somewhereIRC;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.io.IOException;
+
+/**
+** DCC transfer class of the SomewhereIRC client.
+** One file sent or received over its own socket, on a thread of the shared transfer pool, so neither the
+** connection's thread nor the heap ever sees the file's bytes:
+**
+** - sending, the file goes to the socket with FileChannel.transferTo (sendfile), the socket being
+**   non-blocking so the receiver's acknowledgements are read as they come in;
+** - receiving, the file is mapped a window at a time, which extends it ahead of the data, and the socket
+**   is read straight into the mapping. As the file's length is no measure of what arrived, how much did is
+**   kept in a progress file next to it while the transfer runs, and a transfer cut short truncates the file
+**   back to that; either way a resume starts from receivedLength(), and never leaves a hole in the file.
+**
+** Either side may be the one listening: a passive (reverse) transfer has the receiver listen instead of
+** the sender. Progress and throughput can be read from any thread while the transfer runs.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class DccTransfer implements Runnable {
+
+	//Enumerations
+	public enum State {
+		OFFERED,
+		RESUMING,
+		CONNECTING,
+		RUNNING,
+		DONE,
+		FAILED
+	}
+
+	//Constants
+	private static final long WINDOW = 64L << 20;
+	private static final long SEND_CHUNK = 8L << 20;
+	private static final long IDLE_TIMEOUT = 60000;
+	private static final long FINAL_ACK_TIMEOUT = 10000;
+	private static final long PROGRESS_INTERVAL = 5000;
+	private static final String PROGRESS_SUFFIX = ".progress";
+
+	//Shared pool running the transfers, one thread each while they run
+	private static final AtomicInteger threadCount = new AtomicInteger();
+	private static final ExecutorService pool = Executors.newCachedThreadPool(
+		new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "SomewhereIRC DCC " + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		}
+	);
+
+	//What is transferred, to or from whom
+	private final DccManager manager;
+	private final boolean sending;
+	private final String nick;
+	private final String name;
+	private File file;
+	private final long size;
+	private final long token;
+
+	//How to reach the other side: the socket we listen on, or the address to connect to
+	private ServerSocketChannel server;
+	private InetSocketAddress remote;
+	private volatile SocketChannel channel;
+
+	//Progress, readable from any thread
+	private volatile State state = State.OFFERED;
+	private volatile long start = 0;
+	private volatile long position = 0;
+	private volatile long startNanos = 0, endNanos = 0;
+	private volatile String error;
+
+	/**
+	** Constructor given what is transferred.
+	** @param manager The manager of the connection the transfer was offered on
+	** @param sending Whether the file is sent, or received
+	** @param nick The nick of the other side
+	** @param name The file name offered
+	** @param file The file read, or null for a received file until it is accepted
+	** @param size The size of the file, in bytes
+	** @param token The token of a passive transfer, or -1 for an active one
+	*/
+	public DccTransfer(DccManager manager, boolean sending, String nick, String name, File file, long size, long token) {
+		this.manager = manager;
+		this.sending = sending;
+		this.nick = nick;
+		this.name = name;
+		this.file = file;
+		this.size = size;
+		this.token = token;
+	}
+
+	/**
+	** Listens for the other side on a socket, and starts the transfer once it connects.
+	** @param server The bound socket
+	*/
+	void listen(ServerSocketChannel server) {
+		this.server = server;
+		state = State.CONNECTING;
+		pool.execute(this);
+	}
+
+	/**
+	** Connects to the other side, and starts the transfer.
+	*/
+	void connect() {
+		state = State.CONNECTING;
+		pool.execute(this);
+	}
+
+	/**
+	** Sets where the other side listens, for a transfer that connects to it.
+	** @param address The address
+	*/
+	void setRemote(InetSocketAddress address) {
+		remote = address;
+	}
+
+	/**
+	** Returns where the other side listens.
+	** @return the address, or null if we listen
+	*/
+	InetSocketAddress getRemote() {
+		return remote;
+	}
+
+	/**
+	** Sets the file a received transfer is written to, once accepted.
+	** @param file The file
+	*/
+	void setFile(File file) {
+		this.file = file;
+	}
+
+	/**
+	** Sets the offset the transfer starts from, as agreed by RESUME and ACCEPT. Only before it connects.
+	** @param offset The offset, in bytes
+	*/
+	void setStart(long offset) {
+		start = offset;
+		position = offset;
+	}
+
+	/**
+	** Marks a receive as waiting for the sender to accept resuming it.
+	*/
+	void setResuming() {
+		state = State.RESUMING;
+	}
+
+	/**
+	** Stops the transfer, or gives up the offer. Safe to call from any thread.
+	*/
+	public void close() {
+		if (state == State.DONE || state == State.FAILED) return;
+		fail("closed");
+		closeQuietly();
+	}
+
+	/**
+	** Connects, moves the file, and reports how it went.
+	*/
+	public void run() {
+		try {
+			SocketChannel socket;
+			if (server != null) {
+				socket = server.accept();
+				server.close();
+			}
+			else socket = SocketChannel.open(remote);
+			channel = socket;
+			if (state != State.CONNECTING) {
+				closeQuietly();
+				return;
+			}
+			socket.socket().setTcpNoDelay(true);
+			state = State.RUNNING;
+			startNanos = System.nanoTime();
+			if (sending) send(socket);
+			else receive(socket);
+		} catch (IOException e) {
+			if (state != State.FAILED) fail(e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage());
+		}
+		closeQuietly();
+		if (endNanos == 0) endNanos = System.nanoTime();
+		manager.finished(this);
+	}
+
+	/**
+	** Sends the file from the start offset, reading the acknowledgements as they come.
+	*/
+	private void send(SocketChannel socket) throws IOException {
+		FileChannel in = new RandomAccessFile(file, "r").getChannel();
+		Selector selector = Selector.open();
+		try {
+			socket.configureBlocking(false);
+			SelectionKey key = socket.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			ByteBuffer acks = ByteBuffer.allocateDirect(4096);
+			long acked = -1;
+			long lastActive = System.currentTimeMillis();
+			long nextProgress = lastActive + PROGRESS_INTERVAL;
+			while (state == State.RUNNING) {
+				//Hand the kernel as much of the file as the socket takes
+				long sent = 0;
+				if (position < size) {
+					sent = in.transferTo(position, Math.min(SEND_CHUNK, size - position), socket);
+					position += sent;
+				}
+
+				//Acknowledgements are the bytes received so far, as 32 bits, and some receivers send none
+				int read;
+				boolean heard = false;
+				while ((read = socket.read(acks)) > 0) {
+					heard = true;
+					acks.flip();
+					while (acks.remaining() >= 4) acked = acks.getInt() & 0xFFFFFFFFL;
+					acks.compact();
+				}
+				boolean complete = position == size
+					&& (acked == (size & 0xFFFFFFFFL) || acked == ((size - start) & 0xFFFFFFFFL) || read < 0);
+				if (complete) {
+					state = State.DONE;
+					break;
+				}
+				if (read < 0) throw new IOException("connection closed after " + position + " bytes");
+
+				long now = System.currentTimeMillis();
+				if (sent > 0 || heard) lastActive = now;
+				else if (now - lastActive > (position == size ? FINAL_ACK_TIMEOUT : IDLE_TIMEOUT)) {
+					//Every byte went out, the receiver just never said so
+					if (position == size) {
+						state = State.DONE;
+						break;
+					}
+					throw new IOException("timed out after " + position + " bytes");
+				}
+				if (now >= nextProgress) {
+					nextProgress = now + PROGRESS_INTERVAL;
+					manager.progress(this);
+				}
+				if (sent == 0) {
+					key.interestOps(position < size ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+					selector.select(1000);
+					selector.selectedKeys().clear();
+				}
+			}
+			endNanos = System.nanoTime();
+		} finally {
+			selector.close();
+			in.close();
+		}
+	}
+
+	/**
+	** Receives the file from the start offset into mapped windows of it, acknowledging every read.
+	*/
+	private void receive(SocketChannel socket) throws IOException {
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		FileChannel fileChannel = out.getChannel();
+		RandomAccessFile progress = new RandomAccessFile(progressFile(file), "rw");
+		Selector selector = Selector.open();
+		try {
+			//Drop anything beyond the start offset, and note it as received before the mapping extends the file
+			if (out.length() > start) out.setLength(start);
+			writeProgress(progress, position);
+			socket.configureBlocking(false);
+			socket.register(selector, SelectionKey.OP_READ);
+			ByteBuffer ack = ByteBuffer.allocateDirect(4);
+			long lastActive = System.currentTimeMillis();
+			long nextProgress = lastActive + PROGRESS_INTERVAL;
+			MappedByteBuffer window = null;
+			long windowEnd = position;
+			while (position < size && state == State.RUNNING) {
+				if (position == windowEnd) {
+					window = fileChannel.map(FileChannel.MapMode.READ_WRITE, position, Math.min(WINDOW, size - position));
+					windowEnd = position + window.capacity();
+				}
+				int read = socket.read(window);
+				if (read < 0) break;
+				long now = System.currentTimeMillis();
+				if (read == 0) {
+					//A sender gone quiet is given up on, as sending does
+					if (now - lastActive > IDLE_TIMEOUT) throw new IOException("timed out after " + position + " bytes");
+					selector.select(1000);
+					selector.selectedKeys().clear();
+					continue;
+				}
+				lastActive = now;
+				position += read;
+
+				ack.clear();
+				ack.putInt((int) position);
+				ack.flip();
+				while (ack.hasRemaining()) socket.write(ack);
+
+				if (now >= nextProgress) {
+					nextProgress = now + PROGRESS_INTERVAL;
+					writeProgress(progress, position);
+					manager.progress(this);
+				}
+			}
+			endNanos = System.nanoTime();
+			if (position < size) {
+				if (state == State.RUNNING) fail("connection closed after " + position + " bytes");
+			}
+			else state = State.DONE;
+		} finally {
+			selector.close();
+
+			//What was not received is cut off, so the transfer can be resumed from where it stopped
+			if (position < size) {
+				try {
+					writeProgress(progress, position);
+					out.setLength(position);
+				} catch (IOException e) {}
+			}
+			progress.close();
+			out.close();
+			if (position >= size) progressFile(file).delete();
+		}
+	}
+
+	/**
+	** Notes how much of the file was received.
+	*/
+	private static void writeProgress(RandomAccessFile progress, long received) throws IOException {
+		progress.seek(0);
+		progress.writeLong(received);
+	}
+
+	/**
+	** Returns the file noting how much of a received file arrived, while it is received.
+	*/
+	private static File progressFile(File file) {
+		return new File(file.getPath() + PROGRESS_SUFFIX);
+	}
+
+	/**
+	** Returns how much of a file was received, which may be less than its length if its transfer was cut short
+	** without truncating it.
+	** @param file The received file
+	** @return the number of bytes received, 0 if there is no such file
+	*/
+	public static long receivedLength(File file) {
+		long length = file.length();
+		File progress = progressFile(file);
+		if (!progress.exists()) return length;
+		try {
+			RandomAccessFile in = new RandomAccessFile(progress, "r");
+			try {
+				return Math.min(length, Math.max(0, in.readLong()));
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			//Nothing known to have arrived safely
+			return 0;
+		}
+	}
+
+	/**
+	** Marks the transfer as failed.
+	*/
+	private void fail(String reason) {
+		error = reason;
+		state = State.FAILED;
+	}
+
+	/**
+	** Closes the sockets of the transfer.
+	*/
+	private void closeQuietly() {
+		try {
+			if (server != null) server.close();
+		} catch (IOException e) {}
+		try {
+			SocketChannel socket = channel;
+			if (socket != null) socket.close();
+		} catch (IOException e) {}
+	}
+
+	/**
+	** Returns whether the file is sent, or received.
+	** @return true if sending
+	*/
+	public boolean isSending() {
+		return sending;
+	}
+
+	/**
+	** Returns the nick of the other side.
+	** @return the nick
+	*/
+	public String getNick() {
+		return nick;
+	}
+
+	/**
+	** Returns the file name offered.
+	** @return the name
+	*/
+	public String getName() {
+		return name;
+	}
+
+	/**
+	** Returns the file read or written.
+	** @return the file
+	*/
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	** Returns the size of the file.
+	** @return the size, in bytes
+	*/
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	** Returns the token of a passive transfer.
+	** @return the token, or -1 for an active transfer
+	*/
+	public long getToken() {
+		return token;
+	}
+
+	/**
+	** Returns the port we listen on, for the DCC messages naming the transfer.
+	** @return the port, or 0 if we do not listen
+	*/
+	public int getPort() {
+		try {
+			return server == null ? 0 : ((InetSocketAddress) server.getLocalAddress()).getPort();
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	/**
+	** Returns the state of the transfer.
+	** @return the state
+	*/
+	public State getState() {
+		return state;
+	}
+
+	/**
+	** Returns why the transfer failed.
+	** @return the reason, or null
+	*/
+	public String getError() {
+		return error;
+	}
+
+	/**
+	** Returns the offset the transfer started from, more than 0 when resumed.
+	** @return the offset, in bytes
+	*/
+	public long getStart() {
+		return start;
+	}
+
+	/**
+	** Returns how much of the file has been sent or received, counting what a resume skipped.
+	** @return the position, in bytes
+	*/
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	** Returns how far along the transfer is.
+	** @return the percentage, 0 to 100
+	*/
+	public int getPercent() {
+		return size == 0 ? 100 : (int) (position * 100 / size);
+	}
+
+	/**
+	** Returns how long the transfer has been running, or ran.
+	** @return the time, in nanoseconds, 0 until it connects
+	*/
+	public long getElapsedNanos() {
+		if (startNanos == 0) return 0;
+		return (endNanos == 0 ? System.nanoTime() : endNanos) - startNanos;
+	}
+
+	/**
+	** Returns the average throughput since the transfer connected.
+	** @return the throughput, in bytes per second
+	*/
+	public long getBytesPerSecond() {
+		long elapsed = getElapsedNanos();
+		return elapsed == 0 ? 0 : (long) ((position - start) * 1e9 / elapsed);
+	}
+
+}
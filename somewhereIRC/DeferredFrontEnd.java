@@ -0,0 +1,150 @@
+package somewhereIRC;
+
+import java.util.ArrayList;
+
+/**
+** Deferred front end class of the SomewhereIRC client.
+** Stands in for a front end that does not exist yet, so a session can connect while Swing is still loading:
+** every event is held until the real front end is attached, which hears them all in order,
+** then hears about everything else directly.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class DeferredFrontEnd implements SessionListener {
+
+	//The front end once attached, read without a lock once the held events are replayed
+	private SessionListener front;
+	private volatile SessionListener attached;
+
+	//Events held until then
+	private final ArrayList<Runnable> events = new ArrayList<Runnable>();
+
+	/**
+	** Attaches the real front end, telling it about every event held so far.
+	** @param listener The front end
+	*/
+	public synchronized void attach(SessionListener listener) {
+		front = listener;
+		for (Runnable event : events) event.run();
+		events.clear();
+		events.trimToSize();
+		attached = listener;
+	}
+
+	/**
+	** Holds an event if no front end is attached yet.
+	** @return false if a front end was attached meanwhile, and should be told directly
+	*/
+	private synchronized boolean defer(Runnable event) {
+		if (attached != null) return false;
+		events.add(event);
+		return true;
+	}
+
+	public void sessionOpened(final SomewhereIRC session) {
+		SessionListener listener = attached;
+		if (listener == null) {
+			if (defer(
+				new Runnable() {
+					public void run() {
+						front.sessionOpened(session);
+					}
+				}
+			)) return;
+			listener = attached;
+		}
+		listener.sessionOpened(session);
+	}
+
+	public void statusChanged(final SomewhereIRC session, final SomewhereIRC.Status status) {
+		SessionListener listener = attached;
+		if (listener == null) {
+			if (defer(
+				new Runnable() {
+					public void run() {
+						front.statusChanged(session, status);
+					}
+				}
+			)) return;
+			listener = attached;
+		}
+		listener.statusChanged(session, status);
+	}
+
+	public void registered(final SomewhereIRC session, final String nick) {
+		SessionListener listener = attached;
+		if (listener == null) {
+			if (defer(
+				new Runnable() {
+					public void run() {
+						front.registered(session, nick);
+					}
+				}
+			)) return;
+			listener = attached;
+		}
+		listener.registered(session, nick);
+	}
+
+	public void lineDisplayed(final SomewhereIRC session, final String target, final String text) {
+		SessionListener listener = attached;
+		if (listener == null) {
+			if (defer(
+				new Runnable() {
+					public void run() {
+						front.lineDisplayed(session, target, text);
+					}
+				}
+			)) return;
+			listener = attached;
+		}
+		listener.lineDisplayed(session, target, text);
+	}
+
+	public void linesDisplayed(final SomewhereIRC session, final String target, final String[] texts) {
+		SessionListener listener = attached;
+		if (listener == null) {
+			if (defer(
+				new Runnable() {
+					public void run() {
+						front.linesDisplayed(session, target, texts);
+					}
+				}
+			)) return;
+			listener = attached;
+		}
+		listener.linesDisplayed(session, target, texts);
+	}
+
+	public void highlighted(final SomewhereIRC session, final String target, final String text) {
+		SessionListener listener = attached;
+		if (listener == null) {
+			if (defer(
+				new Runnable() {
+					public void run() {
+						front.highlighted(session, target, text);
+					}
+				}
+			)) return;
+			listener = attached;
+		}
+		listener.highlighted(session, target, text);
+	}
+
+	public void sessionClosed(final SomewhereIRC session) {
+		SessionListener listener = attached;
+		if (listener == null) {
+			if (defer(
+				new Runnable() {
+					public void run() {
+						front.sessionClosed(session);
+					}
+				}
+			)) return;
+			listener = attached;
+		}
+		listener.sessionClosed(session);
+	}
+
+}
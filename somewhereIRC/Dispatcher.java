@@ -0,0 +1,87 @@
+package somewhereIRC;
+
+/**
+** Dispatcher class of the SomewhereIRC client.
+** Maps commands and numerics to the handlers registered for them, in constant time per message.
+** Handlers must be registered before the connection starts, or from the thread dispatching to them.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class Dispatcher {
+
+	/**
+	** Callback for a registered command or numeric.
+	*/
+	public interface Handler {
+		/**
+		** Handles a message. The message is reused, so it must not be kept after returning.
+		** @param msg The parsed message
+		*/
+		void handle(IrcMessage msg);
+	}
+
+	//Constants
+	private static final Handler[] NONE = new Handler[0];
+
+	//Handler tables, indexed by command ordinal and by numeric
+	private Handler[][] commands = new Handler[Command.values().length][];
+	private Handler[][] numerics = new Handler[1000][];
+
+	/**
+	** Simple constructor.
+	*/
+	public Dispatcher() {
+		for (int i = 0; i < commands.length; i++) commands[i] = NONE;
+		for (int i = 0; i < numerics.length; i++) numerics[i] = NONE;
+	}
+
+	/**
+	** Registers a handler for a command.
+	** Handlers for the same command are called in the order they were registered.
+	** @param command The command to handle
+	** @param handler The handler
+	*/
+	public void register(Command command, Handler handler) {
+		commands[command.ordinal()] = append(commands[command.ordinal()], handler);
+	}
+
+	/**
+	** Registers a handler for a three digit numeric reply.
+	** @param numeric The numeric to handle
+	** @param handler The handler
+	*/
+	public void register(int numeric, Handler handler) {
+		if (numeric < 0 || numeric >= numerics.length) throw new IllegalArgumentException("Not a numeric: " + numeric);
+		numerics[numeric] = append(numerics[numeric], handler);
+	}
+
+	/**
+	** Returns a copy of the handlers with one more at the end.
+	*/
+	private static Handler[] append(Handler[] handlers, Handler handler) {
+		Handler[] larger = new Handler[handlers.length + 1];
+		System.arraycopy(handlers, 0, larger, 0, handlers.length);
+		larger[handlers.length] = handler;
+		return larger;
+	}
+
+	/**
+	** Calls every handler registered for the command of a message.
+	** @param msg The parsed message
+	** @return true if any handler was called
+	*/
+	public boolean dispatch(IrcMessage msg) {
+		Command command = msg.getCommandType();
+		Handler[] handlers;
+		if (command == Command.NUMERIC) {
+			int numeric = msg.getNumeric();
+			if (numeric < 0) return false;
+			handlers = numerics[numeric];
+		}
+		else handlers = commands[command.ordinal()];
+		for (int i = 0; i < handlers.length; i++) handlers[i].handle(msg);
+		return handlers.length > 0;
+	}
+
+}
@@ -0,0 +1,232 @@
+package somewhereIRC;
+
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.io.IOException;
+
+/**
+** Selector-driven event loop of the SomewhereIRC client.
+** Owns the server sockets and input sources of every connection registered with it,
+** and only wakes up when one of them is ready, a task is submitted, or a timer expires.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class EventLoop implements Runnable, SessionExecutor {
+
+	/**
+	** Callback for a channel registered with the loop.
+	*/
+	public interface Handler {
+		/**
+		** Called on the loop thread when the channel is ready for one of its interest operations.
+		** @param key The selection key of the ready channel
+		*/
+		void handleReady(SelectionKey key);
+	}
+
+	/**
+	** A task waiting for its deadline.
+	*/
+	private static class Timer {
+		long deadline;
+		long sequence;
+		Runnable task;
+	}
+
+	//Shared loops, one per core, handed out round robin
+	private static EventLoop[] shared;
+	private static final AtomicInteger nextShared = new AtomicInteger();
+
+	//Loop variables
+	private final Selector selector;
+	private final Thread thread;
+	private volatile boolean running = true;
+
+	//Task variables
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>(16,
+		new Comparator<Timer>() {
+			public int compare(Timer a, Timer b) {
+				if (a.deadline != b.deadline) return a.deadline < b.deadline ? -1 : 1;
+				return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+			}
+		}
+	);
+	private long timerSequence = 0;
+
+	/**
+	** Constructor that opens the selector and creates (but does not start) the loop thread, a daemon thread.
+	** @param name The name of the loop thread
+	*/
+	public EventLoop(String name) throws IOException {
+		selector = Selector.open();
+		thread = new Thread(this, name);
+
+		//The loops never stop on their own, so they must not keep the JVM up once the sessions are gone
+		thread.setDaemon(true);
+	}
+
+	/**
+	** Returns one of the shared loops, starting them on first use.
+	** Connections are spread over the loops round robin.
+	** @return a running event loop
+	*/
+	public static EventLoop next() {
+		synchronized (EventLoop.class) {
+			if (shared == null) {
+				int count = Runtime.getRuntime().availableProcessors();
+				EventLoop[] loops = new EventLoop[count];
+				try {
+					for (int i = 0; i < count; i++) {
+						loops[i] = new EventLoop("SomewhereIRC event loop " + i);
+						loops[i].start();
+					}
+				} catch (IOException e) {
+					throw new IllegalStateException("Could not open a selector for the event loop.", e);
+				}
+				shared = loops;
+			}
+		}
+		return shared[ Math.abs(nextShared.getAndIncrement() % shared.length) ];
+	}
+
+	/**
+	** Starts the loop thread.
+	*/
+	public void start() {
+		thread.start();
+	}
+
+	/**
+	** Stops the loop after the current iteration.
+	*/
+	public void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	** Returns whether the caller is running on this loop's thread.
+	** @return true if called from the loop thread
+	*/
+	public boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	** Runs a task on the loop thread, waking the loop up if needed.
+	** @param task The task to run
+	*/
+	public void execute(Runnable task) {
+		tasks.offer(task);
+		if (!inLoop()) selector.wakeup();
+	}
+
+	/**
+	** Runs a task on the loop thread once the delay has passed.
+	** @param task The task to run
+	** @param delayMillis The delay in milliseconds
+	*/
+	public void schedule(final Runnable task, long delayMillis) {
+		final long deadline = System.currentTimeMillis() + delayMillis;
+		execute(
+			new Runnable() {
+				public void run() {
+					Timer timer = new Timer();
+					timer.deadline = deadline;
+					timer.sequence = timerSequence++;
+					timer.task = task;
+					timers.add(timer);
+				}
+			}
+		);
+	}
+
+	/**
+	** Registers a channel with this loop. Must be called on the loop thread.
+	** @param channel The (non-blocking) channel to register
+	** @param ops The interest operations
+	** @param handler The handler to call when the channel is ready
+	** @return the selection key of the registration
+	*/
+	public SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException {
+		return channel.register(selector, ops, handler);
+	}
+
+	/**
+	** Runs all the expired timers.
+	** @return the milliseconds until the next timer, or 0 if there is none
+	*/
+	private long runTimers() {
+		while (!timers.isEmpty()) {
+			long wait = timers.peek().deadline - System.currentTimeMillis();
+			if (wait > 0) return wait;
+			runSafely(timers.poll().task);
+		}
+		return 0;
+	}
+
+	/**
+	** Runs all the tasks submitted so far.
+	*/
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) runSafely(task);
+	}
+
+	/**
+	** Runs a task, making sure a failing task does not take the whole loop down.
+	** @param task The task to run
+	*/
+	private void runSafely(Runnable task) {
+		try {
+			task.run();
+		} catch (RuntimeException e) {
+			System.out.println("\tERROR: Event loop task failed: " + e);
+		}
+	}
+
+	/**
+	** Main loop, blocking in the selector until there is something to do.
+	*/
+	public void run() {
+		while (running) {
+			runTasks();
+			long wait = runTimers();
+			try {
+				if (!tasks.isEmpty()) selector.selectNow();
+				else selector.select(wait);
+			} catch (IOException e) {
+				System.out.println("\tERROR: Event loop selector failed: " + e);
+				break;
+			}
+
+			//Hand the ready channels over to their handlers
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (!key.isValid()) continue;
+				try {
+					((Handler) key.attachment()).handleReady(key);
+				} catch (RuntimeException e) {
+					System.out.println("\tERROR: Event loop handler failed: " + e);
+				}
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {}
+	}
+
+}
@@ -0,0 +1,265 @@
+package somewhereIRC;
+
+import java.util.Arrays;
+
+/**
+** Formatting class of the SomewhereIRC client.
+** Parses the mIRC formatting codes of a line in one pass: bold (^B), colors (^C, with up to two digits
+** of foreground and background, 0 to 98 and 99 for the default), hex colors (^D, skipped), italics (^]),
+** underline (^_), strikethrough (^^), reverse (^V) and reset (^O). The line comes out as its text, without
+** the codes, and the runs of that text sharing a style.
+**
+** A style is packed in an int, so runs are two int arrays and parsing allocates nothing once the arrays
+** have grown to the longest line seen. A parser is reused from line to line, by one thread.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class Formatting {
+
+	//Formatting codes
+	public static final char BOLD = 0x02;
+	public static final char COLOR = 0x03;
+	public static final char HEX_COLOR = 0x04;
+	public static final char RESET = 0x0F;
+	public static final char MONOSPACE = 0x11;
+	public static final char REVERSE = 0x16;
+	public static final char ITALIC = 0x1D;
+	public static final char STRIKETHROUGH = 0x1E;
+	public static final char UNDERLINE = 0x1F;
+	private static final int CODES = 1 << BOLD | 1 << COLOR | 1 << HEX_COLOR | 1 << RESET | 1 << MONOSPACE
+		| 1 << REVERSE | 1 << ITALIC | 1 << STRIKETHROUGH | 1 << UNDERLINE;
+
+	//Styles: the foreground color in bits 0-6, the background color in bits 7-13, then the flags
+	public static final int DEFAULT_COLOR = 99;
+	public static final int BOLD_FLAG = 1 << 14;
+	public static final int ITALIC_FLAG = 1 << 15;
+	public static final int UNDERLINE_FLAG = 1 << 16;
+	public static final int STRIKETHROUGH_FLAG = 1 << 17;
+	public static final int REVERSE_FLAG = 1 << 18;
+	public static final int DEFAULT_STYLE = DEFAULT_COLOR | DEFAULT_COLOR << 7;
+
+	//The colors, as RGB: the 16 of mIRC, then the 83 extended ones
+	public static final int[] PALETTE = {
+		0xFFFFFF, 0x000000, 0x00007F, 0x009300, 0xFF0000, 0x7F0000, 0x9C009C, 0xFC7F00,
+		0xFFFF00, 0x00FC00, 0x009393, 0x00FFFF, 0x0000FC, 0xFF00FF, 0x7F7F7F, 0xD2D2D2,
+		0x470000, 0x472100, 0x474700, 0x324700, 0x004700, 0x00472C, 0x004747, 0x002747, 0x000047, 0x2E0047, 0x470047, 0x47002A,
+		0x740000, 0x743A00, 0x747400, 0x517400, 0x007400, 0x007449, 0x007474, 0x004074, 0x000074, 0x4B0074, 0x740074, 0x740045,
+		0xB50000, 0xB56300, 0xB5B500, 0x7DB500, 0x00B500, 0x00B571, 0x00B5B5, 0x0063B5, 0x0000B5, 0x7500B5, 0xB500B5, 0xB5006B,
+		0xFF0000, 0xFF8C00, 0xFFFF00, 0xB2FF00, 0x00FF00, 0x00FFA0, 0x00FFFF, 0x008CFF, 0x0000FF, 0xA500FF, 0xFF00FF, 0xFF0098,
+		0xFF5959, 0xFFB459, 0xFFFF71, 0xCFFF60, 0x6FFF6F, 0x65FFC9, 0x6DFFFF, 0x59B4FF, 0x5959FF, 0xC459FF, 0xFF66FF, 0xFF59BC,
+		0xFF9C9C, 0xFFD39C, 0xFFFF9C, 0xE2FF9C, 0x9CFF9C, 0x9CFFDB, 0x9CFFFF, 0x9CD3FF, 0x9C9CFF, 0xDC9CFF, 0xFF9CFF, 0xFF94D3,
+		0x000000, 0x131313, 0x282828, 0x363636, 0x4D4D4D, 0x656565, 0x818181, 0x9F9F9F, 0xBCBCBC, 0xE2E2E2, 0xFFFFFF
+	};
+
+	//Parsed line: the text without the codes, and where each run starts and its style
+	private char[] text = new char[512];
+	private int length = 0;
+	private int[] runStarts = new int[16];
+	private int[] runStyles = new int[16];
+	private int runCount = 0;
+
+	/**
+	** Returns the index of the first formatting code of a line.
+	** @param line The line
+	** @return the index, or -1 if the line is plain text
+	*/
+	public static int firstCode(String line) {
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c < 0x20 && (CODES & 1 << c) != 0) return i;
+		}
+		return -1;
+	}
+
+	/**
+	** Returns a line without its formatting codes.
+	** @param line The line
+	** @return the text of the line, the line itself if it has no codes
+	*/
+	public static String strip(String line) {
+		if (firstCode(line) < 0) return line;
+		Formatting parser = new Formatting();
+		parser.parse(line);
+		return new String(parser.text, 0, parser.length);
+	}
+
+	/**
+	** Parses a line, replacing whatever this parser held before.
+	** @param line The line
+	*/
+	public void parse(String line) {
+		if (text.length < line.length()) text = new char[Math.max(line.length(), text.length * 2)];
+		length = 0;
+		runCount = 0;
+		int style = DEFAULT_STYLE;
+		int i = 0;
+		while (i < line.length()) {
+			char c = line.charAt(i++);
+			if (c >= 0x20 || (CODES & 1 << c) == 0) {
+				//Text, starting a new run if the style changed since the last one
+				if (runCount == 0 || runStyles[runCount - 1] != style) addRun(style);
+				text[length++] = c;
+				continue;
+			}
+			switch (c) {
+				case BOLD:
+					style ^= BOLD_FLAG;
+					break;
+				case ITALIC:
+					style ^= ITALIC_FLAG;
+					break;
+				case UNDERLINE:
+					style ^= UNDERLINE_FLAG;
+					break;
+				case STRIKETHROUGH:
+					style ^= STRIKETHROUGH_FLAG;
+					break;
+				case REVERSE:
+					style ^= REVERSE_FLAG;
+					break;
+				case RESET:
+					style = DEFAULT_STYLE;
+					break;
+				case COLOR:
+					//^C alone resets both colors, ^Cfg keeps the background, ^Cfg,bg sets both
+					int fg = digits(line, i);
+					if (fg < 0) {
+						style = style & ~0x3FFF | DEFAULT_STYLE;
+						break;
+					}
+					i += fg >>> 16;
+					style = style & ~0x7F | color(fg & 0xFFFF);
+					if (i + 1 < line.length() && line.charAt(i) == ',') {
+						int bg = digits(line, i + 1);
+						if (bg >= 0) {
+							i += 1 + (bg >>> 16);
+							style = style & ~(0x7F << 7) | color(bg & 0xFFFF) << 7;
+						}
+					}
+					break;
+				case HEX_COLOR:
+					//Colors given as RRGGBB are not shown, only skipped
+					i = hexDigits(line, i);
+					if (i + 1 < line.length() && line.charAt(i) == ',' && hexDigits(line, i + 1) > i + 1) i = hexDigits(line, i + 1);
+					break;
+				default:
+					break;
+			}
+		}
+	}
+
+	/**
+	** Starts a run at the end of the text.
+	*/
+	private void addRun(int style) {
+		if (runCount == runStarts.length) {
+			runStarts = Arrays.copyOf(runStarts, runCount * 2);
+			runStyles = Arrays.copyOf(runStyles, runCount * 2);
+		}
+		runStarts[runCount] = length;
+		runStyles[runCount] = style;
+		runCount++;
+	}
+
+	/**
+	** Reads the one or two digits of a color.
+	** @return the number of digits in the high 16 bits and the color in the low ones, or -1 if there is no digit
+	*/
+	private static int digits(String line, int i) {
+		if (i >= line.length() || !isDigit(line.charAt(i))) return -1;
+		int value = line.charAt(i) - '0';
+		if (i + 1 < line.length() && isDigit(line.charAt(i + 1))) return 2 << 16 | value * 10 + line.charAt(i + 1) - '0';
+		return 1 << 16 | value;
+	}
+
+	/**
+	** Returns the index after the (at most six) hex digits of a hex color.
+	*/
+	private static int hexDigits(String line, int i) {
+		int end = Math.min(line.length(), i + 6);
+		while (i < end && Character.digit(line.charAt(i), 16) >= 0) i++;
+		return i;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	/**
+	** Returns a color number as kept in a style, anything out of the palette being the default.
+	*/
+	private static int color(int number) {
+		return number < PALETTE.length ? number : DEFAULT_COLOR;
+	}
+
+	/**
+	** Returns the text of the line parsed, without its codes. Only valid until the next parse.
+	** @return the characters, the first getLength() of them being the text
+	*/
+	public char[] getText() {
+		return text;
+	}
+
+	/**
+	** Returns the length of the text of the line parsed.
+	** @return the number of characters
+	*/
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	** Returns the number of runs of the line parsed.
+	** @return the number of runs
+	*/
+	public int getRunCount() {
+		return runCount;
+	}
+
+	/**
+	** Returns the index in the text where a run starts.
+	** @param run The index of the run
+	** @return the start of the run
+	*/
+	public int getRunStart(int run) {
+		return runStarts[run];
+	}
+
+	/**
+	** Returns the index in the text where a run ends.
+	** @param run The index of the run
+	** @return the end of the run, exclusive
+	*/
+	public int getRunEnd(int run) {
+		return run + 1 < runCount ? runStarts[run + 1] : length;
+	}
+
+	/**
+	** Returns the style of a run.
+	** @param run The index of the run
+	** @return the style
+	*/
+	public int getRunStyle(int run) {
+		return runStyles[run];
+	}
+
+	/**
+	** Returns the foreground color of a style.
+	** @param style The style
+	** @return the index in the palette, or DEFAULT_COLOR
+	*/
+	public static int foreground(int style) {
+		return style & 0x7F;
+	}
+
+	/**
+	** Returns the background color of a style.
+	** @param style The style
+	** @return the index in the palette, or DEFAULT_COLOR
+	*/
+	public static int background(int style) {
+		return style >>> 7 & 0x7F;
+	}
+
+}
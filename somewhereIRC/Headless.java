@@ -0,0 +1,156 @@
+package somewhereIRC;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+import java.io.IOException;
+
+/**
+** Headless launcher of the SomewhereIRC client.
+** Runs the sessions listed in a properties file without any GUI, and without loading AWT or Swing,
+** for running the client as an always-on bot or relay. For instance:
+**
+**   sessions=libera,oftc
+**   libera.host=irc.libera.chat
+**   libera.port=6667
+**   libera.nick=SomewhereBot
+**   libera.channels=#one,#two
+**   libera.mode=loop
+**   oftc.host=irc.oftc.net
+**   oftc.port=6697
+**   oftc.tls=true
+**   print=true
+**   somewhereIRC.logDir=/var/lib/somewhereIRC
+**   somewhereIRC.rules=/etc/somewhereIRC/rules
+**
+** TLS is used on port 6697 unless tls is set to false, and on any other port when it is set to true.
+** Keys starting with somewhereIRC. are set as system properties before any session starts.
+** Highlighted lines are always written to stdout.
+** Sessions run until every one of them has quit.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class Headless implements SessionListener {
+
+	//Session variables
+	private final String[] channels;
+	private final boolean print;
+	private final CountDownLatch closed;
+
+	/**
+	** Constructor given what to do with one session.
+	** @param channels The channels to join once registered
+	** @param print Whether to write every line to stdout
+	** @param closed Counted down once the session has quit
+	*/
+	public Headless(String[] channels, boolean print, CountDownLatch closed) {
+		this.channels = channels;
+		this.print = print;
+		this.closed = closed;
+	}
+
+	public void sessionOpened(SomewhereIRC session) {}
+
+	/**
+	** Writes the status changes to stdout.
+	*/
+	public void statusChanged(SomewhereIRC session, SomewhereIRC.Status status) {
+		System.out.println(session.getHost() + " " + status);
+	}
+
+	/**
+	** Joins the configured channels.
+	*/
+	public void registered(SomewhereIRC session, String nick) {
+		for (String channel : channels) session.send("JOIN " + channel);
+	}
+
+	/**
+	** Writes the line to stdout, if asked to.
+	*/
+	public void lineDisplayed(SomewhereIRC session, String target, String text) {
+		if (print) System.out.println(session.getHost() + " " + (target == null ? "*" : target) + " " + text);
+	}
+
+	/**
+	** Writes the lines to stdout, if asked to.
+	*/
+	public void linesDisplayed(SomewhereIRC session, String target, String[] texts) {
+		for (String text : texts) lineDisplayed(session, target, text);
+	}
+
+	/**
+	** Writes the highlighted line to stdout, printing lines or not.
+	*/
+	public void highlighted(SomewhereIRC session, String target, String text) {
+		System.out.println(session.getHost() + " " + target + " highlight: " + text);
+	}
+
+	public void sessionClosed(SomewhereIRC session) {
+		closed.countDown();
+	}
+
+	/**
+	** Reads the configuration and starts the sessions.
+	** @param args The path of the properties file
+	*/
+	public static void main(String args[]) {
+		if (args.length != 1) {
+			System.out.println("Usage: java somewhereIRC.Headless <config.properties>");
+			System.exit(2);
+		}
+		System.setProperty("java.awt.headless", "true");
+
+		//Read the configuration
+		Properties config = new Properties();
+		try {
+			InputStream in = new FileInputStream(args[0]);
+			try {
+				config.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			System.out.println("\tERROR: Could not read " + args[0] + ": " + e.getMessage());
+			System.exit(1);
+		}
+		for (String key : config.stringPropertyNames()) {
+			if (key.startsWith("somewhereIRC.")) System.setProperty(key, config.getProperty(key));
+		}
+
+		//Start every session
+		String[] names = config.getProperty("sessions", "").split(",");
+		boolean print = Boolean.parseBoolean(config.getProperty("print", "false"));
+		CountDownLatch closed = new CountDownLatch(names.length);
+		ConnectionRegistry connections = new ConnectionRegistry();
+		for (String name : names) {
+			name = name.trim();
+			String host = config.getProperty(name + ".host");
+			if (host == null) {
+				System.out.println("\tERROR: No host for session " + name + ".");
+				closed.countDown();
+				continue;
+			}
+			Integer port = Integer.valueOf(config.getProperty(name + ".port", "6667").trim());
+			String nick = config.getProperty(name + ".nick", SomewhereIRC.DEFAULT_NICK).trim();
+			SomewhereIRC.ExecutionMode mode = SomewhereIRC.DEFAULT_MODE;
+			String modeName = config.getProperty(name + ".mode");
+			if ("virtual".equalsIgnoreCase(modeName)) mode = SomewhereIRC.ExecutionMode.VIRTUAL_THREADS;
+			else if ("loop".equalsIgnoreCase(modeName)) mode = SomewhereIRC.ExecutionMode.EVENT_LOOP;
+			boolean tls = Boolean.parseBoolean(config.getProperty(name + ".tls", String.valueOf(port == TlsChannel.TLS_PORT)).trim());
+			String list = config.getProperty(name + ".channels", "").trim();
+			String[] channels = list.length() == 0 ? new String[0] : list.split("\\s*,\\s*");
+			connections.add(new SomewhereIRC(host, port, mode, nick, tls, new Headless(channels, print, closed)));
+		}
+
+		//Run until every session has quit
+		try {
+			closed.await();
+		} catch (InterruptedException e) {}
+		System.exit(0);
+	}
+
+}
@@ -0,0 +1,101 @@
+package somewhereIRC;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import java.io.IOException;
+
+/**
+** Highlight rules class of the SomewhereIRC client.
+** The highlight keywords and ignore masks, compiled: every keyword into one KeywordAutomaton and every
+** mask into one HostmaskMatcher, so checking a line costs one pass over its text and one over its prefix,
+** however many rules there are. Immutable, so a connection just reads whichever rules are current.
+**
+** Rules are read from a file of one rule per line, blank lines and lines starting with # being skipped:
+**
+**   highlight <keyword or phrase>
+**   ignore <nick!user@host mask>
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class HighlightRules {
+
+	//No rules at all
+	public static final HighlightRules NONE = new HighlightRules(Collections.<String>emptyList(), Collections.<String>emptyList());
+
+	//Compiled rules
+	private final KeywordAutomaton keywords;
+	private final HostmaskMatcher masks;
+
+	/**
+	** Constructor given the rules.
+	** @param highlights The keywords to highlight
+	** @param ignores The masks of the users to ignore
+	*/
+	public HighlightRules(List<String> highlights, List<String> ignores) {
+		keywords = new KeywordAutomaton(highlights);
+		masks = new HostmaskMatcher(ignores);
+	}
+
+	/**
+	** Reads and compiles the rules of a file.
+	** @param file The file
+	** @return the rules
+	*/
+	public static HighlightRules load(File file) throws IOException {
+		ArrayList<String> highlights = new ArrayList<String>();
+		ArrayList<String> ignores = new ArrayList<String>();
+		List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+		for (int i = 0; i < lines.size(); i++) {
+			String line = lines.get(i).trim();
+			if (line.length() == 0 || line.charAt(0) == '#') continue;
+			int space = line.indexOf(' ');
+			String kind = space < 0 ? line : line.substring(0, space);
+			String rule = space < 0 ? "" : line.substring(space + 1).trim();
+			if (kind.equalsIgnoreCase("highlight") && rule.length() > 0) highlights.add(rule);
+			else if (kind.equalsIgnoreCase("ignore") && rule.length() > 0) ignores.add(rule);
+			else System.out.println("\tERROR: Skipping rule on line " + (i + 1) + " of " + file + ": " + line);
+		}
+		return new HighlightRules(highlights, ignores);
+	}
+
+	/**
+	** Returns whether a message text holds a highlight keyword.
+	** @param text The text
+	** @return true if it should be highlighted
+	*/
+	public boolean isHighlight(CharSequence text) {
+		return text != null && keywords.matches(text);
+	}
+
+	/**
+	** Returns whether a message comes from an ignored user.
+	** @param prefix The prefix of the message, as nick!user@host
+	** @return true if it should not be shown
+	*/
+	public boolean isIgnored(CharSequence prefix) {
+		return prefix != null && masks.matches(prefix);
+	}
+
+	/**
+	** Returns the number of highlight keywords.
+	** @return the number of keywords
+	*/
+	public int getHighlightCount() {
+		return keywords.size();
+	}
+
+	/**
+	** Returns the number of ignore masks.
+	** @return the number of masks
+	*/
+	public int getIgnoreCount() {
+		return masks.size();
+	}
+
+}
@@ -0,0 +1,128 @@
+package somewhereIRC;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+** Histogram class of the SomewhereIRC client.
+** A lock-free histogram of non-negative values (usually nanoseconds). Each power of two is split
+** into 8 buckets, so any value is counted within 12.5% of its real size, in a fixed 3.9 KB,
+** and recording is a single atomic increment.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class Histogram {
+
+	//Constants
+	private static final int SUB_BITS = 3;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+	//Counts per bucket
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/**
+	** Returns the bucket of a value.
+	*/
+	private static int bucket(long value) {
+		if (value < SUB_COUNT) return value < 0 ? 0 : (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+		return ((exponent - SUB_BITS + 1) << SUB_BITS) + sub;
+	}
+
+	/**
+	** Returns the largest value counted in a bucket.
+	*/
+	private static long highest(int bucket) {
+		if (bucket < SUB_COUNT) return bucket;
+		int exponent = (bucket >>> SUB_BITS) + SUB_BITS - 1;
+		long low = (long) (SUB_COUNT + (bucket & (SUB_COUNT - 1))) << (exponent - SUB_BITS);
+		return low + (1L << (exponent - SUB_BITS)) - 1;
+	}
+
+	/**
+	** Counts a value.
+	** @param value The value
+	*/
+	public void record(long value) {
+		counts.incrementAndGet(bucket(value));
+	}
+
+	/**
+	** Adds the counts of this histogram to an array of bucket counts.
+	** @param into The bucket counts, as returned by newCounts()
+	*/
+	void addTo(long[] into) {
+		for (int i = 0; i < BUCKETS; i++) into[i] += counts.get(i);
+	}
+
+	/**
+	** Returns an empty array of bucket counts, for merging histograms.
+	** @return the bucket counts
+	*/
+	static long[] newCounts() {
+		return new long[BUCKETS];
+	}
+
+	/**
+	** Returns the number of values counted.
+	** @return the count
+	*/
+	public long getCount() {
+		long[] merged = newCounts();
+		addTo(merged);
+		return count(merged);
+	}
+
+	/**
+	** Returns a percentile of the values counted.
+	** @param percentile The percentile, from 0 to 100
+	** @return the value, rounded up to the top of its bucket, or 0 if nothing was counted
+	*/
+	public long getPercentile(double percentile) {
+		long[] merged = newCounts();
+		addTo(merged);
+		return percentile(merged, percentile);
+	}
+
+	/**
+	** Returns the number of values in bucket counts.
+	*/
+	static long count(long[] counts) {
+		long total = 0;
+		for (int i = 0; i < counts.length; i++) total += counts[i];
+		return total;
+	}
+
+	/**
+	** Returns a percentile of bucket counts.
+	*/
+	static long percentile(long[] counts, double percentile) {
+		long total = count(counts);
+		if (total == 0) return 0;
+		long rank = (long) Math.ceil(total * percentile / 100.0);
+		if (rank < 1) rank = 1;
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) return highest(i);
+		}
+		return highest(counts.length - 1);
+	}
+
+	/**
+	** Returns the mean of bucket counts, taking the top of each bucket.
+	*/
+	static long mean(long[] counts) {
+		long total = 0;
+		double sum = 0;
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] == 0) continue;
+			total += counts[i];
+			sum += (double) counts[i] * highest(i);
+		}
+		return total == 0 ? 0 : (long) (sum / total);
+	}
+
+}
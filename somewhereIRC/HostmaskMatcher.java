@@ -0,0 +1,202 @@
+package somewhereIRC;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+** Hostmask matcher class of the SomewhereIRC client.
+** Tells whether a nick!user@host matches any of a set of masks, where * stands for any number of
+** characters and ? for exactly one, ignoring case the RFC 1459 way. The masks are merged into one trie,
+** walked as a nondeterministic automaton: the prefix is read once, however many masks there are, while
+** keeping the few trie nodes it could be at. Masks sharing a beginning (*!*@ most of all) share their nodes.
+**
+** Immutable once built, so one matcher can be shared by every connection; each thread matching keeps
+** its own two frontiers, so checking a line allocates nothing.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class HostmaskMatcher {
+
+	/**
+	** A node of the trie: what was matched so far, and where each next character leads.
+	*/
+	private static class Node {
+		//Characters leading on, sorted, and where each leads; where ? and * lead
+		char[] chars = new char[0];
+		Node[] children = new Node[0];
+		Node any;
+		Node star;
+
+		//Whether the node is reached by a *, and so matches any run of characters, and whether a mask ends here
+		boolean starred;
+		boolean terminal;
+
+		//Children while the trie is built
+		TreeMap<Character, Node> building = new TreeMap<Character, Node>();
+
+		Node child(char c) {
+			int i = Arrays.binarySearch(chars, c);
+			return i < 0 ? null : children[i];
+		}
+	}
+
+	/**
+	** The nodes the walk could be at, each once.
+	*/
+	private static class Frontier {
+		Node[] nodes = new Node[8];
+		int count = 0;
+
+		//Adds a node, and the node after a * following it, as the * may match nothing
+		void enter(Node node) {
+			for (int i = 0; i < count; i++) if (nodes[i] == node) return;
+			if (count == nodes.length) nodes = Arrays.copyOf(nodes, count * 2);
+			nodes[count++] = node;
+			if (node.star != null) enter(node.star);
+		}
+	}
+
+	//The trie
+	private final Node root = new Node();
+	private final int maskCount;
+
+	//The current and next frontiers of the walk, per thread
+	private final ThreadLocal<Frontier[]> frontiers = new ThreadLocal<Frontier[]>() {
+		protected Frontier[] initialValue() {
+			return new Frontier[] { new Frontier(), new Frontier() };
+		}
+	};
+
+	/**
+	** Constructor given the masks. A mask missing its nick or user part has it filled in with *,
+	** the way servers read bans: "nick" is nick!*@*, "user@host" is *!user@host.
+	** @param masks The masks
+	*/
+	public HostmaskMatcher(Collection<String> masks) {
+		int count = 0;
+		for (String mask : masks) {
+			mask = normalize(mask.trim());
+			if (mask == null) continue;
+			Node node = root;
+			for (int i = 0; i < mask.length(); i++) {
+				char c = fold(mask.charAt(i));
+				if (c == '*') {
+					//Stars in a row are one star
+					if (node.starred) continue;
+					if (node.star == null) {
+						node.star = new Node();
+						node.star.starred = true;
+					}
+					node = node.star;
+				}
+				else if (c == '?') {
+					if (node.any == null) node.any = new Node();
+					node = node.any;
+				}
+				else {
+					Node child = node.building.get(c);
+					if (child == null) {
+						child = new Node();
+						node.building.put(c, child);
+					}
+					node = child;
+				}
+			}
+			node.terminal = true;
+			count++;
+		}
+		maskCount = count;
+		freeze(root);
+	}
+
+	/**
+	** Turns the children of the nodes into sorted arrays, for binary search.
+	*/
+	private static void freeze(Node node) {
+		while (node != null) {
+			node.chars = new char[node.building.size()];
+			node.children = new Node[node.building.size()];
+			int i = 0;
+			for (Map.Entry<Character, Node> child : node.building.entrySet()) {
+				node.chars[i] = child.getKey();
+				node.children[i++] = child.getValue();
+				freeze(child.getValue());
+			}
+			node.building = null;
+			freeze(node.any);
+
+			//Follow the stars in a loop rather than by recursion
+			node = node.star;
+		}
+	}
+
+	/**
+	** Fills in the missing parts of a mask.
+	** @return the mask as nick!user@host, or null if it is empty
+	*/
+	private static String normalize(String mask) {
+		if (mask.length() == 0) return null;
+		int at = mask.indexOf('@');
+		int bang = mask.indexOf('!');
+		if (bang >= 0 && at > bang) return mask;
+		if (at >= 0) return "*!" + mask;
+		if (bang >= 0) return mask + "@*";
+		return mask + "!*@*";
+	}
+
+	/**
+	** Folds one character the RFC 1459 way.
+	*/
+	private static char fold(char c) {
+		if (c >= 'A' && c <= 'Z') return (char) (c + 32);
+		if (c >= '[' && c <= '^') return (char) (c + 32);
+		return c;
+	}
+
+	/**
+	** Returns whether a prefix matches any of the masks.
+	** @param prefix The prefix, as nick!user@host
+	** @return true if a mask matched
+	*/
+	public boolean matches(CharSequence prefix) {
+		if (maskCount == 0) return false;
+		Frontier[] walk = frontiers.get();
+		Frontier current = walk[0];
+		Frontier next = walk[1];
+		current.count = 0;
+		current.enter(root);
+		for (int i = 0; i < prefix.length(); i++) {
+			char c = fold(prefix.charAt(i));
+			next.count = 0;
+			for (int j = 0; j < current.count; j++) {
+				Node node = current.nodes[j];
+				if (node.starred) {
+					//A mask ending in * matches whatever is left
+					if (node.terminal) return true;
+					next.enter(node);
+				}
+				Node child = node.child(c);
+				if (child != null) next.enter(child);
+				if (node.any != null) next.enter(node.any);
+			}
+			if (next.count == 0) return false;
+			Frontier swap = current;
+			current = next;
+			next = swap;
+		}
+		for (int j = 0; j < current.count; j++) if (current.nodes[j].terminal) return true;
+		return false;
+	}
+
+	/**
+	** Returns the number of masks.
+	** @return the number of masks, not counting empty ones
+	*/
+	public int size() {
+		return maskCount;
+	}
+
+}
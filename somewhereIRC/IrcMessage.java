@@ -0,0 +1,381 @@
+package somewhereIRC;
+
+/**
+** Message class of the SomewhereIRC client.
+** A reusable view over one raw line of the IRC protocol.
+** The line is scanned once, recording where the tags, prefix, command and parameters are;
+** the fields themselves are only turned into strings when asked for.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class IrcMessage {
+
+	//Constants
+	public static final int MAX_PARAMS = 15;
+
+	//Line variables
+	private String line = "";
+	private int length;
+
+	//Field offsets (start inclusive, end exclusive, -1 when absent)
+	private int tagsStart, tagsEnd;
+	private int prefixStart, prefixEnd, nickEnd, userStart, hostStart;
+	private int commandStart, commandEnd;
+	private Command commandType;
+	private int paramCount;
+	private boolean trailing;
+	private final int[] paramStart = new int[MAX_PARAMS];
+	private final int[] paramEnd = new int[MAX_PARAMS];
+
+	/**
+	** Parses a raw line, replacing whatever this message held before.
+	** @param raw The raw line, without its line terminator
+	** @return true if the line holds at least a command
+	*/
+	public boolean parse(String raw) {
+		line = raw;
+		length = raw.length();
+		tagsStart = tagsEnd = -1;
+		prefixStart = prefixEnd = nickEnd = userStart = hostStart = -1;
+		commandStart = commandEnd = -1;
+		commandType = null;
+		paramCount = 0;
+		trailing = false;
+
+		int i = skipSpaces(0);
+
+		//Message tags
+		if (i < length && line.charAt(i) == '@') {
+			tagsStart = i + 1;
+			i = tagsEnd = wordEnd(tagsStart);
+			i = skipSpaces(i);
+		}
+
+		//Prefix, split into nick!user@host
+		if (i < length && line.charAt(i) == ':') {
+			prefixStart = i + 1;
+			i = prefixEnd = wordEnd(prefixStart);
+			nickEnd = prefixEnd;
+			for (int j = prefixStart; j < prefixEnd; j++) {
+				char c = line.charAt(j);
+				if (c == '!' && userStart < 0 && hostStart < 0) {
+					userStart = j + 1;
+					if (nickEnd == prefixEnd) nickEnd = j;
+				}
+				else if (c == '@' && hostStart < 0) {
+					hostStart = j + 1;
+					if (nickEnd == prefixEnd) nickEnd = j;
+				}
+			}
+			i = skipSpaces(i);
+		}
+
+		//Command or numeric
+		if (i >= length) return false;
+		commandStart = i;
+		i = commandEnd = wordEnd(i);
+
+		//Parameters, the last one may be a trailing one holding spaces
+		i = skipSpaces(i);
+		while (i < length) {
+			if (line.charAt(i) == ':' || paramCount == MAX_PARAMS - 1) {
+				if (line.charAt(i) == ':') i++;
+				trailing = true;
+				paramStart[paramCount] = i;
+				paramEnd[paramCount] = length;
+				paramCount++;
+				break;
+			}
+			paramStart[paramCount] = i;
+			i = paramEnd[paramCount] = wordEnd(i);
+			paramCount++;
+			i = skipSpaces(i);
+		}
+		return true;
+	}
+
+	/**
+	** Returns the index of the first non-space character from the given index.
+	*/
+	private int skipSpaces(int i) {
+		while (i < length && line.charAt(i) == ' ') i++;
+		return i;
+	}
+
+	/**
+	** Returns the index of the first space (or the end of the line) from the given index.
+	*/
+	private int wordEnd(int i) {
+		int end = line.indexOf(' ', i);
+		return end < 0 ? length : end;
+	}
+
+	/**
+	** Returns the substring for a field, or null if the field is absent.
+	*/
+	private String field(int start, int end) {
+		return start < 0 ? null : line.substring(start, end);
+	}
+
+	/**
+	** Returns the raw line this message views.
+	** @return the raw line
+	*/
+	public String getLine() {
+		return line;
+	}
+
+	/**
+	** Returns whether the message carries IRCv3 tags.
+	** @return true if there are tags
+	*/
+	public boolean hasTags() {
+		return tagsStart >= 0;
+	}
+
+	/**
+	** Returns the raw tags, without the leading @.
+	** @return the raw tags, or null if there are none
+	*/
+	public String getTags() {
+		return field(tagsStart, tagsEnd);
+	}
+
+	/**
+	** Returns the (still escaped) value of a tag.
+	** @param key The tag key
+	** @return the value, the empty string for a tag without value, or null if the tag is absent
+	*/
+	public String getTag(String key) {
+		int i = tagsStart;
+		while (i >= 0 && i < tagsEnd) {
+			int end = line.indexOf(';', i);
+			if (end < 0 || end > tagsEnd) end = tagsEnd;
+			int keyEnd = i + key.length();
+			if (keyEnd <= end && line.regionMatches(i, key, 0, key.length())) {
+				if (keyEnd == end) return "";
+				if (line.charAt(keyEnd) == '=') return line.substring(keyEnd + 1, end);
+			}
+			i = end + 1;
+		}
+		return null;
+	}
+
+	/**
+	** Returns the time the server gave the message (the server-time tag), as 2011-10-19T16:40:51.620Z.
+	** @return the time in milliseconds since the epoch, or -1 if there is no valid time tag
+	*/
+	public long getServerTime() {
+		String time = getTag("time");
+		if (time == null || time.length() < 20 || time.charAt(time.length() - 1) != 'Z') return -1;
+		int year = digits(time, 0, 4), month = digits(time, 5, 2), day = digits(time, 8, 2);
+		int hour = digits(time, 11, 2), minute = digits(time, 14, 2), second = digits(time, 17, 2);
+		if (year < 0 || month < 1 || month > 12 || day < 1 || hour < 0 || minute < 0 || second < 0) return -1;
+		int millis = 0;
+		if (time.length() > 21 && time.charAt(19) == '.') {
+			millis = digits(time, 20, Math.min(3, time.length() - 21));
+			if (millis < 0) return -1;
+			for (int i = time.length() - 21; i < 3; i++) millis *= 10;
+		}
+
+		//Days since the epoch of a date of the proleptic Gregorian calendar
+		int y = month <= 2 ? year - 1 : year;
+		int era = y / 400, yearOfEra = y - era * 400;
+		int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		long days = era * 146097L + yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear - 719468;
+		return ((days * 24 + hour) * 60 + minute) * 60000L + second * 1000L + millis;
+	}
+
+	/**
+	** Reads a number of decimal digits of a string.
+	** @return the number, or -1 if one of the characters is not a digit
+	*/
+	private static int digits(String s, int start, int count) {
+		int value = 0;
+		for (int i = start; i < start + count; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9') return -1;
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	/**
+	** Returns whether the message has a prefix.
+	** @return true if there is a prefix
+	*/
+	public boolean hasPrefix() {
+		return prefixStart >= 0;
+	}
+
+	/**
+	** Returns the full prefix, without the leading colon.
+	** @return the prefix, or null if there is none
+	*/
+	public String getPrefix() {
+		return field(prefixStart, prefixEnd);
+	}
+
+	/**
+	** Returns the nickname (or server name) part of the prefix.
+	** @return the nickname, or null if there is no prefix
+	*/
+	public String getNick() {
+		return field(prefixStart, nickEnd);
+	}
+
+	/**
+	** Returns the start offset of the nickname in the line.
+	** @return the start offset, or -1 if there is no prefix
+	*/
+	public int getNickStart() {
+		return prefixStart;
+	}
+
+	/**
+	** Returns the end offset of the nickname in the line.
+	** @return the end offset, or -1 if there is no prefix
+	*/
+	public int getNickEnd() {
+		return nickEnd;
+	}
+
+	/**
+	** Returns the user part of the prefix.
+	** @return the user, or null if the prefix has none
+	*/
+	public String getUser() {
+		if (userStart < 0) return null;
+		return line.substring(userStart, hostStart < 0 ? prefixEnd : hostStart - 1);
+	}
+
+	/**
+	** Returns the host part of the prefix.
+	** @return the host, or null if the prefix has none
+	*/
+	public String getHost() {
+		return field(hostStart, prefixEnd);
+	}
+
+	/**
+	** Returns the command, as sent by the server.
+	** @return the command
+	*/
+	public String getCommand() {
+		return field(commandStart, commandEnd);
+	}
+
+	/**
+	** Returns the type of the command, looked up on first use.
+	** @return the command, NUMERIC for a numeric reply, or UNKNOWN
+	*/
+	public Command getCommandType() {
+		if (commandType == null) {
+			commandType = commandStart < 0 ? Command.UNKNOWN : Command.lookup(line, commandStart, commandEnd);
+		}
+		return commandType;
+	}
+	
+	/**
+	** Returns whether the command is the given one, ignoring case, without copying it.
+	** @param command The command to compare with
+	** @return true if it is the same command
+	*/
+	public boolean isCommand(String command) {
+		return commandStart >= 0
+			&& commandEnd - commandStart == command.length()
+			&& line.regionMatches(true, commandStart, command, 0, command.length());
+	}
+
+	/**
+	** Returns the numeric of a three digit reply.
+	** @return the numeric, or -1 if the command is not a numeric
+	*/
+	public int getNumeric() {
+		if (commandStart < 0 || commandEnd - commandStart != 3) return -1;
+		int numeric = 0;
+		for (int i = commandStart; i < commandEnd; i++) {
+			char c = line.charAt(i);
+			if (c < '0' || c > '9') return -1;
+			numeric = numeric * 10 + (c - '0');
+		}
+		return numeric;
+	}
+
+	/**
+	** Returns the number of parameters, including the trailing one.
+	** @return the number of parameters
+	*/
+	public int getParamCount() {
+		return paramCount;
+	}
+
+	/**
+	** Returns a parameter.
+	** @param index The index of the parameter
+	** @return the parameter, or null if there is no such parameter
+	*/
+	public String getParam(int index) {
+		if (index < 0 || index >= paramCount) return null;
+		return line.substring(paramStart[index], paramEnd[index]);
+	}
+
+	/**
+	** Returns whether a parameter is the given string, without copying it.
+	** @param index The index of the parameter
+	** @param value The string to compare with
+	** @return true if the parameter is the same string
+	*/
+	public boolean paramEquals(int index, String value) {
+		return index >= 0 && index < paramCount
+			&& paramEnd[index] - paramStart[index] == value.length()
+			&& line.regionMatches(paramStart[index], value, 0, value.length());
+	}
+
+	/**
+	** Appends a parameter to a builder, without copying it to a string first.
+	** @param sb The builder to append to
+	** @param index The index of the parameter
+	** @return the builder
+	*/
+	public StringBuilder appendParam(StringBuilder sb, int index) {
+		if (index >= 0 && index < paramCount) sb.append(line, paramStart[index], paramEnd[index]);
+		return sb;
+	}
+
+	/**
+	** Returns the start offset of a parameter in the line.
+	** @param index The index of the parameter
+	** @return the start offset
+	*/
+	public int getParamStart(int index) {
+		return paramStart[index];
+	}
+
+	/**
+	** Returns the end offset of a parameter in the line.
+	** @param index The index of the parameter
+	** @return the end offset
+	*/
+	public int getParamEnd(int index) {
+		return paramEnd[index];
+	}
+
+	/**
+	** Returns whether the last parameter was a trailing one.
+	** @return true if there is a trailing parameter
+	*/
+	public boolean hasTrailing() {
+		return trailing;
+	}
+
+	/**
+	** Returns the last parameter, which usually holds the text of the message.
+	** @return the last parameter, or null if there are none
+	*/
+	public String getLastParam() {
+		return getParam(paramCount - 1);
+	}
+
+}
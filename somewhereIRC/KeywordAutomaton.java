@@ -0,0 +1,195 @@
+package somewhereIRC;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.TreeSet;
+
+/**
+** Keyword automaton class of the SomewhereIRC client.
+** Finds any of a set of keywords in a line, ignoring case, in one pass over the line whatever the
+** number of keywords: the keywords are compiled into an Aho-Corasick automaton, turned into a full
+** transition table so each character of the line costs one table lookup.
+**
+** A keyword only matches as a whole word: where it starts or ends with a letter or digit, the character
+** of the line beyond it must not be one. Keywords are compared after lowercasing, and characters that
+** appear in no keyword all share one column of the table.
+**
+** Immutable once built, so one automaton can be shared by every connection.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class KeywordAutomaton {
+
+	//Outputs of a state: whether the keyword ending there starts and ends with a word character
+	private static final int WORD_START = 1;
+	private static final int WORD_END = 2;
+
+	//Columns of the characters, 0 for those in no keyword: ASCII ones by table, the others by binary search
+	private final int[] asciiColumns = new int[128];
+	private final char[] otherChars;
+	private final int[] otherColumns;
+	private final int columns;
+
+	//Transitions, columns per state, and the outputs of each state
+	private final int[] next;
+	private final int[] lengths;
+	private final int[] flags;
+	private final int[] outputLinks;
+	private final int keywordCount;
+
+	/**
+	** Constructor given the keywords. Empty ones are skipped.
+	** @param keywords The keywords
+	*/
+	public KeywordAutomaton(Collection<String> keywords) {
+		//Gather the alphabet of the keywords
+		ArrayList<String> folded = new ArrayList<String>(keywords.size());
+		TreeSet<Character> alphabet = new TreeSet<Character>();
+		for (String keyword : keywords) {
+			if (keyword.length() == 0) continue;
+
+			//Character by character, the way the line is lowercased
+			char[] lower = new char[keyword.length()];
+			for (int i = 0; i < lower.length; i++) {
+				lower[i] = Character.toLowerCase(keyword.charAt(i));
+				alphabet.add(lower[i]);
+			}
+			folded.add(new String(lower));
+		}
+		keywordCount = folded.size();
+		int column = 1;
+		int others = 0;
+		for (char c : alphabet) if (c >= 128) others++;
+		otherChars = new char[others];
+		otherColumns = new int[others];
+		others = 0;
+		for (char c : alphabet) {
+			if (c < 128) asciiColumns[c] = column++;
+			else {
+				otherChars[others] = c;
+				otherColumns[others++] = column++;
+			}
+		}
+		//Upper case ASCII letters go where their lower case does
+		for (char c = 'A'; c <= 'Z'; c++) asciiColumns[c] = asciiColumns[c + 32];
+		columns = column;
+
+		//Build the trie, state 0 being the root
+		int capacity = 16;
+		int[] trie = new int[capacity * columns];
+		int[] keywordLengths = new int[capacity];
+		int[] keywordFlags = new int[capacity];
+		int states = 1;
+		for (String keyword : folded) {
+			int state = 0;
+			for (int i = 0; i < keyword.length(); i++) {
+				int c = columnOf(keyword.charAt(i));
+				int child = trie[state * columns + c];
+				if (child == 0) {
+					if (states == capacity) {
+						capacity *= 2;
+						trie = Arrays.copyOf(trie, capacity * columns);
+						keywordLengths = Arrays.copyOf(keywordLengths, capacity);
+						keywordFlags = Arrays.copyOf(keywordFlags, capacity);
+					}
+					child = states++;
+					trie[state * columns + c] = child;
+				}
+				state = child;
+			}
+			//The same keyword twice, or differing only in case, keeps one output
+			keywordLengths[state] = keyword.length();
+			keywordFlags[state] = (isWordChar(keyword.charAt(0)) ? WORD_START : 0)
+				| (isWordChar(keyword.charAt(keyword.length() - 1)) ? WORD_END : 0);
+		}
+
+		//Breadth first, fill in the missing transitions from the failure links, and chain the outputs
+		next = Arrays.copyOf(trie, states * columns);
+		lengths = Arrays.copyOf(keywordLengths, states);
+		flags = Arrays.copyOf(keywordFlags, states);
+		outputLinks = new int[states];
+		int[] fail = new int[states];
+		int[] queue = new int[states];
+		int head = 0, tail = 0;
+		for (int c = 0; c < columns; c++) {
+			int child = next[c];
+			if (child != 0) {
+				outputLinks[child] = -1;
+				queue[tail++] = child;
+			}
+		}
+		outputLinks[0] = -1;
+		while (head < tail) {
+			int state = queue[head++];
+			for (int c = 0; c < columns; c++) {
+				int child = trie[state * columns + c];
+				if (child == 0) {
+					next[state * columns + c] = next[fail[state] * columns + c];
+					continue;
+				}
+				int f = next[fail[state] * columns + c];
+				fail[child] = f;
+				outputLinks[child] = lengths[f] > 0 ? f : outputLinks[f];
+				queue[tail++] = child;
+			}
+		}
+	}
+
+	/**
+	** Returns the column of a lowercased character.
+	*/
+	private int columnOf(char c) {
+		if (c < 128) return asciiColumns[c];
+		int i = Arrays.binarySearch(otherChars, c);
+		return i < 0 ? 0 : otherColumns[i];
+	}
+
+	/**
+	** Returns whether a line holds any of the keywords, as a whole word.
+	** @param line The line
+	** @return true if a keyword matched
+	*/
+	public boolean matches(CharSequence line) {
+		if (keywordCount == 0) return false;
+		int state = 0;
+		int length = line.length();
+		for (int i = 0; i < length; i++) {
+			char c = line.charAt(i);
+			int column = c < 128 ? asciiColumns[c] : columnOf(Character.toLowerCase(c));
+			state = next[state * columns + column];
+			if (state == 0) continue;
+
+			//Check every keyword ending here, longest first
+			for (int output = lengths[state] > 0 ? state : outputLinks[state]; output > 0; output = outputLinks[output]) {
+				int start = i + 1 - lengths[output];
+				if ((flags[output] & WORD_START) != 0 && start > 0 && isWordChar(line.charAt(start - 1))) continue;
+				if ((flags[output] & WORD_END) != 0 && i + 1 < length && isWordChar(line.charAt(i + 1))) continue;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	** Returns the number of keywords.
+	** @return the number of keywords, not counting empty ones
+	*/
+	public int size() {
+		return keywordCount;
+	}
+
+	/**
+	** Returns the number of states of the automaton.
+	** @return the number of states, the root included
+	*/
+	public int getStateCount() {
+		return lengths.length;
+	}
+
+	private static boolean isWordChar(char c) {
+		return Character.isLetterOrDigit(c);
+	}
+
+}
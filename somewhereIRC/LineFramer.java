@@ -0,0 +1,194 @@
+package somewhereIRC;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import java.io.IOException;
+
+/**
+** Line framer class of the SomewhereIRC client.
+** Reads a channel into one reusable buffer, finds the line ends in the bytes themselves, and decodes
+** each line straight from the buffer into its String, so every byte is copied once after the socket.
+** A line is decoded as UTF-8 when it is valid UTF-8 (ASCII takes a shortcut), and as CP1252 when it is
+** not, so the Latin-1 clients still found on many networks show up right next to the UTF-8 ones.
+**
+** The protocol limits apply: 512 bytes for the message itself, CRLF included, plus up to 8191 bytes of
+** tags. A longer message is cut to 510 bytes, at a character boundary, and a line longer than both
+** limits together is dropped without ever being buffered whole.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class LineFramer {
+
+	//Constants
+	public static final int MAX_MESSAGE = 512;
+	public static final int MAX_TAGS = 8191;
+	public static final int MAX_LINE = MAX_TAGS + MAX_MESSAGE;
+	private static final Charset FALLBACK =
+		Charset.isSupported("windows-1252") ? Charset.forName("windows-1252") : StandardCharsets.ISO_8859_1;
+
+	//Buffer variables: complete lines are handed out from lineStart, the end of line search resumes at scanned
+	private final ByteBuffer buffer = ByteBuffer.allocate(MAX_LINE * 2);
+	private final byte[] bytes = buffer.array();
+	private int lineStart = 0;
+	private int scanned = 0;
+	private boolean discarding = false;
+
+	//Counters
+	private long fallbackLines = 0;
+	private long droppedLines = 0;
+	private int lastLength = 0;
+
+	/**
+	** Reads once from the channel: whatever is available if it is non-blocking,
+	** or at least one byte if it is blocking.
+	** @param channel The channel to read from
+	** @return false if the end of the stream was reached
+	*/
+	public boolean read(ReadableByteChannel channel) throws IOException {
+		//Make room by moving what is left of the last read to the front
+		if (lineStart > 0) {
+			int position = buffer.position();
+			System.arraycopy(bytes, lineStart, bytes, 0, position - lineStart);
+			buffer.position(position - lineStart);
+			scanned -= lineStart;
+			lineStart = 0;
+		}
+		return channel.read(buffer) >= 0;
+	}
+
+	/**
+	** Returns the next complete line, without its line terminator.
+	** @return the line, or null if there is no complete line yet
+	*/
+	public String nextLine() {
+		int end = buffer.position();
+		while (true) {
+			int lf = -1;
+			for (int i = scanned; i < end; i++) {
+				if (bytes[i] == '\n') {
+					lf = i;
+					break;
+				}
+			}
+
+			//No complete line: a line too long to ever fit is dropped as it comes
+			if (lf < 0) {
+				scanned = end;
+				if (end - lineStart > MAX_LINE) {
+					if (!discarding) droppedLines++;
+					discarding = true;
+					lineStart = scanned = end;
+				}
+				return null;
+			}
+			int start = lineStart;
+			lineStart = scanned = lf + 1;
+			if (discarding || lf - start > MAX_LINE) {
+				if (!discarding) droppedLines++;
+				discarding = false;
+				continue;
+			}
+			int lineEnd = lf;
+			if (lineEnd > start && bytes[lineEnd - 1] == '\r') lineEnd--;
+			lastLength = lf + 1 - start;
+			if (lineEnd == start) continue;
+			return decode(start, limit(start, lineEnd));
+		}
+	}
+
+	/**
+	** Returns the size in bytes of the last line returned, with its line terminator.
+	** @return the size of the line
+	*/
+	public int getLastLength() {
+		return lastLength;
+	}
+
+	/**
+	** Returns the number of lines that were not valid UTF-8, and were decoded as CP1252.
+	** @return the number of lines
+	*/
+	public long getFallbackLines() {
+		return fallbackLines;
+	}
+
+	/**
+	** Returns the number of lines dropped for being over the length limits.
+	** @return the number of lines
+	*/
+	public long getDroppedLines() {
+		return droppedLines;
+	}
+
+	/**
+	** Returns the end of a line once its message is cut to 510 bytes, not counting its tags.
+	*/
+	private int limit(int start, int end) {
+		int message = start;
+		if (bytes[start] == '@') {
+			while (message < end && bytes[message] != ' ') message++;
+			while (message < end && bytes[message] == ' ') message++;
+		}
+		if (end - message <= MAX_MESSAGE - 2) return end;
+
+		//Back off to the start of a UTF-8 character, continuation bytes being 10xxxxxx
+		int cut = message + MAX_MESSAGE - 2;
+		while (cut > message && (bytes[cut] & 0xC0) == 0x80) cut--;
+		return cut;
+	}
+
+	/**
+	** Decodes a line of the buffer.
+	*/
+	private String decode(int start, int end) {
+		//Plain ASCII, the usual case, is copied as is
+		int i = start;
+		while (i < end && bytes[i] >= 0) i++;
+		if (i == end) return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+		if (isUtf8(i, end)) return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+		fallbackLines++;
+		return new String(bytes, start, end - start, FALLBACK);
+	}
+
+	/**
+	** Returns whether a range of the buffer is valid UTF-8: no overlong forms, surrogates or code points past U+10FFFF.
+	*/
+	private boolean isUtf8(int i, int end) {
+		while (i < end) {
+			int b = bytes[i] & 0xFF;
+			if (b < 0x80) {
+				i++;
+				continue;
+			}
+			int count, min;
+			if (b >= 0xC2 && b <= 0xDF) {
+				count = 1;
+				min = 0x80;
+			}
+			else if (b >= 0xE0 && b <= 0xEF) {
+				count = 2;
+				min = 0x800;
+			}
+			else if (b >= 0xF0 && b <= 0xF4) {
+				count = 3;
+				min = 0x10000;
+			}
+			else return false;
+			if (i + count >= end) return false;
+			int c = b & (0x3F >> count);
+			for (int j = 1; j <= count; j++) {
+				int next = bytes[i + j] & 0xFF;
+				if ((next & 0xC0) != 0x80) return false;
+				c = (c << 6) | (next & 0x3F);
+			}
+			if (c < min || c > 0x10FFFF || (c >= 0xD800 && c <= 0xDFFF)) return false;
+			i += count + 1;
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,378 @@
+package somewhereIRC;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import java.io.IOException;
+
+/**
+** Message log class of the SomewhereIRC client.
+** An append-only log of the messages of one channel, split into memory-mapped segment files.
+** Every record is addressed by its offset in the log as a whole. A sparse index of (time, offset)
+** pairs, one every INDEX_INTERVAL bytes, lets readers jump to the end or to a point in time
+** without scanning the segments.
+**
+** Record layout: int length of the text, long time in milliseconds, then the text in UTF-8.
+** The length is written last, so a record only becomes visible once it is complete.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class MessageLog {
+
+	/**
+	** One record read back from the log.
+	*/
+	public static class Record {
+		public final long offset;
+		public final long next;
+		public final long time;
+		public final String text;
+
+		Record(long offset, long next, long time, String text) {
+			this.offset = offset;
+			this.next = next;
+			this.time = time;
+			this.text = text;
+		}
+	}
+
+	//Constants
+	public static final int SEGMENT_SIZE = Integer.getInteger("somewhereIRC.logSegmentSize", 16 << 20);
+	public static final int INDEX_INTERVAL = 4096;
+	private static final int HEADER = 12;
+	private static final int INDEX_ENTRY = 12;
+
+	/**
+	** One segment file, with its index.
+	*/
+	private static class Segment {
+		long base;
+		File logFile, indexFile;
+		MappedByteBuffer buffer;
+		int size;
+		long[] indexTimes = new long[64];
+		int[] indexPositions = new int[64];
+		int indexCount;
+		FileChannel indexChannel;
+	}
+
+	//Log variables
+	private final File dir;
+	private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+	private Segment active;
+
+	/**
+	** Constructor that opens (or creates) the log in a directory.
+	** @param dir The directory holding the segments of this log
+	*/
+	public MessageLog(File dir) throws IOException {
+		this.dir = dir;
+		if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Could not create log directory " + dir);
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (!name.endsWith(".log")) continue;
+				try {
+					long base = Long.parseLong(name.substring(0, name.length() - 4));
+					segments.put(base, openSegment(base));
+				} catch (NumberFormatException e) {}
+			}
+		}
+		if (segments.isEmpty()) segments.put(0L, openSegment(0));
+		active = segments.lastEntry().getValue();
+		map(active, true);
+		active.size = findEnd(active);
+		active.indexChannel = new RandomAccessFile(active.indexFile, "rw").getChannel();
+		active.indexChannel.position(active.indexChannel.size());
+	}
+
+	/**
+	** Returns the name of a segment file.
+	*/
+	private File segmentFile(long base, String extension) {
+		return new File(dir, String.format("%020d", base) + extension);
+	}
+
+	/**
+	** Creates the description of a segment and loads its index.
+	*/
+	private Segment openSegment(long base) throws IOException {
+		Segment segment = new Segment();
+		segment.base = base;
+		segment.logFile = segmentFile(base, ".log");
+		segment.indexFile = segmentFile(base, ".idx");
+		if (segment.indexFile.exists()) {
+			RandomAccessFile file = new RandomAccessFile(segment.indexFile, "r");
+			try {
+				ByteBuffer entries = ByteBuffer.allocate((int) (file.length() / INDEX_ENTRY * INDEX_ENTRY));
+				file.getChannel().read(entries, 0);
+				entries.flip();
+				while (entries.remaining() >= INDEX_ENTRY) addIndex(segment, entries.getLong(), entries.getInt());
+			} finally {
+				file.close();
+			}
+		}
+		segment.size = -1;
+		return segment;
+	}
+
+	/**
+	** Maps a segment file, read-write for the active segment and read-only otherwise.
+	*/
+	private void map(Segment segment, boolean writable) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(segment.logFile, writable ? "rw" : "r");
+		try {
+			long length = writable ? Math.max(SEGMENT_SIZE, file.length()) : file.length();
+			segment.buffer = file.getChannel().map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, length);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	** Returns a segment ready for reading, mapping it if needed.
+	*/
+	private Segment readable(Segment segment) throws IOException {
+		if (segment.buffer == null) map(segment, false);
+		if (segment.size < 0) segment.size = findEnd(segment);
+		return segment;
+	}
+
+	/**
+	** Finds the end of the data in a segment, scanning forward from its last index entry.
+	*/
+	private int findEnd(Segment segment) {
+		int position = segment.indexCount == 0 ? 0 : segment.indexPositions[segment.indexCount - 1];
+		ByteBuffer buffer = segment.buffer;
+		while (position + HEADER <= buffer.limit()) {
+			int length = buffer.getInt(position);
+			if (length <= 0 || position + HEADER + length > buffer.limit()) break;
+			position += HEADER + length;
+		}
+		return position;
+	}
+
+	/**
+	** Adds an entry to the in-memory index of a segment.
+	*/
+	private static void addIndex(Segment segment, long time, int position) {
+		if (segment.indexCount == segment.indexTimes.length) {
+			segment.indexTimes = Arrays.copyOf(segment.indexTimes, segment.indexCount * 2);
+			segment.indexPositions = Arrays.copyOf(segment.indexPositions, segment.indexCount * 2);
+		}
+		segment.indexTimes[segment.indexCount] = time;
+		segment.indexPositions[segment.indexCount] = position;
+		segment.indexCount++;
+	}
+
+	/**
+	** Appends a record.
+	** @param time The time of the message, in milliseconds
+	** @param text The text of the message
+	** @return the offset of the record
+	*/
+	public synchronized long append(long time, String text) throws IOException {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		int needed = HEADER + bytes.length;
+		if (needed + HEADER > SEGMENT_SIZE) throw new IOException("Message too large for the log: " + bytes.length + " bytes");
+		if (active.size + needed + HEADER > active.buffer.capacity()) roll();
+
+		//Index the first record of each interval
+		int position = active.size;
+		int lastIndexed = active.indexCount == 0 ? -INDEX_INTERVAL : active.indexPositions[active.indexCount - 1];
+		if (position - lastIndexed >= INDEX_INTERVAL) {
+			ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY);
+			entry.putLong(time).putInt(position).flip();
+			while (entry.hasRemaining()) active.indexChannel.write(entry);
+			addIndex(active, time, position);
+		}
+
+		//Write the body, then the length that makes it visible
+		ByteBuffer buffer = active.buffer;
+		buffer.putLong(position + 4, time);
+		ByteBuffer body = buffer.duplicate();
+		body.position(position + HEADER);
+		body.put(bytes);
+		buffer.putInt(position, bytes.length);
+		active.size = position + needed;
+		return active.base + position;
+	}
+
+	/**
+	** Closes the active segment and starts a new one where it ends.
+	*/
+	private void roll() throws IOException {
+		active.buffer.force();
+		active.indexChannel.close();
+		active.indexChannel = null;
+		long base = active.base + active.size;
+		Segment segment = openSegment(base);
+		map(segment, true);
+		segment.size = 0;
+		segment.indexChannel = new RandomAccessFile(segment.indexFile, "rw").getChannel();
+		segments.put(base, segment);
+		active = segment;
+	}
+
+	/**
+	** Writes everything appended so far through to the files.
+	*/
+	public synchronized void flush() throws IOException {
+		active.buffer.force();
+		active.indexChannel.force(false);
+	}
+
+	/**
+	** Returns the offset the next record will be appended at.
+	** @return the end offset of the log
+	*/
+	public synchronized long getEndOffset() {
+		return active.base + active.size;
+	}
+
+	/**
+	** Reads the record at a position of a segment.
+	*/
+	private Record readAt(Segment segment, int position) {
+		int length = segment.buffer.getInt(position);
+		long time = segment.buffer.getLong(position + 4);
+		byte[] bytes = new byte[length];
+		ByteBuffer body = segment.buffer.duplicate();
+		body.position(position + HEADER);
+		body.get(bytes);
+		return new Record(segment.base + position, segment.base + position + HEADER + length, time, new String(bytes, StandardCharsets.UTF_8));
+	}
+
+	/**
+	** Reads one record.
+	** @param offset The offset of the record
+	** @return the record, or null if there is no record at that offset
+	*/
+	public synchronized Record read(long offset) throws IOException {
+		Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+		if (entry == null) return null;
+		Segment segment = readable(entry.getValue());
+		int position = (int) (offset - segment.base);
+		if (position + HEADER > segment.size) return null;
+		return readAt(segment, position);
+	}
+
+	/**
+	** Reads records forward from an offset.
+	** @param offset The offset of the first record
+	** @param max The maximum number of records to read
+	** @return the records, oldest first
+	*/
+	public synchronized List<Record> read(long offset, int max) throws IOException {
+		ArrayList<Record> records = new ArrayList<Record>();
+		Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+		if (entry == null) entry = segments.firstEntry();
+		Segment segment = readable(entry.getValue());
+		int position = (int) Math.max(0, offset - segment.base);
+		while (records.size() < max) {
+			if (position >= segment.size) {
+				Map.Entry<Long, Segment> following = segments.higherEntry(segment.base);
+				if (following == null) break;
+				segment = readable(following.getValue());
+				position = 0;
+				continue;
+			}
+			Record record = readAt(segment, position);
+			records.add(record);
+			position += HEADER + segment.buffer.getInt(position);
+		}
+		return records;
+	}
+
+	/**
+	** Reads the last records of the log.
+	** @param n The number of records
+	** @return the records, oldest first
+	*/
+	public synchronized List<Record> readLast(int n) throws IOException {
+		ArrayList<Record> records = new ArrayList<Record>();
+		Map.Entry<Long, Segment> entry = segments.lastEntry();
+		Segment segment = readable(entry.getValue());
+		int index = segment.indexCount - 1;
+		int stop = segment.size;
+
+		//Walk the index backwards, scanning one interval at a time, until there are enough records
+		while (records.size() < n) {
+			int start = index >= 0 ? segment.indexPositions[index] : 0;
+			ArrayList<Record> interval = new ArrayList<Record>();
+			for (int position = start; position < stop; position += HEADER + segment.buffer.getInt(position)) {
+				interval.add(readAt(segment, position));
+			}
+			records.addAll(0, interval);
+			stop = start;
+			index--;
+			if (start == 0) {
+				entry = segments.lowerEntry(segment.base);
+				if (entry == null) break;
+				segment = readable(entry.getValue());
+				index = segment.indexCount - 1;
+				stop = segment.size;
+			}
+		}
+		if (records.size() > n) return new ArrayList<Record>(records.subList(records.size() - n, records.size()));
+		return records;
+	}
+
+	/**
+	** Returns the offset of the first record at or after a point in time.
+	** @param time The time, in milliseconds
+	** @return the offset, or the end offset if every record is older
+	*/
+	public synchronized long seek(long time) throws IOException {
+		//Find the last segment starting before the time
+		Segment segment = null;
+		for (Segment candidate : segments.descendingMap().values()) {
+			segment = candidate;
+			if (candidate.indexCount > 0 && candidate.indexTimes[0] < time) break;
+		}
+		readable(segment);
+
+		//Then the last index entry before the time, and scan from there
+		int low = 0, high = segment.indexCount - 1, start = 0;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (segment.indexTimes[middle] < time) {
+				start = segment.indexPositions[middle];
+				low = middle + 1;
+			}
+			else high = middle - 1;
+		}
+		while (true) {
+			if (start >= segment.size) {
+				Map.Entry<Long, Segment> following = segments.higherEntry(segment.base);
+				if (following == null) return getEndOffset();
+				segment = readable(following.getValue());
+				start = 0;
+				continue;
+			}
+			if (segment.buffer.getLong(start + 4) >= time) return segment.base + start;
+			start += HEADER + segment.buffer.getInt(start);
+		}
+	}
+
+	/**
+	** Flushes and closes the log.
+	*/
+	public synchronized void close() throws IOException {
+		flush();
+		active.indexChannel.close();
+	}
+
+}
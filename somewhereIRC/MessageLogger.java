@@ -0,0 +1,282 @@
+package somewhereIRC;
+
+import java.io.File;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import java.io.IOException;
+
+/**
+** Message logger class of the SomewhereIRC client.
+** Writes the messages of every connection into a MessageLog per network and channel.
+** Connections only add messages to a lock-free queue; a single writer thread appends them in batches
+** and flushes the logs it wrote to about once a second, so logging never holds up reading from the server.
+** The writer also keeps a SearchIndex up to date, and saves it every SAVE_INTERVAL while anything changed.
+** When it starts, it loads the saved index and only reads the logs written to since, past what was indexed;
+** every log when there is no saved index.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class MessageLogger implements Runnable {
+
+	/**
+	** A message waiting to be written.
+	*/
+	private static class Entry {
+		String network;
+		String target;
+		long time;
+		String text;
+	}
+
+	//Constants
+	public static final String STATUS = "status";
+	private static final long FLUSH_INTERVAL = 1000;
+	public static final long SAVE_INTERVAL = Long.getLong("somewhereIRC.indexSaveInterval", 300000);
+	private static final String INDEX_FILE = "search.index";
+
+	//Leeway for file systems keeping modification times to the second or two
+	private static final long MODIFIED_SLACK = 2000;
+
+	//Default logger, writing under the somewhereIRC.logDir directory
+	private static MessageLogger defaultLogger;
+
+	//Logger variables
+	private final File root;
+	private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+	private final HashMap<String, MessageLog> logs = new HashMap<String, MessageLog>();
+	private final SearchIndex index;
+	private final Thread writer;
+	private volatile boolean running = true;
+
+	/**
+	** Constructor given the directory holding the logs of every network.
+	** @param root The log directory
+	*/
+	public MessageLogger(File root) {
+		this(root, new SearchIndex());
+	}
+
+	/**
+	** Constructor given the directory holding the logs and the index to keep up to date.
+	** @param root The log directory
+	** @param index The search index, or null to not index the messages
+	*/
+	public MessageLogger(File root, SearchIndex index) {
+		this.root = root;
+		this.index = index;
+		if (index != null) index.setLogger(this);
+		writer = new Thread(this, "SomewhereIRC log writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	** Returns the default logger, or null if logging is turned off (-DsomewhereIRC.log=false).
+	** @return the default logger
+	*/
+	public static synchronized MessageLogger getDefault() {
+		if (defaultLogger == null && !"false".equals(System.getProperty("somewhereIRC.log"))) {
+			String dir = System.getProperty("somewhereIRC.logDir",
+				System.getProperty("user.home") + File.separator + ".somewhereIRC" + File.separator + "logs");
+			SearchIndex index = "false".equals(System.getProperty("somewhereIRC.search")) ? null : new SearchIndex();
+			defaultLogger = new MessageLogger(new File(dir), index);
+
+			//Write what is queued and save the index on the way out
+			Runtime.getRuntime().addShutdownHook(
+				new Thread("SomewhereIRC log shutdown") {
+					public void run() {
+						defaultLogger.shutdown();
+					}
+				}
+			);
+		}
+		return defaultLogger;
+	}
+
+	/**
+	** Queues a message to be logged. Never blocks.
+	** @param network The network the message came from
+	** @param target The channel or nick the message belongs to, or null for the status window
+	** @param time The time of the message, in milliseconds
+	** @param text The raw message
+	*/
+	public void log(String network, String target, long time, String text) {
+		Entry entry = new Entry();
+		entry.network = network;
+		entry.target = target == null ? STATUS : target;
+		entry.time = time;
+		entry.text = text;
+		queue.offer(entry);
+		LockSupport.unpark(writer);
+	}
+
+	/**
+	** Returns the log of a channel, opening it if needed. Safe to call from any thread.
+	** @param network The network
+	** @param target The channel or nick, or null for the status window
+	** @return the log
+	*/
+	public synchronized MessageLog getLog(String network, String target) throws IOException {
+		String key = fileName(network) + File.separator + fileName(target == null ? STATUS : target);
+		MessageLog log = logs.get(key);
+		if (log == null) {
+			log = new MessageLog(new File(root, key));
+			logs.put(key, log);
+		}
+		return log;
+	}
+
+	/**
+	** Returns the search index over the logged messages.
+	** @return the index, or null if messages are not indexed
+	*/
+	public SearchIndex getIndex() {
+		return index;
+	}
+
+	/**
+	** Returns the directory holding the logs of every network.
+	** @return the log directory
+	*/
+	public File getRoot() {
+		return root;
+	}
+
+	/**
+	** Turns a network or channel name into a safe file name.
+	*/
+	static String fileName(String name) {
+		StringBuilder file = new StringBuilder(name.length());
+		for (int i = 0; i < name.length(); i++) {
+			char c = Character.toLowerCase(name.charAt(i));
+			if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '.' || c == '-' || c == '#') file.append(c);
+			else file.append('_');
+		}
+		if (file.length() == 0 || file.charAt(0) == '.') file.insert(0, '_');
+		return file.toString();
+	}
+
+	/**
+	** Stops the writer once everything queued is written.
+	*/
+	public void shutdown() {
+		running = false;
+		LockSupport.unpark(writer);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {}
+	}
+
+	/**
+	** Loads the saved index, then indexes the logs past where it left them. Runs on the writer thread before
+	** anything new is appended, so each record is indexed exactly once; messages logged meanwhile simply wait in the queue.
+	** A log indexed before and not modified since the index was saved is not even opened.
+	*/
+	private void indexExisting() {
+		long saved = index.load(new File(root, INDEX_FILE));
+		File[] networks = root.listFiles();
+		if (networks == null) return;
+		for (File network : networks) {
+			File[] targets = network.listFiles();
+			if (targets == null) continue;
+			for (File target : targets) {
+				if (!target.isDirectory()) continue;
+				String channel = SearchIndex.channelKey(network.getName(), target.getName());
+				long offset = index.getIndexedEnd(channel);
+				if (offset >= 0 && lastModified(target) < saved - MODIFIED_SLACK) continue;
+				try {
+					MessageLog log = getLog(network.getName(), target.getName());
+					List<MessageLog.Record> records;
+					while (!(records = log.read(Math.max(offset, 0), 1024)).isEmpty()) {
+						for (MessageLog.Record record : records) index.add(channel, log, record.offset, record.next, record.time, record.text);
+						offset = records.get(records.size() - 1).next;
+					}
+				} catch (IOException e) {
+					System.out.println("\tERROR: Could not index log " + target + ": " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	** Returns when any file of a log was last modified.
+	*/
+	private static long lastModified(File dir) {
+		long modified = dir.lastModified();
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) modified = Math.max(modified, file.lastModified());
+		}
+		return modified;
+	}
+
+	/**
+	** Saves the index. Only called right after the logs written to are flushed, so any log appended to
+	** later is modified after the save.
+	*/
+	private void saveIndex() {
+		try {
+			index.save(new File(root, INDEX_FILE));
+		} catch (IOException e) {
+			System.out.println("\tERROR: Could not save the search index: " + e.getMessage());
+		}
+	}
+
+	/**
+	** Writer loop, appending whatever is queued and flushing what was written about once a second.
+	*/
+	public void run() {
+		if (index != null) indexExisting();
+		LinkedHashSet<MessageLog> written = new LinkedHashSet<MessageLog>();
+		long lastFlush = System.currentTimeMillis();
+		long lastSave = lastFlush;
+		while (true) {
+			Entry entry;
+			while ((entry = queue.poll()) != null) {
+				try {
+					MessageLog log = getLog(entry.network, entry.target);
+					long offset = log.append(entry.time, entry.text);
+					if (index != null) index.add(SearchIndex.channelKey(entry.network, entry.target), log, offset, log.getEndOffset(), entry.time, entry.text);
+					if (!written.contains(log)) written.add(log);
+				} catch (IOException e) {
+					System.out.println("\tERROR: Could not log message for " + entry.target + ": " + e.getMessage());
+				}
+			}
+			boolean stopping = !running && queue.isEmpty();
+			if (stopping || System.currentTimeMillis() - lastFlush >= FLUSH_INTERVAL) {
+				for (MessageLog log : written) {
+					try {
+						log.flush();
+					} catch (IOException e) {
+						System.out.println("\tERROR: Could not flush log: " + e.getMessage());
+					}
+				}
+				written.clear();
+				lastFlush = System.currentTimeMillis();
+				if (index != null && index.isChanged() && (stopping || lastFlush - lastSave >= SAVE_INTERVAL)) {
+					saveIndex();
+					lastSave = lastFlush;
+				}
+			}
+			if (stopping) break;
+
+			//Sleeps until something is logged, or the logs written to are due a flush, or the index a save
+			if (!queue.isEmpty()) continue;
+			long due = Long.MAX_VALUE;
+			if (!written.isEmpty()) due = lastFlush + FLUSH_INTERVAL;
+			else if (index != null && index.isChanged()) due = lastSave + SAVE_INTERVAL;
+			if (due == Long.MAX_VALUE) LockSupport.park(this);
+			else {
+				long wait = due - System.currentTimeMillis();
+				if (wait > 0) LockSupport.parkNanos(this, wait * 1000000L);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,471 @@
+package somewhereIRC;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+** Metrics class of the SomewhereIRC client.
+** The counters and timings of one connection, or of all of them for the global instance.
+** Counters are striped (LongAdder) and added to both the connection and the global instance;
+** histograms are kept per connection and merged when read, so recording never contends.
+**
+** Registered connections are visible over JMX as somewhereIRC:type=Connection,name=..., the global
+** metrics as somewhereIRC:type=Global, and all of them are written to stdout every
+** somewhereIRC.metricsInterval milliseconds (60000 by default, 0 to turn the dump off).
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class Metrics implements MetricsMBean {
+
+	//Constants
+	public static final long DUMP_INTERVAL = Long.getLong("somewhereIRC.metricsInterval", 60000);
+	private static final long PROBE_INTERVAL = 100;
+
+	//Global metrics, the registered connections, and the event dispatch thread lag they share
+	private static final Metrics global = new Metrics("global");
+	private static final CopyOnWriteArrayList<Metrics> connections = new CopyOnWriteArrayList<Metrics>();
+	private static final Histogram edtLag = new Histogram();
+	private static volatile boolean probeEdt = false;
+	private static Thread monitor;
+
+	//Counters
+	private final String name;
+	private final LongAdder linesIn = new LongAdder();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder fallbackLines = new LongAdder();
+	private final LongAdder droppedLines = new LongAdder();
+	private final LongAdder linesOut = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+	private final LongAdder reconnects = new LongAdder();
+	private final LongAdder tlsHandshakes = new LongAdder();
+	private final LongAdder tlsResumptions = new LongAdder();
+	private final LongAdder dccTransfers = new LongAdder();
+	private final LongAdder dccFailures = new LongAdder();
+	private final LongAdder dccBytes = new LongAdder();
+
+	//Timings, in nanoseconds
+	private final Histogram parseTime = new Histogram();
+	private final Histogram dispatchTime = new Histogram();
+	private final Histogram pingRoundTrip = new Histogram();
+	private final Histogram tlsHandshakeTime = new Histogram();
+	private volatile long lastPingRoundTrip = 0;
+
+	//Gauges
+	private volatile int outboundQueueDepth = 0;
+	private volatile int dccActive = 0;
+	private final CopyOnWriteArrayList<LongSupplier> scrollbacks = new CopyOnWriteArrayList<LongSupplier>();
+	private ObjectName objectName;
+
+	/**
+	** Constructor given the name of the connection.
+	** @param name The name the metrics are shown under
+	*/
+	public Metrics(String name) {
+		this.name = name;
+	}
+
+	/**
+	** Returns the metrics of every connection together.
+	** @return the global metrics
+	*/
+	public static Metrics getGlobal() {
+		return global;
+	}
+
+	/**
+	** Starts measuring how long tasks wait in the event dispatch thread queue. Called once there is a GUI.
+	*/
+	public static void startEdtProbe() {
+		probeEdt = true;
+		startMonitor();
+
+		//Wake the monitor if it was sleeping until the next dump
+		LockSupport.unpark(monitor);
+	}
+
+	/**
+	** Starts the thread probing the event dispatch thread and writing the dump, and registers the global MBean.
+	** The thread only wakes every PROBE_INTERVAL once the probe is started; until then, only for the dump.
+	*/
+	private static synchronized void startMonitor() {
+		if (monitor != null) return;
+		global.registerMBean("somewhereIRC:type=Global");
+		monitor = new Thread("SomewhereIRC metrics") {
+			public void run() {
+				long nextDump = System.currentTimeMillis() + DUMP_INTERVAL;
+				final AtomicBoolean probing = new AtomicBoolean(false);
+				while (true) {
+					//Sleep until the next probe, or else the next dump
+					if (probeEdt) LockSupport.parkNanos(this, PROBE_INTERVAL * 1000000L);
+					else if (DUMP_INTERVAL > 0) {
+						long wait = nextDump - System.currentTimeMillis();
+						if (wait > 0) LockSupport.parkNanos(this, wait * 1000000L);
+					}
+					else LockSupport.park(this);
+					if (Thread.interrupted()) return;
+
+					//Post an empty task to the event dispatch thread and time how long it takes to run
+					if (probeEdt && probing.compareAndSet(false, true)) {
+						final long posted = System.nanoTime();
+						javax.swing.SwingUtilities.invokeLater(
+							new Runnable() {
+								public void run() {
+									edtLag.record(System.nanoTime() - posted);
+									probing.set(false);
+								}
+							}
+						);
+					}
+
+					//Write the dump
+					if (DUMP_INTERVAL > 0 && System.currentTimeMillis() >= nextDump) {
+						nextDump += DUMP_INTERVAL;
+						System.out.println("\tMETRICS: " + global.getSummary());
+						for (Metrics metrics : connections) System.out.println("\tMETRICS: " + metrics.getSummary());
+					}
+				}
+			}
+		};
+		monitor.setDaemon(true);
+		monitor.start();
+	}
+
+	/**
+	** Registers this connection's metrics with JMX and the periodic dump.
+	** @param id The ID of the connection, to tell connections to the same server apart
+	*/
+	public void register(int id) {
+		startMonitor();
+		connections.add(this);
+		registerMBean("somewhereIRC:type=Connection,name=" + ObjectName.quote(name + "-" + id));
+	}
+
+	/**
+	** Unregisters this connection's metrics.
+	*/
+	public void unregister() {
+		connections.remove(this);
+		if (objectName == null) return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (JMException e) {}
+		objectName = null;
+	}
+
+	/**
+	** Registers this instance with the platform MBean server.
+	*/
+	private void registerMBean(String name) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			objectName = new ObjectName(name);
+			if (!server.isRegistered(objectName)) server.registerMBean(this, objectName);
+		} catch (JMException e) {
+			System.out.println("\tERROR: Could not register metrics " + name + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	** Counts a line read from the server.
+	** @param bytes The size of the line, with its line terminator
+	*/
+	public void recordLineIn(int bytes) {
+		linesIn.increment();
+		bytesIn.add(bytes);
+		global.linesIn.increment();
+		global.bytesIn.add(bytes);
+	}
+
+	/**
+	** Counts the lines read from the server that were not valid UTF-8, or were dropped for their length.
+	** @param fallback The number of lines decoded as CP1252
+	** @param dropped The number of lines dropped
+	*/
+	public void recordFraming(long fallback, long dropped) {
+		if (fallback > 0) {
+			fallbackLines.add(fallback);
+			global.fallbackLines.add(fallback);
+		}
+		if (dropped > 0) {
+			droppedLines.add(dropped);
+			global.droppedLines.add(dropped);
+		}
+	}
+
+	/**
+	** Counts a line queued for the server.
+	*/
+	public void recordLineOut() {
+		linesOut.increment();
+		global.linesOut.increment();
+	}
+
+	/**
+	** Counts bytes written to the server.
+	** @param bytes The number of bytes
+	*/
+	public void recordBytesOut(int bytes) {
+		bytesOut.add(bytes);
+		global.bytesOut.add(bytes);
+	}
+
+	/**
+	** Counts a reconnection attempt.
+	*/
+	public void recordReconnect() {
+		reconnects.increment();
+		global.reconnects.increment();
+	}
+
+	/**
+	** Records the time taken to parse and format a line.
+	** @param nanos The time, in nanoseconds
+	*/
+	public void recordParse(long nanos) {
+		parseTime.record(nanos);
+	}
+
+	/**
+	** Records the time taken by the handlers of a line.
+	** @param nanos The time, in nanoseconds
+	*/
+	public void recordDispatch(long nanos) {
+		dispatchTime.record(nanos);
+	}
+
+	/**
+	** Records the time between a PING we sent and its PONG.
+	** @param nanos The time, in nanoseconds
+	*/
+	public void recordPing(long nanos) {
+		pingRoundTrip.record(nanos);
+		lastPingRoundTrip = nanos;
+	}
+
+	/**
+	** Records a TLS handshake, from the connected socket to the session being ready.
+	** @param nanos The time, in nanoseconds
+	** @param resumed Whether an earlier session was resumed
+	*/
+	public void recordTlsHandshake(long nanos, boolean resumed) {
+		tlsHandshakeTime.record(nanos);
+		tlsHandshakes.increment();
+		global.tlsHandshakes.increment();
+		if (resumed) {
+			tlsResumptions.increment();
+			global.tlsResumptions.increment();
+		}
+	}
+
+	/**
+	** Counts a DCC transfer that ended.
+	** @param bytes The bytes it moved, not counting any part skipped by resuming
+	** @param done Whether the whole file was moved
+	*/
+	public void recordDccTransfer(long bytes, boolean done) {
+		dccBytes.add(bytes);
+		global.dccBytes.add(bytes);
+		if (done) {
+			dccTransfers.increment();
+			global.dccTransfers.increment();
+		}
+		else {
+			dccFailures.increment();
+			global.dccFailures.increment();
+		}
+	}
+
+	/**
+	** Sets the number of DCC transfers connecting or running.
+	** @param active The number of transfers
+	*/
+	public void setDccActive(int active) {
+		dccActive = active;
+	}
+
+	/**
+	** Sets the number of lines waiting in the outbound queue.
+	** @param depth The number of lines
+	*/
+	public void setOutboundQueueDepth(int depth) {
+		outboundQueueDepth = depth;
+	}
+
+	/**
+	** Adds a scrollback to the scrollback memory gauge.
+	** @param estimate Returns the estimated heap held by the scrollback, in bytes, from any thread
+	*/
+	public void addScrollback(LongSupplier estimate) {
+		scrollbacks.add(estimate);
+	}
+
+	/**
+	** Removes a scrollback from the scrollback memory gauge, once its window is closed.
+	** @param estimate The estimate given to addScrollback()
+	*/
+	public void removeScrollback(LongSupplier estimate) {
+		scrollbacks.remove(estimate);
+	}
+
+	/**
+	** Merges the histograms chosen by which (0 parse, 1 dispatch, 2 ping, 3 TLS handshake) of this connection, or of every connection.
+	*/
+	private long[] merged(int which) {
+		long[] counts = Histogram.newCounts();
+		if (this == global) {
+			for (Metrics metrics : connections) metrics.histogram(which).addTo(counts);
+		}
+		else histogram(which).addTo(counts);
+		return counts;
+	}
+
+	/**
+	** Returns one of the histograms.
+	*/
+	private Histogram histogram(int which) {
+		switch (which) {
+			case 0: return parseTime;
+			case 1: return dispatchTime;
+			case 2: return pingRoundTrip;
+			default: return tlsHandshakeTime;
+		}
+	}
+
+	public long getLinesIn() {
+		return linesIn.sum();
+	}
+
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	public long getFallbackLines() {
+		return fallbackLines.sum();
+	}
+
+	public long getDroppedLines() {
+		return droppedLines.sum();
+	}
+
+	public long getLinesOut() {
+		return linesOut.sum();
+	}
+
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	public long getReconnects() {
+		return reconnects.sum();
+	}
+
+	public long getTlsHandshakes() {
+		return tlsHandshakes.sum();
+	}
+
+	public long getTlsResumptions() {
+		return tlsResumptions.sum();
+	}
+
+	public long getDccTransfers() {
+		return dccTransfers.sum();
+	}
+
+	public long getDccFailures() {
+		return dccFailures.sum();
+	}
+
+	public long getDccBytes() {
+		return dccBytes.sum();
+	}
+
+	public int getDccActive() {
+		if (this != global) return dccActive;
+		int active = 0;
+		for (Metrics metrics : connections) active += metrics.dccActive;
+		return active;
+	}
+
+	public int getOutboundQueueDepth() {
+		if (this != global) return outboundQueueDepth;
+		int depth = 0;
+		for (Metrics metrics : connections) depth += metrics.outboundQueueDepth;
+		return depth;
+	}
+
+	public long getParseTimeMeanNanos() {
+		return Histogram.mean(merged(0));
+	}
+
+	public long getParseTimeP99Nanos() {
+		return Histogram.percentile(merged(0), 99);
+	}
+
+	public long getDispatchTimeMeanNanos() {
+		return Histogram.mean(merged(1));
+	}
+
+	public long getDispatchTimeP99Nanos() {
+		return Histogram.percentile(merged(1), 99);
+	}
+
+	public long getPingRoundTripMillis() {
+		if (this != global) return lastPingRoundTrip / 1000000;
+		return Histogram.percentile(merged(2), 50) / 1000000;
+	}
+
+	public long getPingRoundTripP99Millis() {
+		return Histogram.percentile(merged(2), 99) / 1000000;
+	}
+
+	public long getTlsHandshakeP50Millis() {
+		return Histogram.percentile(merged(3), 50) / 1000000;
+	}
+
+	public long getTlsHandshakeP99Millis() {
+		return Histogram.percentile(merged(3), 99) / 1000000;
+	}
+
+	public long getEdtLagP50Micros() {
+		return edtLag.getPercentile(50) / 1000;
+	}
+
+	public long getEdtLagP99Micros() {
+		return edtLag.getPercentile(99) / 1000;
+	}
+
+	public long getScrollbackBytes() {
+		long bytes = 0;
+		if (this == global) {
+			for (Metrics metrics : connections) bytes += metrics.getScrollbackBytes();
+		}
+		else {
+			for (LongSupplier estimate : scrollbacks) bytes += estimate.getAsLong();
+		}
+		return bytes;
+	}
+
+	public String getSummary() {
+		return name
+			+ ": in " + getLinesIn() + " lines/" + getBytesIn() + " B (" + getFallbackLines() + " not UTF-8, " + getDroppedLines() + " dropped)"
+			+ ", out " + getLinesOut() + " lines/" + getBytesOut() + " B"
+			+ ", queued " + getOutboundQueueDepth()
+			+ ", reconnects " + getReconnects()
+			+ ", parse " + getParseTimeMeanNanos() + "/" + getParseTimeP99Nanos() + " ns"
+			+ ", dispatch " + getDispatchTimeMeanNanos() + "/" + getDispatchTimeP99Nanos() + " ns"
+			+ ", ping " + getPingRoundTripMillis() + "/" + getPingRoundTripP99Millis() + " ms"
+			+ ", tls " + getTlsHandshakes() + " (" + getTlsResumptions() + " resumed) " + getTlsHandshakeP50Millis() + "/" + getTlsHandshakeP99Millis() + " ms"
+			+ ", dcc " + getDccActive() + " active, " + getDccTransfers() + " done, " + getDccFailures() + " failed, " + (getDccBytes() >> 20) + " MB"
+			+ ", edt lag " + getEdtLagP50Micros() + "/" + getEdtLagP99Micros() + " us"
+			+ ", scrollback " + (getScrollbackBytes() >> 10) + " KB";
+	}
+
+}
@@ -0,0 +1,49 @@
+package somewhereIRC;
+
+/**
+** Management interface of the metrics of the SomewhereIRC client, as seen over JMX.
+** Every time carries its unit in its name.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public interface MetricsMBean {
+
+	long getLinesIn();
+	long getBytesIn();
+	long getFallbackLines();
+	long getDroppedLines();
+	long getLinesOut();
+	long getBytesOut();
+	long getReconnects();
+	long getTlsHandshakes();
+	long getTlsResumptions();
+	long getDccTransfers();
+	long getDccFailures();
+	long getDccBytes();
+	int getDccActive();
+	int getOutboundQueueDepth();
+
+	long getParseTimeMeanNanos();
+	long getParseTimeP99Nanos();
+	long getDispatchTimeMeanNanos();
+	long getDispatchTimeP99Nanos();
+
+	long getPingRoundTripMillis();
+	long getPingRoundTripP99Millis();
+
+	long getTlsHandshakeP50Millis();
+	long getTlsHandshakeP99Millis();
+
+	long getEdtLagP50Micros();
+	long getEdtLagP99Micros();
+
+	long getScrollbackBytes();
+
+	/**
+	** Returns every metric on one line, as written to the periodic dump.
+	** @return the summary
+	*/
+	String getSummary();
+
+}
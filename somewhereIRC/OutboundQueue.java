@@ -0,0 +1,160 @@
+package somewhereIRC;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**
+** Outbound queue class of the SomewhereIRC client.
+** Holds the lines waiting to be sent on a connection and releases them through a token bucket,
+** so bursts (pastes, auto-joins) go out as fast as the server allows without an Excess Flood.
+** PONG and QUIT lines jump the queue and are never held back by the bucket.
+** Lines are encoded in UTF-8 straight into buffers of 512 bytes, which go back to a pool once written.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class OutboundQueue {
+
+	//Constants, the defaults match the common ircd allowance of a small burst then one line every two seconds
+	public static final int DEFAULT_BURST = Integer.getInteger("somewhereIRC.floodBurst", 5);
+	public static final long DEFAULT_INTERVAL = Long.getLong("somewhereIRC.floodInterval", 2000L);
+	public static final int MAX_LINE_LENGTH = 512;
+
+	//Queue variables, each line in a buffer ready to be read
+	private final ArrayDeque<ByteBuffer> priority = new ArrayDeque<ByteBuffer>();
+	private final ArrayDeque<ByteBuffer> normal = new ArrayDeque<ByteBuffer>();
+
+	//Encoding variables, with the buffers of the lines already written kept for the next ones
+	private static final int MAX_POOLED = 64;
+	private final ArrayDeque<ByteBuffer> pool = new ArrayDeque<ByteBuffer>();
+	private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+		.onMalformedInput(CodingErrorAction.REPLACE)
+		.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	//Token bucket variables
+	private final int burst;
+	private final long interval;
+	private double tokens;
+	private long lastRefill;
+
+	/**
+	** Constructor given the flood control settings.
+	** @param burst The number of lines that may be sent at once
+	** @param interval The milliseconds it takes to earn another line
+	*/
+	public OutboundQueue(int burst, long interval) {
+		this.burst = Math.max(1, burst);
+		this.interval = Math.max(0, interval);
+		reset();
+	}
+
+	/**
+	** Constructor using the configured flood control settings
+	** (the somewhereIRC.floodBurst and somewhereIRC.floodInterval properties).
+	*/
+	public OutboundQueue() {
+		this(DEFAULT_BURST, DEFAULT_INTERVAL);
+	}
+
+	/**
+	** Drops every waiting line and fills the bucket, for a new connection.
+	*/
+	public void reset() {
+		ByteBuffer line;
+		while ((line = priority.poll()) != null) release(line);
+		while ((line = normal.poll()) != null) release(line);
+		tokens = burst;
+		lastRefill = System.currentTimeMillis();
+	}
+
+	/**
+	** Queues a line to be sent. Lines are cut to the 512 bytes the protocol allows, at a character boundary.
+	** @param line The raw line, without a line terminator
+	*/
+	public void offer(String line) {
+		//The encoder stops at the last whole character that fits, leaving room for CRLF
+		ByteBuffer bytes = pool.poll();
+		if (bytes == null) bytes = ByteBuffer.allocate(MAX_LINE_LENGTH);
+		bytes.clear().limit(MAX_LINE_LENGTH - 2);
+		encoder.reset();
+		encoder.encode(CharBuffer.wrap(line), bytes, true);
+		encoder.flush(bytes);
+		bytes.limit(MAX_LINE_LENGTH);
+		bytes.put((byte) '\r').put((byte) '\n').flip();
+		int space = line.indexOf(' ');
+		Command command = Command.lookup(line, 0, space < 0 ? line.length() : space);
+		if (command == Command.PONG || command == Command.QUIT) priority.offer(bytes);
+		else normal.offer(bytes);
+	}
+
+	/**
+	** Puts the buffer of a line written back in the pool.
+	*/
+	private void release(ByteBuffer line) {
+		if (pool.size() < MAX_POOLED) pool.offer(line);
+	}
+
+	/**
+	** Returns the number of lines waiting.
+	** @return the number of lines waiting
+	*/
+	public int size() {
+		return priority.size() + normal.size();
+	}
+
+	/**
+	** Adds the tokens earned since the last refill.
+	*/
+	private void refill(long now) {
+		if (interval == 0) tokens = burst;
+		else if (now > lastRefill) tokens = Math.min(burst, tokens + (double) (now - lastRefill) / interval);
+		lastRefill = now;
+	}
+
+	/**
+	** Moves as many whole lines as the bucket allows and the buffer holds into the buffer,
+	** so they can go out in a single write.
+	** @param dst The buffer, in write mode
+	** @return the number of lines moved
+	*/
+	public int fill(ByteBuffer dst) {
+		refill(System.currentTimeMillis());
+		int lines = 0;
+		ByteBuffer line;
+		
+		//Priority lines go first, whatever the bucket holds
+		while ((line = priority.peek()) != null && line.remaining() <= dst.remaining()) {
+			dst.put(priority.poll());
+			release(line);
+			tokens = Math.max(0, tokens - 1);
+			lines++;
+		}
+		if (!priority.isEmpty()) return lines;
+		
+		//Then as many normal lines as there are tokens for
+		while (tokens >= 1 && (line = normal.peek()) != null && line.remaining() <= dst.remaining()) {
+			dst.put(normal.poll());
+			release(line);
+			tokens -= 1;
+			lines++;
+		}
+		return lines;
+	}
+
+	/**
+	** Returns how long until the bucket allows the next waiting line.
+	** @return the milliseconds to wait, 0 if a line may go now, or -1 if nothing is waiting
+	*/
+	public long getDelay() {
+		if (!priority.isEmpty()) return 0;
+		if (normal.isEmpty()) return -1;
+		refill(System.currentTimeMillis());
+		if (tokens >= 1) return 0;
+		return (long) Math.ceil((1 - tokens) * interval);
+	}
+
+}
@@ -3,6 +3,7 @@ package somewhereIRC;
 /**
 ** Parser class of the SomewhereIRC client.
 ** Used to convert raw text into a corresponding message type, or vice versa.
+** Each raw line is parsed once into a reused IrcMessage, however many questions are asked about it.
 **
 ** @author Philip Ng
 ** @version 1.0
@@ -11,6 +12,13 @@ public class RawParser {
 
 	String myRawWhois;
 	
+	//Parse cache, holding the last line parsed
+	private IrcMessage message = new IrcMessage();
+	private String parsedLine;
+	
+	//Canonical instances of the targets, so the same channel or nick is not copied out of every line
+	private SymbolTable targets = new SymbolTable(false);
+	
 	/**
 	** Simple constructor.
 	*/
@@ -18,13 +26,29 @@ public class RawParser {
 		myRawWhois = new String("");
 	}
 	
+	/**
+	** Given a raw string adhering to IRC protocol, return its parsed message.
+	** The message is reused, so it is only valid until the next line is parsed.
+	** @param raw The raw string
+	** @return the parsed message
+	*/
+	public IrcMessage parse(String raw) {
+		if (raw != parsedLine) {
+			message.parse(raw);
+			parsedLine = raw;
+		}
+		return message;
+	}
+	
 	/**
 	** Given a full raw whois, return the name.
 	** @param whois The whois string
 	** @return the corresponding nickname
 	*/
 	public String getNameFromWhois(String whois) {
-		return whois.split("!")[0].substring(1);
+		int start = whois.startsWith(":") ? 1 : 0;
+		int end = whois.indexOf('!');
+		return whois.substring(start, end < 0 ? whois.length() : end);
 	}
 
 	/**
@@ -33,55 +57,101 @@ public class RawParser {
 	** @return the plain text
 	*/
 	public String getMessageForRawInput(String raw) {
-		String[] tokens;
-				
-		//Tokenize the input for easy processing
-		tokens = raw.split(" ");
-				
+		IrcMessage msg = parse(raw);
+		
 		//If it is a PRIVMSG
-		if (tokens[1].compareTo("PRIVMSG") == 0) {
+		if (msg.isCommand("PRIVMSG")) {
+			StringBuilder output = new StringBuilder(raw.length());
 			//Start with the sender's name
-			String output = getNameFromWhois(tokens[0]);
+			if (msg.hasPrefix()) output.append(msg.getNick());
 			//Add on the channel (for now)
-			output = output.concat(" (").concat(tokens[2]).concat(")");
+			output.append(" (");
+			msg.appendParam(output, 0).append(")");
 			//Add the rest
-			if (3 < tokens.length) output = output.concat(" ").concat(tokens[3].substring(1));
-			for (int i = 4; i < tokens.length; i++) {
-				output = output.concat(" ").concat(tokens[i]);
-			}
-			return output;
+			if (1 < msg.getParamCount()) msg.appendParam(output.append(" "), 1);
+			return output.toString();
 		}
 		
-		//Otherwise, it is some other raw message, just return it for now
+		//Otherwise, it is some other raw message, just return it for now (without its tags)
+		else if (msg.hasTags()) return raw.substring(raw.indexOf(' ') + 1);
 		else return raw;
 	}
 	
 	/**
-	** Given a raw string adhering to IRC protocol, return the ID of any corresponding client action.
+	** Returns whether a name is a channel name.
+	** @param name The name
+	** @return true if it starts with one of the channel prefixes
+	*/
+	public static boolean isChannel(String name) {
+		return name.length() > 0 && "#&!+".indexOf(name.charAt(0)) >= 0;
+	}
+	
+	/**
+	** Returns whether a parameter of a message is a channel name, without copying it.
+	*/
+	private static boolean isChannel(IrcMessage msg, int index) {
+		int start = msg.getParamStart(index);
+		return start < msg.getParamEnd(index) && "#&!+".indexOf(msg.getLine().charAt(start)) >= 0;
+	}
+	
+	/**
+	** Returns the table of canonical targets, for sweeping.
+	** @return the target table
+	*/
+	public SymbolTable getTargets() {
+		return targets;
+	}
+	
+	/**
+	** Given a raw string adhering to IRC protocol, return the channel or nick it belongs to.
 	** @param raw The raw string
-	** @return the string identifier of the action
+	** @return the canonical channel or nick, or null if it belongs to the status window
 	*/
-	public String getActionForRawInput(String raw) {
-		String[] tokens;
-		
-		//If it is a ping, we need to send a pong
-		if (raw.startsWith("PING ")) return new String("PONG");
-		
-		//Otherwise, do a parsing of the raw message
-		else {
-			//Tokenize the raw message for easy parsing
-			tokens = raw.split(" ");
-			
-			//If it is raw 001, save the user ID in case we need it
-			if (tokens[1].compareTo("001") == 0) {
-				myRawWhois = tokens[tokens.length-1];
-			}
-			
-			//Otherwise, there is no corresponding action needed
-			else return new String("None");
+	public String getTargetForRawInput(String raw) {
+		IrcMessage msg = parse(raw);
+		switch (msg.getCommandType()) {
+			case PRIVMSG:
+			case NOTICE:
+			case TAGMSG:
+				if (msg.getParamCount() == 0) return null;
+				if (isChannel(msg, 0) || !msg.hasPrefix()) return targets.canonical(raw, msg.getParamStart(0), msg.getParamEnd(0));
+				//A private message belongs to the user who sent it, server notices to the status window
+				return msg.getUser() != null ? targets.canonical(raw, msg.getNickStart(), msg.getNickEnd()) : null;
+			case JOIN:
+			case PART:
+			case KICK:
+			case TOPIC:
+			case MODE:
+				if (msg.getParamCount() == 0 || !isChannel(msg, 0)) return null;
+				return targets.canonical(raw, msg.getParamStart(0), msg.getParamEnd(0));
+			default:
+				return null;
 		}
-		
-		return new String("None"); //Should not hit this
+	}
+	
+	/**
+	** Given a raw string adhering to IRC protocol, return the command any client action is keyed on.
+	** @param raw The raw string
+	** @return the command, used to dispatch the handlers of the line
+	*/
+	public Command getActionForRawInput(String raw) {
+		return parse(raw).getCommandType();
+	}
+	
+	/**
+	** Registers the handlers the parser itself needs.
+	** @param dispatcher The dispatcher for server input
+	*/
+	public void registerHandlers(Dispatcher dispatcher) {
+		//If it is raw 001, save the user ID in case we need it
+		dispatcher.register(1,
+			new Dispatcher.Handler() {
+				public void handle(IrcMessage msg) {
+					String raw = msg.getLine();
+					myRawWhois = raw.substring(raw.lastIndexOf(' ') + 1);
+				}
+			}
+		);
 	}
 	
 	/**
@@ -90,18 +160,10 @@ public class RawParser {
 	** @return the raw string
 	*/
 	public String getRawOutputForUserInput(String message) {
-		String[] tokens;
-		
-		//Tokenize the output for easy processing
-		tokens = message.split(" ");
-	
 		//If it is a quit, we need the QUIT
-		if (message.toLowerCase().startsWith("/quit")) {
-			String output = new String("QUIT");
-			for (int i = 1; i < tokens.length; i++) {
-				output = output.concat(" ").concat(tokens[i]);
-			}
-			return output;
+		if (message.regionMatches(true, 0, "/quit", 0, 5)) {
+			int space = message.indexOf(' ');
+			return space < 0 ? "QUIT" : "QUIT".concat(message.substring(space));
 		}
 		
 		//Otherwise, just return it without processing for now
@@ -109,26 +171,39 @@ public class RawParser {
 	}
 	
 	/**
-	** Given a line of plain text, return the ID of any corresponding client action.
+	** Given a line of plain text typed in the window of a channel or nick, return the raw string adhering to IRC protocol.
+	** Plain text is sent to the target as a PRIVMSG, commands are handled as in the status window.
+	** @param message The plain text message
+	** @param target The channel or nick of the window, or null for the status window
+	** @return the raw string
+	*/
+	public String getRawOutputForUserInput(String message, String target) {
+		if (target == null || message.startsWith("/")) return getRawOutputForUserInput(message);
+		return "PRIVMSG " + target + " :" + message;
+	}
+	
+	/**
+	** Given a line of plain text, return the command of any corresponding client action.
 	** @param message The plain text message
-	** @return the string identifier of the action
+	** @return the command of the action
 	*/
-	public String getActionForUserInput(String message) {
+	public Command getActionForUserInput(String message) {
 		
 		//If it is a quit, we should close the associated windows
-		if (message.toLowerCase().startsWith("/quit")) return new String("QUIT");
+		if (message.regionMatches(true, 0, "/quit", 0, 5)) return Command.QUIT;
 		
 		//Otherwise, there is no corresponding action needed
-		else return new String("None");
+		else return Command.UNKNOWN;
 	}
 	
 	/**
 	** Given a ping message, return its pong counterpart.
-	** @param ping The ping message
+	** Built from the parsed message, so a PING with tags or a prefix gets its token back all the same.
+	** @param ping The parsed ping message
 	*/
-	public String getPongForPing(String ping) {
-		String pong = "PONG ";
-		return pong.concat( ping.substring(5) );
+	public String getPongForPing(IrcMessage ping) {
+		String token = ping.getLastParam();
+		return "PONG :" + (token == null ? "" : token);
 	}
 
 }
\ No newline at end of file
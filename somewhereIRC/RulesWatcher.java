@@ -0,0 +1,102 @@
+package somewhereIRC;
+
+import java.io.File;
+
+import java.io.IOException;
+
+/**
+** Rules watcher class of the SomewhereIRC client.
+** Keeps the HighlightRules of a file current: a thread of its own checks the file about once a second and,
+** when it changed, compiles the new rules and swaps them in with a single volatile write. Connections read
+** the current rules on every line and never wait for a reload; a file that cannot be read keeps the rules
+** it had.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class RulesWatcher implements Runnable {
+
+	//Constants
+	private static final long CHECK_INTERVAL = 1000;
+
+	//Default watcher, over the somewhereIRC.rules file
+	private static RulesWatcher defaultWatcher;
+
+	//Watcher variables
+	private final File file;
+	private volatile HighlightRules rules = HighlightRules.NONE;
+	private long lastModified = 0, lastLength = -1;
+
+	/**
+	** Constructor given the rules file, which need not exist yet.
+	** Loads the rules before returning, then watches the file.
+	** @param file The rules file
+	*/
+	public RulesWatcher(File file) {
+		this.file = file;
+		check();
+		Thread watcher = new Thread(this, "SomewhereIRC rules watcher");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	/**
+	** Returns the default watcher, over -DsomewhereIRC.rules or ~/.somewhereIRC/rules.
+	** @return the default watcher
+	*/
+	public static synchronized RulesWatcher getDefault() {
+		if (defaultWatcher == null) {
+			String path = System.getProperty("somewhereIRC.rules",
+				System.getProperty("user.home") + File.separator + ".somewhereIRC" + File.separator + "rules");
+			defaultWatcher = new RulesWatcher(new File(path));
+		}
+		return defaultWatcher;
+	}
+
+	/**
+	** Returns the current rules. Safe to call from any thread, and never blocks.
+	** @return the rules, HighlightRules.NONE if there is no rules file
+	*/
+	public HighlightRules getRules() {
+		return rules;
+	}
+
+	/**
+	** Reloads the rules if the file changed since they were loaded.
+	*/
+	private void check() {
+		long modified = file.lastModified();
+		long length = modified == 0 ? -1 : file.length();
+		if (modified == lastModified && length == lastLength) return;
+		lastModified = modified;
+		lastLength = length;
+		if (modified == 0) {
+			rules = HighlightRules.NONE;
+			return;
+		}
+		try {
+			long start = System.nanoTime();
+			HighlightRules loaded = HighlightRules.load(file);
+			rules = loaded;
+			System.out.println("Loaded " + loaded.getHighlightCount() + " highlights and " + loaded.getIgnoreCount()
+				+ " ignores from " + file + " in " + (System.nanoTime() - start) / 1000000 + " ms.");
+		} catch (IOException e) {
+			System.out.println("\tERROR: Could not load rules from " + file + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	** Watcher loop.
+	*/
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(CHECK_INTERVAL);
+			} catch (InterruptedException e) {
+				return;
+			}
+			check();
+		}
+	}
+
+}
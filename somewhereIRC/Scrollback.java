@@ -0,0 +1,109 @@
+package somewhereIRC;
+
+/**
+** Scrollback class of the SomewhereIRC client.
+** Holds the last lines of a window in a ring buffer, dropping the oldest line once it is full,
+** so a window uses the same memory however long it has been open.
+** Not thread safe, a scrollback belongs to the event dispatch thread of its view.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class Scrollback {
+
+	//Constants
+	public static final int DEFAULT_CAPACITY = Integer.getInteger("somewhereIRC.scrollback", 10000);
+
+	//Ring buffer variables
+	private final String[] lines;
+	private int head = 0;
+	private int count = 0;
+	private long appended = 0;
+	private long chars = 0;
+
+	/**
+	** Constructor given the maximum number of lines to keep.
+	** @param capacity The maximum number of lines
+	*/
+	public Scrollback(int capacity) {
+		if (capacity < 1) throw new IllegalArgumentException("Scrollback capacity must be positive: " + capacity);
+		lines = new String[capacity];
+	}
+
+	/**
+	** Constructor using the configured capacity (the somewhereIRC.scrollback property).
+	*/
+	public Scrollback() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	** Appends a line, dropping the oldest one if the scrollback is full.
+	** @param line The line, without a line terminator
+	*/
+	public void append(String line) {
+		int slot = (head + count) % lines.length;
+		if (count == lines.length) {
+			chars -= lines[head].length();
+			head = (head + 1) % lines.length;
+		}
+		else count++;
+		lines[slot] = line;
+		chars += line.length();
+		appended++;
+	}
+
+	/**
+	** Appends lines, dropping as many of the oldest ones as needed.
+	** @param added The lines, oldest first
+	*/
+	public void appendAll(String[] added) {
+		//Lines that would be dropped right away are only counted
+		int from = Math.max(0, added.length - lines.length);
+		appended += from;
+		for (int i = from; i < added.length; i++) append(added[i]);
+	}
+
+	/**
+	** Returns a line.
+	** @param index The index of the line, 0 being the oldest line kept
+	** @return the line
+	*/
+	public String get(int index) {
+		if (index < 0 || index >= count) throw new IndexOutOfBoundsException("Line " + index + " of " + count);
+		return lines[(head + index) % lines.length];
+	}
+
+	/**
+	** Returns the number of lines kept.
+	** @return the number of lines
+	*/
+	public int size() {
+		return count;
+	}
+
+	/**
+	** Returns the maximum number of lines kept.
+	** @return the capacity
+	*/
+	public int capacity() {
+		return lines.length;
+	}
+
+	/**
+	** Returns the number of lines ever appended, including the dropped ones.
+	** @return the number of lines appended
+	*/
+	public long getAppended() {
+		return appended;
+	}
+
+	/**
+	** Returns the number of characters held by the lines kept.
+	** @return the number of characters
+	*/
+	public long getCharCount() {
+		return chars;
+	}
+
+}
@@ -0,0 +1,583 @@
+package somewhereIRC;
+
+import java.awt.*;
+import java.awt.datatransfer.Clipboard;
+import java.awt.datatransfer.StringSelection;
+import java.awt.event.*;
+import javax.swing.*;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+** Scrollback view class of the SomewhereIRC client.
+** Displays the lines of a Scrollback, one row per line, laying out and painting only the visible rows.
+** Lines appended from other threads are staged in the view's Feed and handed to the event dispatch thread
+** in batches, at most once per frame (the somewhereIRC.frameMillis property, 60 frames a second by default).
+** A Feed can be made, and appended to, before its view: the view is built on the event dispatch thread,
+** and shows whatever was staged meanwhile.
+** Lines carrying mIRC formatting codes are parsed into style runs when painted, and each run drawn with
+** one of the palette colors and one of the four fonts derived from the view's font, all made once.
+** Plain lines are drawn as they are, so they cost no more than before.
+** Text is selected by dragging, a word (a URL, say) by double-clicking it, and Ctrl+C copies the selection
+** without its formatting codes.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class ScrollbackView extends JComponent implements Scrollable {
+
+	/**
+	** The lines appended to a view from any thread, staged until its next frame. Made on any thread.
+	*/
+	public static class Feed {
+		//Holds lines, and arrays of lines appended together
+		private final ConcurrentLinkedQueue<Object> staged = new ConcurrentLinkedQueue<Object>();
+		private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+		private volatile ScrollbackView view;
+
+		/**
+		** Appends a line. May be called from any thread; the line shows up with the next frame of the view.
+		** @param line The line, without a line terminator
+		*/
+		public void append(String line) {
+			staged.offer(line);
+			scheduleFlush();
+		}
+
+		/**
+		** Appends lines all at once, such as the history replayed when joining. May be called from any thread.
+		** @param lines The lines, oldest first; the array must not be changed afterwards
+		*/
+		public void appendAll(String[] lines) {
+			staged.offer(lines);
+			scheduleFlush();
+		}
+
+		/**
+		** Returns an estimate of the heap held by the lines of the view. Safe to call from any thread.
+		** @return the estimate, in bytes, 0 until the view is built
+		*/
+		public long getMemoryEstimate() {
+			ScrollbackView shown = view;
+			return shown == null ? 0 : shown.memoryEstimate;
+		}
+
+		/**
+		** Starts the view's next frame, once there is a view.
+		*/
+		private void scheduleFlush() {
+			//The view is set before it looks at the staged lines, so one of the two always sees the other
+			ScrollbackView shown = view;
+			if (shown != null && flushScheduled.compareAndSet(false, true)) shown.flushTimer.start();
+		}
+	}
+
+	//Constants
+	public static final int FRAME_MILLIS = Integer.getInteger("somewhereIRC.frameMillis", 16);
+
+	//Model variables
+	private final Scrollback scrollback;
+	private long shownAppended = 0;
+	private int shownSize = 0;
+	private int maxWidth = 0;
+
+	//Estimated heap held by the lines: a String and its byte array per line, one byte per (Latin-1) character
+	private static final int LINE_OVERHEAD = 48;
+	private volatile long memoryEstimate = 0;
+
+	//Formatting variables: the parser reused for every formatted row, the palette colors, and the fonts
+	//derived from the view's font, indexed by bold (1) and italic (2)
+	private static final Color[] COLORS = new Color[Formatting.PALETTE.length];
+	static {
+		for (int i = 0; i < COLORS.length; i++) COLORS[i] = new Color(Formatting.PALETTE[i]);
+	}
+	private final Formatting formatting = new Formatting();
+	private Font styledFont;
+	private final Font[] styledFonts = new Font[4];
+	private final FontMetrics[] styledMetrics = new FontMetrics[4];
+
+	//Selection, from its anchor to its lead: lines counted from the first line ever appended, so the lines
+	//dropped at the top do not move it, and columns of the text without its formatting codes
+	private long anchorLine = -1, leadLine = -1;
+	private int anchorColumn = 0, leadColumn = 0;
+	
+	//Staging variables, filled from any thread and drained on the event dispatch thread
+	private final Feed feed;
+	private final Timer flushTimer;
+
+	/**
+	** Constructor using a scrollback of the configured capacity.
+	*/
+	public ScrollbackView() {
+		this(new Scrollback(), new Feed());
+	}
+
+	/**
+	** Constructor given the scrollback to display.
+	** @param scrollback The scrollback
+	*/
+	public ScrollbackView(Scrollback scrollback) {
+		this(scrollback, new Feed());
+	}
+
+	/**
+	** Constructor given the feed of lines to display, which may already hold some. On the event dispatch thread.
+	** @param feed The feed, not used by any other view
+	*/
+	public ScrollbackView(Feed feed) {
+		this(new Scrollback(), feed);
+	}
+
+	/**
+	** Constructor given the scrollback to display and the feed of lines to add to it.
+	*/
+	private ScrollbackView(Scrollback scrollback, Feed feed) {
+		this.scrollback = scrollback;
+		this.feed = feed;
+		setFont(UIManager.getFont("TextArea.font"));
+		setBackground(UIManager.getColor("TextArea.background"));
+		setForeground(UIManager.getColor("TextArea.foreground"));
+		setOpaque(true);
+		
+		//Drain the staged lines once per frame, only while there are any
+		flushTimer = new Timer(FRAME_MILLIS,
+			new ActionListener() {
+				public void actionPerformed(ActionEvent e) {
+					flushStaged();
+				}
+			}
+		);
+		flushTimer.setRepeats(false);
+		flushTimer.setCoalesce(true);
+
+		//Select with the mouse, copy with Ctrl+C
+		MouseAdapter selector = new MouseAdapter() {
+			public void mousePressed(MouseEvent e) {
+				if (!SwingUtilities.isLeftMouseButton(e)) return;
+				requestFocusInWindow();
+				if (shownSize == 0) return;
+				if (e.getClickCount() == 2) selectWord(e.getPoint());
+				else {
+					anchorLine = leadLine = lineAt(e.getY());
+					anchorColumn = leadColumn = columnAt(anchorLine, e.getX());
+				}
+				repaint();
+			}
+			public void mouseDragged(MouseEvent e) {
+				if (!SwingUtilities.isLeftMouseButton(e) || anchorLine < 0) return;
+				leadLine = lineAt(e.getY());
+				leadColumn = columnAt(leadLine, e.getX());
+				scrollRectToVisible(new Rectangle(e.getX(), e.getY(), 1, 1));
+				repaint();
+			}
+		};
+		addMouseListener(selector);
+		addMouseMotionListener(selector);
+		setAutoscrolls(true);
+		setFocusable(true);
+		getInputMap(WHEN_FOCUSED).put(KeyStroke.getKeyStroke(KeyEvent.VK_C, InputEvent.CTRL_DOWN_MASK), "copy");
+		getActionMap().put("copy",
+			new AbstractAction() {
+				public void actionPerformed(ActionEvent e) {
+					copySelection();
+				}
+			}
+		);
+
+		//Show what was staged before the view was built
+		feed.view = this;
+		if (!feed.staged.isEmpty() && feed.flushScheduled.compareAndSet(false, true)) flushTimer.start();
+	}
+
+	/**
+	** Returns the scrollback displayed.
+	** @return the scrollback
+	*/
+	public Scrollback getScrollback() {
+		return scrollback;
+	}
+
+	/**
+	** Returns the feed of the view, to append to from other threads.
+	** @return the feed
+	*/
+	public Feed getFeed() {
+		return feed;
+	}
+
+	/**
+	** Appends a line. May be called from any thread; the line shows up with the next frame.
+	** @param line The line, without a line terminator
+	*/
+	public void append(String line) {
+		feed.append(line);
+	}
+
+	/**
+	** Appends lines all at once, such as the history replayed when joining. May be called from any thread.
+	** @param lines The lines, oldest first; the array must not be changed afterwards
+	*/
+	public void appendAll(String[] lines) {
+		feed.appendAll(lines);
+	}
+
+	/**
+	** Moves every staged line into the scrollback, then updates the view once for all of them.
+	*/
+	private void flushStaged() {
+		//Clear the flag first, so a line staged while draining schedules another frame
+		feed.flushScheduled.set(false);
+		Object staging;
+		while ((staging = feed.staged.poll()) != null) {
+			if (staging instanceof String) scrollback.append((String) staging);
+			else scrollback.appendAll((String[]) staging);
+		}
+		linesAppended();
+	}
+
+	/**
+	** Returns an estimate of the heap held by the lines of this view. Safe to call from any thread.
+	** @return the estimate, in bytes
+	*/
+	public long getMemoryEstimate() {
+		return memoryEstimate;
+	}
+
+	/**
+	** Updates the size and position of the view after lines were appended.
+	*/
+	private void linesAppended() {
+		long appended = scrollback.getAppended();
+		if (appended == shownAppended) return;
+		int lineHeight = getLineHeight();
+		int size = scrollback.size();
+
+		//Widen the view for the new lines, which are not wrapped
+		FontMetrics metrics = getFontMetrics(getFont());
+		int added = (int) Math.min(appended - shownAppended, size);
+		for (int i = size - added; i < size; i++) {
+			maxWidth = Math.max(maxWidth, metrics.stringWidth(Formatting.strip(scrollback.get(i))));
+		}
+
+		//Lines dropped at the top move everything up, keep the same lines in sight
+		long dropped = appended - shownAppended - (size - shownSize);
+		shownAppended = appended;
+		shownSize = size;
+		memoryEstimate = scrollback.getCharCount() + (long) size * LINE_OVERHEAD + scrollback.capacity() * 8L;
+		JViewport viewport = getViewport();
+		boolean atBottom = viewport == null
+			|| viewport.getViewPosition().y + viewport.getExtentSize().height >= getHeight() - lineHeight;
+		revalidate();
+		if (viewport == null) {
+			repaint();
+			return;
+		}
+		if (atBottom) {
+			viewport.setViewPosition(new Point(viewport.getViewPosition().x, Math.max(0, size * lineHeight - viewport.getExtentSize().height)));
+		}
+		else if (dropped > 0) {
+			Point position = viewport.getViewPosition();
+			viewport.setViewPosition(new Point(position.x, (int) Math.max(0, position.y - dropped * lineHeight)));
+		}
+		repaint();
+	}
+
+	/**
+	** Returns the viewport the view is displayed in, if any.
+	*/
+	private JViewport getViewport() {
+		Container parent = getParent();
+		return parent instanceof JViewport ? (JViewport) parent : null;
+	}
+
+	/**
+	** Returns the height of a row.
+	*/
+	private int getLineHeight() {
+		return getFontMetrics(getFont()).getHeight();
+	}
+
+	/**
+	** Returns the size needed to show every line kept.
+	*/
+	public Dimension getPreferredSize() {
+		Insets insets = getInsets();
+		return new Dimension(maxWidth + insets.left + insets.right, shownSize * getLineHeight() + insets.top + insets.bottom);
+	}
+
+	/**
+	** Paints the rows in the clip, and only those.
+	*/
+	protected void paintComponent(Graphics g) {
+		Rectangle clip = g.getClipBounds();
+		if (clip == null) clip = new Rectangle(0, 0, getWidth(), getHeight());
+		g.setColor(getBackground());
+		g.fillRect(clip.x, clip.y, clip.width, clip.height);
+
+		Insets insets = getInsets();
+		FontMetrics metrics = g.getFontMetrics(getFont());
+		int lineHeight = metrics.getHeight();
+		int rows = shownSize;
+		int first = Math.max(0, (clip.y - insets.top) / lineHeight);
+		int last = Math.min(rows - 1, (clip.y + clip.height - insets.top) / lineHeight);
+		g.setFont(getFont());
+		g.setColor(getForeground());
+		long firstLine = shownAppended - shownSize;
+		long[] selection = getSelection();
+		for (int row = first; row <= last; row++) {
+			String line = scrollback.get(row);
+			int y = insets.top + row * lineHeight;
+			if (selection != null && firstLine + row >= selection[0] && firstLine + row <= selection[2]) {
+				//Whole lines are selected to the right edge, the last line of the selection to its column
+				int from = firstLine + row == selection[0] ? columnX(line, (int) selection[1]) : 0;
+				int to = firstLine + row == selection[2] ? columnX(line, (int) selection[3]) : getWidth();
+				g.setColor(getSelectionColor());
+				g.fillRect(insets.left + from, y, to - from, lineHeight);
+				g.setColor(getForeground());
+			}
+			if (Formatting.firstCode(line) < 0) g.drawString(line, insets.left, y + metrics.getAscent());
+			else {
+				paintFormatted(g, line, insets.left, y, lineHeight, metrics.getAscent());
+				g.setFont(getFont());
+				g.setColor(getForeground());
+			}
+		}
+	}
+	
+	/**
+	** Paints a row holding formatting codes, one style run at a time.
+	** @param g The graphics to paint with
+	** @param line The line
+	** @param x The left of the row
+	** @param y The top of the row
+	** @param lineHeight The height of the row
+	** @param ascent The distance from the top of the row to the baseline
+	*/
+	private void paintFormatted(Graphics g, String line, int x, int y, int lineHeight, int ascent) {
+		deriveFonts();
+		formatting.parse(line);
+		char[] text = formatting.getText();
+		
+		//Backgrounds are filled run by run, text is drawn a group of runs at a time: runs sharing a color
+		//and a font, along with the blank runs between them, which only show their background (ASCII art)
+		int groupStart = -1, groupEnd = 0, groupX = 0, groupVariant = 0;
+		Color groupColor = null;
+		int baseline = y + ascent;
+		for (int run = 0; run < formatting.getRunCount(); run++) {
+			int style = formatting.getRunStyle(run);
+			int start = formatting.getRunStart(run);
+			int end = formatting.getRunEnd(run);
+			int variant = variantOf(style);
+			int width = styledMetrics[variant].charsWidth(text, start, end - start);
+			
+			//Reverse swaps the colors, the defaults included
+			int fg = Formatting.foreground(style), bg = Formatting.background(style);
+			Color foreground = fg == Formatting.DEFAULT_COLOR ? getForeground() : COLORS[fg];
+			Color background = bg == Formatting.DEFAULT_COLOR ? null : COLORS[bg];
+			if ((style & Formatting.REVERSE_FLAG) != 0) {
+				Color swapped = background == null ? getBackground() : background;
+				background = foreground;
+				foreground = swapped;
+			}
+			if (background != null) {
+				g.setColor(background);
+				g.fillRect(x, y, width, lineHeight);
+			}
+			
+			boolean decorated = (style & (Formatting.UNDERLINE_FLAG | Formatting.STRIKETHROUGH_FLAG)) != 0;
+			boolean blank = !decorated && isBlank(text, start, end);
+			if (groupStart >= 0 && (variant != groupVariant || decorated || (!blank && foreground != groupColor))) {
+				drawGroup(g, text, groupStart, groupEnd, groupX, baseline, groupVariant, groupColor);
+				groupStart = -1;
+			}
+			if (decorated) {
+				drawGroup(g, text, start, end, x, baseline, variant, foreground);
+				if ((style & Formatting.UNDERLINE_FLAG) != 0) g.drawLine(x, baseline + 1, x + width - 1, baseline + 1);
+				if ((style & Formatting.STRIKETHROUGH_FLAG) != 0) g.drawLine(x, y + ascent * 2 / 3, x + width - 1, y + ascent * 2 / 3);
+			}
+			else if (groupStart >= 0) groupEnd = end;
+			else if (!blank) {
+				groupStart = start;
+				groupEnd = end;
+				groupX = x;
+				groupVariant = variant;
+				groupColor = foreground;
+			}
+			x += width;
+		}
+		if (groupStart >= 0) drawGroup(g, text, groupStart, groupEnd, groupX, baseline, groupVariant, groupColor);
+	}
+	
+	/**
+	** Derives the bold and italic fonts from the view's font, again only when it changes.
+	*/
+	private void deriveFonts() {
+		Font font = getFont();
+		if (font == styledFont) return;
+		styledFont = font;
+		styledFonts[0] = font;
+		styledFonts[1] = font.deriveFont(Font.BOLD);
+		styledFonts[2] = font.deriveFont(Font.ITALIC);
+		styledFonts[3] = font.deriveFont(Font.BOLD | Font.ITALIC);
+		for (int i = 0; i < styledFonts.length; i++) styledMetrics[i] = getFontMetrics(styledFonts[i]);
+	}
+
+	/**
+	** Returns the x of a column of a line, from the left of its row, each style run measured in its own font.
+	*/
+	private int columnX(String line, int column) {
+		if (Formatting.firstCode(line) < 0) return getFontMetrics(getFont()).stringWidth(line.substring(0, Math.min(column, line.length())));
+		deriveFonts();
+		formatting.parse(line);
+		char[] text = formatting.getText();
+		int x = 0;
+		for (int run = 0; run < formatting.getRunCount(); run++) {
+			int start = formatting.getRunStart(run);
+			if (column <= start) break;
+			int end = Math.min(formatting.getRunEnd(run), column);
+			x += styledMetrics[variantOf(formatting.getRunStyle(run))].charsWidth(text, start, end - start);
+		}
+		return x;
+	}
+
+	/**
+	** Returns the font variant of a style: bold (1) and italic (2).
+	*/
+	private static int variantOf(int style) {
+		return ((style & Formatting.BOLD_FLAG) != 0 ? 1 : 0) | ((style & Formatting.ITALIC_FLAG) != 0 ? 2 : 0);
+	}
+
+	/**
+	** Returns the line shown at a height, counted from the first line ever appended.
+	*/
+	private long lineAt(int y) {
+		int row = (y - getInsets().top) / getLineHeight();
+		return shownAppended - shownSize + Math.max(0, Math.min(shownSize - 1, row));
+	}
+
+	/**
+	** Returns the column of a line closest to an x, for a line still kept.
+	*/
+	private int columnAt(long line, int x) {
+		String text = scrollback.get((int) (line - (shownAppended - shownSize)));
+		int length = Formatting.strip(text).length();
+		x -= getInsets().left;
+
+		//Past the middle of a character selects after it
+		int previous = 0;
+		for (int column = 1; column <= length; column++) {
+			int next = columnX(text, column);
+			if (x < (previous + next) / 2) return column - 1;
+			previous = next;
+		}
+		return length;
+	}
+
+	/**
+	** Selects the word under a point, everything between two spaces, so a URL is one word.
+	*/
+	private void selectWord(Point point) {
+		long line = lineAt(point.y);
+		String text = Formatting.strip(scrollback.get((int) (line - (shownAppended - shownSize))));
+		int column = Math.min(columnAt(line, point.x), text.length());
+		int start = column, end = column;
+		while (start > 0 && text.charAt(start - 1) != ' ') start--;
+		while (end < text.length() && text.charAt(end) != ' ') end++;
+		anchorLine = leadLine = line;
+		anchorColumn = start;
+		leadColumn = end;
+	}
+
+	/**
+	** Returns the selection in order, as first line, its column, last line and its column,
+	** the part of it dropped at the top left out.
+	** @return the selection, or null if nothing is selected
+	*/
+	private long[] getSelection() {
+		if (anchorLine < 0) return null;
+		boolean forward = anchorLine < leadLine || (anchorLine == leadLine && anchorColumn <= leadColumn);
+		long[] selection = forward
+			? new long[] { anchorLine, anchorColumn, leadLine, leadColumn }
+			: new long[] { leadLine, leadColumn, anchorLine, anchorColumn };
+		long firstLine = shownAppended - shownSize;
+		if (selection[2] < firstLine || (selection[0] == selection[2] && selection[1] == selection[3])) return null;
+		if (selection[0] < firstLine) {
+			selection[0] = firstLine;
+			selection[1] = 0;
+		}
+		return selection;
+	}
+
+	/**
+	** Returns the color behind selected text.
+	*/
+	private static Color getSelectionColor() {
+		Color color = UIManager.getColor("TextArea.selectionBackground");
+		return color == null ? new Color(0xB8CFE5) : color;
+	}
+
+	/**
+	** Copies the selected text, without formatting codes, to the clipboard and on X11 to the primary selection.
+	*/
+	public void copySelection() {
+		long[] selection = getSelection();
+		if (selection == null) return;
+		long firstLine = shownAppended - shownSize;
+		StringBuilder copied = new StringBuilder();
+		for (long line = selection[0]; line <= selection[2]; line++) {
+			String text = Formatting.strip(scrollback.get((int) (line - firstLine)));
+			int from = line == selection[0] ? (int) Math.min(selection[1], text.length()) : 0;
+			int to = line == selection[2] ? (int) Math.min(selection[3], text.length()) : text.length();
+			if (line > selection[0]) copied.append('\n');
+			copied.append(text, from, Math.max(from, to));
+		}
+		StringSelection contents = new StringSelection(copied.toString());
+		Toolkit toolkit = Toolkit.getDefaultToolkit();
+		toolkit.getSystemClipboard().setContents(contents, null);
+		Clipboard primary = toolkit.getSystemSelection();
+		if (primary != null) primary.setContents(contents, null);
+	}
+
+	/**
+	** Draws text of the parsed line in one of the derived fonts.
+	*/
+	private void drawGroup(Graphics g, char[] text, int start, int end, int x, int baseline, int variant, Color color) {
+		g.setColor(color);
+		g.setFont(styledFonts[variant]);
+		g.drawChars(text, start, end - start, x, baseline);
+	}
+	
+	/**
+	** Returns whether a range of the parsed text is only spaces.
+	*/
+	private static boolean isBlank(char[] text, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (text[i] != ' ') return false;
+		}
+		return true;
+	}
+
+	public Dimension getPreferredScrollableViewportSize() {
+		return getPreferredSize();
+	}
+
+	public int getScrollableUnitIncrement(Rectangle visible, int orientation, int direction) {
+		return orientation == SwingConstants.VERTICAL ? getLineHeight() : 16;
+	}
+
+	public int getScrollableBlockIncrement(Rectangle visible, int orientation, int direction) {
+		return orientation == SwingConstants.VERTICAL ? visible.height - getLineHeight() : visible.width;
+	}
+
+	public boolean getScrollableTracksViewportWidth() {
+		Container parent = getParent();
+		return parent != null && parent.getWidth() > getPreferredSize().width;
+	}
+
+	public boolean getScrollableTracksViewportHeight() {
+		Container parent = getParent();
+		return parent != null && parent.getHeight() > getPreferredSize().height;
+	}
+
+}
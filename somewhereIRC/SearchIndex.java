@@ -0,0 +1,601 @@
+package somewhereIRC;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.io.IOException;
+
+/**
+** Search index class of the SomewhereIRC client.
+** An in-memory inverted index over the logged messages, updated as they are logged.
+** Each token maps to a posting list of message numbers, stored as variable-length deltas.
+** Every message also keeps its time, channel, nick and log offset, for filtering and for reading it back.
+** The index can be saved to a file with how far each log was indexed, so a restarted client loads it and
+** only reads the logs past that point; the log of a channel loaded this way is only opened when a search
+** needs to read from it.
+**
+** File layout, big-endian, names as modified UTF-8:
+**
+**   header    int magic, int version, long time saved
+**   channels  int count, then for each: name, long offset its log is indexed up to
+**   nicks     int count, then the names
+**   messages  int count, then for each: long time, long offset, int channel, int nick (-1 if none)
+**   tokens    int count, then for each: name, int message count, int last message, int length, the postings
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class SearchIndex {
+
+	/**
+	** One message found by a search, or read from a point in time.
+	*/
+	public static class Hit {
+		public final long time;
+		public final String channel;
+		public final String nick;
+		public final String text;
+
+		Hit(long time, String channel, String nick, String text) {
+			this.time = time;
+			this.channel = channel;
+			this.nick = nick;
+			this.text = text;
+		}
+	}
+
+	/**
+	** The posting list of one token.
+	*/
+	private static class Postings {
+		byte[] bytes = new byte[8];
+		int length = 0;
+		int count = 0;
+		int last = -1;
+
+		void add(int doc) {
+			if (doc == last) return;
+			if (length + 5 > bytes.length) bytes = Arrays.copyOf(bytes, bytes.length * 2);
+			int delta = doc - last;
+			while ((delta & ~0x7F) != 0) {
+				bytes[length++] = (byte) ((delta & 0x7F) | 0x80);
+				delta >>>= 7;
+			}
+			bytes[length++] = (byte) delta;
+			last = doc;
+			count++;
+		}
+	}
+
+	/**
+	** Reads a posting list back in order.
+	*/
+	private static class Cursor {
+		final Postings postings;
+		int position = 0;
+		int doc = -1;
+
+		Cursor(Postings postings) {
+			this.postings = postings;
+		}
+
+		/**
+		** Moves to the next message, returning false at the end of the list.
+		*/
+		boolean next() {
+			if (position >= postings.length) return false;
+			int delta = 0, shift = 0;
+			byte b;
+			do {
+				b = postings.bytes[position++];
+				delta |= (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			doc += delta;
+			return true;
+		}
+
+		/**
+		** Moves to the first message at or after the target, returning false at the end of the list.
+		*/
+		boolean advance(int target) {
+			while (doc < target) {
+				if (!next()) return false;
+			}
+			return true;
+		}
+	}
+
+	//Constants
+	private static final int MAGIC = 0x53494458;
+	private static final int VERSION = 1;
+
+	//Index variables
+	private final HashMap<String, Postings> tokens = new HashMap<String, Postings>();
+	private int docs = 0;
+	private long[] times = new long[1024];
+	private long[] offsets = new long[1024];
+	private int[] channelIDs = new int[1024];
+	private int[] nickIDs = new int[1024];
+
+	//Name tables, from the IDs kept per message back to names
+	private final HashMap<String, Integer> channelTable = new HashMap<String, Integer>();
+	private final ArrayList<String> channels = new ArrayList<String>();
+	private final ArrayList<MessageLog> channelLogs = new ArrayList<MessageLog>();
+	private final HashMap<String, Integer> nickTable = new HashMap<String, Integer>();
+	private final ArrayList<String> nicks = new ArrayList<String>();
+
+	//Where the log of each channel is indexed up to, whether anything changed since the last save,
+	//and the logger opening the logs of channels loaded from a file
+	private long[] channelEnds = new long[16];
+	private boolean changed = false;
+	private MessageLogger logger;
+
+	//Parser used while indexing
+	private final IrcMessage message = new IrcMessage();
+
+	/**
+	** Returns the key a channel is indexed under.
+	** @param network The network
+	** @param channel The channel or nick
+	** @return the key
+	*/
+	public static String channelKey(String network, String channel) {
+		return MessageLogger.fileName(network) + "/" + MessageLogger.fileName(channel == null ? MessageLogger.STATUS : channel);
+	}
+
+	/**
+	** Sets the logger opening the logs of the channels loaded from a file.
+	** @param logger The logger the index belongs to
+	*/
+	void setLogger(MessageLogger logger) {
+		this.logger = logger;
+	}
+
+	/**
+	** Indexes a logged message. Only messages and notices are indexed, but the log counts as indexed past any message.
+	** @param channel The key of the channel, see channelKey()
+	** @param log The log the message was written to
+	** @param offset The offset of the message in the log
+	** @param next The offset of the record after the message
+	** @param time The time of the message
+	** @param raw The raw message
+	*/
+	public synchronized void add(String channel, MessageLog log, long offset, long next, long time, String raw) {
+		int channelID = id(channelTable, channels, channel);
+		if (channelID >= channelEnds.length) channelEnds = Arrays.copyOf(channelEnds, Math.max(channelEnds.length * 2, channelID + 1));
+		if (channelLogs.size() < channels.size()) channelLogs.add(log);
+		else if (channelLogs.get(channelID) == null) channelLogs.set(channelID, log);
+		channelEnds[channelID] = next;
+		changed = true;
+
+		if (!message.parse(raw)) return;
+		Command command = message.getCommandType();
+		if (command != Command.PRIVMSG && command != Command.NOTICE) return;
+		if (message.getParamCount() < 2) return;
+
+		//Record the message
+		if (docs == times.length) {
+			int size = docs * 2;
+			times = Arrays.copyOf(times, size);
+			offsets = Arrays.copyOf(offsets, size);
+			channelIDs = Arrays.copyOf(channelIDs, size);
+			nickIDs = Arrays.copyOf(nickIDs, size);
+		}
+		int doc = docs++;
+		times[doc] = time;
+		offsets[doc] = offset;
+		channelIDs[doc] = channelID;
+		String nick = message.getNick();
+		nickIDs[doc] = nick == null ? -1 : id(nickTable, nicks, nick.toLowerCase());
+
+		//Then each of its tokens
+		String text = message.getLastParam();
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			boolean part = i < text.length() && isTokenChar(text.charAt(i));
+			if (part && start < 0) start = i;
+			else if (!part && start >= 0) {
+				addToken(text.substring(start, i).toLowerCase(), doc);
+				start = -1;
+			}
+		}
+	}
+
+	/**
+	** Returns whether a character is part of a token. Dashes and underscores are, so "deploy-42" is one token.
+	*/
+	private static boolean isTokenChar(char c) {
+		return Character.isLetterOrDigit(c) || c == '-' || c == '_';
+	}
+
+	/**
+	** Adds a message to the posting list of a token.
+	*/
+	private void addToken(String token, int doc) {
+		Postings postings = tokens.get(token);
+		if (postings == null) {
+			postings = new Postings();
+			tokens.put(token, postings);
+		}
+		postings.add(doc);
+	}
+
+	/**
+	** Returns the ID of a name, adding it to the table if needed.
+	*/
+	private static int id(HashMap<String, Integer> table, ArrayList<String> names, String name) {
+		Integer id = table.get(name);
+		if (id == null) {
+			id = names.size();
+			table.put(name, id);
+			names.add(name);
+		}
+		return id;
+	}
+
+	/**
+	** Returns the offset the log of a channel is indexed up to.
+	** @param channel The key of the channel, see channelKey()
+	** @return the offset, or -1 if nothing of the channel was indexed
+	*/
+	public synchronized long getIndexedEnd(String channel) {
+		Integer id = channelTable.get(channel);
+		return id == null ? -1 : channelEnds[id];
+	}
+
+	/**
+	** Returns whether anything was indexed since the index was saved or loaded.
+	** @return true if there is something to save
+	*/
+	public synchronized boolean isChanged() {
+		return changed;
+	}
+
+	/**
+	** Saves the index, written to a temporary file then moved over the old one.
+	** @param file The index file
+	*/
+	public synchronized void save(File file) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		dir.mkdirs();
+		File temp = File.createTempFile(file.getName(), ".tmp", dir);
+		try {
+			FileOutputStream stream = new FileOutputStream(temp);
+			try {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 65536));
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(System.currentTimeMillis());
+				out.writeInt(channels.size());
+				for (int i = 0; i < channels.size(); i++) {
+					out.writeUTF(channels.get(i));
+					out.writeLong(channelEnds[i]);
+				}
+				out.writeInt(nicks.size());
+				for (String nick : nicks) out.writeUTF(nick);
+				out.writeInt(docs);
+				for (int doc = 0; doc < docs; doc++) {
+					out.writeLong(times[doc]);
+					out.writeLong(offsets[doc]);
+					out.writeInt(channelIDs[doc]);
+					out.writeInt(nickIDs[doc]);
+				}
+				out.writeInt(tokens.size());
+				for (Map.Entry<String, Postings> entry : tokens.entrySet()) {
+					Postings postings = entry.getValue();
+					out.writeUTF(entry.getKey());
+					out.writeInt(postings.count);
+					out.writeInt(postings.last);
+					out.writeInt(postings.length);
+					out.write(postings.bytes, 0, postings.length);
+				}
+				out.flush();
+				stream.getFD().sync();
+			} finally {
+				stream.close();
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			temp.delete();
+		}
+		changed = false;
+	}
+
+	/**
+	** Replaces what is indexed with an index saved by save(). Leaves the index empty if the file is missing or unreadable.
+	** @param file The index file
+	** @return the time the index was saved, in milliseconds, or -1 if it was not loaded
+	*/
+	public synchronized long load(File file) {
+		clear();
+		if (!file.exists()) return -1;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("Not an index of this version");
+				long saved = in.readLong();
+				int channelCount = readCount(in);
+				channelEnds = new long[Math.max(channelCount, 16)];
+				for (int i = 0; i < channelCount; i++) {
+					id(channelTable, channels, in.readUTF());
+					channelLogs.add(null);
+					channelEnds[i] = in.readLong();
+				}
+				int nickCount = readCount(in);
+				for (int i = 0; i < nickCount; i++) id(nickTable, nicks, in.readUTF());
+				int count = readCount(in);
+				int size = Math.max(count, 1024);
+				times = new long[size];
+				offsets = new long[size];
+				channelIDs = new int[size];
+				nickIDs = new int[size];
+				for (int doc = 0; doc < count; doc++) {
+					times[doc] = in.readLong();
+					offsets[doc] = in.readLong();
+					channelIDs[doc] = in.readInt();
+					nickIDs[doc] = in.readInt();
+					if (channelIDs[doc] < 0 || channelIDs[doc] >= channelCount || nickIDs[doc] < -1 || nickIDs[doc] >= nickCount) {
+						throw new IOException("Corrupt message " + doc);
+					}
+				}
+				docs = count;
+				int tokenCount = readCount(in);
+				for (int i = 0; i < tokenCount; i++) {
+					String token = in.readUTF();
+					Postings postings = new Postings();
+					postings.count = in.readInt();
+					postings.last = in.readInt();
+					postings.length = readCount(in);
+					postings.bytes = new byte[Math.max(postings.length, 8)];
+					in.readFully(postings.bytes, 0, postings.length);
+					tokens.put(token, postings);
+				}
+				return saved;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			System.out.println("\tERROR: Could not load the search index " + file + ": " + e.getMessage());
+			clear();
+			return -1;
+		}
+	}
+
+	/**
+	** Reads a count, which a corrupt file could make negative.
+	*/
+	private static int readCount(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if (count < 0) throw new IOException("Corrupt count " + count);
+		return count;
+	}
+
+	/**
+	** Empties the index.
+	*/
+	private void clear() {
+		tokens.clear();
+		docs = 0;
+		times = new long[1024];
+		offsets = new long[1024];
+		channelIDs = new int[1024];
+		nickIDs = new int[1024];
+		channelTable.clear();
+		channels.clear();
+		channelLogs.clear();
+		nickTable.clear();
+		nicks.clear();
+		channelEnds = new long[16];
+		changed = false;
+	}
+
+	/**
+	** Returns the number of messages indexed.
+	** @return the number of messages
+	*/
+	public synchronized int size() {
+		return docs;
+	}
+
+	/**
+	** Searches for the messages holding every word of a query.
+	** @param query The words to look for
+	** @param nick Only messages from this nick, or null for any nick
+	** @param channel Only messages in this channel (see channelKey()), or null for any channel
+	** @param from Only messages at or after this time, in milliseconds
+	** @param to Only messages before this time, in milliseconds
+	** @param limit The maximum number of messages to return
+	** @return the newest matching messages, newest first
+	*/
+	public List<Hit> search(String query, String nick, String channel, long from, long to, int limit) throws IOException {
+		//Split the query the way messages are split
+		ArrayList<String> words = new ArrayList<String>();
+		int start = -1;
+		for (int i = 0; i <= query.length(); i++) {
+			boolean part = i < query.length() && isTokenChar(query.charAt(i));
+			if (part && start < 0) start = i;
+			else if (!part && start >= 0) {
+				words.add(query.substring(start, i).toLowerCase());
+				start = -1;
+			}
+		}
+
+		//Matches are kept in a min-heap on time, so the newest stay whatever order they were indexed in
+		int[] found = new int[Math.max(limit, 0)];
+		int count = 0;
+		synchronized (this) {
+			if (words.isEmpty() || limit <= 0) return new ArrayList<Hit>();
+
+			//Resolve the filters to IDs, a filter on an unknown name matches nothing
+			int nickID = -1, channelID = -1;
+			if (nick != null) {
+				Integer id = nickTable.get(nick.toLowerCase());
+				if (id == null) return new ArrayList<Hit>();
+				nickID = id;
+			}
+			if (channel != null) {
+				Integer id = channelTable.get(channel);
+				if (id == null) return new ArrayList<Hit>();
+				channelID = id;
+			}
+
+			//Intersect the posting lists, rarest first
+			Cursor[] cursors = new Cursor[words.size()];
+			for (int i = 0; i < cursors.length; i++) {
+				Postings postings = tokens.get(words.get(i));
+				if (postings == null) return new ArrayList<Hit>();
+				cursors[i] = new Cursor(postings);
+			}
+			Arrays.sort(cursors,
+				new Comparator<Cursor>() {
+					public int compare(Cursor a, Cursor b) {
+						return a.postings.count - b.postings.count;
+					}
+				}
+			);
+			while (cursors[0].next()) {
+				int doc = cursors[0].doc;
+				boolean all = true;
+				for (int i = 1; i < cursors.length && all; i++) {
+					if (!cursors[i].advance(doc)) {
+						all = false;
+						cursors[0].position = cursors[0].postings.length;
+					}
+					else if (cursors[i].doc != doc) all = false;
+				}
+				if (!all) continue;
+				if (nickID >= 0 && nickIDs[doc] != nickID) continue;
+				if (channelID >= 0 && channelIDs[doc] != channelID) continue;
+				if (times[doc] < from || times[doc] >= to) continue;
+				if (count < limit) {
+					found[count++] = doc;
+					siftUp(found, count - 1);
+				}
+				else if (times[doc] > times[found[0]]) {
+					found[0] = doc;
+					siftDown(found, count);
+				}
+			}
+		}
+
+		//Read the matches back from the logs, outside of the index lock
+		ArrayList<Hit> hits = new ArrayList<Hit>();
+		IrcMessage parsed = new IrcMessage();
+		for (int i = 0; i < count; i++) {
+			int doc = found[i];
+			MessageLog log;
+			String channelName, nickName;
+			long offset;
+			synchronized (this) {
+				log = channelLogs.get(channelIDs[doc]);
+				channelName = channels.get(channelIDs[doc]);
+				nickName = nickIDs[doc] < 0 ? null : nicks.get(nickIDs[doc]);
+				offset = offsets[doc];
+			}
+			if (log == null) log = openLog(channelName);
+			if (log == null) continue;
+			MessageLog.Record record = log.read(offset);
+			if (record == null) continue;
+			parsed.parse(record.text);
+			hits.add(new Hit(record.time, channelName, nickName, parsed.getLastParam()));
+		}
+		Collections.sort(hits,
+			new Comparator<Hit>() {
+				public int compare(Hit a, Hit b) {
+					return a.time > b.time ? -1 : (a.time == b.time ? 0 : 1);
+				}
+			}
+		);
+		return hits;
+	}
+
+	/**
+	** Reads the logged messages of a channel from a point in time on, found through the time index of its log.
+	** @param channel The key of the channel, see channelKey()
+	** @param time The time to start at, in milliseconds
+	** @param limit The maximum number of messages to return
+	** @return the messages, oldest first
+	*/
+	public List<Hit> readFrom(String channel, long time, int limit) throws IOException {
+		MessageLog log;
+		synchronized (this) {
+			Integer id = channelTable.get(channel);
+			log = id == null ? null : channelLogs.get(id);
+		}
+		if (log == null) log = openLog(channel);
+		ArrayList<Hit> hits = new ArrayList<Hit>();
+		if (log == null) return hits;
+
+		//Every line is shown, messages and notices by their text
+		IrcMessage parsed = new IrcMessage();
+		for (MessageLog.Record record : log.read(log.seek(time), limit)) {
+			if (!parsed.parse(record.text)) continue;
+			Command command = parsed.getCommandType();
+			boolean message = (command == Command.PRIVMSG || command == Command.NOTICE) && parsed.getParamCount() >= 2;
+			hits.add(new Hit(record.time, channel, parsed.getNick(), message ? parsed.getLastParam() : record.text));
+		}
+		return hits;
+	}
+
+	/**
+	** Opens the log of a channel loaded from a file, the first time a search reads from it.
+	*/
+	private MessageLog openLog(String channel) throws IOException {
+		if (logger == null) return null;
+		int slash = channel.indexOf('/');
+		MessageLog log = logger.getLog(channel.substring(0, slash), channel.substring(slash + 1));
+		synchronized (this) {
+			Integer id = channelTable.get(channel);
+			if (id != null && channelLogs.get(id) == null) channelLogs.set(id, log);
+		}
+		return log;
+	}
+
+	/**
+	** Moves a match up the heap until its parent is older.
+	*/
+	private void siftUp(int[] heap, int i) {
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (times[heap[parent]] <= times[heap[i]]) break;
+			int swap = heap[parent];
+			heap[parent] = heap[i];
+			heap[i] = swap;
+			i = parent;
+		}
+	}
+
+	/**
+	** Moves the top match down the heap until its children are newer.
+	*/
+	private void siftDown(int[] heap, int size) {
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size) break;
+			if (child + 1 < size && times[heap[child + 1]] < times[heap[child]]) child++;
+			if (times[heap[i]] <= times[heap[child]]) break;
+			int swap = heap[child];
+			heap[child] = heap[i];
+			heap[i] = swap;
+			i = child;
+		}
+	}
+
+}
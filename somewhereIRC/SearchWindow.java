@@ -0,0 +1,223 @@
+package somewhereIRC;
+
+import java.awt.*;
+import java.awt.event.*;
+import javax.swing.*;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+/**
+** Search window GUI class of the SomewhereIRC client.
+** Searches the logged history of a network through its SearchIndex, off the event dispatch thread,
+** or jumps to a point in time in the log of a channel and shows what was said from then on.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class SearchWindow extends JFrame {
+
+	//Constants
+	private static final int MAX_RESULTS = 500;
+	private static final String DATE_FORMAT = "yyyy-MM-dd";
+	private static final String TIME_FORMAT = "yyyy-MM-dd HH:mm";
+
+	//Class variables
+	private SearchIndex index;
+	private String network;
+	private JTextField queryField, nickField, channelField, fromField, toField, jumpField;
+	private JButton searchButton, jumpButton;
+	private JLabel statusLabel;
+	private DefaultListModel<String> results;
+
+	/**
+	** Constructor that sets the index and the network to search.
+	** @param index The search index
+	** @param network The network to search
+	** @param channel The channel to search at first, or null for every channel
+	*/
+	public SearchWindow(SearchIndex index, String network, String channel) {
+		super("Search History of " + network);
+		this.index = index;
+		this.network = network;
+		createSearchWindow(channel);
+	}
+
+	/**
+	** Initializes the search window GUI.
+	** @param channel The channel to search at first, or null for every channel
+	*/
+	private void createSearchWindow(String channel) {
+		//Set window properties
+		setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+
+		//Set up window layout
+		GridBagLayout layout = new GridBagLayout();
+		getContentPane().setLayout(layout);
+
+		//Set up layout constraints
+		GridBagConstraints constraints = new GridBagConstraints();
+		constraints.fill = GridBagConstraints.HORIZONTAL;
+
+		//Create the labels and fields for the query and filters
+		queryField = addField("Search:", "", 0, constraints);
+		nickField = addField("Nick:", "", 1, constraints);
+		channelField = addField("Channel:", channel == null ? "" : channel, 2, constraints);
+		fromField = addField("From (" + DATE_FORMAT + "):", "", 3, constraints);
+		toField = addField("To (" + DATE_FORMAT + "):", "", 4, constraints);
+		jumpField = addField("Jump to (" + TIME_FORMAT + "):", "", 5, constraints);
+
+		//Create the search button, also triggered by Enter in the query field
+		ActionListener searchListener = new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				search();
+			}
+		};
+		searchButton = new JButton("Search");
+		searchButton.addActionListener(searchListener);
+		queryField.addActionListener(searchListener);
+		constraints.gridx = 0; constraints.gridy = 6;
+		constraints.ipady = 5;
+		add(searchButton,constraints);
+
+		//Create the jump button, also triggered by Enter in the jump field
+		ActionListener jumpListener = new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				jump();
+			}
+		};
+		jumpButton = new JButton("Jump");
+		jumpButton.addActionListener(jumpListener);
+		jumpField.addActionListener(jumpListener);
+		constraints.gridx = 1; constraints.gridy = 6;
+		add(jumpButton,constraints);
+		constraints.gridwidth = 2; constraints.ipady = 0;
+
+		//Create the result list
+		results = new DefaultListModel<String>();
+		JScrollPane resultScrollPane = new JScrollPane(new JList<String>(results));
+		resultScrollPane.setPreferredSize(new Dimension(600,300));
+		constraints.gridx = 0; constraints.gridy = 7;
+		constraints.fill = GridBagConstraints.BOTH;
+		add(resultScrollPane,constraints);
+		statusLabel = new JLabel(" ");
+		constraints.gridx = 0; constraints.gridy = 8;
+		constraints.fill = GridBagConstraints.HORIZONTAL;
+		add(statusLabel,constraints);
+
+		//Display the window
+		pack();
+		setVisible(true);
+	}
+
+	/**
+	** Adds a label and a text field on a row of the window.
+	*/
+	private JTextField addField(String label, String text, int row, GridBagConstraints constraints) {
+		constraints.gridx = 0; constraints.gridy = row;
+		add(new JLabel(label),constraints);
+		JTextField field = new JTextField(text, 20);
+		constraints.gridx = 1; constraints.gridy = row;
+		add(field,constraints);
+		return field;
+	}
+
+	/**
+	** Parses a date field, returning the default if it is empty.
+	*/
+	private static long parseDate(JTextField field, long empty, boolean endOfDay) throws ParseException {
+		String text = field.getText().trim();
+		if (text.length() == 0) return empty;
+		long time = new SimpleDateFormat(DATE_FORMAT).parse(text).getTime();
+		return endOfDay ? time + 24 * 60 * 60 * 1000L : time;
+	}
+
+	/**
+	** Runs the search in the background and shows the results once it is done.
+	*/
+	private void search() {
+		final String query = queryField.getText();
+		final String nick = nickField.getText().trim().length() == 0 ? null : nickField.getText().trim();
+		final String channel = channelField.getText().trim().length() == 0 ? null
+			: SearchIndex.channelKey(network, channelField.getText().trim());
+		final long from, to;
+		try {
+			from = parseDate(fromField, Long.MIN_VALUE, false);
+			to = parseDate(toField, Long.MAX_VALUE, true);
+		} catch (ParseException e) {
+			statusLabel.setText("Dates must look like " + DATE_FORMAT + ".");
+			return;
+		}
+		searchButton.setEnabled(false);
+		statusLabel.setText("Searching...");
+		new SwingWorker<List<SearchIndex.Hit>, Void>() {
+			private long elapsed;
+
+			protected List<SearchIndex.Hit> doInBackground() throws Exception {
+				long start = System.nanoTime();
+				List<SearchIndex.Hit> hits = index.search(query, nick, channel, from, to, MAX_RESULTS);
+				elapsed = (System.nanoTime() - start) / 1000000;
+				return hits;
+			}
+
+			protected void done() {
+				searchButton.setEnabled(true);
+				results.clear();
+				try {
+					SimpleDateFormat format = new SimpleDateFormat(TIME_FORMAT);
+					List<SearchIndex.Hit> hits = get();
+					for (SearchIndex.Hit hit : hits) {
+						String channelName = hit.channel.substring(hit.channel.indexOf('/') + 1);
+						results.addElement("[" + format.format(new Date(hit.time)) + "] " + channelName + " <" + hit.nick + "> " + hit.text);
+					}
+					statusLabel.setText(hits.size() + (hits.size() == MAX_RESULTS ? " newest" : "") + " results in " + elapsed + " ms");
+				} catch (Exception e) {
+					statusLabel.setText("Search failed: " + e.getMessage());
+				}
+			}
+		}.execute();
+	}
+
+	/**
+	** Reads the log of the channel from the time to jump to in the background, and shows it once it is read.
+	*/
+	private void jump() {
+		if (channelField.getText().trim().length() == 0) {
+			statusLabel.setText("Enter the channel to jump in.");
+			return;
+		}
+		final String channel = SearchIndex.channelKey(network, channelField.getText().trim());
+		final long time;
+		try {
+			time = new SimpleDateFormat(TIME_FORMAT).parse(jumpField.getText().trim()).getTime();
+		} catch (ParseException e) {
+			statusLabel.setText("Times must look like " + TIME_FORMAT + ".");
+			return;
+		}
+		jumpButton.setEnabled(false);
+		statusLabel.setText("Reading...");
+		new SwingWorker<List<SearchIndex.Hit>, Void>() {
+			protected List<SearchIndex.Hit> doInBackground() throws Exception {
+				return index.readFrom(channel, time, MAX_RESULTS);
+			}
+
+			protected void done() {
+				jumpButton.setEnabled(true);
+				results.clear();
+				try {
+					SimpleDateFormat format = new SimpleDateFormat(TIME_FORMAT);
+					List<SearchIndex.Hit> hits = get();
+					for (SearchIndex.Hit hit : hits) {
+						results.addElement("[" + format.format(new Date(hit.time)) + "] " + (hit.nick == null ? "" : "<" + hit.nick + "> ") + hit.text);
+					}
+					statusLabel.setText(hits.size() + " lines from " + format.format(new Date(time)));
+				} catch (Exception e) {
+					statusLabel.setText("Jump failed: " + e.getMessage());
+				}
+			}
+		}.execute();
+	}
+
+}
@@ -0,0 +1,25 @@
+package somewhereIRC;
+
+/**
+** Executor interface of the SomewhereIRC client.
+** Runs the tasks of a connection one at a time, either on an event loop or on the connection's own threads.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public interface SessionExecutor {
+
+	/**
+	** Runs a task, after any task of the same connection currently running.
+	** @param task The task to run
+	*/
+	void execute(Runnable task);
+
+	/**
+	** Runs a task once the delay has passed.
+	** @param task The task to run
+	** @param delayMillis The delay in milliseconds
+	*/
+	void schedule(Runnable task, long delayMillis);
+
+}
@@ -0,0 +1,64 @@
+package somewhereIRC;
+
+/**
+** Session listener interface of the SomewhereIRC client.
+** What a connection tells its front ends: the Swing windows, a headless bot, a relay.
+** Every event but sessionOpened() comes from the thread running the connection, so a listener
+** must hand anything slow over to its own thread.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public interface SessionListener {
+
+	/**
+	** Called once the session can take commands, before it connects.
+	** @param session The session
+	*/
+	void sessionOpened(SomewhereIRC session);
+
+	/**
+	** Called when the connection status changes.
+	** @param session The session
+	** @param status The new status
+	*/
+	void statusChanged(SomewhereIRC session, SomewhereIRC.Status status);
+
+	/**
+	** Called once the server has accepted the session (001).
+	** @param session The session
+	** @param nick The nick the server gave us
+	*/
+	void registered(SomewhereIRC session, String nick);
+
+	/**
+	** Called for every line to show the user.
+	** @param session The session
+	** @param target The channel or nick the line belongs to, or null for the status window
+	** @param text The text to show
+	*/
+	void lineDisplayed(SomewhereIRC session, String target, String text);
+
+	/**
+	** Called for the lines of a batch to show the user, all belonging to the same window.
+	** @param session The session
+	** @param target The channel or nick the lines belong to, or null for the status window
+	** @param texts The texts to show, oldest first
+	*/
+	void linesDisplayed(SomewhereIRC session, String target, String[] texts);
+
+	/**
+	** Called after a line holding a highlight keyword was shown.
+	** @param session The session
+	** @param target The channel or nick the line belongs to
+	** @param text The text shown
+	*/
+	void highlighted(SomewhereIRC session, String target, String text);
+
+	/**
+	** Called once the session has quit and will not reconnect.
+	** @param session The session
+	*/
+	void sessionClosed(SomewhereIRC session);
+
+}
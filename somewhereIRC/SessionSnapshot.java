@@ -0,0 +1,431 @@
+package somewhereIRC;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.io.IOException;
+
+/**
+** Session snapshot class of the SomewhereIRC client.
+** The state of one network saved to a compact binary file, so a restarted client can show its windows
+** as they were at once, while it reconnects and rejoins: the network, our nick, the channels we were in
+** with their topics, keys and members, and the last lines of every window.
+** A snapshot is only ever replaced whole, written to a temporary file then moved over the old one, so a
+** crash leaves either the old snapshot or the new one. Opening one maps the file and reads just its index;
+** the members and lines of a window are decoded from the mapping when asked for.
+**
+** File layout, big-endian, strings as an unsigned short length then UTF-8:
+**
+**   header   int magic, int version, long time saved, long time of the last line seen,
+**            string host, int port, byte TLS, string nick
+**   windows  for each window: int member count, the members (with their prefix); int line count, the lines
+**   index    int window count, then for each: string target, byte flags, string topic if flagged,
+**            string key if flagged, int offset of the members, int offset of the lines
+**   trailer  long offset of the index
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class SessionSnapshot {
+
+	/**
+	** One window to save.
+	*/
+	public static class Window {
+		public final String target;
+		public final boolean channel;
+		public final String topic;
+		public final String key;
+		public final String[] members;
+		public final String[] lines;
+
+		/**
+		** Constructor given what to save of the window.
+		** @param target The channel or nick, or null for the status window
+		** @param channel Whether it is a channel we are in
+		** @param topic The topic of the channel, or null
+		** @param key The key of the channel, or null
+		** @param members The members of the channel with their prefix, or null
+		** @param lines The last lines of the window, oldest first
+		*/
+		public Window(String target, boolean channel, String topic, String key, String[] members, String[] lines) {
+			this.target = target;
+			this.channel = channel;
+			this.topic = topic;
+			this.key = key;
+			this.members = members == null ? new String[0] : members;
+			this.lines = lines;
+		}
+	}
+
+	//Constants
+	public static final String EXTENSION = ".snapshot";
+	private static final int MAGIC = 0x53495243;
+	private static final int VERSION = 2;
+	private static final int STATUS = 1, CHANNEL = 2, TOPIC = 4, KEY = 8;
+	private static final int MAX_STRING = 65535;
+
+	//Snapshot directory, null when snapshots are turned off (-DsomewhereIRC.snapshot=false)
+	private static final File DIRECTORY = "false".equals(System.getProperty("somewhereIRC.snapshot")) ? null
+		: new File(System.getProperty("somewhereIRC.snapshotDir",
+			System.getProperty("user.home") + File.separator + ".somewhereIRC" + File.separator + "sessions"));
+
+	//Header
+	private final File file;
+	private final long savedTime, lastLineTime;
+	private final String host, nick;
+	private final int port;
+	private final boolean tls;
+
+	//Index, and the mapping the windows are decoded from
+	private final ByteBuffer buffer;
+	private final String[] targets;
+	private final byte[] flags;
+	private final String[] topics, keys;
+	private final int[] memberOffsets, lineOffsets;
+
+	/**
+	** Constructor that maps a snapshot file and reads its header and index.
+	** @param file The file
+	*/
+	public SessionSnapshot(File file) throws IOException {
+		this.file = file;
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			in.close();
+		}
+		try {
+			//Version 1 had no keys, and is read the same
+			if (buffer.getInt() != MAGIC) throw new IOException("Not a snapshot");
+			int version = buffer.getInt();
+			if (version < 1 || version > VERSION) throw new IOException("Not a snapshot of this version");
+			savedTime = buffer.getLong();
+			lastLineTime = buffer.getLong();
+			host = readString(buffer);
+			port = buffer.getInt();
+			tls = buffer.get() != 0;
+			nick = readString(buffer);
+
+			ByteBuffer index = buffer.duplicate();
+			index.position((int) buffer.getLong(buffer.limit() - 8));
+			int count = index.getInt();
+			targets = new String[count];
+			flags = new byte[count];
+			topics = new String[count];
+			keys = new String[count];
+			memberOffsets = new int[count];
+			lineOffsets = new int[count];
+			for (int i = 0; i < count; i++) {
+				targets[i] = readString(index);
+				flags[i] = index.get();
+				if ((flags[i] & TOPIC) != 0) topics[i] = readString(index);
+				if ((flags[i] & KEY) != 0) keys[i] = readString(index);
+				memberOffsets[i] = index.getInt();
+				lineOffsets[i] = index.getInt();
+				if ((flags[i] & STATUS) != 0) targets[i] = null;
+			}
+		} catch (RuntimeException e) {
+			//Cut short or garbled, the buffer reads past its end
+			throw new IOException("Damaged snapshot: " + e);
+		}
+	}
+
+	/**
+	** Returns the snapshot directory.
+	** @return the directory, or null if snapshots are turned off
+	*/
+	public static File getDirectory() {
+		return DIRECTORY;
+	}
+
+	/**
+	** Returns the file holding the snapshot of a network, whether it exists or not.
+	** @param host The hostname of the server
+	** @param port The port of the server
+	** @return the file, or null if snapshots are turned off
+	*/
+	public static File getFile(String host, int port) {
+		if (DIRECTORY == null) return null;
+		StringBuilder name = new StringBuilder();
+		for (int i = 0; i < host.length(); i++) {
+			char c = host.charAt(i);
+			name.append(Character.isLetterOrDigit(c) || c == '.' || c == '-' ? c : '_');
+		}
+		return new File(DIRECTORY, name.append('-').append(port).append(EXTENSION).toString());
+	}
+
+	/**
+	** Opens the snapshot of a network, if there is one.
+	** @param host The hostname of the server
+	** @param port The port of the server
+	** @return the snapshot, or null if there is none or it cannot be read
+	*/
+	public static SessionSnapshot open(String host, int port) {
+		File file = getFile(host, port);
+		if (file == null || !file.isFile()) return null;
+		try {
+			return new SessionSnapshot(file);
+		} catch (IOException e) {
+			System.out.println("\tERROR: Could not read the snapshot " + file + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	** Opens every snapshot in the snapshot directory, one per network the client was on when it last stopped.
+	** @return the snapshots, oldest first
+	*/
+	public static List<SessionSnapshot> openAll() {
+		ArrayList<SessionSnapshot> snapshots = new ArrayList<SessionSnapshot>();
+		File[] files = DIRECTORY == null ? null : DIRECTORY.listFiles();
+		if (files == null) return snapshots;
+		for (File file : files) {
+			if (!file.getName().endsWith(EXTENSION)) continue;
+			try {
+				SessionSnapshot snapshot = new SessionSnapshot(file);
+				int i = snapshots.size();
+				while (i > 0 && snapshots.get(i - 1).savedTime > snapshot.savedTime) i--;
+				snapshots.add(i, snapshot);
+			} catch (IOException e) {
+				System.out.println("\tERROR: Could not read the snapshot " + file + ": " + e.getMessage());
+			}
+		}
+		return snapshots;
+	}
+
+	/**
+	** Writes a snapshot, replacing the file atomically once it is complete and on disk.
+	** @param file The file
+	** @param host The hostname of the server
+	** @param port The port of the server
+	** @param tls Whether the connection uses TLS
+	** @param nick Our nick
+	** @param lastLineTime The time of the last line seen from the server
+	** @param windows The windows, the status window first
+	** @return the size of the snapshot, in bytes
+	*/
+	public static int write(File file, String host, int port, boolean tls, String nick, long lastLineTime, List<Window> windows) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		dir.mkdirs();
+		File temp = File.createTempFile(file.getName(), ".tmp", dir);
+		int size;
+		try {
+			FileOutputStream stream = new FileOutputStream(temp);
+			try {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 65536));
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(System.currentTimeMillis());
+				out.writeLong(lastLineTime);
+				writeString(out, host);
+				out.writeInt(port);
+				out.writeByte(tls ? 1 : 0);
+				writeString(out, nick == null ? "" : nick);
+
+				//The windows, noting where each part starts
+				int[] memberOffsets = new int[windows.size()], lineOffsets = new int[windows.size()];
+				for (int i = 0; i < windows.size(); i++) {
+					Window window = windows.get(i);
+					memberOffsets[i] = out.size();
+					out.writeInt(window.members.length);
+					for (String member : window.members) writeString(out, member);
+					lineOffsets[i] = out.size();
+					out.writeInt(window.lines.length);
+					for (String line : window.lines) writeString(out, line);
+				}
+
+				//The index, then where it starts
+				long index = out.size();
+				out.writeInt(windows.size());
+				for (int i = 0; i < windows.size(); i++) {
+					Window window = windows.get(i);
+					writeString(out, window.target == null ? "" : window.target);
+					out.writeByte((window.target == null ? STATUS : 0) | (window.channel ? CHANNEL : 0) | (window.topic != null ? TOPIC : 0)
+						| (window.key != null ? KEY : 0));
+					if (window.topic != null) writeString(out, window.topic);
+					if (window.key != null) writeString(out, window.key);
+					out.writeInt(memberOffsets[i]);
+					out.writeInt(lineOffsets[i]);
+				}
+				out.writeLong(index);
+				out.flush();
+				size = out.size();
+				stream.getFD().sync();
+			} finally {
+				stream.close();
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			temp.delete();
+		}
+		return size;
+	}
+
+	/**
+	** Writes a string as its UTF-8 length then bytes, cutting it short if need be.
+	*/
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		int length = bytes.length;
+		if (length > MAX_STRING) {
+			//Cut at the start of a character
+			length = MAX_STRING;
+			while ((bytes[length] & 0xC0) == 0x80) length--;
+		}
+		out.writeShort(length);
+		out.write(bytes, 0, length);
+	}
+
+	/**
+	** Reads a string written by writeString().
+	*/
+	private static String readString(ByteBuffer in) {
+		byte[] bytes = new byte[in.getShort() & 0xFFFF];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	** Decodes the strings of a list starting at an offset of the mapping.
+	*/
+	private String[] readStrings(int offset) {
+		ByteBuffer in = buffer.duplicate();
+		in.position(offset);
+		String[] strings = new String[in.getInt()];
+		for (int i = 0; i < strings.length; i++) strings[i] = readString(in);
+		return strings;
+	}
+
+	/**
+	** Returns the snapshot file.
+	** @return the file
+	*/
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	** Returns when the snapshot was written.
+	** @return the time, in milliseconds since the epoch
+	*/
+	public long getSavedTime() {
+		return savedTime;
+	}
+
+	/**
+	** Returns the time of the last line seen from the server before the snapshot was written.
+	** @return the time, in milliseconds since the epoch, 0 if none was seen
+	*/
+	public long getLastLineTime() {
+		return lastLineTime;
+	}
+
+	/**
+	** Returns the hostname of the server.
+	** @return the hostname
+	*/
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	** Returns the port of the server.
+	** @return the port
+	*/
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	** Returns whether the connection used TLS.
+	** @return true for TLS
+	*/
+	public boolean isTls() {
+		return tls;
+	}
+
+	/**
+	** Returns our nick.
+	** @return the nick, empty if we were not registered
+	*/
+	public String getNick() {
+		return nick;
+	}
+
+	/**
+	** Returns the number of windows.
+	** @return the number of windows
+	*/
+	public int getWindowCount() {
+		return targets.length;
+	}
+
+	/**
+	** Returns the target of a window.
+	** @param i The index of the window
+	** @return the channel or nick, or null for the status window
+	*/
+	public String getTarget(int i) {
+		return targets[i];
+	}
+
+	/**
+	** Returns whether a window is a channel we were in.
+	** @param i The index of the window
+	** @return true for a channel we were in
+	*/
+	public boolean isChannel(int i) {
+		return (flags[i] & CHANNEL) != 0;
+	}
+
+	/**
+	** Returns the topic of a channel.
+	** @param i The index of the window
+	** @return the topic, or null if none was known
+	*/
+	public String getTopic(int i) {
+		return topics[i];
+	}
+
+	/**
+	** Returns the key of a channel.
+	** @param i The index of the window
+	** @return the key, or null if it had none
+	*/
+	public String getKey(int i) {
+		return keys[i];
+	}
+
+	/**
+	** Decodes the members of a channel.
+	** @param i The index of the window
+	** @return the members, each with its highest prefix, empty if the window is not a channel
+	*/
+	public String[] getMembers(int i) {
+		return readStrings(memberOffsets[i]);
+	}
+
+	/**
+	** Decodes the last lines of a window.
+	** @param i The index of the window
+	** @return the lines, oldest first
+	*/
+	public String[] getLines(int i) {
+		return readStrings(lineOffsets[i]);
+	}
+
+}
@@ -0,0 +1,182 @@
+package somewhereIRC;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import java.io.IOException;
+
+/**
+** Snapshot writer class of the SomewhereIRC client.
+** Keeps what a SessionSnapshot of one connection needs that the connection does not keep itself, the last
+** lines of each window, and saves the snapshot every INTERVAL while anything changed. Saving only copies
+** the lines and members on the connection's thread, a few milliseconds for hundreds of large channels, and
+** leaves the encoding and the file to a writer thread shared by every connection; a save still running when
+** the next one is due is not waited for, the changes go with the one after.
+** Only used from the connection's thread.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class SnapshotWriter {
+
+	//Constants
+	public static final long INTERVAL = Long.getLong("somewhereIRC.snapshotInterval", 10000);
+	public static final int LINES = Integer.getInteger("somewhereIRC.snapshotLines", 200);
+
+	//Writer thread shared by every connection, so saves and deletions of a file happen in order
+	private static final ExecutorService writer = Executors.newSingleThreadExecutor(
+		new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "SomewhereIRC snapshot writer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		}
+	);
+
+	//Writer variables
+	private final File file;
+	private final AtomicBoolean writing = new AtomicBoolean(false);
+	private boolean dirty = false;
+	private volatile long lastSize = 0;
+
+	//The last lines of each window, the status window's apart
+	private final Scrollback status = new Scrollback(LINES);
+	private final SymbolTable targets = new SymbolTable(true);
+	private Scrollback[] tails = new Scrollback[16];
+
+	/**
+	** Constructor given the file to save to.
+	** @param file The snapshot file
+	*/
+	public SnapshotWriter(File file) {
+		this.file = file;
+	}
+
+	/**
+	** Notes a line shown in a window.
+	** @param target The channel or nick, or null for the status window
+	** @param text The text shown
+	*/
+	public void record(String target, String text) {
+		getTail(target).append(text);
+		dirty = true;
+	}
+
+	/**
+	** Notes the lines of a batch shown in a window.
+	** @param target The channel or nick, or null for the status window
+	** @param texts The texts shown, oldest first
+	*/
+	public void recordAll(String target, String[] texts) {
+		getTail(target).appendAll(texts);
+		dirty = true;
+	}
+
+	/**
+	** Returns the last lines of a window, keeping them from its first line on.
+	*/
+	private Scrollback getTail(String target) {
+		if (target == null) return status;
+		int symbol = targets.intern(target);
+		if (symbol >= tails.length) tails = Arrays.copyOf(tails, Math.max(tails.length * 2, symbol + 1));
+		if (tails[symbol] == null) {
+			//A window is saved for good, so its target is pinned for good
+			targets.pin(symbol);
+			tails[symbol] = new Scrollback(LINES);
+		}
+		return tails[symbol];
+	}
+
+	/**
+	** Returns whether anything changed since the last save.
+	** @return true if there is something to save
+	*/
+	public boolean isDirty() {
+		return dirty;
+	}
+
+	/**
+	** Returns the size of the last snapshot saved.
+	** @return the size, in bytes, 0 before the first save
+	*/
+	public long getLastSize() {
+		return lastSize;
+	}
+
+	/**
+	** Saves a snapshot of the connection in the background, unless the last one is still being written.
+	** @param host The hostname of the server
+	** @param port The port of the server
+	** @param tls Whether the connection uses TLS
+	** @param nick Our nick
+	** @param lastLineTime The time of the last line seen from the server
+	** @param channels The channels we are in
+	*/
+	public void save(final String host, final int port, final boolean tls, final String nick, final long lastLineTime, ChannelTracker channels) {
+		if (!writing.compareAndSet(false, true)) return;
+		dirty = false;
+
+		//Every window with lines, then the channels that have none yet
+		final ArrayList<SessionSnapshot.Window> windows = new ArrayList<SessionSnapshot.Window>();
+		windows.add(new SessionSnapshot.Window(null, false, null, null, null, linesOf(status)));
+		boolean[] saved = new boolean[tails.length];
+		for (int symbol = 0; symbol < tails.length; symbol++) {
+			if (tails[symbol] == null) continue;
+			String target = targets.get(symbol);
+			ChannelState channel = channels.getChannel(target);
+			if (channel != null) saved[symbol] = true;
+			windows.add(new SessionSnapshot.Window(target, channel != null, channel == null ? null : channel.getTopic(),
+				channel == null ? null : channel.getKey(), channel == null ? null : channels.getMembers(target), linesOf(tails[symbol])));
+		}
+		for (String name : channels.getChannelNames()) {
+			int symbol = targets.lookup(name);
+			if (symbol >= 0 && symbol < saved.length && saved[symbol]) continue;
+			ChannelState channel = channels.getChannel(name);
+			windows.add(new SessionSnapshot.Window(name, true, channel.getTopic(), channel.getKey(), channels.getMembers(name), new String[0]));
+		}
+
+		writer.execute(
+			new Runnable() {
+				public void run() {
+					try {
+						lastSize = SessionSnapshot.write(file, host, port, tls, nick, lastLineTime, windows);
+					} catch (IOException e) {
+						System.out.println("\tERROR: Could not save the snapshot " + file + ": " + e.getMessage());
+					} finally {
+						writing.set(false);
+					}
+				}
+			}
+		);
+	}
+
+	/**
+	** Deletes the snapshot once any save under way is done, for a connection that quit and should not come back.
+	*/
+	public void delete() {
+		dirty = false;
+		writer.execute(
+			new Runnable() {
+				public void run() {
+					file.delete();
+				}
+			}
+		);
+	}
+
+	/**
+	** Copies the lines of a window, oldest first.
+	*/
+	private static String[] linesOf(Scrollback tail) {
+		String[] lines = new String[tail.size()];
+		for (int i = 0; i < lines.length; i++) lines[i] = tail.get(i);
+		return lines;
+	}
+
+}
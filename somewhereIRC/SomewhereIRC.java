@@ -1,18 +1,28 @@
 package somewhereIRC;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.File;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PipedOutputStream;
-import java.io.PipedInputStream;
-import java.net.Socket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.text.SimpleDateFormat;
 
 import java.util.ArrayList;
-
-import java.awt.*;
-import java.awt.event.*;
-import javax.swing.*;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import java.lang.NumberFormatException;
 import java.io.IOException;
@@ -21,12 +31,14 @@ import java.net.UnknownHostException;
 /**
 ** Main handler class of the SomewhereIRC client.
 ** Is the top-level handler for an individual connection.
-** Will be threaded and given a shared status buffer by the main GUI.
+** Runs on a shared event loop, or on its own (virtual) threads doing blocking I/O,
+** and knows nothing of any GUI: what it has to show goes to its SessionListeners,
+** and what the user types comes back through its CommandQueue.
 **
 ** @author Philip Ng
 ** @version 1.0
 */
-public class SomewhereIRC implements Runnable {
+public class SomewhereIRC implements EventLoop.Handler {
 	//Enumerations
 	public enum Status {
 		DISCONNECTED,
@@ -40,132 +52,748 @@ public class SomewhereIRC implements Runnable {
 		SERV,
 		USER
 	}
+	public enum ExecutionMode {
+		EVENT_LOOP,
+		VIRTUAL_THREADS
+	}
+	
+	//Execution mode used when none is given, set with -DsomewhereIRC.mode=virtual
+	public static final ExecutionMode DEFAULT_MODE =
+		"virtual".equalsIgnoreCase(System.getProperty("somewhereIRC.mode")) ? ExecutionMode.VIRTUAL_THREADS : ExecutionMode.EVENT_LOOP;
 	
-	//Thread variables
-	private boolean running = true;
+	//Execution variables
+	private volatile boolean running = true;
+	private ExecutionMode mode = DEFAULT_MODE;
+	private SessionExecutor executor;
+	private EventLoop loop;
+	private VirtualThreadExecutor threads;
+	private ConnectionRegistry registry;
+	private int registryID;
 	
 	//Server variables
 	private String host;
 	private Integer port = 6667;
+	private boolean tls = false;
 	
 	//User variables (defaulted)
-	private String nick = "TestClient";
+	public static final String DEFAULT_NICK = "TestClient";
+	private String nick = DEFAULT_NICK;
 	private String ident = "Someone";
 	private String real = "Someone";
 	
 	//Socket/Connection variables
-	private Socket sock;
-	private BufferedReader in, myInput;
-	private BufferedWriter out;
+	private SocketChannel sock;
+	private SelectionKey sockKey;
+	
+	//The socket's data goes through io: the socket itself, or tlsChannel once its handshake is done
+	private ByteChannel io;
+	private TlsChannel tlsChannel;
+	private long handshakeStart;
+	private LineFramer in;
+	private ByteBuffer out = ByteBuffer.allocate(16384);
+	private OutboundQueue outbound = new OutboundQueue();
+	private boolean flushScheduled = false, throttled = false;
 	private Status connectionStatus = Status.DISCONNECTED;
+	private static final long RETRY_DELAY = 5000;
+	private static final long MAX_RETRY_DELAY = 300000;
+	private static final long SWEEP_INTERVAL = 60000;
+	private static final long PING_INTERVAL = Long.getLong("somewhereIRC.pingInterval", 60000);
+	private static final String PING_TOKEN = "lag";
+	private static final int MAX_JOIN_LENGTH = 400;
+	private Backoff backoff = new Backoff(RETRY_DELAY, MAX_RETRY_DELAY);
 	
-	//Parser variable
+	//Parser variables
 	private RawParser parser;
+	private Dispatcher incoming = new Dispatcher();
+	private Dispatcher outgoing = new Dispatcher();
+	private ChannelTracker channels = new ChannelTracker();
+	private DccManager dcc = new DccManager(this);
+	
+	//IRCv3 variables: the capabilities negotiated, and the batches being received by reference
+	private Capabilities caps = new Capabilities();
+	private HashMap<String, Batch> batches = new HashMap<String, Batch>();
+	
+	//History variables: the time of the last line seen live, and the channels to fill the gap of once rejoined
+	//(with their keys, null for none), and the keys of the channels we asked to join, by lowercase name
+	private long lastLineTime = 0;
+	private long historyFrom = 0;
+	private LinkedHashMap<String, String> rejoining = new LinkedHashMap<String, String>();
+	private HashMap<String, String> joinKeys = new HashMap<String, String>();
+	private HashSet<String> gapFilled = new HashSet<String>();
+	private SimpleDateFormat historyFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+	private SimpleDateFormat serverTimeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
 	
-	//Window variables
-	private ChatWindow statusWindow;
-	private ArrayList<Thread> windows = new ArrayList<Thread>();
+	//Metrics of this connection
+	private Metrics metrics;
 	
-	//Display variables - I should move this to threading from ChatWindow instead
-	private ArrayList<JTextArea> displays = new ArrayList<JTextArea>();
+	//Logging variable, null when logging is turned off
+	private MessageLogger logger;
 	
-	//Pipe variables
-	private PipedInputStream windowsIn = new PipedInputStream();
-	private ArrayList<PipedOutputStream> windowsOut = new ArrayList<PipedOutputStream>();
+	//Windows given their last lines by the snapshot, so they are not given them again from the log
+	private Set<String> restoredWindows = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	
+	//Highlight and ignore rules, kept current by their watcher
+	private RulesWatcher rules;
+	
+	//Snapshot of the session, saved for the next start, null when snapshots are turned off
+	private SnapshotWriter snapshot;
+	
+	//Front ends, told about everything to show
+	private final CopyOnWriteArrayList<SessionListener> listeners = new CopyOnWriteArrayList<SessionListener>();
+	
+	//Command variables
+	//The front ends offer user input to the queue, which wakes the executor up to drain it
+	private CommandQueue commands;
 	
 	/**
 	** Constructor given just the server hostname.
+	** User input is read from the console as well as from the front end.
 	** @param host The hostname of the server to connect to.
+	** @param listener The front end.
 	*/
-	public SomewhereIRC(String host) {
+	public SomewhereIRC(String host, SessionListener listener) {
 		this.host = host;
-		myInput = new BufferedReader( new InputStreamReader(System.in) );
+		listeners.add(listener);
 		parser = new RawParser();
-		init();
+		registerHandlers();
+		init(SessionSnapshot.open(host, port));
+		
+		//The console cannot be selected on, so read it from its own thread
+		Thread console = new Thread("SomewhereIRC console input") {
+			public void run() {
+				BufferedReader console = new BufferedReader( new InputStreamReader(System.in) );
+				try {
+					String line;
+					while ((line = console.readLine()) != null) commands.offer(new UserCommand(line, null));
+				} catch (IOException e) {
+					displayError("ERROR: Could not read console input.");
+				}
+			}
+		};
+		console.setDaemon(true);
+		console.start();
 	}
 	
 	/**
 	** Constructor given just the server information.
 	** @param host The hostname of the server to connect to.
 	** @param port The port number to use when connecting.
+	** @param listener The front end.
+	*/
+	public SomewhereIRC(String host, Integer port, SessionListener listener) {
+		this(host, port, DEFAULT_MODE, DEFAULT_NICK, listener);
+	}
+	
+	/**
+	** Constructor given the server information, the way the connection is executed and the nick to use.
+	** Connects with TLS on the TLS port, 6697.
+	** @param host The hostname of the server to connect to.
+	** @param port The port number to use when connecting.
+	** @param mode Whether to run on the shared event loops or on the connection's own threads.
+	** @param nick The nick to register with.
+	** @param listener The front end.
+	*/
+	public SomewhereIRC(String host, Integer port, ExecutionMode mode, String nick, SessionListener listener) {
+		this(host, port, mode, nick, port == TlsChannel.TLS_PORT, listener);
+	}
+	
+	/**
+	** Constructor given the server information, whether to use TLS, the way the connection is executed and the nick to use.
+	** @param host The hostname of the server to connect to.
+	** @param port The port number to use when connecting.
+	** @param mode Whether to run on the shared event loops or on the connection's own threads.
+	** @param nick The nick to register with.
+	** @param tls Whether to connect with TLS.
+	** @param listener The front end.
 	*/
-	public SomewhereIRC(String host, Integer port) {
+	public SomewhereIRC(String host, Integer port, ExecutionMode mode, String nick, boolean tls, SessionListener listener) {
 		this.host = host;
 		this.port = port;
-		myInput = new BufferedReader( new InputStreamReader(windowsIn) );
+		this.tls = tls;
+		this.mode = mode;
+		this.nick = nick;
+		listeners.add(listener);
 		parser = new RawParser();
-		init();
+		registerHandlers();
+		init(SessionSnapshot.open(host, port));
 	}
 	
 	/**
-	** Initializes the status window GUI.
+	** Constructor given the snapshot a session saved, on the last run of the client.
+	** The session reconnects and rejoins its channels, and meanwhile shows its windows as they were.
+	** @param restored The snapshot of the session
+	** @param mode Whether to run on the shared event loops or on the connection's own threads.
+	** @param listener The front end.
 	*/
-	private void createStatusWindow() {
-		//Initialize the pipe that the window will use to write back
-		//This will hold the read end (windowsIn)
-		PipedOutputStream fromWindow = new PipedOutputStream();
-		try {
-			fromWindow.connect(windowsIn);
-		} catch (IOException e) {
-			displayError("ERROR: Could not connect read pipe to status window.");
-		}
-		
-		//Initialize the pipe that this will use to write to the window
-		//This will hold all the write ends (windowsOut)
-		PipedInputStream toWindow = new PipedInputStream();
-		PipedOutputStream windowOut = new PipedOutputStream();
+	public SomewhereIRC(SessionSnapshot restored, ExecutionMode mode, SessionListener listener) {
+		this.host = restored.getHost();
+		this.port = restored.getPort();
+		this.tls = restored.isTls();
+		this.mode = mode;
+		if (restored.getNick().length() > 0) this.nick = restored.getNick();
+		listeners.add(listener);
+		parser = new RawParser();
+		registerHandlers();
+		init(restored);
+	}
+	
+	/**
+	** Called by the registry when this connection is added to it.
+	** @param registry The registry
+	** @param id The ID given to this connection
+	*/
+	void registered(ConnectionRegistry registry, int id) {
+		this.registry = registry;
+		this.registryID = id;
+		metrics.register(id);
+	}
+	
+	/**
+	** Constructor given an already connected socket, without any event loop.
+	** Used by the benchmarks to drive the processing path over a stubbed socket.
+	** @param host The hostname the socket is connected to.
+	** @param sock The connected socket, in blocking mode.
+	** @param listener The front end.
+	*/
+	SomewhereIRC(String host, SocketChannel sock, SessionListener listener) {
+		this.host = host;
+		this.sock = sock;
+		this.io = sock;
+		listeners.add(listener);
+		metrics = new Metrics(host);
+		rules = RulesWatcher.getDefault();
+		parser = new RawParser();
+		registerHandlers();
+		connectionStatus = Status.CONNECTED;
+	}
+	
+	/**
+	** Adds a front end. Any thread may add one, but it only hears about what happens afterwards.
+	** @param listener The front end
+	*/
+	public void addListener(SessionListener listener) {
+		listeners.add(listener);
+	}
+	
+	/**
+	** Returns the hostname of the server.
+	** @return the hostname
+	*/
+	public String getHost() {
+		return host;
+	}
+	
+	/**
+	** Returns the queue the front ends send user input through. Safe to use from any thread.
+	** @return the command queue
+	*/
+	public CommandQueue getCommandQueue() {
+		return commands;
+	}
+	
+	/**
+	** Returns the metrics of this connection.
+	** @return the metrics
+	*/
+	public Metrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	** Returns the index of the logged history, for searching it.
+	** @return the index, or null if messages are not logged or not indexed
+	*/
+	public SearchIndex getSearchIndex() {
+		return logger == null ? null : logger.getIndex();
+	}
+	
+	/**
+	** Returns the last lines logged for a channel or nick, to show in a window as it opens.
+	** A window restored from the snapshot already shows them, and gets none. Safe to call from any thread.
+	** @param target The channel or nick
+	** @param n The number of lines
+	** @return the lines as shown, each with its time, oldest first
+	*/
+	public String[] getLoggedLines(String target, int n) {
+		if (logger == null || target == null || n <= 0 || restoredWindows.remove(target)) return new String[0];
 		try {
-			windowOut.connect(toWindow);
+			List<MessageLog.Record> records = logger.getLog(host, target).readLast(n);
+			RawParser reader = new RawParser();
+			SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+			String[] texts = new String[records.size()];
+			for (int i = 0; i < texts.length; i++) {
+				MessageLog.Record record = records.get(i);
+				texts[i] = "[" + format.format(new Date(record.time)) + "] " + reader.getMessageForRawInput(record.text);
+			}
+			return texts;
 		} catch (IOException e) {
-			displayError("ERROR: Could not connect write pipe to status window.");
+			System.out.println("\tERROR: Could not read the log of " + target + ": " + e.getMessage());
+			return new String[0];
 		}
-		windowsOut.add(windowOut);
-		
-		//Create the status window
-		JTextArea display = new JTextArea();
-		displays.add(display);
-		statusWindow = new ChatWindow("Status Window for " + host, fromWindow, toWindow, display);
-		
-		Thread t = new Thread(statusWindow);
-		windows.add(t);
-		t.start();
+	}
+	
+	/**
+	** Returns the connection status.
+	** @return the status
+	*/
+	public Status getStatus() {
+		return connectionStatus;
+	}
+	
+	/**
+	** Sends a raw line (or a /command) as if the user had typed it in the status window. Safe to call from any thread.
+	** @param line The line
+	*/
+	public void send(String line) {
+		commands.offer(new UserCommand(line, null));
+	}
+	
+	/**
+	** Sets the connection status and tells the front ends.
+	** @param status The new status
+	*/
+	private void setStatus(Status status) {
+		if (connectionStatus == status) return;
+		connectionStatus = status;
+		for (SessionListener listener : listeners) listener.statusChanged(this, status);
 	}
 	
 	/**
 	** Initialization of an IRCd client session.
-	** Connects the socket, opens the streams, and establishes the user's info.
+	** Opens the command queue and tells the front ends, then hands the connection over to its executor.
+	** @param restored The snapshot to restore the session from, or null to start from nothing
 	*/
-	private void init() {
-		//Start Status Window GUI
-		createStatusWindow();
+	private void init(final SessionSnapshot restored) {
+		metrics = new Metrics(host);
+		logger = MessageLogger.getDefault();
+		rules = RulesWatcher.getDefault();
+		File file = SessionSnapshot.getFile(host, port);
+		if (file != null) snapshot = new SnapshotWriter(file);
+		if (mode == ExecutionMode.EVENT_LOOP) executor = loop = EventLoop.next();
+		else executor = threads = new VirtualThreadExecutor("SomewhereIRC " + host);
+		
+		//Open the queue the windows will use to write back, draining it on the executor
+		final Runnable drain = new Runnable() {
+			public void run() {
+				readUserInput();
+			}
+		};
+		commands = new CommandQueue(
+			new Runnable() {
+				public void run() {
+					executor.execute(drain);
+				}
+			}
+		);
 		
-		//Connect to the server
-		connectSocket();
+		//Let the front ends open their windows
+		for (SessionListener listener : listeners) listener.sessionOpened(this);
 		
-		//Establish user session
-		establishSession();
+		//Connect to the server from the executor, and show what the snapshot holds while it connects
+		executor.execute(
+			new Runnable() {
+				public void run() {
+					connectSocket();
+				}
+			}
+		);
+		if (restored != null) {
+			executor.execute(
+				new Runnable() {
+					public void run() {
+						restore(restored);
+					}
+				}
+			);
+		}
+		scheduleSweep();
+		if (snapshot != null) scheduleSnapshot();
+	}
+	
+	/**
+	** Restores the session from a snapshot: its windows show their last lines, and its channels are to be
+	** rejoined once registered and have the history since filled in. Each window is decoded from the
+	** snapshot's mapping as it is restored; the members of the channels come after every window is shown.
+	** @param restored The snapshot
+	*/
+	private void restore(final SessionSnapshot restored) {
+		long start = System.nanoTime();
+		int restoredChannels = 0;
+		for (int i = 0; i < restored.getWindowCount(); i++) {
+			String target = restored.getTarget(i);
+			if (restored.isChannel(i)) {
+				rejoining.put(target, restored.getKey(i));
+				restoredChannels++;
+			}
+			String[] texts = restored.getLines(i);
+			if (texts.length == 0) continue;
+			if (target != null) restoredWindows.add(target);
+			if (snapshot != null) snapshot.recordAll(target, texts);
+			for (SessionListener listener : listeners) listener.linesDisplayed(this, target, texts);
+		}
+		lastLineTime = Math.max(lastLineTime, restored.getLastLineTime());
+		if (historyFrom == 0) historyFrom = restored.getLastLineTime();
+		display("Restored " + restored.getWindowCount() + " windows and " + restoredChannels + " channels of " + host
+			+ " as they were at " + historyFormat.format(new Date(restored.getSavedTime())) + ", in "
+			+ (System.nanoTime() - start) / 1000000 + " ms.");
+		executor.execute(
+			new Runnable() {
+				public void run() {
+					restoreChannels(restored);
+				}
+			}
+		);
+	}
+	
+	/**
+	** Puts the channels of a snapshot back in the tracker with their topics and members, until their NAMES
+	** replies come in. A channel rejoined already keeps what the server told us.
+	** @param restored The snapshot
+	*/
+	private void restoreChannels(SessionSnapshot restored) {
+		for (int i = 0; i < restored.getWindowCount(); i++) {
+			String target = restored.getTarget(i);
+			if (restored.isChannel(i) && channels.getChannel(target) == null) channels.restore(target, restored.getTopic(i), restored.getKey(i), restored.getMembers(i));
+		}
+	}
+	
+	/**
+	** Saves a snapshot of the session every SnapshotWriter.INTERVAL while anything changed, for as long as the connection runs.
+	*/
+	private void scheduleSnapshot() {
+		executor.schedule(
+			new Runnable() {
+				public void run() {
+					if (!running) return;
+					if (snapshot.isDirty()) {
+						String self = channels.getSelf();
+						snapshot.save(host, port, tls, self != null ? self : nick, lastLineTime, channels);
+					}
+					scheduleSnapshot();
+				}
+			},
+			SnapshotWriter.INTERVAL
+		);
+	}
+	
+	/**
+	** Sweeps the symbol tables once a minute, releasing the names no longer seen, for as long as the connection runs.
+	*/
+	private void scheduleSweep() {
+		executor.schedule(
+			new Runnable() {
+				public void run() {
+					if (!running) return;
+					channels.sweep();
+					parser.getTargets().sweep();
+					scheduleSweep();
+				}
+			},
+			SWEEP_INTERVAL
+		);
 	}
 	
 	/** 
 	** Tries to connect the socket.
+	** The connector resolves and connects off this thread, then calls back on the executor.
 	*/
 	private void connectSocket() {
 		//Try to connect to the socket
-		connectionStatus = Status.CONNECTING;
-		try {
-			sock = new Socket(host,port);
-			in = new BufferedReader( new InputStreamReader(sock.getInputStream()) );
-			out = new BufferedWriter( new OutputStreamWriter(sock.getOutputStream()) );
-		} catch (Exception e) {
-			displayError("ERROR: Client could not connect to " + host + " on port " + port + ".");
-			display("Retrying connection in 5 seconds...");
+		setStatus(Status.CONNECTING);
+		Connector.connect(host, port, executor, loop,
+			new Connector.Callback() {
+				public void connected(SocketChannel channel, InetSocketAddress address) {
+					socketConnected(channel, address);
+				}
+				public void failed(String reason) {
+					connectFailed(reason);
+				}
+			}
+		);
+	}
+	
+	/**
+	** Takes over the socket the connector connected, and starts reading it.
+	** @param channel The connected socket
+	** @param address The address it is connected to
+	*/
+	private void socketConnected(final SocketChannel channel, InetSocketAddress address) {
+		if (!running) {
 			try {
-				Thread.sleep(5000);		
-			} catch (InterruptedException ie) {}
-			connectSocket();
-		} 
-		connectionStatus = Status.CONNECTED;
+				channel.close();
+			} catch (IOException e) {}
+			return;
+		}
+		sock = channel;
+		io = channel;
+		in = new LineFramer();
+		out.clear();
+		outbound.reset();
+		if (tls) {
+			try {
+				tlsChannel = new TlsChannel(channel, TlsChannel.newClientEngine(host, port));
+			} catch (IOException e) {
+				connectFailed("Could not start TLS with " + address + ": " + e.getMessage());
+				return;
+			}
+			handshakeStart = System.nanoTime();
+			scheduleHandshakeTimeout(tlsChannel);
+		}
+		if (loop != null) {
+			try {
+				sockKey = loop.register(channel, SelectionKey.OP_READ, this);
+			} catch (IOException e) {
+				connectFailed("Could not register the socket of " + address + ".");
+				return;
+			}
+			if (tlsChannel != null) continueHandshake();
+			else connected();
+		}
+		else {
+			final LineFramer reader = in;
+			final TlsChannel handshaking = tlsChannel;
+			threads.start(
+				new Runnable() {
+					public void run() {
+						if (handshaking != null && !runBlockingHandshake(channel, handshaking)) return;
+						runBlockingReader(channel, handshaking != null ? handshaking : channel, reader);
+					}
+				},
+				"reader"
+			);
+			if (handshaking == null) connected();
+		}
+	}
+	
+	/**
+	** Takes the TLS handshake of the event loop as far as it goes, then waits for the socket to be ready again.
+	** The engine's slow tasks run on the TLS pool, and the handshake carries on back on the loop once they are done,
+	** so the other connections of the loop are never held up.
+	*/
+	private void continueHandshake() {
+		final TlsChannel handshaking = tlsChannel;
+		try {
+			switch (handshaking.handshake()) {
+				case DONE:
+					sockKey.interestOps(SelectionKey.OP_READ);
+					handshakeDone();
+					
+					//The server may have spoken right after the handshake, with nothing left on the socket to wake us up
+					if (handshaking.hasPendingInput()) readServerInput();
+					break;
+				case READ:
+					sockKey.interestOps(SelectionKey.OP_READ);
+					break;
+				case WRITE:
+					sockKey.interestOps(SelectionKey.OP_WRITE);
+					break;
+				case TASK:
+					sockKey.interestOps(0);
+					handshaking.runTasks(
+						new Runnable() {
+							public void run() {
+								executor.execute(
+									new Runnable() {
+										public void run() {
+											if (tlsChannel == handshaking && io != handshaking) continueHandshake();
+										}
+									}
+								);
+							}
+						}
+					);
+					break;
+			}
+		} catch (IOException e) {
+			connectFailed("TLS handshake with " + host + " failed: " + e.getMessage());
+		}
+	}
+	
+	/**
+	** Runs the TLS handshake with blocking I/O, on the connection's reader thread.
+	** @param channel The connected socket, in blocking mode
+	** @param handshaking The TLS channel of the socket
+	** @return true if the handshake succeeded and the connection was started
+	*/
+	private boolean runBlockingHandshake(final SocketChannel channel, final TlsChannel handshaking) {
+		final boolean[] started = { false };
+		String error = null;
+		try {
+			TlsChannel.Handshake step;
+			while ((step = handshaking.handshake()) != TlsChannel.Handshake.DONE) {
+				if (step == TlsChannel.Handshake.TASK) handshaking.runTasks();
+			}
+		} catch (IOException e) {
+			error = e.getMessage();
+		}
+		final String reason = error;
+		threads.runLocked(
+			new Runnable() {
+				public void run() {
+					if (sock != channel) return;
+					if (reason != null) connectFailed("TLS handshake with " + host + " failed: " + reason);
+					else {
+						handshakeDone();
+						started[0] = true;
+					}
+				}
+			}
+		);
+		return started[0];
+	}
+	
+	/**
+	** Switches the connection's data over to TLS once the handshake is done, and starts the session.
+	*/
+	private void handshakeDone() {
+		io = tlsChannel;
+		metrics.recordTlsHandshake(System.nanoTime() - handshakeStart, tlsChannel.isResumed());
+		display("TLS session with " + host + ": " + tlsChannel.getDescription() + (tlsChannel.isResumed() ? ", resumed." : "."));
+		connected();
+	}
+	
+	/**
+	** Gives up on a TLS handshake that has not finished within the connection timeout.
+	** @param handshaking The TLS channel of the handshake
+	*/
+	private void scheduleHandshakeTimeout(final TlsChannel handshaking) {
+		executor.schedule(
+			new Runnable() {
+				public void run() {
+					if (tlsChannel == handshaking && io != handshaking) connectFailed("TLS handshake with " + host + " timed out.");
+				}
+			},
+			Connector.CONNECT_TIMEOUT
+		);
+	}
+	
+	/**
+	** Reads the socket with blocking I/O, until it is closed.
+	** Runs on the connection's reader thread, and only holds the connection's lock while handling input.
+	** @param channel The connected socket, in blocking mode
+	** @param source The socket, or its TLS channel
+	** @param reader The line framer of the socket
+	*/
+	private void runBlockingReader(final SocketChannel channel, ByteChannel source, LineFramer reader) {
+		//Keep reading until the socket is closed, from either side
+		final boolean[] open = { true };
+		Runnable handleInput = new Runnable() {
+			public void run() {
+				if (sock != channel) return;
+				drainServerInput();
+				if (!open[0]) disconnected();
+			}
+		};
+		try {
+			while (open[0]) {
+				open[0] = reader.read(source);
+				threads.runLocked(handleInput);
+			}
+		} catch (IOException e) {
+			threads.runLocked(
+				new Runnable() {
+					public void run() {
+						if (sock != channel) return;
+						displayError("ERROR: Runtime I/O error.");
+						disconnected();
+					}
+				}
+			);
+		}
+	}
+	
+	/**
+	** Marks the connection as established and starts the session.
+	*/
+	private void connected() {
+		setStatus(Status.CONNECTED);
 		display("Connected to " + host + " on port " + port + ".");
+		establishSession();
+		schedulePing(sock);
+	}
+	
+	/**
+	** Sends a PING carrying the time it was sent every PING_INTERVAL, for as long as the socket stays connected.
+	** The PONG handler turns the time into the round trip time.
+	** @param connection The socket the pings belong to
+	*/
+	private void schedulePing(final SocketChannel connection) {
+		if (PING_INTERVAL <= 0) return;
+		executor.schedule(
+			new Runnable() {
+				public void run() {
+					if (sock != connection || connectionStatus != Status.CONNECTED) return;
+					sendMessage("PING :" + PING_TOKEN + System.nanoTime(), MessageType.RAW);
+					schedulePing(connection);
+				}
+			},
+			PING_INTERVAL
+		);
+	}
+	
+	/**
+	** Reports the failed connection and schedules another try.
+	** @param reason What went wrong
+	*/
+	private void connectFailed(String reason) {
+		closeSocket();
+		displayError("ERROR: " + reason);
+		scheduleReconnect();
+	}
+	
+	/**
+	** Schedules a new connection attempt on the executor, backing off a little more each time.
+	*/
+	private void scheduleReconnect() {
+		long delay = backoff.nextDelay();
+		metrics.recordReconnect();
+		display("Retrying connection in " + (delay + 500) / 1000 + " seconds...");
+		executor.schedule(
+			new Runnable() {
+				public void run() {
+					if (running && connectionStatus == Status.DISCONNECTED) connectSocket();
+				}
+			},
+			delay
+		);
+	}
+	
+	/**
+	** Closes the socket and cancels its registration.
+	*/
+	private void closeSocket() {
+		if (sockKey != null) sockKey.cancel();
+		sockKey = null;
+		try {
+			if (tlsChannel != null) tlsChannel.close();
+			else if (sock != null) sock.close();
+		} catch (IOException e) {}
+		sock = null;
+		io = null;
+		tlsChannel = null;
+		setStatus(Status.DISCONNECTED);
+	}
+	
+	/**
+	** Handles the server closing (or losing) the connection.
+	*/
+	private void disconnected() {
+		if (sock == null) return;
+		closeSocket();
+		
+		//Batches cut short are dropped, and the channels we were in get what we miss once rejoined
+		batches.clear();
+		historyFrom = lastLineTime;
+		for (String channel : channels.getChannelNames()) rejoining.put(channel, channels.getChannel(channel).getKey());
+		display("Disconnected from " + host + ".");
+		if (running) scheduleReconnect();
+		else {
+			dcc.closeAll();
+			if (snapshot != null) snapshot.delete();
+			if (registry != null) registry.remove(registryID);
+			metrics.unregister();
+			for (SessionListener listener : listeners) listener.sessionClosed(this);
+		}
 	}
 	
 	/**
@@ -173,6 +801,9 @@ public class SomewhereIRC implements Runnable {
 	** Sends nickname, ident, and realname information over the socket.
 	*/
 	private void establishSession() {
+		//Ask for the IRCv3 capabilities first, the server holds registration until CAP END
+		sendMessage(caps.start(), MessageType.RAW);
+		
 		//Send nickname
 		sendMessage("NICK " + nick,MessageType.RAW);	
 		display("NICK " + nick);
@@ -191,12 +822,14 @@ public class SomewhereIRC implements Runnable {
 		displayDebug("Sending message: " + message);
 		switch(msgType) {
 			case RAW:
-				try {
-					out.write(message + "\n");
-					out.flush();
-				} catch (IOException e) {
+				if (connectionStatus != Status.CONNECTED) {
 					displayError("ERROR: Could not send message [" + message + "]");
+					break;
 				}
+				outbound.offer(message);
+				metrics.recordLineOut();
+				metrics.setOutboundQueueDepth(outbound.size());
+				scheduleFlush();
 				break;
 			default:
 				displayError("ERROR: Unknown message type for output.");
@@ -205,20 +838,135 @@ public class SomewhereIRC implements Runnable {
 	}
 	
 	/**
-	** Display function, sending output to the status window.
+	** Schedules a flush of the outbound queue at the end of the current loop iteration,
+	** so every line sent until then goes out in the same write.
+	*/
+	private void scheduleFlush() {
+		if (executor == null) flushOutput();
+		else if (!flushScheduled) {
+			flushScheduled = true;
+			executor.execute(
+				new Runnable() {
+					public void run() {
+						flushScheduled = false;
+						flushOutput();
+					}
+				}
+			);
+		}
+	}
+	
+	/**
+	** Writes as much of the outbound queue as flood control allows and the socket accepts.
+	** Whatever is left is written once the socket becomes writable again, or once flood control allows it.
+	*/
+	private void flushOutput() {
+		if (io == null) return;
+		try {
+			//Gather the released lines into the buffer, and keep writing while the socket takes it all
+			while (true) {
+				outbound.fill(out);
+				out.flip();
+				metrics.recordBytesOut(io.write(out));
+				boolean written = !out.hasRemaining();
+				out.compact();
+				if (!written || outbound.getDelay() != 0) break;
+			}
+			metrics.setOutboundQueueDepth(outbound.size());
+			boolean pending = out.position() > 0 || (tlsChannel != null && tlsChannel.hasPendingOutput());
+			if (sockKey != null) sockKey.interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+			
+			//Come back once flood control releases the next line
+			long delay = outbound.getDelay();
+			if (delay > 0 && executor != null && !throttled) {
+				throttled = true;
+				executor.schedule(
+					new Runnable() {
+						public void run() {
+							throttled = false;
+							flushOutput();
+						}
+					},
+					delay
+				);
+			}
+		} catch (IOException e) {
+			displayError("ERROR: Could not write to " + host + ".");
+			disconnected();
+		}
+	}
+	
+	/**
+	** Display function, sending output to the status window of the front ends.
 	** @param str The string to display
 	*/
 	private void display(String str) {
-		displays.get(0).append(str + "\n");
+		display(str, null);
+	}
+	
+	/**
+	** Display function, sending output to the window of a channel or nick in the front ends.
+	** @param str The string to display
+	** @param target The channel or nick, or null for the status window
+	*/
+	private void display(String str, String target) {
+		if (snapshot != null) snapshot.record(target, str);
+		for (SessionListener listener : listeners) listener.lineDisplayed(this, target, str);
+	}
+	
+	/**
+	** Returns the executor running this connection, for subsystems to schedule their own tasks on.
+	** @return the executor
+	*/
+	SessionExecutor getExecutor() {
+		return executor;
+	}
+	
+	/**
+	** Sends a raw line to the server, for subsystems. Only from the connection's thread.
+	** @param line The raw line
+	*/
+	void sendLine(String line) {
+		sendMessage(line, MessageType.RAW);
 	}
 	
 	/**
-	** Display function, sending output to the specified window.
+	** Shows a line in the status window, for subsystems. Only from the connection's thread.
 	** @param str The string to display
-	** @param windowID The ID of the window to display the message in
 	*/
-	private void display(String str, int windowID) {
-		displays.get(windowID).append(str + "\n");
+	void showStatus(String str) {
+		display(str);
+	}
+	
+	/**
+	** Returns our own nick as the server last told us, for subsystems. Only from the connection's thread.
+	** @return the nick, or null before registration
+	*/
+	String getSelf() {
+		return channels.getSelf();
+	}
+	
+	/**
+	** Returns whether a message comes from a user we ignore, for subsystems.
+	** @param msg The message
+	** @return true if its sender is ignored
+	*/
+	boolean isIgnored(IrcMessage msg) {
+		HighlightRules current = rules.getRules();
+		return msg.hasPrefix() && current.getIgnoreCount() > 0 && current.isIgnored(msg.getPrefix());
+	}
+	
+	/**
+	** Returns the local address of the connection to the server, the one other users can reach us on.
+	** @return the address, or null if not connected
+	*/
+	InetAddress getLocalAddress() {
+		try {
+			SocketChannel channel = sock;
+			return channel == null ? null : ((InetSocketAddress) channel.getLocalAddress()).getAddress();
+		} catch (IOException e) {
+			return null;
+		}
 	}
 	
 	/**
@@ -249,97 +997,379 @@ public class SomewhereIRC implements Runnable {
 	}
 	
 	/**
-	** Given an action ID string, perform a client action.
-	** @param actionID A string indicating the action to perform.
-	** @param actionString The string resulting in this action
+	** Registers the handlers of the client actions.
 	*/
-	private void processAction(String actionID, String actionString) {
+	private void registerHandlers() {
+		parser.registerHandlers(incoming);
+		channels.registerHandlers(incoming);
+		caps.registerHandlers(incoming);
+		dcc.registerHandlers(incoming);
+		serverTimeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		
+		//Capability negotiation
+		incoming.register(Command.CAP,
+			new Dispatcher.Handler() {
+				public void handle(IrcMessage msg) {
+					String reply = caps.reply(msg);
+					if (reply != null) sendMessage(reply, MessageType.RAW);
+				}
+			}
+		);
+		
+		//Once we joined a channel, ask for what was said before (or since we last saw it)
+		incoming.register(Command.JOIN,
+			new Dispatcher.Handler() {
+				public void handle(IrcMessage msg) {
+					if (msg.getParamCount() < 1 || !msg.hasPrefix()) return;
+					String self = channels.getSelf();
+					if (self == null || !self.equalsIgnoreCase(msg.getNick())) return;
+					String channel = msg.getParam(0);
+					boolean rejoined = rejoining.containsKey(channel);
+					
+					//Keep the key we joined with, to join again with it
+					String key = rejoining.remove(channel);
+					String asked = joinKeys.remove(channel.toLowerCase());
+					ChannelState state = channels.getChannel(channel);
+					if (state != null && (asked != null || key != null)) state.setKey(asked != null ? asked : key);
+					if (!caps.hasHistory()) return;
+					String from = "*";
+					if (rejoined && historyFrom > 0) {
+						from = "timestamp=" + serverTimeFormat.format(new Date(historyFrom));
+						gapFilled.add(channel);
+					}
+					sendMessage("CHATHISTORY LATEST " + channel + " " + from + " " + caps.getHistoryLimit(), MessageType.RAW);
+				}
+			}
+		);
+		
+		//A channel we could not rejoin (gone, full, invite only, banned, wrong key, too many channels) is dropped,
+		//so it is not tried again on every reconnection nor kept in the snapshot
+		Dispatcher.Handler joinFailed = new Dispatcher.Handler() {
+			public void handle(IrcMessage msg) {
+				if (msg.getParamCount() < 2) return;
+				String channel = msg.getParam(1);
+				joinKeys.remove(channel.toLowerCase());
+				if (!rejoining.containsKey(channel)) return;
+				rejoining.remove(channel);
+				gapFilled.remove(channel);
+				channels.forget(channel);
+				display("Could not rejoin " + channel + ": " + msg.getLastParam());
+			}
+		};
+		for (int numeric : new int[] { 403, 405, 471, 473, 474, 475 }) incoming.register(numeric, joinFailed);
+		
+		//Once registered, the next disconnection starts backing off from scratch, and the channels we were in are rejoined
+		incoming.register(1,
+			new Dispatcher.Handler() {
+				public void handle(IrcMessage msg) {
+					backoff.reset();
+					rejoin();
+					for (SessionListener listener : listeners) listener.registered(SomewhereIRC.this, channels.getSelf());
+				}
+			}
+		);
+		
+		//Round trip time of our own PINGs
+		incoming.register(Command.PONG,
+			new Dispatcher.Handler() {
+				public void handle(IrcMessage msg) {
+					String token = msg.getLastParam();
+					if (token == null || !token.startsWith(PING_TOKEN)) return;
+					try {
+						metrics.recordPing(System.nanoTime() - Long.parseLong(token.substring(PING_TOKEN.length())));
+					} catch (NumberFormatException e) {}
+				}
+			}
+		);
+		
 		//PONG action
-		if (actionID.compareTo("PONG") == 0) {
-			sendMessage( parser.getPongForPing(actionString), MessageType.RAW );
-		}
+		incoming.register(Command.PING,
+			new Dispatcher.Handler() {
+				public void handle(IrcMessage msg) {
+					sendMessage( parser.getPongForPing(msg), MessageType.RAW );
+				}
+			}
+		);
 		
-		//QUIT action
-		else if (actionID.compareTo("QUIT") == 0) running = false;
+		//JOIN with keys, the keys are kept once the server lets us in
+		outgoing.register(Command.JOIN,
+			new Dispatcher.Handler() {
+				public void handle(IrcMessage msg) {
+					if (msg.getParamCount() < 2) return;
+					String[] names = msg.getParam(0).split(",");
+					String[] keys = msg.getParam(1).split(",");
+					for (int i = 0; i < names.length && i < keys.length; i++) {
+						if (keys[i].length() > 0) joinKeys.put(names[i].toLowerCase(), keys[i]);
+					}
+				}
+			}
+		);
 		
-		//No action
-		else if (actionID.compareTo("None") == 0) return;
-		else return;
+		//QUIT action
+		outgoing.register(Command.QUIT,
+			new Dispatcher.Handler() {
+				public void handle(IrcMessage msg) {
+					running = false;
+				}
+			}
+		);
 	}
 	
 	/**
-	** Main runtime loop, processing server input unless user sends output with each iteration.
+	** Rejoins the channels we were in before the connection was lost, or before the client restarted,
+	** as many to a JOIN line as fit, so flood control lets them all out in a few lines.
+	** The channels with a key come first, the keys going in the same order after the names.
 	*/
-	private void runtimeLoop() {
-		String line;
-		try {
-		
-			//If there is no user output waiting, just keep reading server input
-			while (myInput.ready() == false) {
-			
-				//If there is server input, output it to the user
-				if (in.ready()) {
-					line = in.readLine();
-					
-					//Parse the raw input and display it
-					display( parser.getMessageForRawInput(line) );
-					
-					//Based on the input, return the action
-					processAction( parser.getActionForRawInput(line), line );
+	private void rejoin() {
+		StringBuilder join = new StringBuilder(), keys = new StringBuilder();
+		for (int pass = 0; pass < 2; pass++) {
+			for (Map.Entry<String, String> entry : rejoining.entrySet()) {
+				String channel = entry.getKey(), key = entry.getValue();
+				if ((key != null) != (pass == 0)) continue;
+				int length = channel.length() + 1 + (key == null ? 0 : key.length() + 1);
+				if (join.length() > 0 && join.length() + keys.length() + length > MAX_JOIN_LENGTH) {
+					sendMessage(join.append(keys).toString(), MessageType.RAW);
+					join.setLength(0);
+					keys.setLength(0);
 				}
-				
+				join.append(join.length() == 0 ? "JOIN " : ",").append(channel);
+				if (key != null) keys.append(keys.length() == 0 ? " " : ",").append(key);
 			}
-			
-			//Otherwise, grab the user input
-			line = myInput.readLine();
-			
-			//If it has a corresponding action in the client itself, process it
-			processAction( parser.getActionForUserInput(line), line );
-			
-			//Finally, send and display it
-			sendMessage( parser.getRawOutputForUserInput(line), MessageType.RAW );
-			//display( parser.getFormattedOutputForUserInput(line) );
-			
+		}
+		if (join.length() > 0) sendMessage(join.append(keys).toString(), MessageType.RAW);
+	}
+	
+	/**
+	** Returns the dispatcher of server input, for subsystems to register their handlers with.
+	** @return the dispatcher for server input
+	*/
+	Dispatcher getIncomingDispatcher() {
+		return incoming;
+	}
+	
+	/**
+	** Returns the dispatcher of user output, for subsystems to register their handlers with.
+	** @return the dispatcher for user output
+	*/
+	Dispatcher getOutgoingDispatcher() {
+		return outgoing;
+	}
+	
+	/**
+	** Event loop callback for the server socket.
+	** @param key The selection key of the socket
+	*/
+	public void handleReady(SelectionKey key) {
+		if (tlsChannel != null && io != tlsChannel) {
+			continueHandshake();
+			return;
+		}
+		if (key.isWritable()) flushOutput();
+		if (key.isValid() && key.isReadable()) readServerInput();
+	}
+	
+	/**
+	** Processes all the server input currently available.
+	*/
+	private void readServerInput() {
+		try {
+			//TLS may hold on to more than one read hands out
+			boolean open;
+			do {
+				open = in.read(io);
+				drainServerInput();
+			} while (open && tlsChannel != null && tlsChannel.hasPendingInput());
+			if (!open) disconnected();
 		} catch (IOException e) {
 			displayError("ERROR: Runtime I/O error.");
+			disconnected();
 		}
 	}
-
+	
 	/**
-	** Run function for this thread.
+	** Handles every complete line read so far.
 	*/
-	public void run() {
-		//OS specific adjustments - Main menu
-		final String os = System.getProperty("os.name");
-		if (os.startsWith("Mac")) {
-			System.setProperty("apple.laf.useScreenMenuBar", "true");
+	private void drainServerInput() {
+		String line;
+		long fallback = in.getFallbackLines(), dropped = in.getDroppedLines();
+		
+		//Output every complete line to the user
+		while ((line = in.nextLine()) != null) {
+			metrics.recordLineIn(in.getLastLength());
+			handleServerLine(line);
 		}
+		metrics.recordFraming(in.getFallbackLines() - fallback, in.getDroppedLines() - dropped);
+	}
 	
-		//Start the actual IRC connection and processing
-		while (running) {
-			try {
-				Thread.sleep(1000);		
-			} catch (InterruptedException e) {}
-			switch(connectionStatus) {
-				case DISCONNECTED:
-					displayDebug("DISCONNECTED");
-					init();
-					break;
-				case CONNECTED:
-					displayDebug("CONNECTED");
-					runtimeLoop();
-					break;
-				case DISCONNECTING:
-					displayDebug("DISCONNECTING");
-					break;
-				case CONNECTING:
-					displayDebug("CONNECTING");
-					break;
-				default:
-					print();
-					break;
+	/**
+	** Handles one line of server input.
+	** @param line The raw line, without its line terminator
+	*/
+	void handleServerLine(String line) {
+		//Parse the raw input and display it in the window it belongs to
+		long start = System.nanoTime();
+		IrcMessage msg = parser.parse(line);
+		String text = parser.getMessageForRawInput(line);
+		Command type = msg.getCommandType();
+		metrics.recordParse(System.nanoTime() - start);
+		long time = msg.hasTags() ? msg.getServerTime() : -1;
+		if (time < 0) time = System.currentTimeMillis();
+		
+		//Lines of a batch are held back until it ends
+		String ref = msg.hasTags() ? msg.getTag("batch") : null;
+		Batch batch = ref == null ? null : batches.get(ref);
+		if (type == Command.BATCH) {
+			handleBatch(msg, batch);
+			return;
+		}
+		if (batch == null || !batch.isHistory()) lastLineTime = Math.max(lastLineTime, time);
+		
+		//Messages of ignored users are not shown at all, and messages holding a keyword are highlighted
+		boolean ignored = false, highlight = false;
+		if ((type == Command.PRIVMSG || type == Command.NOTICE) && msg.hasPrefix()) {
+			HighlightRules current = rules.getRules();
+			ignored = current.getIgnoreCount() > 0 && current.isIgnored(msg.getPrefix());
+			highlight = !ignored && batch == null && current.getHighlightCount() > 0 && current.isHighlight(msg.getLastParam());
+		}
+		
+		if ((type == Command.QUIT || type == Command.NICK) && msg.getNick() != null) {
+			//Shown in (and logged to) every channel the user shares with us, before the tracker forgets them
+			String[] targets = channels.getChannels(msg.getNick());
+			if (targets.length == 0) targets = new String[] { null };
+			for (String target : targets) show(text, target, line, time, batch);
+		}
+		else if (!ignored) {
+			String target = parser.getTargetForRawInput(line);
+			show(text, target, line, time, batch);
+			if (highlight) {
+				for (SessionListener listener : listeners) listener.highlighted(this, target, text);
 			}
 		}
+		
+		//Based on the input, perform the client actions
+		if (batch != null) {
+			if (!batch.isHistory()) batch.dispatch(line);
+			return;
+		}
+		start = System.nanoTime();
+		incoming.dispatch( parser.parse(line) );
+		metrics.recordDispatch(System.nanoTime() - start);
+	}
+	
+	/**
+	** Displays and logs a line, or adds it to the batch it belongs to.
+	** @param text The text to show
+	** @param target The channel or nick, or null for the status window
+	** @param line The raw line
+	** @param time The time of the line
+	** @param batch The batch, or null if the line is not part of one
+	*/
+	private void show(String text, String target, String line, long time, Batch batch) {
+		if (batch != null) {
+			batch.add(text, target, line, time);
+			return;
+		}
+		display(text, target);
+		
+		//Hand it to the log writer
+		if (logger != null) logger.log(host, target, time, line);
+	}
+	
+	/**
+	** Opens or closes a batch. A batch opened inside another one adds its lines to the outer one.
+	** @param msg The BATCH message
+	** @param parent The batch the message is part of, or null
+	*/
+	private void handleBatch(IrcMessage msg, Batch parent) {
+		if (msg.getParamCount() < 1 || msg.getParam(0).length() < 2) return;
+		String ref = msg.getParam(0).substring(1);
+		if (msg.getParam(0).charAt(0) == '+') {
+			Batch batch = parent;
+			if (batch == null) batch = new Batch(msg.getParamCount() > 1 ? msg.getParam(1) : "", msg.getParamCount() > 2 ? msg.getParam(2) : null);
+			batches.put(ref, batch);
+		}
+		else if (msg.getParam(0).charAt(0) == '-') {
+			Batch batch = batches.remove(ref);
+			if (batch == null || batch == parent) return;
+			while (batches.values().remove(batch));
+			endBatch(batch);
+		}
+	}
+	
+	/**
+	** Applies a batch that ended: its lines are dispatched with the channels in bulk, so each channel
+	** changes once, and shown with one update of each window.
+	** A chathistory batch is only shown, it tells what happened before.
+	** @param batch The batch
+	*/
+	private void endBatch(Batch batch) {
+		boolean history = batch.isHistory();
+		if (!history) {
+			long start = System.nanoTime();
+			channels.beginBulk();
+			for (String line : batch.getDispatched()) incoming.dispatch( parser.parse(line) );
+			channels.endBulk();
+			metrics.recordDispatch(System.nanoTime() - start);
+		}
+		
+		//History is only logged when it fills the gap since we last saw the channel, the rest was logged then
+		boolean logged = !history || (batch.getTarget() != null && gapFilled.remove(batch.getTarget()));
+		
+		//Gather the lines of each window
+		LinkedHashMap<String, ArrayList<String>> windows = new LinkedHashMap<String, ArrayList<String>>();
+		for (int i = 0; i < batch.size(); i++) {
+			String target = batch.getTarget(i);
+			long time = batch.getTime(i);
+			ArrayList<String> texts = windows.get(target);
+			if (texts == null) {
+				texts = new ArrayList<String>();
+				windows.put(target, texts);
+			}
+			texts.add(history ? "[" + historyFormat.format(new Date(time)) + "] " + batch.getText(i) : batch.getText(i));
+		}
+		for (Map.Entry<String, ArrayList<String>> window : windows.entrySet()) {
+			String[] texts = window.getValue().toArray(new String[0]);
+			if (snapshot != null) snapshot.recordAll(window.getKey(), texts);
+			for (SessionListener listener : listeners) listener.linesDisplayed(this, window.getKey(), texts);
+		}
+		
+		//Log them once shown, so a window opened for them reads only what came before from the log
+		if (logger == null || !logged) return;
+		for (int i = 0; i < batch.size(); i++) {
+			if (!history || batch.getTime(i) > historyFrom) logger.log(host, batch.getTarget(i), batch.getTime(i), batch.getLine(i));
+		}
+	}
+	
+	/**
+	** Processes all the user input currently queued by the windows.
+	*/
+	private void readUserInput() {
+		UserCommand command;
+		commands.beginDrain();
+		while ((command = commands.poll()) != null) {
+			//DCC is negotiated by the client itself, nothing goes out as typed
+			if (command.getText().regionMatches(true, 0, "/dcc", 0, 4) && (command.getText().length() == 4 || command.getText().charAt(4) == ' ')) {
+				dcc.command(command.getText().substring(4));
+				continue;
+			}
+			String raw = parser.getRawOutputForUserInput(command.getText(), command.getTarget());
+			
+			//If it has a corresponding action in the client itself, process it
+			IrcMessage msg = parser.parse(raw);
+			outgoing.dispatch(msg);
+			
+			//Log what we say, as the server would have shown it
+			Command type = msg.getCommandType();
+			if (logger != null && (type == Command.PRIVMSG || type == Command.NOTICE)) {
+				//Under the nick the server knows us by, which may not be the one asked for
+				String self = channels.getSelf() == null ? nick : channels.getSelf();
+				logger.log(host, parser.getTargetForRawInput(raw), System.currentTimeMillis(), ":" + self + " " + raw);
+			}
+			
+			//Finally, send and display it
+			sendMessage( raw, MessageType.RAW );
+			//display( parser.getFormattedOutputForUserInput(line) );
+		}
 	}
 	
-}
\ No newline at end of file
+}
@@ -0,0 +1,201 @@
+package somewhereIRC;
+
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+
+/**
+** Swing front end class of the SomewhereIRC client.
+** Shows one session in a status window, plus a window per channel or nick opened on first use.
+** Closing the status window quits the client; closing any other window only forgets it, and the next
+** line for its channel or nick opens it again.
+** Lines are handed to the feeds of the windows' ScrollbackViews, which are safe to append to from the session's thread.
+** A window is only built on the event dispatch thread; its feed is made at once, so the lines for it are kept
+** until it shows them.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class SwingFrontEnd implements SessionListener {
+
+	//Constants
+	public static final int BACKFILL_LINES = Integer.getInteger("somewhereIRC.backfillLines", 100);
+
+	//Window variables, only used from the session's thread
+	private ArrayList<ScrollbackView.Feed> displays = new ArrayList<ScrollbackView.Feed>();
+	private SymbolTable windowTargets = new SymbolTable(true);
+	private int[] windowIDs = new int[16];
+	private boolean windows;
+
+	//The windows, by ID, only used from the event dispatch thread
+	private ArrayList<ChatWindow> chatWindows = new ArrayList<ChatWindow>();
+
+	/**
+	** Constructor for a front end opening windows.
+	*/
+	public SwingFrontEnd() {
+		windows = true;
+	}
+
+	/**
+	** Constructor for a front end showing every line in one display, without any window.
+	** Used by the benchmarks.
+	** @param display The display
+	*/
+	public SwingFrontEnd(ScrollbackView display) {
+		displays.add(display.getFeed());
+		windows = false;
+	}
+
+	/**
+	** Opens the status window.
+	** @param session The session
+	*/
+	public void sessionOpened(SomewhereIRC session) {
+		if (!windows) return;
+		Metrics.startEdtProbe();
+		openWindow(session, null);
+	}
+
+	/**
+	** Nothing to show, the session displays its own status messages.
+	*/
+	public void statusChanged(SomewhereIRC session, SomewhereIRC.Status status) {}
+
+	/**
+	** Nothing to show, the welcome is displayed like any other line.
+	*/
+	public void registered(SomewhereIRC session, String nick) {}
+
+	/**
+	** Shows a line in the window of its target.
+	** @param session The session
+	** @param target The channel or nick, or null for the status window
+	** @param text The text to show
+	*/
+	public void lineDisplayed(SomewhereIRC session, String target, String text) {
+		displays.get(getWindow(session, target)).append(text);
+	}
+
+	/**
+	** Shows the lines of a batch in the window of their target, in one go.
+	** @param session The session
+	** @param target The channel or nick, or null for the status window
+	** @param texts The texts to show
+	*/
+	public void linesDisplayed(SomewhereIRC session, String target, String[] texts) {
+		displays.get(getWindow(session, target)).appendAll(texts);
+	}
+
+	/**
+	** Draws attention to the window of a highlighted line.
+	** @param session The session
+	** @param target The channel or nick
+	** @param text The text shown
+	*/
+	public void highlighted(SomewhereIRC session, String target, String text) {
+		if (!windows) return;
+		final int id = getWindow(session, target);
+		javax.swing.SwingUtilities.invokeLater(
+			new Runnable() {
+				public void run() {
+					ChatWindow window = chatWindows.get(id);
+					if (window != null) window.highlight();
+				}
+			}
+		);
+	}
+
+	/**
+	** Leaves the windows open, so what was said can still be read.
+	*/
+	public void sessionClosed(SomewhereIRC session) {}
+
+	/**
+	** Returns the window of a channel or nick, opening it on first use.
+	** @param session The session
+	** @param target The channel or nick, or null for the status window
+	** @return the ID of the window
+	*/
+	private int getWindow(SomewhereIRC session, String target) {
+		if (target == null || !windows) return 0;
+		int symbol = windowTargets.intern(target);
+		if (symbol >= windowIDs.length) windowIDs = Arrays.copyOf(windowIDs, Math.max(windowIDs.length * 2, symbol + 1));
+		if (windowTargets.getPins(symbol) == 0) {
+			//A window stays open until the user closes it, its target pinned until then
+			windowTargets.pin(symbol);
+			windowIDs[symbol] = openWindow(session, target);
+		}
+		return windowIDs[symbol];
+	}
+
+	/**
+	** Opens a window, writing back through the session's command queue. The window itself is built
+	** on the event dispatch thread, the lines for it wait in its feed until then, after the last lines
+	** logged for its target.
+	** @param session The session
+	** @param target The channel or nick, or null for the status window
+	** @return the ID of the window
+	*/
+	private int openWindow(final SomewhereIRC session, final String target) {
+		final ScrollbackView.Feed feed = new ScrollbackView.Feed();
+		if (target != null) feed.appendAll(session.getLoggedLines(target, BACKFILL_LINES));
+		final int id = displays.size();
+		displays.add(feed);
+		final LongSupplier estimate = new LongSupplier() {
+			public long getAsLong() {
+				return feed.getMemoryEstimate();
+			}
+		};
+		session.getMetrics().addScrollback(estimate);
+		final String title = target == null ? "Status Window for " + session.getHost() : target + " on " + session.getHost();
+		final CommandQueue commands = session.getCommandQueue();
+		final SearchIndex index = session.getSearchIndex();
+		final String network = session.getHost();
+		javax.swing.SwingUtilities.invokeLater(
+			new Runnable() {
+				public void run() {
+					//Run in the order the windows were opened, so a window's ID is its place in the list
+					ChatWindow window = new ChatWindow(title, commands, target, new ScrollbackView(feed), target == null);
+					if (index != null) window.setSearchIndex(index, network);
+					if (target != null) {
+						window.addWindowListener(
+							new WindowAdapter() {
+								public void windowClosed(WindowEvent e) {
+									chatWindows.set(id, null);
+									session.getExecutor().execute(
+										new Runnable() {
+											public void run() {
+												closeWindow(session, target, id, estimate);
+											}
+										}
+									);
+								}
+							}
+						);
+					}
+					chatWindows.add(window);
+					window.run();
+				}
+			}
+		);
+		return id;
+	}
+
+	/**
+	** Forgets a window the user closed, so the next line for its target opens a new one.
+	** @param session The session
+	** @param target The channel or nick of the window
+	** @param id The ID of the window
+	** @param estimate The estimate of its scrollback memory
+	*/
+	private void closeWindow(SomewhereIRC session, String target, int id, LongSupplier estimate) {
+		int symbol = windowTargets.lookup(target);
+		if (symbol >= 0 && windowTargets.getPins(symbol) > 0 && windowIDs[symbol] == id) windowTargets.unpin(symbol);
+		displays.set(id, null);
+		session.getMetrics().removeScrollback(estimate);
+	}
+
+}
@@ -0,0 +1,339 @@
+package somewhereIRC;
+
+import java.util.Arrays;
+
+/**
+** Symbol table class of the SomewhereIRC client.
+** Maps the names that keep coming back on a connection (nicks, channels, targets) to one canonical
+** String each and a small int ID. Names are looked up straight from a range of the raw line, so a
+** name already in the table costs no allocation at all.
+**
+** Entries are released by epoch: every lookup stamps the entry with the current epoch, and sweep()
+** drops the entries that are neither pinned nor used during the last full epoch. Pinned entries
+** (for instance nicks that are members of a channel) are never dropped.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class SymbolTable {
+
+	//Whether names are compared ignoring case, and if so whether {}|~ fold with []\^ (RFC 1459)
+	private final boolean foldCase;
+	private boolean rfc1459 = true;
+
+	//Entries, indexed by ID
+	private String[] names = new String[64];
+	private int[] hashes = new int[64];
+	private int[] pins = new int[64];
+	private int[] used = new int[64];
+	private int count = 0;
+	private int[] free = new int[16];
+	private int freeCount = 0;
+
+	//Open addressing table of ID + 1 (0 for an empty slot), probed linearly
+	private int[] slots = new int[128];
+	private int size = 0;
+
+	//Current epoch
+	private int epoch = 0;
+
+	/**
+	** Constructor given how names are compared.
+	** @param foldCase Whether names differing only in case are the same name
+	*/
+	public SymbolTable(boolean foldCase) {
+		this.foldCase = foldCase;
+	}
+
+	/**
+	** Sets whether {}|~ are the lower case of []\^, as the CASEMAPPING of the server says.
+	** @param rfc1459 true for rfc1459 casemapping, false for ascii
+	*/
+	public void setRfc1459(boolean rfc1459) {
+		if (this.rfc1459 == rfc1459) return;
+		this.rfc1459 = rfc1459;
+
+		//Every hash changes, so rebuild the table
+		Arrays.fill(slots, 0);
+		for (int id = 0; id < count; id++) {
+			if (names[id] == null) continue;
+			hashes[id] = hash(names[id], 0, names[id].length());
+			insert(id);
+		}
+	}
+
+	/**
+	** Folds one character the way names are compared.
+	*/
+	private char fold(char c) {
+		if (!foldCase) return c;
+		if (c >= 'A' && c <= 'Z') return (char) (c + 32);
+		if (rfc1459 && c >= '[' && c <= '^') return (char) (c + 32);
+		return c;
+	}
+
+	/**
+	** Hashes a range of characters, folded.
+	*/
+	private int hash(CharSequence s, int start, int end) {
+		int h = 0;
+		for (int i = start; i < end; i++) h = 31 * h + fold(s.charAt(i));
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	** Returns whether an entry holds the same name as a range of characters.
+	*/
+	private boolean matches(int id, CharSequence s, int start, int end) {
+		String name = names[id];
+		if (name.length() != end - start) return false;
+		for (int i = 0; i < name.length(); i++) {
+			if (fold(name.charAt(i)) != fold(s.charAt(start + i))) return false;
+		}
+		return true;
+	}
+
+	/**
+	** Finds the slot of a name.
+	** @return the slot holding it, or the empty slot it would go in
+	*/
+	private int find(int hash, CharSequence s, int start, int end) {
+		int mask = slots.length - 1;
+		int slot = hash & mask;
+		while (slots[slot] != 0) {
+			int id = slots[slot] - 1;
+			if (hashes[id] == hash && matches(id, s, start, end)) return slot;
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	** Puts an ID in the first empty slot for its hash.
+	*/
+	private void insert(int id) {
+		int mask = slots.length - 1;
+		int slot = hashes[id] & mask;
+		while (slots[slot] != 0) slot = (slot + 1) & mask;
+		slots[slot] = id + 1;
+	}
+
+	/**
+	** Returns the ID of a name, without adding it.
+	** @param s The characters holding the name
+	** @param start The start of the name
+	** @param end The end of the name
+	** @return the ID, or -1 if the name is not in the table
+	*/
+	public int lookup(CharSequence s, int start, int end) {
+		int slot = find(hash(s, start, end), s, start, end);
+		if (slots[slot] == 0) return -1;
+		int id = slots[slot] - 1;
+		used[id] = epoch;
+		return id;
+	}
+
+	/**
+	** Returns the ID of a name, without adding it.
+	** @param name The name, or null
+	** @return the ID, or -1 if the name is null or not in the table
+	*/
+	public int lookup(String name) {
+		return name == null ? -1 : lookup(name, 0, name.length());
+	}
+
+	/**
+	** Returns the ID of a name, adding it if needed. Only a new name is copied into a String.
+	** @param s The characters holding the name
+	** @param start The start of the name
+	** @param end The end of the name
+	** @return the ID
+	*/
+	public int intern(CharSequence s, int start, int end) {
+		int hash = hash(s, start, end);
+		int slot = find(hash, s, start, end);
+		if (slots[slot] != 0) {
+			int id = slots[slot] - 1;
+			used[id] = epoch;
+			return id;
+		}
+
+		//A new entry, reusing a released ID if there is one
+		int id;
+		if (freeCount > 0) id = free[--freeCount];
+		else {
+			id = count++;
+			if (id == names.length) {
+				names = Arrays.copyOf(names, id * 2);
+				hashes = Arrays.copyOf(hashes, id * 2);
+				pins = Arrays.copyOf(pins, id * 2);
+				used = Arrays.copyOf(used, id * 2);
+			}
+		}
+		names[id] = s.subSequence(start, end).toString();
+		hashes[id] = hash;
+		pins[id] = 0;
+		used[id] = epoch;
+		slots[slot] = id + 1;
+		if (++size * 2 > slots.length) grow();
+		return id;
+	}
+
+	/**
+	** Returns the ID of a name, adding it if needed.
+	** @param name The name
+	** @return the ID
+	*/
+	public int intern(String name) {
+		return intern(name, 0, name.length());
+	}
+
+	/**
+	** Doubles the slots, once they are half full.
+	*/
+	private void grow() {
+		slots = new int[slots.length * 2];
+		for (int id = 0; id < count; id++) {
+			if (names[id] != null) insert(id);
+		}
+	}
+
+	/**
+	** Returns the canonical instance of a name.
+	** @param id The ID
+	** @return the name, or null if the ID is not in use
+	*/
+	public String get(int id) {
+		return names[id];
+	}
+
+	/**
+	** Returns the canonical instance of a range of characters, adding it if needed.
+	** @param s The characters holding the name
+	** @param start The start of the name
+	** @param end The end of the name
+	** @return the name, as first seen
+	*/
+	public String canonical(CharSequence s, int start, int end) {
+		//Interned first, it may grow the array
+		int id = intern(s, start, end);
+		return names[id];
+	}
+
+	/**
+	** Returns the largest ID given so far, plus one.
+	** @return the bound on IDs, for sizing arrays indexed by ID
+	*/
+	public int getCapacity() {
+		return count;
+	}
+
+	/**
+	** Returns the number of names in the table.
+	** @return the number of names
+	*/
+	public int size() {
+		return size;
+	}
+
+	/**
+	** Pins an entry, so sweeps leave it alone.
+	** @param id The ID
+	*/
+	public void pin(int id) {
+		pins[id]++;
+	}
+
+	/**
+	** Unpins an entry. Once no pin is left, it is dropped by the first sweep after it stops being used.
+	** @param id The ID
+	*/
+	public void unpin(int id) {
+		if (pins[id] > 0) pins[id]--;
+	}
+
+	/**
+	** Returns how many times an entry is pinned.
+	** @param id The ID
+	** @return the number of pins
+	*/
+	public int getPins(int id) {
+		return pins[id];
+	}
+
+	/**
+	** Renames an entry in place, keeping its ID and pins.
+	** Any other entry already holding the new name is removed, whatever its pins.
+	** @param id The ID
+	** @param name The new name
+	** @return the ID of the entry removed to make room, or -1 if there was none
+	*/
+	public int rename(int id, String name) {
+		removeSlot(id);
+		int hash = hash(name, 0, name.length());
+		int slot = find(hash, name, 0, name.length());
+		int taken = -1;
+		if (slots[slot] != 0) {
+			taken = slots[slot] - 1;
+			remove(taken);
+		}
+		names[id] = name;
+		hashes[id] = hash;
+		used[id] = epoch;
+		insert(id);
+		size++;
+		return taken;
+	}
+
+	/**
+	** Removes an entry now, whatever its pins.
+	** @param id The ID
+	*/
+	public void remove(int id) {
+		if (names[id] == null) return;
+		removeSlot(id);
+		names[id] = null;
+		pins[id] = 0;
+		if (freeCount == free.length) free = Arrays.copyOf(free, freeCount * 2);
+		free[freeCount++] = id;
+	}
+
+	/**
+	** Takes an entry out of the slots, shifting back the entries probed past it.
+	*/
+	private void removeSlot(int id) {
+		int mask = slots.length - 1;
+		int slot = hashes[id] & mask;
+		while (slots[slot] != id + 1) slot = (slot + 1) & mask;
+		slots[slot] = 0;
+		size--;
+		int next = (slot + 1) & mask;
+		while (slots[next] != 0) {
+			int home = hashes[slots[next] - 1] & mask;
+			//Move it back if its home is not between the hole and its current slot
+			if (((next - home) & mask) >= ((next - slot) & mask)) {
+				slots[slot] = slots[next];
+				slots[next] = 0;
+				slot = next;
+			}
+			next = (next + 1) & mask;
+		}
+	}
+
+	/**
+	** Starts a new epoch, dropping the unpinned entries not used during the last full one.
+	** @return the number of entries dropped
+	*/
+	public int sweep() {
+		int dropped = 0;
+		for (int id = 0; id < count; id++) {
+			if (names[id] != null && pins[id] == 0 && used[id] < epoch) {
+				remove(id);
+				dropped++;
+			}
+		}
+		epoch++;
+		return dropped;
+	}
+
+}
@@ -0,0 +1,413 @@
+package somewhereIRC;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.Enumeration;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManagerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+
+/**
+** TLS channel class of the SomewhereIRC client.
+** Runs TLS over a SocketChannel with an SSLEngine, blocking or not, so a TLS connection stays on
+** its event loop (or its own virtual thread) like a plain one. The handshake is driven step by step
+** by handshake(); the engine's slow tasks (certificate checks, key exchange) are run on a shared pool
+** by runTasks(), so a handshake never holds up the other connections of an event loop.
+**
+** Every client engine comes from one shared SSLContext and is created for its host and port, so the
+** context's session cache resumes TLS sessions (session tickets in TLS 1.3) and reconnecting skips
+** the full handshake. Server certificates are checked against the hostname, and against the JDK's
+** trusted certificates, or only the ones in somewhereIRC.trustStore (with somewhereIRC.trustStorePassword)
+** when it is set.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class TlsChannel implements ByteChannel {
+
+	//Enumerations
+	public enum Handshake {
+		DONE,
+		READ,
+		WRITE,
+		TASK
+	}
+
+	//Constants
+	public static final int TLS_PORT = 6697;
+	private static final int SESSION_CACHE_SIZE = 1000;
+	private static final int SESSION_TIMEOUT = 24 * 3600;
+
+	//Shared client context, created on first use
+	private static SSLContext clientContext;
+
+	//Shared pool running the engines' delegated tasks
+	private static final ExecutorService tasks = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()),
+		new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "SomewhereIRC TLS " + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		}
+	);
+
+	//Channel variables
+	private final SocketChannel channel;
+	private final SSLEngine engine;
+
+	//Encrypted bytes read but not unwrapped yet, and decrypted bytes not handed out yet
+	private final ByteBuffer netIn;
+	private final ByteBuffer appIn;
+
+	//Encrypted bytes wrapped but not written yet, guarded by itself as reader and writer may be different threads
+	private final ByteBuffer netOut;
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+	private boolean closed = false;
+	private boolean buffered = false;
+	private final long started = System.currentTimeMillis();
+
+	/**
+	** Constructor given a connected socket and the engine to run over it, starting the handshake.
+	** @param channel The connected socket
+	** @param engine The engine, in client or server mode
+	*/
+	public TlsChannel(SocketChannel channel, SSLEngine engine) throws IOException {
+		this.channel = channel;
+		this.engine = engine;
+		int packet = engine.getSession().getPacketBufferSize();
+		netIn = ByteBuffer.allocate(packet);
+		netOut = ByteBuffer.allocate(packet);
+		appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+		netOut.flip();
+		appIn.flip();
+		engine.beginHandshake();
+	}
+
+	/**
+	** Returns a client engine for a server, from the shared context.
+	** @param host The hostname of the server, checked against its certificate
+	** @param port The port of the server
+	** @return the engine
+	*/
+	public static SSLEngine newClientEngine(String host, int port) throws IOException {
+		SSLEngine engine = getClientContext().createSSLEngine(host, port);
+		engine.setUseClientMode(true);
+		SSLParameters parameters = engine.getSSLParameters();
+		parameters.setEndpointIdentificationAlgorithm("HTTPS");
+		engine.setSSLParameters(parameters);
+		return engine;
+	}
+
+	/**
+	** Returns the shared client context, creating it on first use.
+	*/
+	private static synchronized SSLContext getClientContext() throws IOException {
+		if (clientContext != null) return clientContext;
+		try {
+			SSLContext context = SSLContext.getInstance("TLS");
+			String path = System.getProperty("somewhereIRC.trustStore");
+			TrustManagerFactory trust = null;
+			if (path != null) {
+				//Trust every certificate of the store, whether stored alone or with its key
+				KeyStore store = loadKeyStore(path, System.getProperty("somewhereIRC.trustStorePassword", ""));
+				KeyStore trusted = KeyStore.getInstance(KeyStore.getDefaultType());
+				trusted.load(null, null);
+				Enumeration<String> aliases = store.aliases();
+				while (aliases.hasMoreElements()) {
+					String alias = aliases.nextElement();
+					Certificate certificate = store.getCertificate(alias);
+					if (certificate != null) trusted.setCertificateEntry(alias, certificate);
+				}
+				trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+				trust.init(trusted);
+			}
+			context.init(null, trust == null ? null : trust.getTrustManagers(), null);
+			context.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+			context.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT);
+			clientContext = context;
+			return context;
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Could not set up TLS: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	** Returns a server context holding the key and certificate of a key store, for a stand-in server.
+	** @param path The path of the key store (PKCS12 or JKS)
+	** @param password The password of the store and of its key
+	** @return the context
+	*/
+	public static SSLContext newServerContext(String path, String password) throws IOException {
+		try {
+			KeyStore store = loadKeyStore(path, password);
+			KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			keys.init(store, password.toCharArray());
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(keys.getKeyManagers(), null, null);
+			return context;
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Could not set up TLS: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	** Loads a key store, of the type its extension says.
+	*/
+	private static KeyStore loadKeyStore(String path, String password) throws IOException, GeneralSecurityException {
+		KeyStore store = KeyStore.getInstance(path.endsWith(".jks") ? "JKS" : "PKCS12");
+		InputStream in = new FileInputStream(path);
+		try {
+			store.load(in, password.toCharArray());
+		} finally {
+			in.close();
+		}
+		return store;
+	}
+
+	/**
+	** Takes the handshake as far as it can go without waiting.
+	** On a blocking socket it only comes back once done, or when a task has to run.
+	** @return DONE once the handshake is over, READ or WRITE when waiting for the socket, TASK when runTasks() has to be called
+	*/
+	public Handshake handshake() throws IOException {
+		while (true) {
+			switch (engine.getHandshakeStatus()) {
+				case NEED_TASK:
+					return Handshake.TASK;
+				case NEED_WRAP:
+					synchronized (netOut) {
+						if (!flush()) return Handshake.WRITE;
+						wrap(EMPTY);
+						if (!flush()) return Handshake.WRITE;
+					}
+					break;
+				case NEED_UNWRAP:
+				case NEED_UNWRAP_AGAIN:
+					if (!unwrap()) {
+						if (closed) throw new SSLException("Connection closed during the TLS handshake");
+						return Handshake.READ;
+					}
+					break;
+				default:
+					synchronized (netOut) {
+						if (!flush()) return Handshake.WRITE;
+					}
+					return Handshake.DONE;
+			}
+		}
+	}
+
+	/**
+	** Runs the engine's delegated tasks on the shared pool, then calls back.
+	** @param done Called on a pool thread once every task has run
+	*/
+	public void runTasks(final Runnable done) {
+		tasks.execute(
+			new Runnable() {
+				public void run() {
+					Runnable task;
+					while ((task = engine.getDelegatedTask()) != null) task.run();
+					done.run();
+				}
+			}
+		);
+	}
+
+	/**
+	** Runs the engine's delegated tasks on the calling thread.
+	*/
+	public void runTasks() {
+		Runnable task;
+		while ((task = engine.getDelegatedTask()) != null) task.run();
+	}
+
+	/**
+	** Reads from the socket once, and hands out as much decrypted data as fits.
+	** @param dst The buffer to fill
+	** @return the number of bytes handed out, maybe 0, or -1 at the end of the stream
+	*/
+	public int read(ByteBuffer dst) throws IOException {
+		if (!appIn.hasRemaining()) unwrap();
+
+		//The peer may want something back after the handshake (a key update)
+		if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) runTasks();
+		if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+			synchronized (netOut) {
+				if (flush()) wrap(EMPTY);
+				flush();
+			}
+		}
+		int count = Math.min(appIn.remaining(), dst.remaining());
+		if (count == 0) return closed && !appIn.hasRemaining() ? -1 : 0;
+		int limit = appIn.limit();
+		appIn.limit(appIn.position() + count);
+		dst.put(appIn);
+		appIn.limit(limit);
+		return count;
+	}
+
+	/**
+	** Unwraps the whole records already read, and reads the socket once if there are none.
+	** @return true if anything was unwrapped
+	*/
+	private boolean unwrap() throws IOException {
+		if (unwrapBuffered()) return true;
+		if (closed) return false;
+		if (channel.read(netIn) < 0) closed = true;
+		return unwrapBuffered();
+	}
+
+	/**
+	** Unwraps the whole records of netIn into appIn, until it is full or the engine needs something else.
+	** @return true if anything was unwrapped
+	*/
+	private boolean unwrapBuffered() throws IOException {
+		netIn.flip();
+		appIn.compact();
+		boolean unwrapped = false;
+		buffered = false;
+		try {
+			while (netIn.hasRemaining()) {
+				SSLEngineResult result = engine.unwrap(netIn, appIn);
+				if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+					closed = true;
+					break;
+				}
+				if (result.getStatus() != SSLEngineResult.Status.OK) {
+					//Either a record cut short, or appIn is full and whatever is left waits for the next read
+					buffered = result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW;
+					break;
+				}
+				unwrapped = true;
+				if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK
+					|| result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+					buffered = netIn.hasRemaining();
+					break;
+				}
+			}
+		} finally {
+			netIn.compact();
+			appIn.flip();
+		}
+		return unwrapped;
+	}
+
+	/**
+	** Returns whether data was read from the socket that read() has not handed out yet.
+	** The socket will not become readable for it, so a non-blocking reader has to read again first.
+	** @return true if a read is needed
+	*/
+	public boolean hasPendingInput() {
+		return appIn.hasRemaining() || buffered;
+	}
+
+	/**
+	** Encrypts as much of the buffer as fits in one record, and writes it.
+	** @param src The data to send
+	** @return the number of bytes taken from the buffer, which are sent or held until the next write
+	*/
+	public int write(ByteBuffer src) throws IOException {
+		synchronized (netOut) {
+			if (!flush()) return 0;
+			int count = src.hasRemaining() ? wrap(src) : 0;
+			flush();
+			return count;
+		}
+	}
+
+	/**
+	** Wraps data into netOut, which must be empty.
+	*/
+	private int wrap(ByteBuffer src) throws IOException {
+		netOut.clear();
+		try {
+			SSLEngineResult result = engine.wrap(src, netOut);
+			if (result.getStatus() == SSLEngineResult.Status.CLOSED && src.hasRemaining()) {
+				throw new SSLException("TLS connection closed");
+			}
+			return result.bytesConsumed();
+		} finally {
+			netOut.flip();
+		}
+	}
+
+	/**
+	** Writes what is left of the last record.
+	** @return true once nothing is left
+	*/
+	private boolean flush() throws IOException {
+		while (netOut.hasRemaining()) {
+			if (channel.write(netOut) == 0) return false;
+		}
+		return true;
+	}
+
+	/**
+	** Returns whether encrypted data is waiting for the socket to take it.
+	** @return true if a write is needed
+	*/
+	public boolean hasPendingOutput() {
+		synchronized (netOut) {
+			return netOut.hasRemaining();
+		}
+	}
+
+	/**
+	** Returns the protocol and cipher suite negotiated, once the handshake is done.
+	** @return the description, as TLSv1.3 TLS_AES_128_GCM_SHA256
+	*/
+	public String getDescription() {
+		return engine.getSession().getProtocol() + " " + engine.getSession().getCipherSuite();
+	}
+
+	/**
+	** Returns whether the handshake resumed an earlier session rather than negotiating a new one.
+	** A resumed session keeps the creation time of the session it resumes.
+	** @return true if the session was resumed
+	*/
+	public boolean isResumed() {
+		return engine.getSession().getCreationTime() < started;
+	}
+
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	/**
+	** Sends close_notify if it can do so at once, then closes the socket.
+	*/
+	public void close() throws IOException {
+		try {
+			engine.closeOutbound();
+			synchronized (netOut) {
+				if (flush() && !engine.isOutboundDone()) {
+					wrap(EMPTY);
+					flush();
+				}
+			}
+		} catch (IOException e) {
+		} finally {
+			channel.close();
+		}
+	}
+
+}
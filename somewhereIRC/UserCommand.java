@@ -0,0 +1,42 @@
+package somewhereIRC;
+
+/**
+** User command class of the SomewhereIRC client.
+** One line of input typed into a window, on its way to the connection.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class UserCommand {
+
+	//Command variables
+	private final String text;
+	private final String target;
+
+	/**
+	** Constructor given the input and the window it was typed into.
+	** @param text The line of input
+	** @param target The target of the window (channel or nick), or null for the status window
+	*/
+	public UserCommand(String text, String target) {
+		this.text = text;
+		this.target = target;
+	}
+
+	/**
+	** Returns the line of input.
+	** @return the line of input
+	*/
+	public String getText() {
+		return text;
+	}
+
+	/**
+	** Returns the target of the window the input was typed into.
+	** @return the target, or null for the status window
+	*/
+	public String getTarget() {
+		return target;
+	}
+
+}
@@ -0,0 +1,181 @@
+package somewhereIRC;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+** Virtual thread executor class of the SomewhereIRC client.
+** Gives a connection its own threads for blocking I/O, with a lock making sure
+** only one of them touches the connection at a time.
+** Tasks go into the connection's mailbox and are run in the order they came, by one thread at a time,
+** started when the mailbox stops being empty and gone once it is drained. Delayed tasks wait in a single
+** scheduler shared by every connection, which only posts them into the mailbox, so an idle connection
+** holds no thread but its reader.
+** Uses virtual threads when the JVM has them (Java 21 and up), and a shared pool of small daemon threads otherwise.
+**
+** @author Philip Ng
+** @version 1.0
+*/
+public class VirtualThreadExecutor implements SessionExecutor {
+
+	//Stack size of the fallback platform threads
+	private static final long FALLBACK_STACK_SIZE = 256 * 1024;
+
+	//Virtual thread factory, looked up once (Thread.ofVirtual().name(...).unstarted(...))
+	private static final Method OF_VIRTUAL, NAME, UNSTARTED;
+	static {
+		Method ofVirtual = null, name = null, unstarted = null;
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			name = builder.getMethod("name", String.class);
+			unstarted = builder.getMethod("unstarted", Runnable.class);
+		} catch (Exception e) {
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		NAME = name;
+		UNSTARTED = unstarted;
+	}
+
+	//Fallback pool draining the mailboxes when there are no virtual threads
+	private static final AtomicInteger threadCount = new AtomicInteger();
+	private static final ExecutorService fallbackPool = Executors.newCachedThreadPool(
+		new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread t = new Thread(null, task, "SomewhereIRC tasks " + threadCount.incrementAndGet(), FALLBACK_STACK_SIZE);
+				t.setDaemon(true);
+				return t;
+			}
+		}
+	);
+
+	//Scheduler shared by every connection, posting the delayed tasks into their mailboxes
+	private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+		new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread t = new Thread(task, "SomewhereIRC scheduler");
+				t.setDaemon(true);
+				return t;
+			}
+		}
+	);
+
+	//Executor variables
+	private final String name;
+	private final ReentrantLock lock = new ReentrantLock();
+
+	//Mailbox of the tasks to run in order, and whether a thread is draining it
+	private final ConcurrentLinkedQueue<Runnable> mailbox = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicBoolean draining = new AtomicBoolean(false);
+	private final Runnable drain = new Runnable() {
+		public void run() {
+			drain();
+		}
+	};
+
+	/**
+	** Constructor given the name of the connection, used to name its threads.
+	** @param name The name of the connection
+	*/
+	public VirtualThreadExecutor(String name) {
+		this.name = name;
+	}
+
+	/**
+	** Returns whether this JVM runs connections on virtual threads.
+	** @return true if virtual threads are available
+	*/
+	public static boolean isVirtual() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	** Creates and starts a thread, virtual if possible.
+	** @param task What the thread runs
+	** @param threadName The name of the thread
+	** @return the started thread
+	*/
+	public static Thread startThread(Runnable task, String threadName) {
+		Thread t = null;
+		if (OF_VIRTUAL != null) {
+			try {
+				t = (Thread) UNSTARTED.invoke(NAME.invoke(OF_VIRTUAL.invoke(null), threadName), task);
+			} catch (Exception e) {
+				t = null;
+			}
+		}
+		if (t == null) {
+			t = new Thread(null, task, threadName, FALLBACK_STACK_SIZE);
+			t.setDaemon(true);
+		}
+		t.start();
+		return t;
+	}
+
+	/**
+	** Runs a task while holding the connection's lock. Used by the connection's own blocking threads.
+	** @param task The task to run
+	*/
+	public void runLocked(Runnable task) {
+		lock.lock();
+		try {
+			task.run();
+		} catch (RuntimeException e) {
+			System.out.println("\tERROR: Connection task failed: " + e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	** Starts a thread of the connection that does not hold the lock, such as its blocking reader.
+	** @param task What the thread runs
+	** @param role What the thread does, appended to its name
+	*/
+	public void start(Runnable task, String role) {
+		startThread(task, name + " " + role);
+	}
+
+	/**
+	** Runs the tasks of the mailbox in order until it is empty.
+	*/
+	private void drain() {
+		while (true) {
+			Runnable task;
+			while ((task = mailbox.poll()) != null) runLocked(task);
+			draining.set(false);
+
+			//A task that came in after the last poll found the mailbox still being drained, and started no thread
+			if (mailbox.isEmpty() || !draining.compareAndSet(false, true)) return;
+		}
+	}
+
+	public void execute(Runnable task) {
+		mailbox.offer(task);
+		if (!draining.compareAndSet(false, true)) return;
+		if (OF_VIRTUAL != null) start(drain, "tasks");
+		else fallbackPool.execute(drain);
+	}
+
+	public void schedule(final Runnable task, long delayMillis) {
+		scheduler.schedule(
+			new Runnable() {
+				public void run() {
+					execute(task);
+				}
+			},
+			delayMillis,
+			TimeUnit.MILLISECONDS
+		);
+	}
+
+}